@@ -0,0 +1,138 @@
+
+
+
+
+
+package delivery.database;
+
+
+
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import delivery.entities.Point;
+import delivery.entities.Route;
+import delivery.entities.RouteKey;
+
+
+
+
+
+/**
+ * An ordered list of <code>{@link MapMutation}</code> to be applied on the map at once.
+ *
+ * The batch is applied by <code>{@link MapStorage#apply(MapBatch)}</code> under a single lock acquisition, as a
+ * single new map version: either all its mutations are applied, or none is.
+ */
+public class MapBatch {
+
+    private final List<MapMutation> _mutations = new ArrayList<>();
+
+
+
+
+
+    public MapBatch addPoint(Point point) {
+
+        return add(MapMutation.addPoint(point));
+    }
+
+
+
+
+
+    public MapBatch deletePoint(Point point) {
+
+        return add(MapMutation.deletePoint(point));
+    }
+
+
+
+
+
+    public MapBatch addRoute(Route route) {
+
+        return add(MapMutation.addRoute(route));
+    }
+
+
+
+
+
+    public MapBatch updateRoute(Route route) {
+
+        return add(MapMutation.updateRoute(route));
+    }
+
+
+
+
+
+    public MapBatch deleteRoute(RouteKey routeKey) {
+
+        return add(MapMutation.deleteRoute(routeKey));
+    }
+
+
+
+
+
+    public MapBatch clearMap() {
+
+        return add(MapMutation.clearMap());
+    }
+
+
+
+
+
+    public MapBatch add(MapMutation mutation) {
+
+        _mutations.add(mutation);
+        return this;
+    }
+
+
+
+
+
+    /**
+     * Returns the mutations of the batch, in the order they will be applied
+     */
+    public List<MapMutation> getMutations() {
+
+        return Collections.unmodifiableList(_mutations);
+    }
+
+
+
+
+
+    public int size() {
+
+        return _mutations.size();
+    }
+
+
+
+
+
+    public boolean isEmpty() {
+
+        return _mutations.isEmpty();
+    }
+
+
+
+
+
+    @Override
+    public String toString() {
+
+        return "MapBatch: " + _mutations;
+    }
+
+}
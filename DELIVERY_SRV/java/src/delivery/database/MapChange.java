@@ -0,0 +1,152 @@
+
+
+
+
+
+package delivery.database;
+
+
+
+
+
+import java.util.Collections;
+import java.util.List;
+
+
+
+
+
+/**
+ * A change published on the map, as received from a <code>{@link MapChangeFeed}</code>: the mutations of a new map
+ * version, in the order they were applied.
+ *
+ * A reload change means that the whole map was replaced, e.g. loaded from a file, or that the reader fell too far
+ * behind the feed: the map content is then given by <code>{@link #getSnapshot()}</code>, and the next changes apply
+ * on top of it.
+ */
+public final class MapChange {
+
+    private final long              _sequence;
+    private final long              _version;
+    private final List<MapMutation> _mutations;
+    private final boolean           _reload;
+    private final MapSnapshot       _snapshot;
+
+
+
+
+
+    private MapChange(long sequence, long version, List<MapMutation> mutations, boolean reload, MapSnapshot snapshot) {
+
+        _sequence = sequence;
+        _version = version;
+        _mutations = mutations;
+        _reload = reload;
+        _snapshot = snapshot;
+    }
+
+
+
+
+
+    static MapChange of(long sequence, long version, List<MapMutation> mutations) {
+
+        return new MapChange(sequence, version, Collections.unmodifiableList(mutations), false, null);
+    }
+
+
+
+
+
+    /**
+     * Returns a reload change as stored in the feed, without snapshot
+     */
+    static MapChange reload(long sequence, long version) {
+
+        return new MapChange(sequence, version, Collections.<MapMutation> emptyList(), true, null);
+    }
+
+
+
+
+
+    /**
+     * Returns a reload change to the given map version
+     */
+    static MapChange reload(long sequence, MapSnapshot snapshot) {
+
+        return new MapChange(sequence, snapshot.getVersion(), Collections.<MapMutation> emptyList(), true, snapshot);
+    }
+
+
+
+
+
+    /**
+     * Returns the position of the change in the feed, which is increased by one on every published change
+     */
+    public long getSequence() {
+
+        return _sequence;
+    }
+
+
+
+
+
+    /**
+     * Returns the map version published by the change
+     */
+    public long getVersion() {
+
+        return _version;
+    }
+
+
+
+
+
+    /**
+     * Returns the mutations of the change, empty for a reload
+     */
+    public List<MapMutation> getMutations() {
+
+        return _mutations;
+    }
+
+
+
+
+
+    /**
+     * Returns true when the whole map is replaced by the snapshot of the change
+     */
+    public boolean isReload() {
+
+        return _reload;
+    }
+
+
+
+
+
+    /**
+     * Returns the map content of a reload change, or <code>null</code> for the other changes
+     */
+    public MapSnapshot getSnapshot() {
+
+        return _snapshot;
+    }
+
+
+
+
+
+    @Override
+    public String toString() {
+
+        return "MapChange: Sequence=" + _sequence + ", Version=" + _version
+               + (_reload ? ", Reload" : ", Mutations=" + _mutations);
+    }
+
+}
@@ -0,0 +1,416 @@
+
+
+
+
+
+package delivery.database;
+
+
+
+
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Supplier;
+
+
+
+
+
+/***************************************************************************************
+ *
+ * The ordered feed of the changes published on a map, for the structures derived from it (caches, indexes, external
+ * mirrors) to follow the map without polling it.
+ *
+ * The storage adds each published version to a ring buffer, which takes constant time and never waits for the
+ * readers. Each reader follows the feed at its own pace with a <code>{@link Cursor}</code>, or receives the changes
+ * in a background thread with <code>{@link #subscribe(Listener)}</code>. A reader that falls behind by more than the
+ * ring capacity receives a reload change with the current map instead of the changes it missed.
+ *
+ * To start from a consistent map, a reader first creates its cursor and then reads the current snapshot of the
+ * storage: the changes already included in the snapshot are those with a version not newer than the snapshot one.
+ *
+ ***************************************************************************************/
+public final class MapChangeFeed {
+
+    /**
+     * Receives the changes of the feed, in order, in a background thread
+     */
+    public interface Listener {
+
+        void onChange(MapChange change);
+    }
+
+    /**
+     * The default number of changes kept in the feed
+     */
+    public static final int                       DEFAULT_CAPACITY = 4096;
+
+    private static final long                     LISTENER_POLL    = 1000;
+
+    private final AtomicReferenceArray<MapChange> _ring;
+    private final int                             _mask;
+    private final Supplier<MapSnapshot>           _current;
+
+    // the last change added, only replaced by the map writers
+    private volatile MapChange                    _last;
+
+    // readers waiting for a change
+    private final Object                          _signal          = new Object();
+    private final AtomicInteger                   _waiters         = new AtomicInteger();
+
+
+
+
+
+    /**
+     * Creates an empty feed
+     *
+     * @param current
+     *            Gives the current map, for the reload changes
+     * @param capacity
+     *            The number of changes kept, rounded up to a power of two
+     */
+    MapChangeFeed(Supplier<MapSnapshot> current, int capacity) {
+
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        _ring = new AtomicReferenceArray<>(size);
+        _mask = size - 1;
+        _current = current;
+        _last = MapChange.of(0, current.get().getVersion(), Collections.<MapMutation> emptyList());
+    }
+
+
+
+
+
+    /**
+     * Adds the mutations of a published version.
+     * Must be called by the map writers, in order, after the version is published.
+     */
+    void publish(long version, List<MapMutation> mutations) {
+
+        add(MapChange.of(_last.getSequence() + 1, version, mutations));
+    }
+
+
+
+
+
+    /**
+     * Adds a change where the whole map was replaced by the given version.
+     * Must be called by the map writers, after the version is published.
+     */
+    void reload(long version) {
+
+        add(MapChange.reload(_last.getSequence() + 1, version));
+    }
+
+
+
+
+
+    private void add(MapChange change) {
+
+        _ring.set((int) (change.getSequence() & _mask), change);
+        _last = change;
+
+        if (_waiters.get() > 0) {
+            synchronized (_signal) {
+                _signal.notifyAll();
+            }
+        }
+    }
+
+
+
+
+
+    /**
+     * Returns the sequence of the last change added to the feed
+     */
+    public long getSequence() {
+
+        return _last.getSequence();
+    }
+
+
+
+
+
+    /**
+     * Returns a cursor positioned after the last change added, i.e. it returns the changes added from now on
+     */
+    public Cursor cursor() {
+
+        return new Cursor(_last);
+    }
+
+
+
+
+
+    /**
+     * Returns a cursor positioned after the change that published the given version, i.e. it returns the changes
+     * newer than that version, when they are all still kept in the feed
+     *
+     * @return The cursor, or <code>null</code> when the version is not in the feed
+     */
+    public Cursor cursor(long version) {
+
+        MapChange last = _last;
+        if (last.getVersion() == version) {
+            return new Cursor(last);
+        }
+        long oldest = Math.max(1, last.getSequence() - _mask);
+        for (long sequence = last.getSequence(); sequence >= oldest; sequence--) {
+            MapChange change = _ring.get((int) (sequence & _mask));
+            if (change == null || change.getSequence() != sequence || change.getVersion() < version) {
+                // overwritten meanwhile, or the version was skipped by a reload
+                return null;
+            }
+            if (change.getVersion() == version) {
+                return new Cursor(change);
+            }
+        }
+        return null;
+    }
+
+
+
+
+
+    /**
+     * Delivers the changes added from now on to the listener, in order, in a background thread.
+     * The exceptions thrown by the listener do not stop the delivery: they are counted, and the last one is kept, by
+     * <code>{@link Subscription#getFailureCount()}</code> and <code>{@link Subscription#getFailure()}</code>.
+     *
+     * @return The subscription, to be closed to stop the delivery
+     */
+    public Subscription subscribe(Listener listener) {
+
+        return new Subscription(cursor(), listener);
+    }
+
+
+
+
+
+    /**
+     * Reads the changes of the feed in order, from a position. A cursor is used by a single thread.
+     */
+    public final class Cursor {
+
+        private long _sequence;
+        private long _version;
+
+
+
+
+
+        private Cursor(MapChange position) {
+
+            _sequence = position.getSequence();
+            _version = position.getVersion();
+        }
+
+
+
+
+
+        /**
+         * Returns the next change, or <code>null</code> when there is no new change
+         */
+        public MapChange poll() {
+
+            while (true) {
+                MapChange last = _last;
+                if (last.getSequence() <= _sequence) {
+                    return null;
+                }
+
+                MapChange change = _ring.get((int) ((_sequence + 1) & _mask));
+                if (change == null || change.getSequence() != _sequence + 1) {
+                    // overwritten, the changes since the cursor position are lost
+                    return resync(last.getSequence());
+                }
+                _sequence = change.getSequence();
+
+                if (change.getVersion() <= _version) {
+                    // already included in the snapshot of a previous reload
+                    continue;
+                }
+                if (change.isReload()) {
+                    return resync(change.getSequence());
+                }
+                _version = change.getVersion();
+                return change;
+            }
+        }
+
+
+
+
+
+        /**
+         * Returns the next change, waiting for it up to the given time
+         *
+         * @return The next change, or <code>null</code> when there is no new change after the given time
+         */
+        public MapChange poll(long timeout, TimeUnit unit) throws InterruptedException {
+
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            MapChange change = poll();
+            while (change == null) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return null;
+                }
+                _waiters.incrementAndGet();
+                try {
+                    synchronized (_signal) {
+                        if (_last.getSequence() <= _sequence) {
+                            TimeUnit.NANOSECONDS.timedWait(_signal, remaining);
+                        }
+                    }
+                } finally {
+                    _waiters.decrementAndGet();
+                }
+                change = poll();
+            }
+            return change;
+        }
+
+
+
+
+
+        /**
+         * Returns the version of the last change returned, or of the map when the cursor was created
+         */
+        public long getVersion() {
+
+            return _version;
+        }
+
+
+
+
+
+        /**
+         * Moves the cursor to the given sequence, and returns a reload with the current map, which includes at least
+         * all the changes up to that sequence
+         */
+        private MapChange resync(long sequence) {
+
+            MapSnapshot snapshot = _current.get();
+            _sequence = sequence;
+            _version = snapshot.getVersion();
+            return MapChange.reload(sequence, snapshot);
+        }
+    }
+
+
+
+
+
+    /**
+     * Delivers the changes of a cursor to a listener, in a background thread
+     */
+    public static final class Subscription implements Closeable {
+
+        private final Cursor       _cursor;
+        private final Listener     _listener;
+        private final Thread       _thread;
+        private volatile boolean   _closed;
+
+        // only written by the delivery thread
+        private volatile long      _failures;
+        private volatile Exception _failure;
+
+
+
+
+
+        private Subscription(Cursor cursor, Listener listener) {
+
+            _cursor = cursor;
+            _listener = listener;
+            _thread = new Thread(this::deliver, "map-change-listener");
+            _thread.setDaemon(true);
+            _thread.start();
+        }
+
+
+
+
+
+        private void deliver() {
+
+            while (!_closed) {
+                MapChange change;
+                try {
+                    change = _cursor.poll(LISTENER_POLL, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    continue;
+                }
+                if (change == null || _closed) {
+                    continue;
+                }
+                try {
+                    _listener.onChange(change);
+                } catch (RuntimeException e) {
+                    // the next changes are still delivered
+                    _failure = e;
+                    _failures++;
+                }
+            }
+        }
+
+
+
+
+
+        /**
+         * Returns the number of changes whose listener failed
+         */
+        public long getFailureCount() {
+
+            return _failures;
+        }
+
+
+
+
+
+        /**
+         * Returns the last failure of the listener, or <code>null</code> when it never failed
+         */
+        public Exception getFailure() {
+
+            return _failure;
+        }
+
+
+
+
+
+        /**
+         * Stops the delivery. The change being delivered, if any, is completed.
+         */
+        @Override
+        public void close() {
+
+            _closed = true;
+            _thread.interrupt();
+        }
+    }
+
+}
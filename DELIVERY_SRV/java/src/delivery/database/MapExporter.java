@@ -0,0 +1,281 @@
+
+
+
+
+
+package delivery.database;
+
+
+
+
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import delivery.database.persistence.MutationCodec;
+import delivery.entities.Point;
+import delivery.entities.Route;
+
+
+
+
+
+/***************************************************************************************
+ *
+ * Writes a map version to a stream, as it is read: the memory used does not depend on the size of the map, and no
+ * intermediate object is created per point or route, apart from the ones read from an off-heap map.
+ *
+ * Two formats are available, both read by <code>{@link MapImporter}</code>:
+ * - text: the format of <code>default-map.txt</code>, one point name per line, a blank line, and one route per line
+ * as <code>from,to,time,cost</code>.
+ * - binary: a header followed by the points and the routes, with the names in modified UTF-8 prefixed by their length
+ * and the numbers as variable length ints (see <code>{@link MutationCodec}</code>).
+ *
+ * <pre>
+ *   header   magic, format (4 bytes each), map version (8 bytes), points n, routes m (4 bytes each)
+ *   points   n x name
+ *   routes   m x from name, to name, time, cost
+ * </pre>
+ *
+ ***************************************************************************************/
+public final class MapExporter {
+
+    static final int         MAGIC       = 0x444D4558;  // "DMEX"
+    static final int         FORMAT      = 1;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+
+
+
+
+    // Prevent instantiation
+    private MapExporter() {}
+
+
+
+
+
+    /**
+     * Writes the map in the text format, in UTF-8. The stream is flushed, not closed.
+     */
+    public static void writeText(MapSnapshot map, OutputStream out) throws IOException {
+
+        TextWriter writer = new TextWriter(out);
+        for (Point p : map.getPoints()) {
+            writer.name(p.getName());
+            writer.newLine();
+        }
+        writer.newLine();
+        for (Route r : map.getRoutes().values()) {
+            writer.name(r.getFromPoint().getName());
+            writer.comma();
+            writer.name(r.getToPoint().getName());
+            writer.comma();
+            writer.number(r.getTime());
+            writer.comma();
+            writer.number(r.getCost());
+            writer.newLine();
+        }
+        writer.flush();
+    }
+
+
+
+
+
+    /**
+     * Writes the map in the binary format. The stream is flushed, not closed.
+     */
+    public static void writeBinary(MapSnapshot map, OutputStream out) throws IOException {
+
+        DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+        data.writeInt(MAGIC);
+        data.writeInt(FORMAT);
+        data.writeLong(map.getVersion());
+        data.writeInt(map.getPointCount());
+        data.writeInt(map.getRouteCount());
+        for (Point p : map.getPoints()) {
+            data.writeUTF(p.getName());
+        }
+        for (Route r : map.getRoutes().values()) {
+            data.writeUTF(r.getFromPoint().getName());
+            data.writeUTF(r.getToPoint().getName());
+            MutationCodec.writeVarInt(data, r.getTime());
+            MutationCodec.writeVarInt(data, r.getCost());
+        }
+        data.flush();
+    }
+
+
+
+
+
+    /**
+     * Adds the points and routes of a map in the binary format to the batch, once its magic number was read
+     */
+    static void readBinary(DataInputStream in, MapBatch batch) throws IOException {
+
+        int format = in.readInt();
+        if (format != FORMAT) {
+            throw new IOException("Unsupported map export format: " + format);
+        }
+        in.readLong();
+        int points = in.readInt();
+        int routes = in.readInt();
+        if (points < 0 || routes < 0) {
+            throw new IOException("Corrupted map export");
+        }
+        for (int i = 0; i < points; i++) {
+            batch.addPoint(new Point(in.readUTF()));
+        }
+        for (int i = 0; i < routes; i++) {
+            Point from = new Point(in.readUTF());
+            Point to = new Point(in.readUTF());
+            int time = MutationCodec.readVarInt(in);
+            int cost = MutationCodec.readVarInt(in);
+            batch.addRoute(new Route(from, to, time, cost));
+        }
+    }
+
+
+
+
+
+    /**
+     * Encodes the text format in a reused byte buffer
+     */
+    private static final class TextWriter {
+
+        private final OutputStream _out;
+        private final byte[]       _buffer = new byte[BUFFER_SIZE];
+        private int                _size;
+
+
+
+
+
+        TextWriter(OutputStream out) {
+
+            _out = out;
+        }
+
+
+
+
+
+        void name(String name) throws IOException {
+
+            int length = name.length();
+            for (int i = 0; i < length; i++) {
+                char c = name.charAt(i);
+                if (c >= 0x80) {
+                    // not ASCII, rare enough to be encoded by the JDK
+                    bytes(name.getBytes(StandardCharsets.UTF_8));
+                    return;
+                }
+            }
+            for (int i = 0; i < length; i++) {
+                if (_size == _buffer.length) {
+                    drain();
+                }
+                _buffer[_size++] = (byte) name.charAt(i);
+            }
+        }
+
+
+
+
+
+        void number(int value) throws IOException {
+
+            if (_buffer.length - _size < 11) {
+                drain();
+            }
+            if (value < 0) {
+                _buffer[_size++] = '-';
+            }
+            // the digits of the absolute value, in reverse order, as negative numbers to handle Integer.MIN_VALUE
+            int v = value < 0 ? value : -value;
+            int start = _size;
+            do {
+                _buffer[_size++] = (byte) ('0' - v % 10);
+                v /= 10;
+            } while (v != 0);
+            for (int i = start, j = _size - 1; i < j; i++, j--) {
+                byte b = _buffer[i];
+                _buffer[i] = _buffer[j];
+                _buffer[j] = b;
+            }
+        }
+
+
+
+
+
+        void comma() throws IOException {
+
+            put(',');
+        }
+
+
+
+
+
+        void newLine() throws IOException {
+
+            put('\n');
+        }
+
+
+
+
+
+        void flush() throws IOException {
+
+            drain();
+            _out.flush();
+        }
+
+
+
+
+
+        private void put(char c) throws IOException {
+
+            if (_size == _buffer.length) {
+                drain();
+            }
+            _buffer[_size++] = (byte) c;
+        }
+
+
+
+
+
+        private void bytes(byte[] bytes) throws IOException {
+
+            for (byte b : bytes) {
+                if (_size == _buffer.length) {
+                    drain();
+                }
+                _buffer[_size++] = b;
+            }
+        }
+
+
+
+
+
+        private void drain() throws IOException {
+
+            _out.write(_buffer, 0, _size);
+            _size = 0;
+        }
+    }
+
+}
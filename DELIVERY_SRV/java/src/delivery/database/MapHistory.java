@@ -0,0 +1,202 @@
+
+
+
+
+
+package delivery.database;
+
+
+
+
+
+/***************************************************************************************
+ *
+ * The last versions of a map, with the time they were published, to read the map as it was at a given time.
+ *
+ * The versions are <code>{@link MapSnapshot}</code>s, which share all their unchanged data: each retained version only
+ * takes the memory of its own changes. A map moved off the heap is the exception, since the versions before a move
+ * keep the previous buffer.
+ *
+ * The retention is bounded by a number of versions and by an age. The version that was current at the end of the
+ * retention age is kept as well, so the map can be read at any time in that age, as long as the number of versions is
+ * not exceeded.
+ *
+ ***************************************************************************************/
+final class MapHistory {
+
+    private long[]        _times    = new long[16];
+    private MapSnapshot[] _versions = new MapSnapshot[16];
+
+    // ring of the retained versions, from the oldest one
+    private int           _first;
+    private int           _size;
+
+    private int           _maxVersions;
+    private long          _maxAge;
+
+
+
+
+
+    MapHistory(int maxVersions, long maxAge) {
+
+        setRetention(maxVersions, maxAge);
+    }
+
+
+
+
+
+    /**
+     * Changes the retention, applied from the next added version
+     *
+     * @param maxVersions
+     *            The maximum number of versions, at least 1
+     * @param maxAge
+     *            The maximum age of the versions, in milliseconds
+     */
+    synchronized void setRetention(int maxVersions, long maxAge) {
+
+        if (maxVersions < 1 || maxAge < 0) {
+            throw new IllegalArgumentException("Invalid map history retention: " + maxVersions + " versions, "
+                                               + maxAge + " ms");
+        }
+        _maxVersions = maxVersions;
+        _maxAge = maxAge;
+    }
+
+
+
+
+
+    /**
+     * Adds the version published at the given time, in milliseconds since the epoch
+     */
+    synchronized void add(long time, MapSnapshot version) {
+
+        // the times are kept ordered even if the clock goes backwards
+        long published = _size == 0 ? time : Math.max(time, timeAt(_size - 1));
+
+        if (_size == _versions.length && _size < _maxVersions) {
+            int capacity = (int) Math.min((long) _size * 2, _maxVersions);
+            long[] times = new long[capacity];
+            MapSnapshot[] versions = new MapSnapshot[capacity];
+            for (int i = 0; i < _size; i++) {
+                times[i] = timeAt(i);
+                versions[i] = versionAt(i);
+            }
+            _times = times;
+            _versions = versions;
+            _first = 0;
+        }
+        while (_size >= Math.min(_maxVersions, _versions.length)) {
+            removeFirst();
+        }
+        int index = (_first + _size) % _versions.length;
+        _times[index] = published;
+        _versions[index] = version;
+        _size++;
+
+        // drops the versions replaced before the retention age
+        long oldest = published - _maxAge;
+        while (_size > 1 && timeAt(1) <= oldest) {
+            removeFirst();
+        }
+    }
+
+
+
+
+
+    /**
+     * Returns the version that was current at the given time, in milliseconds since the epoch, or <code>null</code>
+     * when the time is before the oldest retained version
+     */
+    synchronized MapSnapshot at(long time) {
+
+        if (_size == 0 || time < timeAt(0)) {
+            return null;
+        }
+        // the last version published at or before the time
+        int low = 0;
+        int high = _size - 1;
+        while (low < high) {
+            int middle = (low + high + 1) >>> 1;
+            if (timeAt(middle) <= time) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return versionAt(low);
+    }
+
+
+
+
+
+    /**
+     * Returns the retained version of the map with the given version number, or <code>null</code> when it is not
+     * retained
+     */
+    synchronized MapSnapshot version(long version) {
+
+        // the version numbers increase with the times
+        int low = 0;
+        int high = _size - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            long v = versionAt(middle).getVersion();
+            if (v < version) {
+                low = middle + 1;
+            } else if (v > version) {
+                high = middle - 1;
+            } else {
+                return versionAt(middle);
+            }
+        }
+        return null;
+    }
+
+
+
+
+
+    /**
+     * Returns the number of retained versions
+     */
+    synchronized int size() {
+
+        return _size;
+    }
+
+
+
+
+
+    private void removeFirst() {
+
+        _versions[_first] = null;
+        _first = (_first + 1) % _versions.length;
+        _size--;
+    }
+
+
+
+
+
+    private long timeAt(int i) {
+
+        return _times[(_first + i) % _times.length];
+    }
+
+
+
+
+
+    private MapSnapshot versionAt(int i) {
+
+        return _versions[(_first + i) % _versions.length];
+    }
+
+}
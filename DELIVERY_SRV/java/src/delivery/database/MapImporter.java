@@ -0,0 +1,500 @@
+
+
+
+
+
+package delivery.database;
+
+
+
+
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import delivery.entities.Point;
+import delivery.entities.Route;
+
+
+
+
+
+/***************************************************************************************
+ *
+ * Reads a map from a text file into a <code>{@link MapBatch}</code>, to be applied on the map as a single version.
+ *
+ * The file has one point name per line, and one route per line as <code>from,to,time,cost</code>, with the fields
+ * separated by commas (CSV) or tabs (TSV), as in <code>default-map.txt</code>. The blank lines are ignored, and the
+ * points of the routes that are not listed are added too, so a plain list of routes can also be imported.
+ *
+ * The file is memory-mapped and split in chunks at line boundaries, which are parsed in parallel. The lines are
+ * parsed in place, as bytes: no <code>String</code> is created per line, only one per distinct point name in each
+ * chunk, and the numbers are parsed without intermediate objects.
+ *
+ * The files in the binary format of <code>{@link MapExporter}</code> are recognized and read too.
+ *
+ ***************************************************************************************/
+public final class MapImporter {
+
+    /**
+     * The default size of the chunks parsed in parallel
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 8 << 20;
+
+    private static final int MAX_LINE          = 64 << 10;
+
+    private final int        _chunkSize;
+
+
+
+
+
+    public MapImporter() {
+
+        this(DEFAULT_CHUNK_SIZE);
+    }
+
+
+
+
+
+    /**
+     * @param chunkSize
+     *            The size of the chunks parsed in parallel, in bytes
+     */
+    public MapImporter(int chunkSize) {
+
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("The chunk size must be positive: " + chunkSize);
+        }
+        _chunkSize = chunkSize;
+    }
+
+
+
+
+
+    /**
+     * Adds the points and routes of the file to the batch: first all the points, in the order they appear, and then all
+     * the routes, in the order they appear.
+     *
+     * @return The given batch
+     *
+     * @throws IOException
+     *             When the file can not be read, or has an invalid line
+     */
+    public MapBatch read(Path file, MapBatch batch) throws IOException {
+
+        List<Chunk> chunks;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(4);
+            if (channel.read(magic, 0) == 4 && magic.getInt(0) == MapExporter.MAGIC) {
+                channel.position(4);
+                MapExporter.readBinary(new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel),
+                                                                                   1 << 16)),
+                                       batch);
+                return batch;
+            }
+
+            List<long[]> ranges = split(channel);
+            try {
+                chunks = ranges.parallelStream().map(range -> parse(channel, range[0], range[1]))
+                               .collect(Collectors.toList());
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+
+        // the points are shared by name across the chunks, with the order of the file
+        Map<String, Point> points = new LinkedHashMap<>();
+        for (Chunk chunk : chunks) {
+            for (String name : chunk._points) {
+                points.computeIfAbsent(name, Point::new);
+            }
+        }
+        for (Chunk chunk : chunks) {
+            for (int i = 0; i < chunk._routeCount; i++) {
+                points.computeIfAbsent(chunk._from[i], Point::new);
+                points.computeIfAbsent(chunk._to[i], Point::new);
+            }
+        }
+
+        for (Point p : points.values()) {
+            batch.addPoint(p);
+        }
+        for (Chunk chunk : chunks) {
+            for (int i = 0; i < chunk._routeCount; i++) {
+                batch.addRoute(new Route(points.get(chunk._from[i]), points.get(chunk._to[i]), chunk._times[i],
+                                         chunk._costs[i]));
+            }
+        }
+        return batch;
+    }
+
+
+
+
+
+    /**
+     * Adds the points and routes read from the stream to the batch, once fully copied to a temporary file
+     *
+     * @see #read(Path, MapBatch)
+     */
+    public MapBatch read(InputStream in, MapBatch batch) throws IOException {
+
+        Path file = Files.createTempFile("map-import", ".csv");
+        try {
+            Files.copy(in, file, StandardCopyOption.REPLACE_EXISTING);
+            return read(file, batch);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+
+
+
+
+    /**
+     * Splits the file in ranges of about the chunk size, each one ending after a line break or at the end of the file
+     */
+    private List<long[]> split(FileChannel channel) throws IOException {
+
+        long size = channel.size();
+        List<long[]> ranges = new ArrayList<>();
+        ByteBuffer probe = ByteBuffer.allocate(4096);
+        long start = 0;
+        while (start < size) {
+            long end = Math.min(start + _chunkSize, size);
+            // moves the end after the next line break
+            while (end < size) {
+                probe.clear();
+                int read = channel.read(probe, end);
+                int i = 0;
+                while (i < read && probe.get(i) != '\n') {
+                    i++;
+                }
+                end += i;
+                if (i < read) {
+                    end++;
+                    break;
+                }
+            }
+            ranges.add(new long[] { start, end });
+            start = end;
+        }
+        return ranges;
+    }
+
+
+
+
+
+    private Chunk parse(FileChannel channel, long start, long end) {
+
+        try {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+            Chunk chunk = new Chunk(start);
+            chunk.parse(buffer);
+            return chunk;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+
+
+
+
+    /**
+     * The points and routes of a chunk of the file, in columns
+     */
+    private static final class Chunk {
+
+        private final long         _offset;
+        private final List<String> _points     = new ArrayList<>();
+        private String[]           _from       = new String[1024];
+        private String[]           _to         = new String[1024];
+        private int[]              _times      = new int[1024];
+        private int[]              _costs      = new int[1024];
+        private int                _routeCount;
+
+        // the names already decoded in the chunk, by their bytes
+        private String[]           _names      = new String[1024];
+        private int                _nameCount;
+
+        // the fields of the current line: start and end of each one
+        private final int[]        _fields     = new int[8];
+        private final byte[]       _scratch    = new byte[256];
+
+
+
+
+
+        Chunk(long offset) {
+
+            _offset = offset;
+        }
+
+
+
+
+
+        void parse(ByteBuffer buffer) throws IOException {
+
+            int position = 0;
+            int limit = buffer.limit();
+            if (_offset == 0 && limit >= 3 && buffer.get(0) == (byte) 0xEF && buffer.get(1) == (byte) 0xBB
+                && buffer.get(2) == (byte) 0xBF) {
+                // UTF-8 byte order mark
+                position = 3;
+            }
+
+            while (position < limit) {
+                int lineEnd = position;
+                while (lineEnd < limit && buffer.get(lineEnd) != '\n') {
+                    lineEnd++;
+                }
+                if (lineEnd - position > MAX_LINE) {
+                    throw invalid(buffer, position, "Line too long");
+                }
+                parseLine(buffer, position, lineEnd);
+                position = lineEnd + 1;
+            }
+        }
+
+
+
+
+
+        private void parseLine(ByteBuffer buffer, int start, int end) throws IOException {
+
+            if (end > start && buffer.get(end - 1) == '\r') {
+                end--;
+            }
+
+            // splits the line on the first separator found, comma or tab
+            byte separator = 0;
+            int fieldCount = 0;
+            int fieldStart = start;
+            for (int i = start; i < end; i++) {
+                byte b = buffer.get(i);
+                if (b == ',' || b == '\t') {
+                    if (separator == 0) {
+                        separator = b;
+                    }
+                    if (b == separator) {
+                        if (fieldCount == 3) {
+                            throw invalid(buffer, start, "Too many fields");
+                        }
+                        _fields[2 * fieldCount] = fieldStart;
+                        _fields[2 * fieldCount + 1] = i;
+                        fieldCount++;
+                        fieldStart = i + 1;
+                    }
+                }
+            }
+            _fields[2 * fieldCount] = fieldStart;
+            _fields[2 * fieldCount + 1] = end;
+            fieldCount++;
+            for (int f = 0; f < fieldCount; f++) {
+                trim(buffer, f);
+            }
+
+            if (fieldCount == 1) {
+                if (_fields[0] < _fields[1]) {
+                    _points.add(name(buffer, _fields[0], _fields[1]));
+                }
+                return;
+            }
+            if (fieldCount != 4 || _fields[0] == _fields[1] || _fields[2] == _fields[3]) {
+                throw invalid(buffer, start, "A route must be from,to,time,cost");
+            }
+
+            if (_routeCount == _from.length) {
+                int capacity = _routeCount * 2;
+                _from = Arrays.copyOf(_from, capacity);
+                _to = Arrays.copyOf(_to, capacity);
+                _times = Arrays.copyOf(_times, capacity);
+                _costs = Arrays.copyOf(_costs, capacity);
+            }
+            _from[_routeCount] = name(buffer, _fields[0], _fields[1]);
+            _to[_routeCount] = name(buffer, _fields[2], _fields[3]);
+            _times[_routeCount] = number(buffer, _fields[4], _fields[5], start);
+            _costs[_routeCount] = number(buffer, _fields[6], _fields[7], start);
+            _routeCount++;
+        }
+
+
+
+
+
+        private void trim(ByteBuffer buffer, int field) {
+
+            int start = _fields[2 * field];
+            int end = _fields[2 * field + 1];
+            while (start < end && buffer.get(start) == ' ') {
+                start++;
+            }
+            while (end > start && buffer.get(end - 1) == ' ') {
+                end--;
+            }
+            _fields[2 * field] = start;
+            _fields[2 * field + 1] = end;
+        }
+
+
+
+
+
+        private int number(ByteBuffer buffer, int start, int end, int lineStart) throws IOException {
+
+            boolean negative = start < end && buffer.get(start) == '-';
+            int i = negative ? start + 1 : start;
+            if (i == end || end - i > 10) {
+                throw invalid(buffer, lineStart, "Invalid number");
+            }
+            long value = 0;
+            for (; i < end; i++) {
+                int digit = buffer.get(i) - '0';
+                if (digit < 0 || digit > 9) {
+                    throw invalid(buffer, lineStart, "Invalid number");
+                }
+                value = value * 10 + digit;
+            }
+            value = negative ? -value : value;
+            if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+                throw invalid(buffer, lineStart, "Invalid number");
+            }
+            return (int) value;
+        }
+
+
+
+
+
+        /**
+         * Returns the name stored in the given bytes, decoded once per chunk
+         */
+        private String name(ByteBuffer buffer, int start, int end) {
+
+            int hash = 1;
+            for (int i = start; i < end; i++) {
+                hash = 31 * hash + buffer.get(i);
+            }
+            hash ^= hash >>> 16;
+
+            int mask = _names.length - 1;
+            int slot = hash & mask;
+            for (String name = _names[slot]; name != null; name = _names[slot]) {
+                if (nameEquals(name, buffer, start, end)) {
+                    return name;
+                }
+                slot = (slot + 1) & mask;
+            }
+
+            String name = decode(buffer, start, end);
+            _names[slot] = name;
+            if (++_nameCount * 2 > _names.length) {
+                rehash();
+            }
+            return name;
+        }
+
+
+
+
+
+        private boolean nameEquals(String name, ByteBuffer buffer, int start, int end) {
+
+            int length = end - start;
+            if (name.length() > length) {
+                return false;
+            }
+            // ASCII names are compared char by char, the others are decoded
+            for (int i = 0; i < length; i++) {
+                byte b = buffer.get(start + i);
+                if (b < 0) {
+                    return name.equals(decode(buffer, start, end));
+                }
+                if (i >= name.length() || name.charAt(i) != b) {
+                    return false;
+                }
+            }
+            return name.length() == length;
+        }
+
+
+
+
+
+        private String decode(ByteBuffer buffer, int start, int end) {
+
+            int length = end - start;
+            byte[] bytes = length <= _scratch.length ? _scratch : new byte[length];
+            for (int i = 0; i < length; i++) {
+                bytes[i] = buffer.get(start + i);
+            }
+            return new String(bytes, 0, length, StandardCharsets.UTF_8);
+        }
+
+
+
+
+
+        private void rehash() {
+
+            String[] names = _names;
+            _names = new String[names.length * 2];
+            int mask = _names.length - 1;
+            for (String name : names) {
+                if (name != null) {
+                    byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+                    int hash = 1;
+                    for (byte b : bytes) {
+                        hash = 31 * hash + b;
+                    }
+                    hash ^= hash >>> 16;
+                    int slot = hash & mask;
+                    while (_names[slot] != null) {
+                        slot = (slot + 1) & mask;
+                    }
+                    _names[slot] = name;
+                }
+            }
+        }
+
+
+
+
+
+        private IOException invalid(ByteBuffer buffer, int lineStart, String message) {
+
+            int end = lineStart;
+            while (end < buffer.limit() && buffer.get(end) != '\n' && end - lineStart < 80) {
+                end++;
+            }
+            return new IOException(message + " at byte " + (_offset + lineStart) + ": "
+                                   + decode(buffer, lineStart, end).trim());
+        }
+    }
+
+}
@@ -0,0 +1,169 @@
+
+
+
+
+
+package delivery.database;
+
+
+
+
+
+import delivery.entities.Point;
+import delivery.entities.Route;
+import delivery.entities.RouteKey;
+
+
+
+
+
+/**
+ * A single change on the map: adding or deleting a point, adding, updating or deleting a route, or clearing the map.
+ * Mutations are immutable and are applied in order by <code>{@link MapStorage#apply(MapBatch)}</code>.
+ */
+public final class MapMutation {
+
+    public enum Type {
+        ADD_POINT, DELETE_POINT, ADD_ROUTE, UPDATE_ROUTE, DELETE_ROUTE, CLEAR_MAP
+    }
+
+    private static final MapMutation CLEAR = new MapMutation(Type.CLEAR_MAP, null, null, null);
+
+    private final Type               _type;
+    private final Point              _point;
+    private final Route              _route;
+    private final RouteKey           _routeKey;
+
+
+
+
+
+    private MapMutation(Type type, Point point, Route route, RouteKey routeKey) {
+
+        _type = type;
+        _point = point;
+        _route = route;
+        _routeKey = routeKey;
+    }
+
+
+
+
+
+    public static MapMutation addPoint(Point point) {
+
+        return new MapMutation(Type.ADD_POINT, point, null, null);
+    }
+
+
+
+
+
+    public static MapMutation deletePoint(Point point) {
+
+        return new MapMutation(Type.DELETE_POINT, point, null, null);
+    }
+
+
+
+
+
+    public static MapMutation addRoute(Route route) {
+
+        return new MapMutation(Type.ADD_ROUTE, null, route, new RouteKey(route.getFromPoint(), route.getToPoint()));
+    }
+
+
+
+
+
+    public static MapMutation updateRoute(Route route) {
+
+        return new MapMutation(Type.UPDATE_ROUTE, null, route, new RouteKey(route.getFromPoint(), route.getToPoint()));
+    }
+
+
+
+
+
+    public static MapMutation deleteRoute(RouteKey routeKey) {
+
+        return new MapMutation(Type.DELETE_ROUTE, null, null, routeKey);
+    }
+
+
+
+
+
+    public static MapMutation clearMap() {
+
+        return CLEAR;
+    }
+
+
+
+
+
+    public Type getType() {
+
+        return _type;
+    }
+
+
+
+
+
+    /**
+     * Returns the point of a point mutation, <code>null</code> for the other types
+     */
+    public Point getPoint() {
+
+        return _point;
+    }
+
+
+
+
+
+    /**
+     * Returns the route that is added or updated, <code>null</code> for the other types
+     */
+    public Route getRoute() {
+
+        return _route;
+    }
+
+
+
+
+
+    /**
+     * Returns the key of the route of a route mutation, <code>null</code> for the other types
+     */
+    public RouteKey getRouteKey() {
+
+        return _routeKey;
+    }
+
+
+
+
+
+    @Override
+    public String toString() {
+
+        switch (_type) {
+            case ADD_POINT:
+            case DELETE_POINT:
+                return _type + " " + _point;
+            case ADD_ROUTE:
+            case UPDATE_ROUTE:
+                return _type + " " + _route;
+            case DELETE_ROUTE:
+                return _type + " " + _routeKey;
+            default:
+                return _type.toString();
+        }
+    }
+
+}
@@ -0,0 +1,488 @@
+
+
+
+
+
+package delivery.database;
+
+
+
+
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+import delivery.database.persistence.JdbcMapPersistence;
+import delivery.database.persistence.MapPersistence;
+import delivery.database.persistence.WriteAheadLog;
+import delivery.database.replication.ReplicationFollower;
+import delivery.database.replication.ReplicationLeader;
+import delivery.exceptions.ExistingMapException;
+import delivery.exceptions.MapNotFoundException;
+import delivery.exceptions.StorageException;
+
+
+
+
+
+/***************************************************************************************
+ *
+ * The maps hosted by the service, each one in its own <code>{@link MapStorage}</code>, by id.
+ * The maps are fully isolated: they have their own snapshots, writer lock and persistence backend, so the changes
+ * of a map never wait for, nor invalidate, the ones of another map.
+ *
+ * There is always a default map, with the id {@value #DEFAULT_MAP}, which can not be deleted.
+ * When persistence is enabled, the maps are stored with the same backend:
+ * - in a storage directory, the default map is stored in the directory itself and the other maps in
+ * <code>maps/{mapId}</code> sub-directories.
+ * - in a database, all the maps are stored in the same tables, by id.
+ * The stored maps are recovered when the registry is created.
+ *
+ * The maps can be replicated to other nodes, to scale the reads: a leader node accepts the changes and ships them over
+ * TCP to its followers (see <code>{@link #startLeader(int)}</code>), whose maps only serve the reads (see
+ * <code>{@link #follow(String, int)}</code>). Each map of a follower replicates the map with the same id on the leader,
+ * so the named maps must also be created on the followers. The replication is started from the system properties
+ * <code>delivery.replication.port</code> on the leader and <code>delivery.replication.leader</code> on the followers.
+ *
+ * Next steps:
+ * - Unload the maps that are not used, and load them again on demand.
+ *
+ ***************************************************************************************/
+public final class MapRegistry implements Closeable {
+
+    /**
+     * The id of the default map
+     */
+    public static final String                               DEFAULT_MAP = "default";
+
+    // the map ids are also used as directory names
+    private static final Pattern                             MAP_ID      = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+    private static final String                              MAPS_DIR    = "maps";
+
+    private final Path                                       _storageDir;
+    private final String                                     _jdbcUrl;
+    private final boolean                                    _offHeap;
+
+    // Map storages by id. Changed while holding the registry monitor, read without locking
+    private final ConcurrentMap<String, MapStorage>          _maps       = new ConcurrentHashMap<>();
+
+    // Replication of the maps, changed while holding the registry monitor
+    private volatile ReplicationLeader                       _leader;
+    private final ConcurrentMap<String, ReplicationFollower> _followers  = new ConcurrentHashMap<>();
+    private String                                           _leaderHost;
+    private int                                              _leaderPort;
+
+    // Singleton object
+    private static volatile MapRegistry                      _instance;
+
+
+
+
+
+    /**
+     * Creates a registry and recovers the maps stored in its backend, if any.
+     *
+     * @param storageDir
+     *            The directory where the maps are stored, or <code>null</code>
+     * @param jdbcUrl
+     *            The JDBC URL of the database where the maps are stored, or <code>null</code>. When given, the
+     *            storage directory is ignored.
+     * @param offHeap
+     *            True to keep the maps out of the Java heap
+     *
+     * @throws IOException
+     *             When the stored maps can not be read
+     */
+    public MapRegistry(Path storageDir, String jdbcUrl, boolean offHeap) throws IOException {
+
+        _storageDir = storageDir;
+        _jdbcUrl = jdbcUrl;
+        _offHeap = offHeap;
+
+        try {
+            _maps.put(DEFAULT_MAP, open(DEFAULT_MAP));
+            for (String mapId : storedMapIds()) {
+                if (!_maps.containsKey(mapId)) {
+                    _maps.put(mapId, open(mapId));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+
+
+
+
+    /**
+     * Retrieve the registry of the service, configured by the system properties of
+     * <code>{@link MapStorage}</code>.
+     *
+     * @throws StorageException
+     *             When the stored maps can not be read
+     */
+    public static MapRegistry getInstance() {
+
+        if (_instance == null) {
+            synchronized (MapRegistry.class) {
+                if (_instance == null) {
+                    String dir = System.getProperty(MapStorage.STORAGE_DIR_PROPERTY);
+                    MapRegistry registry;
+                    try {
+                        registry = new MapRegistry(dir == null ? null : Paths.get(dir),
+                                                   System.getProperty(MapStorage.JDBC_URL_PROPERTY),
+                                                   Boolean.getBoolean(MapStorage.OFF_HEAP_PROPERTY));
+                    } catch (IOException e) {
+                        throw new StorageException("Unable to load the stored maps", e);
+                    }
+                    startReplication(registry);
+                    _instance = registry;
+                }
+            }
+        }
+        return _instance;
+    }
+
+
+
+
+
+    /**
+     * Starts the replication configured by the system properties, if any
+     */
+    private static void startReplication(MapRegistry registry) {
+
+        Integer port = Integer.getInteger(ReplicationLeader.PORT_PROPERTY);
+        String leader = System.getProperty(ReplicationFollower.LEADER_PROPERTY);
+        try {
+            if (port != null) {
+                registry.startLeader(port);
+            }
+            if (leader != null) {
+                int separator = leader.lastIndexOf(':');
+                if (separator < 0) {
+                    throw new IllegalArgumentException("The leader address [" + leader + "] is not host:port");
+                }
+                registry.follow(leader.substring(0, separator), Integer.parseInt(leader.substring(separator + 1)));
+            }
+        } catch (IOException | RuntimeException e) {
+            try {
+                registry.close();
+            } catch (IOException closeError) {
+                e.addSuppressed(closeError);
+            }
+            throw new StorageException("Unable to start the replication of the maps", e);
+        }
+    }
+
+
+
+
+
+    /**
+     * Returns the default map, which always exists
+     */
+    public MapStorage getDefaultMap() {
+
+        return _maps.get(DEFAULT_MAP);
+    }
+
+
+
+
+
+    /**
+     * Returns the map with the given id, or <code>null</code> if it does not exist
+     */
+    public MapStorage getMap(String mapId) {
+
+        return mapId == null ? null : _maps.get(mapId);
+    }
+
+
+
+
+
+    /**
+     * Returns the ids of all the maps, sorted
+     */
+    public Set<String> getMapIds() {
+
+        return Collections.unmodifiableSet(new TreeSet<>(_maps.keySet()));
+    }
+
+
+
+
+
+    /**
+     * Creates a new empty map.
+     *
+     * @param mapId
+     *            The id of the map: up to 64 letters, digits, '_' or '-'
+     *
+     * @throws ExistingMapException
+     *             When there is already a map with the given id
+     * @throws IOException
+     *             When the storage of the map can not be created
+     * @throws IllegalArgumentException
+     *             When the id is not valid
+     */
+    public synchronized MapStorage createMap(String mapId) throws ExistingMapException, IOException {
+
+        if (mapId == null || !MAP_ID.matcher(mapId).matches()) {
+            throw new IllegalArgumentException("The map id [" + mapId + "] is not valid");
+        }
+        if (_maps.containsKey(mapId)) {
+            throw new ExistingMapException("Map " + mapId + " already exists.");
+        }
+        MapStorage storage = open(mapId);
+        _maps.put(mapId, storage);
+        if (_leaderHost != null) {
+            _followers.put(mapId, new ReplicationFollower(storage, _leaderHost, _leaderPort));
+        }
+        return storage;
+    }
+
+
+
+
+
+    /**
+     * Deletes a map, along with its stored data.
+     *
+     * @throws MapNotFoundException
+     *             When there is no map with the given id
+     * @throws IOException
+     *             When the stored data can not be deleted. The map is removed from the registry anyway.
+     * @throws IllegalArgumentException
+     *             When the map is the default one
+     */
+    public synchronized void deleteMap(String mapId) throws MapNotFoundException, IOException {
+
+        if (DEFAULT_MAP.equals(mapId)) {
+            throw new IllegalArgumentException("The default map can not be deleted");
+        }
+        MapStorage storage = _maps.remove(mapId);
+        if (storage == null) {
+            throw new MapNotFoundException("The Map [" + mapId + "] does not exist");
+        }
+        ReplicationFollower follower = _followers.remove(mapId);
+        if (follower != null) {
+            follower.close();
+        }
+        storage.deletePersistence();
+    }
+
+
+
+
+
+    /**
+     * Starts shipping the changes of all the maps to the followers that connect on the given port
+     *
+     * @param port
+     *            The TCP port, or 0 for any free port
+     *
+     * @return The leader, to get its port and followers
+     *
+     * @throws IOException
+     *             When the port can not be opened
+     * @throws IllegalStateException
+     *             When the registry is already a leader
+     */
+    public synchronized ReplicationLeader startLeader(int port) throws IOException {
+
+        if (_leader != null) {
+            throw new IllegalStateException("The maps are already replicated on port " + _leader.getPort());
+        }
+        _leader = new ReplicationLeader(this, port);
+        return _leader;
+    }
+
+
+
+
+
+    /**
+     * Returns the leader shipping the changes of the maps, or <code>null</code> when the registry is not a leader
+     */
+    public ReplicationLeader getLeader() {
+
+        return _leader;
+    }
+
+
+
+
+
+    /**
+     * Makes all the maps, including the ones created later, replicas of the maps with the same id on the given
+     * leader. The replicas reject the local changes, and apply the ones received from the leader in background.
+     *
+     * @throws IllegalStateException
+     *             When the maps are persisted, since a replica is rebuilt from its leader, or already replicas
+     */
+    public synchronized void follow(String host, int port) {
+
+        if (_storageDir != null || _jdbcUrl != null) {
+            throw new IllegalStateException("Persisted maps can not be replicas");
+        }
+        if (_leaderHost != null) {
+            throw new IllegalStateException("The maps already follow " + _leaderHost + ":" + _leaderPort);
+        }
+        _leaderHost = host;
+        _leaderPort = port;
+        for (MapStorage storage : _maps.values()) {
+            _followers.put(storage.getMapId(), new ReplicationFollower(storage, host, port));
+        }
+    }
+
+
+
+
+
+    /**
+     * Returns the replication of the given map from the leader, or <code>null</code> when the map is not a replica
+     */
+    public ReplicationFollower getFollower(String mapId) {
+
+        return mapId == null ? null : _followers.get(mapId);
+    }
+
+
+
+
+
+    /**
+     * Returns an estimate of the memory taken by all the maps, in bytes
+     *
+     * @see MapStorage#getMemoryUsage()
+     */
+    public long getMemoryUsage() {
+
+        long bytes = 0;
+        for (MapStorage storage : _maps.values()) {
+            bytes += storage.getMemoryUsage();
+        }
+        return bytes;
+    }
+
+
+
+
+
+    /**
+     * Stops the replication, and persisting the changes of all the maps after all the pending ones are stored
+     */
+    @Override
+    public synchronized void close() throws IOException {
+
+        IOException failure = null;
+        if (_leader != null) {
+            try {
+                _leader.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+            _leader = null;
+        }
+        for (ReplicationFollower follower : _followers.values()) {
+            try {
+                follower.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        _followers.clear();
+        _leaderHost = null;
+        for (MapStorage storage : _maps.values()) {
+            try {
+                storage.disablePersistence();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+
+
+
+
+    /**
+     * Creates the storage of a map, recovering its stored data
+     */
+    private MapStorage open(String mapId) throws IOException {
+
+        MapStorage storage = new MapStorage(mapId);
+        MapPersistence persistence = persistence(mapId);
+        if (persistence != null) {
+            storage.enablePersistence(persistence);
+        }
+        if (_offHeap) {
+            storage.enableOffHeap();
+        }
+        return storage;
+    }
+
+
+
+
+
+    private MapPersistence persistence(String mapId) {
+
+        if (_jdbcUrl != null) {
+            return new JdbcMapPersistence(_jdbcUrl, mapId, new Properties(), JdbcMapPersistence.DEFAULT_FLUSH_INTERVAL);
+        }
+        if (_storageDir != null) {
+            Path dir = DEFAULT_MAP.equals(mapId) ? _storageDir : _storageDir.resolve(MAPS_DIR).resolve(mapId);
+            return new WriteAheadLog(dir, WriteAheadLog.DEFAULT_COMPACTION_THRESHOLD);
+        }
+        return null;
+    }
+
+
+
+
+
+    /**
+     * Returns the ids of the maps stored in the backend
+     */
+    private Set<String> storedMapIds() throws IOException {
+
+        if (_jdbcUrl != null) {
+            return JdbcMapPersistence.storedMaps(_jdbcUrl, new Properties());
+        }
+        Set<String> mapIds = new LinkedHashSet<>();
+        if (_storageDir != null && Files.isDirectory(_storageDir.resolve(MAPS_DIR))) {
+            try (DirectoryStream<Path> dirs = Files.newDirectoryStream(_storageDir.resolve(MAPS_DIR),
+                                                                       Files::isDirectory)) {
+                for (Path dir : dirs) {
+                    String mapId = dir.getFileName().toString();
+                    if (MAP_ID.matcher(mapId).matches()) {
+                        mapIds.add(mapId);
+                    }
+                }
+            }
+        }
+        return mapIds;
+    }
+
+}
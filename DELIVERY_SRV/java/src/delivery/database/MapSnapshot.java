@@ -0,0 +1,747 @@
+
+
+
+
+
+package delivery.database;
+
+
+
+
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.Predicate;
+
+import delivery.database.persistence.MappedMap;
+import delivery.entities.Point;
+import delivery.entities.Route;
+import delivery.entities.RouteKey;
+
+
+
+
+
+/***************************************************************************************
+ *
+ * An immutable version of the map: the points and routes at a given moment.
+ *
+ * A snapshot is never changed after being published by the <code>{@link MapStorage}</code>, so it can be read
+ * by any number of threads without locking, and it always holds a consistent set of points and routes.
+ * Each change on the map creates a new snapshot that shares the unchanged data with the previous one,
+ * and the storage tags it with the next version when publishing it.
+ *
+ * Besides the routes by key, the snapshot indexes the outgoing and incoming routes of each point,
+ * so the neighbours of a point are found in O(degree) instead of scanning all the routes.
+ *
+ * A snapshot can also be based on a read-only <code>{@link MappedMap}</code>, either a map file or a direct buffer
+ * out of the Java heap, which is queried in place. The changes made over the base are kept in the in-memory
+ * structures, which then hold the added and updated points and routes, and a marker for the deleted ones.
+ *
+ ***************************************************************************************/
+public final class MapSnapshot {
+
+    static final MapSnapshot   EMPTY         = new MapSnapshot(0, null);
+
+    // markers of the points and routes of the base that were deleted
+    private static final Point REMOVED_POINT = new Point((String) null);
+    private static final Route REMOVED_ROUTE = new Route(REMOVED_POINT, REMOVED_POINT, 0, 0);
+
+    // approximate heap taken by a point or a route in the in-memory structures, with their index entries
+    private static final int   POINT_BYTES   = 96;
+    private static final int   ROUTE_BYTES   = 288;
+
+    private final long                                                       _version;
+    private final PersistentHashMap<String, Point>                           _points;
+    private final PersistentHashMap<RouteKey, Route>                         _routes;
+
+    // adjacency index: point name -> (neighbour point name -> route)
+    private final PersistentHashMap<String, PersistentHashMap<String, Route>> _outgoing;
+    private final PersistentHashMap<String, PersistentHashMap<String, Route>> _incoming;
+
+    // when not null, the map content is read from this base and the structures above only hold the changes over it
+    private final MappedMap                                                  _base;
+    private final int                                                        _pointCount;
+    private final int                                                        _routeCount;
+
+
+
+
+
+    private MapSnapshot(long version, MappedMap base, PersistentHashMap<String, Point> points,
+                        PersistentHashMap<RouteKey, Route> routes,
+                        PersistentHashMap<String, PersistentHashMap<String, Route>> outgoing,
+                        PersistentHashMap<String, PersistentHashMap<String, Route>> incoming, int pointCount,
+                        int routeCount) {
+
+        _version = version;
+        _base = base;
+        _points = points;
+        _routes = routes;
+        _outgoing = outgoing;
+        _incoming = incoming;
+        _pointCount = pointCount;
+        _routeCount = routeCount;
+    }
+
+
+
+
+
+    private MapSnapshot(long version, MappedMap base) {
+
+        this(version, base, PersistentHashMap.empty(), PersistentHashMap.empty(), PersistentHashMap.empty(),
+             PersistentHashMap.empty(), base == null ? 0 : base.getPointCount(),
+             base == null ? 0 : base.getRouteCount());
+    }
+
+
+
+
+
+    /**
+     * Returns a snapshot based on the given map file, with the version stored in the file
+     */
+    public static MapSnapshot of(MappedMap mapped) {
+
+        return new MapSnapshot(mapped.getVersion(), mapped);
+    }
+
+
+
+
+
+    /**
+     * Returns the version of the map, which is increased on every change
+     */
+    public long getVersion() {
+
+        return _version;
+    }
+
+
+
+
+
+    /**
+     * Returns the Point on the map with the given name, or <code>null</code> if it does not exist
+     */
+    public Point getPoint(String pointName) {
+
+        Point p = _points.get(pointName);
+        if (p != null) {
+            return p == REMOVED_POINT ? null : p;
+        }
+        return _base != null ? _base.getPoint(pointName) : null;
+    }
+
+
+
+
+
+    /**
+     * Check if already exist a Point with the given name
+     */
+    public boolean pointExists(String pointName) {
+
+        return getPoint(pointName) != null;
+    }
+
+
+
+
+
+    /**
+     * Returns the Route for the given route key, or <code>null</code> if it does not exist
+     */
+    public Route getRoute(RouteKey routeKey) {
+
+        Route r = _routes.get(routeKey);
+        if (r != null) {
+            return r == REMOVED_ROUTE ? null : r;
+        }
+        return _base != null ? _base.getRoute(routeKey) : null;
+    }
+
+
+
+
+
+    /**
+     * Validates if exist a Route for the given route key
+     */
+    public boolean routeExists(RouteKey routeKey) {
+
+        return getRoute(routeKey) != null;
+    }
+
+
+
+
+
+    /**
+     * Retrieve all the points in the map.
+     *
+     * @return An unmodifiable <code>Set</code> view of the points. No data is copied.
+     */
+    public Set<Point> getPoints() {
+
+        return new AbstractSet<Point>() {
+
+            @Override
+            public Iterator<Point> iterator() {
+
+                if (_base == null) {
+                    return _points.values().iterator();
+                }
+                return new LayeredIterator<>(_base.points().iterator(), p -> _points.containsKey(p.getName()),
+                                             _points.values().iterator(), p -> p == REMOVED_POINT);
+            }
+
+
+
+
+
+            @Override
+            public boolean contains(Object o) {
+
+                return (o instanceof Point) && o.equals(getPoint(((Point) o).getName()));
+            }
+
+
+
+
+
+            @Override
+            public int size() {
+
+                return _pointCount;
+            }
+        };
+    }
+
+
+
+
+
+    /**
+     * Retrieve all the routes in the map.
+     *
+     * @return An unmodifiable <code>Map</code> view where each key is a <code>RouteKey</code> and the value is the
+     *         <code>Route</code> details. No data is copied.
+     */
+    public Map<RouteKey, Route> getRoutes() {
+
+        if (_base == null) {
+            return _routes.asMap();
+        }
+        return new AbstractMap<RouteKey, Route>() {
+
+            @Override
+            public Route get(Object key) {
+
+                return (key instanceof RouteKey) ? getRoute((RouteKey) key) : null;
+            }
+
+
+
+
+
+            @Override
+            public boolean containsKey(Object key) {
+
+                return get(key) != null;
+            }
+
+
+
+
+
+            @Override
+            public Set<Map.Entry<RouteKey, Route>> entrySet() {
+
+                return new AbstractSet<Map.Entry<RouteKey, Route>>() {
+
+                    @Override
+                    public Iterator<Map.Entry<RouteKey, Route>> iterator() {
+
+                        return new LayeredIterator<>(_base.routes().entrySet().iterator(),
+                                                     e -> _routes.containsKey(e.getKey()), _routes.iterator(),
+                                                     e -> e.getValue() == REMOVED_ROUTE);
+                    }
+
+
+
+
+
+                    @Override
+                    public int size() {
+
+                        return _routeCount;
+                    }
+                };
+            }
+        };
+    }
+
+
+
+
+
+    /**
+     * Retrieve the points that follow the given one in the order of <code>{@link #getPoints()}</code>, to read the
+     * points page by page. The order is the same for all the iterations of this snapshot, and the iteration is resumed
+     * at the given point without visiting the points before it.
+     *
+     * @param after
+     *            The name of the last point read
+     * @return An iterator over no points when the point is not in the map
+     */
+    public Iterator<Point> getPointsAfter(String after) {
+
+        Point changed = _points.get(after);
+        if (changed == REMOVED_POINT) {
+            return Collections.emptyIterator();
+        }
+        if (changed != null) {
+            // a point of the changes, read after the base
+            Iterator<Point> changes = _points.valuesAfter(after);
+            if (_base == null) {
+                return changes;
+            }
+            return new LayeredIterator<>(Collections.<Point> emptyIterator(), p -> false, changes,
+                                         p -> p == REMOVED_POINT);
+        }
+        if (_base == null || _base.pointId(after) < 0) {
+            return Collections.emptyIterator();
+        }
+        return new LayeredIterator<>(_base.pointsAfter(after), p -> _points.containsKey(p.getName()),
+                                     _points.values().iterator(), p -> p == REMOVED_POINT);
+    }
+
+
+
+
+
+    /**
+     * Retrieve the routes that follow the given one in the order of <code>{@link #getRoutes()}</code>, to read the
+     * routes page by page. The order is the same for all the iterations of this snapshot, and the iteration is resumed
+     * at the given route without visiting the routes before it.
+     *
+     * @param after
+     *            The key of the last route read
+     * @return An iterator over no routes when the route is not in the map
+     */
+    public Iterator<Map.Entry<RouteKey, Route>> getRoutesAfter(RouteKey after) {
+
+        Route changed = _routes.get(after);
+        if (changed == REMOVED_ROUTE) {
+            return Collections.emptyIterator();
+        }
+        if (changed != null) {
+            // a route of the changes, read after the base
+            Iterator<Map.Entry<RouteKey, Route>> changes = _routes.iteratorAfter(after);
+            if (_base == null) {
+                return changes;
+            }
+            return new LayeredIterator<>(Collections.<Map.Entry<RouteKey, Route>> emptyIterator(), e -> false, changes,
+                                         e -> e.getValue() == REMOVED_ROUTE);
+        }
+        if (_base == null || _base.getRoute(after) == null) {
+            return Collections.emptyIterator();
+        }
+        return new LayeredIterator<>(_base.routesAfter(after), e -> _routes.containsKey(e.getKey()),
+                                     _routes.iterator(), e -> e.getValue() == REMOVED_ROUTE);
+    }
+
+
+
+
+
+    /**
+     * Retrieve the routes that start at the given point.
+     *
+     * @return An unmodifiable <code>Collection</code> view of the routes, empty when the point has no outgoing routes
+     */
+    public Collection<Route> getOutgoingRoutes(Point p) {
+
+        return adjacentRoutes(p, true);
+    }
+
+
+
+
+
+    /**
+     * Retrieve the routes that end at the given point.
+     *
+     * @return An unmodifiable <code>Collection</code> view of the routes, empty when the point has no incoming routes
+     */
+    public Collection<Route> getIncomingRoutes(Point p) {
+
+        return adjacentRoutes(p, false);
+    }
+
+
+
+
+
+    /**
+     * Returns the outgoing or incoming routes of the point. When the base has routes of the point that were changed,
+     * the visible ones are copied to a new list.
+     */
+    private Collection<Route> adjacentRoutes(Point p, boolean outgoing) {
+
+        PersistentHashMap<String, Route> changed = (outgoing ? _outgoing : _incoming).get(p.getName());
+        if (_base == null) {
+            return changed == null ? Collections.<Route> emptyList() : changed.values();
+        }
+
+        List<Route> based = outgoing ? _base.outgoingRoutes(p) : _base.incomingRoutes(p);
+        if (changed == null) {
+            return based;
+        }
+        List<Route> routes = new ArrayList<>(based.size() + changed.size());
+        for (Route r : based) {
+            String neighbour = (outgoing ? r.getToPoint() : r.getFromPoint()).getName();
+            if (!changed.containsKey(neighbour)) {
+                routes.add(r);
+            }
+        }
+        for (Route r : changed.values()) {
+            if (r != REMOVED_ROUTE) {
+                routes.add(r);
+            }
+        }
+        return Collections.unmodifiableList(routes);
+    }
+
+
+
+
+
+    /**
+     * Returns the number of points in the map
+     */
+    public int getPointCount() {
+
+        return _pointCount;
+    }
+
+
+
+
+
+    /**
+     * Returns the number of routes in the map
+     */
+    public int getRouteCount() {
+
+        return _routeCount;
+    }
+
+
+
+
+
+    /**
+     * Returns the number of points and routes held by the in-memory structures: the changes made over the base, or
+     * the whole map when there is no base
+     */
+    int getChangeCount() {
+
+        return _points.size() + _routes.size();
+    }
+
+
+
+
+
+    /**
+     * Returns the number of points and routes read from the base, or 0 when there is no base
+     */
+    int getBaseSize() {
+
+        return _base == null ? 0 : _base.getPointCount() + _base.getRouteCount();
+    }
+
+
+
+
+
+    /**
+     * Returns an estimate of the memory taken by this map version, in bytes: the in-memory structures, and the base
+     * when there is one.
+     * The data shared with other versions is counted in each one of them.
+     */
+    public long getMemoryUsage() {
+
+        long bytes = (long) _points.size() * POINT_BYTES + (long) _routes.size() * ROUTE_BYTES;
+        return _base == null ? bytes : bytes + _base.getByteSize();
+    }
+
+
+
+
+
+    /**
+     * Returns the same map content tagged with the given version
+     */
+    MapSnapshot withVersion(long version) {
+
+        return new MapSnapshot(version, _base, _points, _routes, _outgoing, _incoming, _pointCount, _routeCount);
+    }
+
+
+
+
+
+    /**
+     * Returns the same map content, moved to a base in a direct buffer out of the Java heap
+     *
+     * @see MappedMap#copyOf(MapSnapshot)
+     */
+    MapSnapshot offHeap() {
+
+        return new MapSnapshot(_version, MappedMap.copyOf(this));
+    }
+
+
+
+
+
+    /**
+     * Returns a copy with the given point added
+     */
+    MapSnapshot withPoint(Point p) {
+
+        int pointCount = pointExists(p.getName()) ? _pointCount : _pointCount + 1;
+        return new MapSnapshot(_version, _base, _points.plus(p.getName(), p), _routes, _outgoing, _incoming, pointCount,
+                               _routeCount);
+    }
+
+
+
+
+
+    /**
+     * Returns a copy without the given point and all the routes that start or end at it
+     */
+    MapSnapshot withoutPoint(Point p) {
+
+        if (!pointExists(p.getName())) {
+            return this;
+        }
+        MapSnapshot map = this;
+        for (Route r : getOutgoingRoutes(p)) {
+            map = map.withoutRoute(new RouteKey(r.getFromPoint(), r.getToPoint()));
+        }
+        for (Route r : getIncomingRoutes(p)) {
+            map = map.withoutRoute(new RouteKey(r.getFromPoint(), r.getToPoint()));
+        }
+
+        PersistentHashMap<String, Point> points = inBase(p) ? map._points.plus(p.getName(), REMOVED_POINT)
+                        : map._points.minus(p.getName());
+        return new MapSnapshot(_version, _base, points, map._routes, map._outgoing, map._incoming, _pointCount - 1,
+                               map._routeCount);
+    }
+
+
+
+
+
+    /**
+     * Returns a copy with the given route added or replaced
+     */
+    MapSnapshot withRoute(Route r) {
+
+        String from = r.getFromPoint().getName();
+        String to = r.getToPoint().getName();
+        RouteKey routeKey = new RouteKey(r.getFromPoint(), r.getToPoint());
+        int routeCount = routeExists(routeKey) ? _routeCount : _routeCount + 1;
+
+        return new MapSnapshot(_version, _base, _points, _routes.plus(routeKey, r), link(_outgoing, from, to, r),
+                               link(_incoming, to, from, r), _pointCount, routeCount);
+    }
+
+
+
+
+
+    /**
+     * Returns a copy without the route of the given key
+     */
+    MapSnapshot withoutRoute(RouteKey routeKey) {
+
+        if (!routeExists(routeKey)) {
+            return this;
+        }
+        String from = routeKey.getFromPoint().getName();
+        String to = routeKey.getToPoint().getName();
+
+        if (_base != null && _base.getRoute(routeKey) != null) {
+            return new MapSnapshot(_version, _base, _points, _routes.plus(routeKey, REMOVED_ROUTE),
+                                   link(_outgoing, from, to, REMOVED_ROUTE), link(_incoming, to, from, REMOVED_ROUTE),
+                                   _pointCount, _routeCount - 1);
+        }
+        return new MapSnapshot(_version, _base, _points, _routes.minus(routeKey), unlink(_outgoing, from, to),
+                               unlink(_incoming, to, from), _pointCount, _routeCount - 1);
+    }
+
+
+
+
+
+    /**
+     * Returns an empty copy
+     */
+    MapSnapshot cleared() {
+
+        return new MapSnapshot(_version, null);
+    }
+
+
+
+
+
+    private boolean inBase(Point p) {
+
+        return _base != null && _base.pointId(p.getName()) >= 0;
+    }
+
+
+
+
+
+    /**
+     * Adds (or replaces) the route between the point and the neighbour in an adjacency index
+     */
+    private static PersistentHashMap<String, PersistentHashMap<String, Route>> link(
+                    PersistentHashMap<String, PersistentHashMap<String, Route>> index, String point, String neighbour,
+                    Route r) {
+
+        PersistentHashMap<String, Route> routes = index.get(point);
+        if (routes == null) {
+            routes = PersistentHashMap.empty();
+        }
+        return index.plus(point, routes.plus(neighbour, r));
+    }
+
+
+
+
+
+    /**
+     * Removes the route between the point and the neighbour from an adjacency index
+     */
+    private static PersistentHashMap<String, PersistentHashMap<String, Route>> unlink(
+                    PersistentHashMap<String, PersistentHashMap<String, Route>> index, String point, String neighbour) {
+
+        PersistentHashMap<String, Route> routes = index.get(point);
+        if (routes == null) {
+            return index;
+        }
+        routes = routes.minus(neighbour);
+        return routes.isEmpty() ? index.minus(point) : index.plus(point, routes);
+    }
+
+
+
+
+
+    @Override
+    public String toString() {
+
+        if (_base != null) {
+            return "MapSnapshot: Version=" + _version + ", Base=[" + _base + "], Changes=" + getChangeCount();
+        }
+        return "MapSnapshot: Version=" + _version + ", Points=[" + _points + "], Routes=[" + _routes + "]";
+    }
+
+
+
+
+
+    /**
+     * Iterates the elements of the base that were not changed, and then the changed elements that were not deleted
+     */
+    private static final class LayeredIterator<T> implements Iterator<T> {
+
+        private final Iterator<? extends T> _base;
+        private final Predicate<? super T>  _changed;
+        private final Iterator<? extends T> _changes;
+        private final Predicate<? super T>  _removed;
+        private T                           _next;
+
+
+
+
+
+        LayeredIterator(Iterator<? extends T> base, Predicate<? super T> changed, Iterator<? extends T> changes,
+                        Predicate<? super T> removed) {
+
+            _base = base;
+            _changed = changed;
+            _changes = changes;
+            _removed = removed;
+            advance();
+        }
+
+
+
+
+
+        @Override
+        public boolean hasNext() {
+
+            return _next != null;
+        }
+
+
+
+
+
+        @Override
+        public T next() {
+
+            if (_next == null) {
+                throw new NoSuchElementException();
+            }
+            T next = _next;
+            advance();
+            return next;
+        }
+
+
+
+
+
+        private void advance() {
+
+            _next = null;
+            while (_base.hasNext()) {
+                T element = _base.next();
+                if (!_changed.test(element)) {
+                    _next = element;
+                    return;
+                }
+            }
+            while (_changes.hasNext()) {
+                T element = _changes.next();
+                if (!_removed.test(element)) {
+                    _next = element;
+                    return;
+                }
+            }
+        }
+    }
+
+}
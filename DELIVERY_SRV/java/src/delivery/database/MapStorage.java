@@ -9,16 +9,32 @@ package delivery.database;
 
 
 
-import java.util.HashMap;
-import java.util.HashSet;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.Set;
 
+import delivery.database.persistence.JdbcMapPersistence;
+import delivery.database.persistence.MapPersistence;
+import delivery.database.persistence.MappedMap;
+import delivery.database.persistence.WriteAheadLog;
 import delivery.entities.Point;
 import delivery.entities.Route;
 import delivery.entities.RouteKey;
+import delivery.exceptions.ExistingPointException;
+import delivery.exceptions.ExistingRouteException;
 import delivery.exceptions.PointNotFoundException;
+import delivery.exceptions.ReadOnlyMapException;
 import delivery.exceptions.RouteNotFoundException;
+import delivery.exceptions.StorageException;
 
 
 
@@ -30,48 +46,294 @@ import delivery.exceptions.RouteNotFoundException;
  * Allows insertion of points and routes, and clearing the whole map.
  * Inserted routes are validated - no duplicates are not allowed (in the same direction)
  * and the indicated points must exist on the map.
+ * Each map of the <code>{@link MapRegistry}</code> has its own storage, so the changes of a map never wait for the
+ * ones of another map.
+ * 
+ * The map data is kept in an immutable <code>{@link MapSnapshot}</code> that is atomically replaced on every change.
+ * Readers never block nor copy data: they always read the last published snapshot.
+ * Writers are serialized by the storage monitor and create a new snapshot that shares the unchanged data
+ * with the previous one.
+ * Several changes can be applied at once with <code>{@link #apply(MapBatch)}</code>, which validates and publishes
+ * all of them as a single new version.
+ * The last versions are retained with the time they were published, so the map can be read as it was at a given time
+ * with <code>{@link #snapshotAt(long)}</code>. Since the versions share their unchanged data, each retained version
+ * only takes the memory of its own changes. The retention is bounded by the <code>delivery.history.versions</code>
+ * and <code>delivery.history.hours</code> system properties.
+ * 
+ * When persistence is enabled, every published version is also given to a <code>{@link MapPersistence}</code>
+ * backend, and the writers return once the backend has stored it as it requires. The stored map is recovered when
+ * persistence is enabled, so the map survives restarts. The reads are always served from memory.
+ * Two backends are available, and enabled for all the maps of the registry by system properties:
+ * - <code>delivery.storage.dir</code>: a <code>{@link WriteAheadLog}</code> in the given directory, where the writers
+ * wait for their change to be synced to disk.
+ * - <code>delivery.storage.jdbc-url</code>: a <code>{@link JdbcMapPersistence}</code> in the given database, written
+ * behind in background, where the writers never wait for the database.
+ * 
+ * For very large maps, the map can be kept out of the Java heap with <code>{@link #enableOffHeap()}</code>, or the
+ * <code>delivery.storage.off-heap</code> system property. The points and routes are then stored in a direct buffer,
+ * as primitive columns, and the <code>Point</code> and <code>Route</code> objects are only created when they are read.
+ * The changes are kept on the heap over that buffer, until they are enough to be moved to a new buffer.
+ * 
+ * A map can be a replica of the same map on a leader node (see <code>{@link delivery.database.replication}</code>):
+ * it then rejects the local changes, and only applies the ones received from its leader.
  * 
  * Next steps:
- * - This storage should be improved to be backed by an actual database.
  * - Validating that the map is consistent.
  * - Add logging
  * 
  ***************************************************************************************/
 public class MapStorage {
 
-    private Map<String, Point>   _points = new HashMap<>();
-    private Map<RouteKey, Route> _routes = new HashMap<>();
+    /**
+     * System property with the directory where the map data is persisted
+     */
+    public static final String                     STORAGE_DIR_PROPERTY     = "delivery.storage.dir";
+
+    /**
+     * System property with the JDBC URL of the database where the map data is persisted
+     */
+    public static final String                     JDBC_URL_PROPERTY        = "delivery.storage.jdbc-url";
+
+    /**
+     * System property that enables the storage of the map out of the Java heap
+     */
+    public static final String                     OFF_HEAP_PROPERTY        = "delivery.storage.off-heap";
+
+    /**
+     * System property with the maximum number of past versions of the map retained for the time-travel reads
+     */
+    public static final String                     HISTORY_SIZE_PROPERTY    = "delivery.history.versions";
+
+    /**
+     * System property with the maximum age, in hours, of the past versions of the map retained for time-travel reads
+     */
+    public static final String                     HISTORY_AGE_PROPERTY     = "delivery.history.hours";
+
+    /**
+     * Default maximum number of past versions retained
+     */
+    public static final int                        DEFAULT_HISTORY_VERSIONS = 4096;
+
+    /**
+     * Default maximum age of the past versions retained, in hours
+     */
+    public static final int                        DEFAULT_HISTORY_HOURS    = 7 * 24;
+
+    /**
+     * Default number of changes kept on the heap before moving the map to a new off-heap buffer
+     */
+    public static final int                        DEFAULT_OFF_HEAP_CHANGES = 65536;
+
+    private static final CompletableFuture<Long>   DURABLE                  = CompletableFuture.completedFuture(0L);
+
+    // The current version of the map, replaced by the writers
+    private volatile MapSnapshot                   _snapshot                = MapSnapshot.EMPTY;
+
+    // The changes published on the map, for the readers that follow it
+    private final MapChangeFeed                    _changes                 =
+                    new MapChangeFeed(this::snapshot, MapChangeFeed.DEFAULT_CAPACITY);
+
+    // The last published versions, by time
+    private final MapHistory                       _history                 =
+                    new MapHistory(Integer.getInteger(HISTORY_SIZE_PROPERTY, DEFAULT_HISTORY_VERSIONS),
+                                   TimeUnit.HOURS.toMillis(Integer.getInteger(HISTORY_AGE_PROPERTY,
+                                                                              DEFAULT_HISTORY_HOURS)));
+
+    // The backend where the published versions are stored, null when persistence is disabled
+    private MapPersistence                         _persistence;
 
-    // Singleton object
-    private static MapStorage    _instance;
+    // Number of changes kept on the heap before moving the map off the heap, 0 when the map is kept on the heap
+    private int                                    _offHeapChanges;
 
+    // True while the map is replicated from a leader, which is then its only writer
+    private volatile boolean                       _replica;
 
+    // The id of the map in its registry
+    private final String                           _mapId;
 
+    // Drawn for this instance of the map, whose versions differ from the same versions of another instance
+    private final long                             _epoch                   = ThreadLocalRandom.current().nextLong();
 
 
-    // Prevent external instantiation
-    private MapStorage() {}
+
+
+
+    // Instantiated by the registry
+    MapStorage(String mapId) {
+
+        _mapId = mapId;
+        _history.add(System.currentTimeMillis(), _snapshot);
+    }
 
 
 
 
 
     /**
-     * Retrieve the singleton object that holds the map data.
+     * Retrieve the object that holds the data of the default map.
      * 
      * @return A <code>MapStorage</code> object that holds the map data.
+     * 
+     * @see MapRegistry#getDefaultMap()
      */
 
     public static MapStorage getInstance() {
 
-        if (_instance == null) {
-            synchronized (MapStorage.class) {
-                if (_instance == null) {
-                    _instance = new MapStorage();
-                }
-            }
-        }
-        return _instance;
+        return MapRegistry.getInstance().getDefaultMap();
+    }
+
+
+
+
+
+    /**
+     * Returns the id of the map in its registry
+     */
+    public String getMapId() {
+
+        return _mapId;
+    }
+
+
+
+
+
+    /**
+     * Returns the epoch of the map, a random number drawn when the map is created: a map created again under the same
+     * id, e.g. on a restart, reaches the same versions with another content, so a version only identifies a content
+     * within its epoch
+     */
+    public long getEpoch() {
+
+        return _epoch;
+    }
+
+
+
+
+
+    /**
+     * Returns the current version of the map.
+     * The snapshot is immutable, so all the reads made on it see the same consistent map, tagged with its version,
+     * however long they take and whatever changes are published meanwhile. Taking a snapshot never blocks the writers,
+     * nor copies any data. It stays valid as long as it is referenced, and is then reclaimed by the garbage collector.
+     * 
+     * @return The last published <code>{@link MapSnapshot}</code>
+     */
+    public MapSnapshot snapshot() {
+
+        return _snapshot;
+    }
+
+
+
+
+
+    /**
+     * Returns the version of the map that was current at the given time.
+     * The past versions are immutable snapshots, like the current one, retained up to the configured number of versions
+     * and age (see <code>{@link #setHistoryRetention(int, long, TimeUnit)}</code>).
+     * 
+     * @param time
+     *            The time, in milliseconds since the epoch
+     * @return The <code>{@link MapSnapshot}</code> current at that time, or <code>null</code> when the time is before
+     *         the oldest retained version
+     */
+    public MapSnapshot snapshotAt(long time) {
+
+        return _history.at(time);
+    }
+
+
+
+
+
+    /**
+     * Returns the version of the map with the given version number, to resume a read made on that version, e.g. the
+     * pages of a large map. The past versions are those retained for <code>{@link #snapshotAt(long)}</code>.
+     * 
+     * @return The <code>{@link MapSnapshot}</code> of that version, or <code>null</code> when it is no longer retained
+     */
+    public MapSnapshot snapshotOf(long version) {
+
+        MapSnapshot map = _snapshot;
+        return map.getVersion() == version ? map : _history.version(version);
+    }
+
+
+
+
+
+    /**
+     * Changes how many past versions of the map are retained for <code>{@link #snapshotAt(long)}</code>, from the next
+     * change on. A version is dropped when there are more versions, or when it was replaced before the given age.
+     * 
+     * @param maxVersions
+     *            The maximum number of versions, including the current one
+     * @param maxAge
+     *            The maximum age of the versions
+     */
+    public void setHistoryRetention(int maxVersions, long maxAge, TimeUnit unit) {
+
+        _history.setRetention(maxVersions, unit.toMillis(maxAge));
+    }
+
+
+
+
+
+    /**
+     * Returns the feed of the changes published on the map, in the order of their versions.
+     * A batch of mutations is published as a single change. To follow the map from a consistent state, create a
+     * cursor on the feed first, then take a <code>{@link #snapshot()}</code> and skip the changes with a version not
+     * newer than the snapshot one.
+     * 
+     * @return The <code>{@link MapChangeFeed}</code> of the map
+     */
+    public MapChangeFeed getChangeFeed() {
+
+        return _changes;
+    }
+
+
+
+
+
+    /**
+     * Returns the version of the map, which is increased every time a change is published
+     */
+    public long getVersion() {
+
+        return _snapshot.getVersion();
+    }
+
+
+
+
+
+    /**
+     * Returns an estimate of the memory taken by the current version of the map, in bytes
+     * 
+     * @see MapSnapshot#getMemoryUsage()
+     */
+    public long getMemoryUsage() {
+
+        return _snapshot.getMemoryUsage();
+    }
+
+
+
+
+
+    /**
+     * Returns the last failure of the persistence of the map in background, or <code>null</code> when there is none or
+     * the map is not persisted
+     * 
+     * @see MapPersistence#getFailure()
+     */
+    public synchronized Exception getPersistenceFailure() {
+
+        return _persistence == null ? null : _persistence.getFailure();
     }
 
 
@@ -86,16 +348,19 @@ public class MapStorage {
      *            The point to be added to the map.
      * @return <code>True</code> if the point was added, <code>False</code> otherwise.
      */
-    public synchronized boolean addPoint(Point p) {
+    public boolean addPoint(Point p) {
 
-        // Check if point is already registered
-        if (_points.containsKey(p.getName())) {
-            return false;
-        } else {
+        CompletableFuture<Long> commit;
+        synchronized (this) {
+            // Check if point is already registered
+            if (_snapshot.pointExists(p.getName())) {
+                return false;
+            }
             // Log success inserting
-            _points.put(p.getName(), p);
-            return true;
+            commit = publish(_snapshot.withPoint(p), MapMutation.addPoint(p));
         }
+        awaitDurable(commit);
+        return true;
     }
 
 
@@ -106,13 +371,11 @@ public class MapStorage {
      * Retrieve all the points in the map.
      * 
      * @return A <code>Set</code> where each entry is a <code>Point</code> for a map location.
-     *         This object is a copy of the map data, i.e. it can be modified without impacting on the original map.
+     *         This object is an unmodifiable view of the current map version, i.e. it is not impacted by later changes.
      */
-    public synchronized Set<Point> getPoints() {
+    public Set<Point> getPoints() {
 
-        Set<Point> result = new HashSet<>();
-        result.addAll(_points.values());
-        return result;
+        return _snapshot.getPoints();
     }
 
 
@@ -127,7 +390,7 @@ public class MapStorage {
      */
     public Point getPoint(String pointName) {
 
-        return _points.get(pointName);
+        return _snapshot.getPoint(pointName);
 
     }
 
@@ -145,7 +408,7 @@ public class MapStorage {
      */
     public boolean pointExists(String pointName) {
 
-        return _points.containsKey(pointName);
+        return _snapshot.pointExists(pointName);
 
     }
 
@@ -164,11 +427,7 @@ public class MapStorage {
      */
     public Route getRoute(RouteKey routeKey) {
 
-        Route route = _routes.get(routeKey);
-        if (route != null) {
-            return route;
-        }
-        return null;
+        return _snapshot.getRoute(routeKey);
 
     }
 
@@ -189,7 +448,7 @@ public class MapStorage {
     public boolean routeExists(Point from, Point to) {
 
         RouteKey routeKey = new RouteKey(from, to);
-        return _routes.containsKey(routeKey);
+        return _snapshot.routeExists(routeKey);
     }
 
 
@@ -210,27 +469,30 @@ public class MapStorage {
      * @throws IllegalArgumentException
      *             When the <code>Point</code> "from" and the <code>Point</code> "to" are the same
      */
-    public synchronized boolean addRoute(Route r) throws PointNotFoundException {
-
-        // Check if both From and To points exist on the map
-        ensurePointExists(r.getFromPoint());
-        ensurePointExists(r.getToPoint());
-
-        // Check if the two points are the same
-        if (r.getFromPoint().equals(r.getToPoint())) {
-            throw new IllegalArgumentException("The route (" + r.getFromPoint() + " -> " + r.getToPoint()
-                                               + ") is not permitted");
-        }
+    public boolean addRoute(Route r) throws PointNotFoundException {
+
+        CompletableFuture<Long> commit;
+        synchronized (this) {
+            // Check if both From and To points exist on the map
+            ensurePointExists(r.getFromPoint());
+            ensurePointExists(r.getToPoint());
+
+            // Check if the two points are the same
+            if (r.getFromPoint().equals(r.getToPoint())) {
+                throw new IllegalArgumentException("The route (" + r.getFromPoint() + " -> " + r.getToPoint()
+                                                   + ") is not permitted");
+            }
 
-        // Check if a link from the source and target points (directed) already exists
-        RouteKey routeKey = new RouteKey(r.getFromPoint(), r.getToPoint());
-        if (_routes.containsKey(routeKey)) {
-            return false;
-        } else {
+            // Check if a link from the source and target points (directed) already exists
+            RouteKey routeKey = new RouteKey(r.getFromPoint(), r.getToPoint());
+            if (_snapshot.routeExists(routeKey)) {
+                return false;
+            }
             // Log success inserting
-            _routes.put(routeKey, r);
-            return true;
+            commit = publish(_snapshot.withRoute(r), MapMutation.addRoute(r));
         }
+        awaitDurable(commit);
+        return true;
     }
 
 
@@ -265,7 +527,7 @@ public class MapStorage {
      */
     public boolean pointExists(Point p) {
 
-        return _points.containsKey(p.getName());
+        return _snapshot.pointExists(p.getName());
 
     }
 
@@ -282,16 +544,18 @@ public class MapStorage {
      *         True when the Route is updated and false when the Route does not exist
      */
 
-    public synchronized boolean updateRoute(Route r) throws RouteNotFoundException {
+    public boolean updateRoute(Route r) throws RouteNotFoundException {
 
         RouteKey routeKey = new RouteKey(r.getFromPoint(), r.getToPoint());
 
-        Route route = _routes.get(routeKey);
-        if (route == null) {
-            return false;
+        CompletableFuture<Long> commit;
+        synchronized (this) {
+            if (!_snapshot.routeExists(routeKey)) {
+                return false;
+            }
+            commit = publish(_snapshot.withRoute(r), MapMutation.updateRoute(r));
         }
-
-        _routes.put(routeKey, r);
+        awaitDurable(commit);
         return true;
     }
 
@@ -305,10 +569,72 @@ public class MapStorage {
      * @return
      *         True when the <code>Route</code> is deleted. Otherwise returns false.
      */
-    public synchronized boolean delete(RouteKey routeKey) {
+    public boolean delete(RouteKey routeKey) {
+
+        CompletableFuture<Long> commit;
+        synchronized (this) {
+            if (!_snapshot.routeExists(routeKey)) {
+                return false;
+            }
+            commit = publish(_snapshot.withoutRoute(routeKey), MapMutation.deleteRoute(routeKey));
+        }
+        awaitDurable(commit);
+        return true;
+
+    }
+
+
+
+
+
+    /**
+     * Delete a Point from the map, along with all the routes that start or end at it.
+     * Only the routes of the point are visited, so it takes O(degree) and not O(routes).
+     * 
+     * @return
+     *         True when the <code>Point</code> is deleted. Otherwise returns false.
+     */
+    public boolean deletePoint(Point p) {
+
+        CompletableFuture<Long> commit;
+        synchronized (this) {
+            if (!_snapshot.pointExists(p.getName())) {
+                return false;
+            }
+            commit = publish(_snapshot.withoutPoint(p), MapMutation.deletePoint(p));
+        }
+        awaitDurable(commit);
+        return true;
+    }
+
+
+
+
+
+    /**
+     * Retrieve the routes that start at the given point.
+     * 
+     * @return An unmodifiable <code>Collection</code> of the routes in the current map version.
+     *         It is empty when the point has no outgoing routes or does not exist.
+     */
+    public Collection<Route> getOutgoingRoutes(Point p) {
+
+        return _snapshot.getOutgoingRoutes(p);
+    }
+
+
+
+
 
-        return _routes.remove(routeKey) != null;
+    /**
+     * Retrieve the routes that end at the given point.
+     * 
+     * @return An unmodifiable <code>Collection</code> of the routes in the current map version.
+     *         It is empty when the point has no incoming routes or does not exist.
+     */
+    public Collection<Route> getIncomingRoutes(Point p) {
 
+        return _snapshot.getIncomingRoutes(p);
     }
 
 
@@ -319,13 +645,11 @@ public class MapStorage {
      * Retrieve all the routes in the map.
      * 
      * @return A <code>Map</code> where each key is a <code>RouteKey</code> and the value is the <code>Route</code> details.
-     *         This object is a copy of the map data, i.e. it can be modified without impacting on the original map.
+     *         This object is an unmodifiable view of the current map version, i.e. it is not impacted by later changes.
      */
-    public synchronized Map<RouteKey, Route> getRoutes() {
+    public Map<RouteKey, Route> getRoutes() {
 
-        Map<RouteKey, Route> result = new HashMap<>();
-        result.putAll(_routes);
-        return result;
+        return _snapshot.getRoutes();
     }
 
 
@@ -335,10 +659,678 @@ public class MapStorage {
     /**
      * Clear all Points and Routes of the Map
      */
-    public synchronized void clearMap() {
+    public void clearMap() {
+
+        CompletableFuture<Long> commit;
+        synchronized (this) {
+            commit = publish(_snapshot.cleared(), MapMutation.clearMap());
+        }
+        awaitDurable(commit);
+    }
+
+
+
+
+
+    /**
+     * Applies all the mutations of the batch, in order, as a single new version of the map.
+     * Each mutation is validated against the map as left by the previous mutations of the batch. When any of them is
+     * not valid an exception is thrown and the map is left untouched, i.e. either all the mutations are applied or none is.
+     * 
+     * @param batch
+     *            The mutations to apply
+     * 
+     * @throws ExistingPointException
+     *             When a point to add already exists
+     * @throws ExistingRouteException
+     *             When a route to add already exists
+     * @throws PointNotFoundException
+     *             When a point to delete, or a point of a route to add, does not exist
+     * @throws RouteNotFoundException
+     *             When a route to update or delete does not exist
+     * @throws IllegalArgumentException
+     *             When a route to add starts and ends at the same point
+     */
+    public void apply(MapBatch batch)
+                    throws ExistingPointException, ExistingRouteException, PointNotFoundException, RouteNotFoundException {
+
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        CompletableFuture<Long> commit;
+        synchronized (this) {
+            MapSnapshot next = _snapshot;
+            for (MapMutation mutation : batch.getMutations()) {
+                next = apply(next, mutation);
+            }
+            commit = publish(next, batch.getMutations());
+        }
+        awaitDurable(commit);
+    }
+
+
+
+
+
+    /**
+     * Replaces the map by the given one, with only the changes needed, as a single new version of the map: the routes
+     * and points that are not in the given map are deleted, the missing ones are added, and the routes with another
+     * time or cost are updated. The unchanged points and routes are left untouched, so the readers that follow the
+     * changes of the map only see the differences. Nothing is published when the map is already the same.
+     * 
+     * @param map
+     *            The whole new map, as points and routes to add, e.g. read by <code>{@link MapImporter}</code>
+     * @return The changes applied
+     * 
+     * @throws PointNotFoundException
+     *             When a route of the new map starts or ends at a point that is not in it
+     * @throws IllegalArgumentException
+     *             When the batch has other mutations than points and routes to add, or a route starts and ends at the
+     *             same point
+     */
+    public MapBatch sync(MapBatch map)
+                    throws ExistingPointException, ExistingRouteException, PointNotFoundException, RouteNotFoundException {
+
+        // the new map, by name and by key, in the order of the batch
+        Map<String, Point> points = new LinkedHashMap<>();
+        Map<RouteKey, Route> routes = new LinkedHashMap<>();
+        for (MapMutation mutation : map.getMutations()) {
+            if (mutation.getType() == MapMutation.Type.ADD_POINT) {
+                points.put(mutation.getPoint().getName(), mutation.getPoint());
+            } else if (mutation.getType() == MapMutation.Type.ADD_ROUTE) {
+                routes.put(mutation.getRouteKey(), mutation.getRoute());
+            } else {
+                throw new IllegalArgumentException("Only the points and routes to add can be synced: " + mutation);
+            }
+        }
+        for (RouteKey routeKey : routes.keySet()) {
+            for (Point p : new Point[] { routeKey.getFromPoint(), routeKey.getToPoint() }) {
+                if (!points.containsKey(p.getName())) {
+                    throw new PointNotFoundException("The Point [" + p + "] does not exist");
+                }
+            }
+        }
+
+        CompletableFuture<Long> commit;
+        MapBatch changes;
+        synchronized (this) {
+            MapSnapshot next = _snapshot;
+            changes = diff(next, points, routes);
+            if (changes.isEmpty()) {
+                return changes;
+            }
+            for (MapMutation mutation : changes.getMutations()) {
+                next = apply(next, mutation);
+            }
+            commit = publish(next, changes.getMutations());
+        }
+        awaitDurable(commit);
+        return changes;
+    }
+
+
+
+
+
+    /**
+     * Returns the changes from the current map to the new one, in a single pass on each map. The points and routes of
+     * the new map are removed from the given maps as they are found in the current one.
+     */
+    private static MapBatch diff(MapSnapshot current, Map<String, Point> points, Map<RouteKey, Route> routes) {
+
+        MapBatch changes = new MapBatch();
+        for (Route r : current.getRoutes().values()) {
+            Route route = routes.remove(new RouteKey(r.getFromPoint(), r.getToPoint()));
+            if (route == null) {
+                // the routes of the deleted points are deleted with them
+                if (points.containsKey(r.getFromPoint().getName()) && points.containsKey(r.getToPoint().getName())) {
+                    changes.deleteRoute(new RouteKey(r.getFromPoint(), r.getToPoint()));
+                }
+            } else if (route.getTime() != r.getTime() || route.getCost() != r.getCost()) {
+                changes.updateRoute(route);
+            }
+        }
+        for (Point p : current.getPoints()) {
+            if (points.remove(p.getName()) == null) {
+                changes.deletePoint(p);
+            }
+        }
+        for (Point p : points.values()) {
+            changes.addPoint(p);
+        }
+        for (Route r : routes.values()) {
+            changes.addRoute(r);
+        }
+        return changes;
+    }
+
+
+
+
+
+    /**
+     * Validates a mutation against the given map and returns the map with the mutation applied
+     */
+    private static MapSnapshot apply(MapSnapshot map, MapMutation mutation)
+                    throws ExistingPointException, ExistingRouteException, PointNotFoundException, RouteNotFoundException {
+
+        Point p = mutation.getPoint();
+        Route r = mutation.getRoute();
+        RouteKey routeKey = mutation.getRouteKey();
+
+        switch (mutation.getType()) {
+            case ADD_POINT:
+                if (map.pointExists(p.getName())) {
+                    throw new ExistingPointException("Point " + p + " already exists.");
+                }
+                return map.withPoint(p);
+
+            case DELETE_POINT:
+                ensurePointExists(map, p);
+                return map.withoutPoint(p);
+
+            case ADD_ROUTE:
+                ensurePointExists(map, r.getFromPoint());
+                ensurePointExists(map, r.getToPoint());
+                if (r.getFromPoint().equals(r.getToPoint())) {
+                    throw new IllegalArgumentException("The route (" + r.getFromPoint() + " -> " + r.getToPoint()
+                                                       + ") is not permitted");
+                }
+                if (map.routeExists(routeKey)) {
+                    throw new ExistingRouteException("The route (" + r.getFromPoint() + " -> " + r.getToPoint()
+                                                     + ") already exists");
+                }
+                return map.withRoute(r);
+
+            case UPDATE_ROUTE:
+                ensureRouteExists(map, routeKey);
+                return map.withRoute(r);
 
-        _points.clear();
-        _routes.clear();
+            case DELETE_ROUTE:
+                ensureRouteExists(map, routeKey);
+                return map.withoutRoute(routeKey);
+
+            case CLEAR_MAP:
+                return map.cleared();
+
+            default:
+                throw new IllegalArgumentException("Unknown mutation " + mutation);
+        }
+    }
+
+
+
+
+
+    private static void ensurePointExists(MapSnapshot map, Point p) throws PointNotFoundException {
+
+        if (!map.pointExists(p.getName())) {
+            throw new PointNotFoundException("The Point [" + p + "] does not exist");
+        }
+    }
+
+
+
+
+
+    private static void ensureRouteExists(MapSnapshot map, RouteKey routeKey) throws RouteNotFoundException {
+
+        if (!map.routeExists(routeKey)) {
+            throw new RouteNotFoundException("There is no route set from point [" + routeKey.getFromPoint() + "] to ["
+                                             + routeKey.getToPoint() + "].");
+        }
+    }
+
+
+
+
+
+    /**
+     * Saves the current version of the map to a binary map file, that can be loaded in a near instant with
+     * <code>{@link #loadMapFile(Path)}</code>.
+     * 
+     * @param file
+     *            The file to be written
+     * 
+     * @see MappedMap
+     */
+    public void saveMapFile(Path file) throws IOException {
+
+        MappedMap.write(_snapshot, file);
+    }
+
+
+
+
+
+    /**
+     * Replaces the content of the map by the one of a binary map file.
+     * The file is mapped in memory and queried in place, so the map can be read right away without parsing the file.
+     * The later changes are kept in memory over the file content.
+     * 
+     * @param file
+     *            A file written by <code>{@link #saveMapFile(Path)}</code>
+     * 
+     * @throws IOException
+     *             When the file can not be read or is not a map file
+     * @throws IllegalStateException
+     *             When persistence is enabled, since the map is then loaded from its storage directory
+     */
+    public synchronized void loadMapFile(Path file) throws IOException {
+
+        ensureWritable();
+        replace(MappedMap.open(file));
+    }
+
+
+
+
+
+    /**
+     * Throws an exception when the map is a replica
+     */
+    private void ensureWritable() {
+
+        if (_replica) {
+            throw new ReadOnlyMapException("The map " + _mapId + " is a replica, only changed by its leader");
+        }
+    }
+
+
+
+
+
+    /**
+     * Replaces the whole map by the given one
+     */
+    private void replace(MappedMap map) {
+
+        if (_persistence != null) {
+            throw new IllegalStateException("The map can not be replaced while persistence is enabled");
+        }
+        MapSnapshot loaded = MapSnapshot.of(map);
+
+        // the version never goes backwards, even when the file is older than the current map
+        _snapshot = loaded.withVersion(Math.max(loaded.getVersion(), _snapshot.getVersion() + 1));
+        _history.add(System.currentTimeMillis(), _snapshot);
+        _changes.reload(_snapshot.getVersion());
+    }
+
+
+
+
+
+    /**
+     * Makes the map a replica, which only changes through <code>{@link #replicate(MappedMap)}</code> and
+     * <code>{@link #replicate(long, List)}</code>, or makes it writable again.
+     * 
+     * @throws IllegalStateException
+     *             When persistence is enabled, since a replica is rebuilt from its leader
+     */
+    public synchronized void setReplica(boolean replica) {
+
+        if (replica && _persistence != null) {
+            throw new IllegalStateException("A persisted map can not be a replica");
+        }
+        _replica = replica;
+    }
+
+
+
+
+
+    /**
+     * Returns true when the map is a replica, and rejects the local changes
+     */
+    public boolean isReplica() {
+
+        return _replica;
+    }
+
+
+
+
+
+    /**
+     * Replaces the whole replica by the map received from its leader.
+     * The replica takes the version of the leader, unless it would make its version go backwards.
+     */
+    public synchronized void replicate(MappedMap map) {
+
+        replace(map);
+    }
+
+
+
+
+
+    /**
+     * Applies the mutations of a version received from the leader, as a single new version of the replica.
+     * The replica takes the version of the leader, unless it would make its version go backwards.
+     * 
+     * @throws IOException
+     *             When a mutation is not valid on the replica, which then no longer matches its leader. The replica is
+     *             left untouched.
+     */
+    public synchronized void replicate(long version, List<MapMutation> mutations) throws IOException {
+
+        MapSnapshot next = _snapshot;
+        for (MapMutation mutation : mutations) {
+            try {
+                next = apply(next, mutation);
+            } catch (ExistingPointException | ExistingRouteException | PointNotFoundException | RouteNotFoundException
+                            | IllegalArgumentException e) {
+                throw new IOException("Invalid mutation " + mutation + " received at version " + version, e);
+            }
+        }
+        publish(next, mutations, Math.max(version, _snapshot.getVersion() + 1));
+    }
+
+
+
+
+
+    /**
+     * Enables the persistence of the map in the given directory.
+     * The map stored in the directory, if any, is loaded and replaces the current content of the map.
+     * From then on, every change is appended to the log stored in the directory.
+     * 
+     * @param dir
+     *            The directory where the map data is stored
+     * 
+     * @throws IOException
+     *             When the stored map can not be read
+     * @throws IllegalStateException
+     *             When persistence is already enabled
+     */
+    public synchronized void enablePersistence(Path dir) throws IOException {
+
+        enablePersistence(dir, WriteAheadLog.DEFAULT_COMPACTION_THRESHOLD);
+    }
+
+
+
+
+
+    /**
+     * Enables the persistence of the map in the given directory.
+     * 
+     * @param dir
+     *            The directory where the map data is stored
+     * @param compactionThreshold
+     *            The number of bytes written to the log after which it is compacted into a snapshot of the map
+     * 
+     * @see #enablePersistence(Path)
+     */
+    public synchronized void enablePersistence(Path dir, long compactionThreshold) throws IOException {
+
+        enablePersistence(new WriteAheadLog(dir, compactionThreshold));
+    }
+
+
+
+
+
+    /**
+     * Enables the persistence of the map in the given backend.
+     * The map stored in the backend is recovered and replaces the current content of the map.
+     * From then on, every change is given to the backend.
+     * 
+     * @param persistence
+     *            The backend where the map data is stored
+     * 
+     * @throws IOException
+     *             When the stored map can not be read
+     * @throws IllegalStateException
+     *             When persistence is already enabled
+     */
+    public synchronized void enablePersistence(MapPersistence persistence) throws IOException {
+
+        if (_persistence != null) {
+            throw new IllegalStateException("Persistence is already enabled");
+        }
+        if (_replica) {
+            throw new IllegalStateException("A replica can not be persisted");
+        }
+
+        Recovery recovery = new Recovery();
+        try {
+            persistence.recover(recovery);
+        } catch (IOException | RuntimeException e) {
+            persistence.close();
+            throw e;
+        }
+
+        // the version never goes backwards, even when the stored map is older than the current one
+        _snapshot = recovery._map.withVersion(Math.max(recovery._version, _snapshot.getVersion() + 1));
+        _persistence = persistence;
+        _history.add(System.currentTimeMillis(), _snapshot);
+        _changes.reload(_snapshot.getVersion());
+    }
+
+
+
+
+
+    /**
+     * Stops persisting the map changes, after all the pending ones are stored by the backend.
+     * The map content is kept in memory.
+     */
+    public synchronized void disablePersistence() throws IOException {
+
+        if (_persistence != null) {
+            try {
+                _persistence.close();
+            } finally {
+                _persistence = null;
+            }
+        }
+    }
+
+
+
+
+
+    /**
+     * Stops persisting the map changes, and deletes the stored map. The map content is kept in memory.
+     */
+    public synchronized void deletePersistence() throws IOException {
+
+        if (_persistence != null) {
+            try {
+                _persistence.delete();
+            } finally {
+                _persistence = null;
+            }
+        }
+    }
+
+
+
+
+
+    /**
+     * Compacts the persisted data into a snapshot of the current map, in background.
+     * Does nothing when persistence is disabled, the backend has no compaction or a compaction is already running.
+     */
+    public synchronized void compact() {
+
+        if (_persistence != null) {
+            _persistence.compact(_snapshot);
+        }
+    }
+
+
+
+
+
+    /**
+     * Moves the map out of the Java heap, with up to <code>{@value #DEFAULT_OFF_HEAP_CHANGES}</code> changes kept on
+     * the heap.
+     * 
+     * @see #enableOffHeap(int)
+     */
+    public synchronized void enableOffHeap() {
+
+        enableOffHeap(DEFAULT_OFF_HEAP_CHANGES);
+    }
+
+
+
+
+
+    /**
+     * Moves the map out of the Java heap, to a direct buffer where the points and routes are stored as primitive
+     * columns. The later changes are kept on the heap over that buffer, and the map is moved again to a new buffer when
+     * they exceed the given number, or an eighth of the map when it is larger.
+     * 
+     * @param maxChanges
+     *            The minimum number of changed points and routes kept on the heap before moving the map again
+     * 
+     * @throws IllegalArgumentException
+     *             When the number of changes is not positive, or the map is larger than 2 GB once encoded
+     */
+    public synchronized void enableOffHeap(int maxChanges) {
+
+        if (maxChanges <= 0) {
+            throw new IllegalArgumentException("The number of changes must be positive: " + maxChanges);
+        }
+        // the content and version are the same, only their storage changes
+        _snapshot = _snapshot.offHeap();
+        _offHeapChanges = maxChanges;
+    }
+
+
+
+
+
+    /**
+     * Stops moving the map out of the Java heap. The map stored off the heap is kept, and the later changes are kept
+     * on the heap over it.
+     */
+    public synchronized void disableOffHeap() {
+
+        _offHeapChanges = 0;
+    }
+
+
+
+
+
+    /**
+     * Publishes the given map content as the next version.
+     * Must be called while holding the storage monitor.
+     * 
+     * @return A future that completes when the change is stored
+     */
+    private CompletableFuture<Long> publish(MapSnapshot next, MapMutation mutation) {
+
+        return publish(next, Collections.singletonList(mutation));
+    }
+
+
+
+
+
+    private CompletableFuture<Long> publish(MapSnapshot next, List<MapMutation> mutations) {
+
+        ensureWritable();
+        return publish(next, mutations, _snapshot.getVersion() + 1);
+    }
+
+
+
+
+
+    private CompletableFuture<Long> publish(MapSnapshot next, List<MapMutation> mutations, long version) {
+
+        CompletableFuture<Long> commit = DURABLE;
+        if (_persistence != null) {
+            // fails before publishing when the backend is no longer writable
+            commit = _persistence.append(version, mutations);
+        }
+        _snapshot = next.withVersion(version);
+
+        if (_offHeapChanges > 0 && next.getChangeCount() > Math.max(_offHeapChanges, next.getBaseSize() / 8)) {
+            try {
+                _snapshot = _snapshot.offHeap();
+            } catch (IllegalArgumentException e) {
+                // the map has grown too large for a buffer, so it stays on the heap
+                _offHeapChanges = 0;
+            }
+        }
+        _history.add(System.currentTimeMillis(), _snapshot);
+        _changes.publish(version, mutations);
+
+        if (_persistence != null && _persistence.needsCompaction()) {
+            _persistence.compact(_snapshot);
+        }
+        return commit;
+    }
+
+
+
+
+
+    /**
+     * Waits until a published change is stored, out of the storage monitor so other writers can join the same disk
+     * write.
+     * 
+     * @throws StorageException
+     *             When the change could not be stored
+     */
+    private static void awaitDurable(CompletableFuture<Long> commit) {
+
+        try {
+            commit.get();
+        } catch (ExecutionException e) {
+            throw new StorageException("The map change was applied but could not be stored", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new StorageException("Interrupted while storing the map change", e);
+        }
+    }
+
+
+
+
+
+    /**
+     * Rebuilds the map recovered from the persistence backend
+     */
+    private static final class Recovery implements MapPersistence.Replayer {
+
+        private MapSnapshot _map     = MapSnapshot.EMPTY;
+        private long        _version = 0;
+
+
+
+
+
+        @Override
+        public void load(MappedMap snapshot) {
+
+            _map = MapSnapshot.of(snapshot);
+            _version = snapshot.getVersion();
+        }
+
+
+
+
+        @Override
+        public void replay(long version, List<MapMutation> mutations) throws IOException {
+
+            for (MapMutation mutation : mutations) {
+                try {
+                    _map = apply(_map, mutation);
+                } catch (ExistingPointException | ExistingRouteException | PointNotFoundException
+                                | RouteNotFoundException | IllegalArgumentException e) {
+                    throw new IOException("Invalid mutation " + mutation + " in the stored map at version " + version, e);
+                }
+            }
+            _version = version;
+        }
     }
 
 
@@ -348,7 +1340,8 @@ public class MapStorage {
     @Override
     public String toString() {
 
-        return "MapStorage: Points=[" + _points.toString() + "], Routes=[" + _routes.toString() + "]";
+        MapSnapshot snapshot = _snapshot;
+        return "MapStorage: Points=[" + snapshot.getPoints() + "], Routes=[" + snapshot.getRoutes() + "]";
     }
 
 }
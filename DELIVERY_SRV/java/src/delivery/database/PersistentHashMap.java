@@ -0,0 +1,786 @@
+
+
+
+
+
+package delivery.database;
+
+
+
+
+
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+
+
+
+
+/***************************************************************************************
+ *
+ * An immutable hash map (Hash Array Mapped Trie).
+ * Every "modification" returns a new map that shares all the untouched nodes with the
+ * previous one, so adding or removing an entry only copies the path from the root to
+ * the changed node (at most 7 small arrays), instead of the whole map.
+ *
+ * Instances are immutable, so they can be read concurrently without any locking.
+ *
+ ***************************************************************************************/
+final class PersistentHashMap<K, V> implements Iterable<Map.Entry<K, V>> {
+
+    private static final int                          BITS  = 5;
+    private static final int                          MASK  = (1 << BITS) - 1;
+
+    private static final PersistentHashMap<?, ?>      EMPTY = new PersistentHashMap<>(null, 0);
+
+    private final Node                                _root;
+    private final int                                 _size;
+
+
+
+
+
+    private PersistentHashMap(Node root, int size) {
+
+        _root = root;
+        _size = size;
+    }
+
+
+
+
+
+    /**
+     * Returns the empty map
+     */
+    @SuppressWarnings("unchecked")
+    static <K, V> PersistentHashMap<K, V> empty() {
+
+        return (PersistentHashMap<K, V>) EMPTY;
+    }
+
+
+
+
+
+    int size() {
+
+        return _size;
+    }
+
+
+
+
+
+    boolean isEmpty() {
+
+        return _size == 0;
+    }
+
+
+
+
+
+    @SuppressWarnings("unchecked")
+    V get(Object key) {
+
+        if (_root == null || key == null) {
+            return null;
+        }
+        return (V) _root.find(hash(key), 0, key);
+    }
+
+
+
+
+
+    boolean containsKey(Object key) {
+
+        return get(key) != null;
+    }
+
+
+
+
+
+    /**
+     * Returns a map with the given entry added or replaced.
+     * Null keys and values are not supported.
+     *
+     * @return This same instance when the entry is already present with the same value
+     */
+    PersistentHashMap<K, V> plus(K key, V value) {
+
+        if (key == null || value == null) {
+            throw new NullPointerException("Null keys and values are not supported");
+        }
+        boolean[] added = new boolean[1];
+        Node root = (_root == null ? BitmapNode.EMPTY : _root).put(hash(key), 0, key, value, added);
+        if (root == _root) {
+            return this;
+        }
+        return new PersistentHashMap<>(root, added[0] ? _size + 1 : _size);
+    }
+
+
+
+
+
+    /**
+     * Returns a map without the entry of the given key.
+     *
+     * @return This same instance when the key is not present
+     */
+    PersistentHashMap<K, V> minus(Object key) {
+
+        if (_root == null || key == null) {
+            return this;
+        }
+        Node root = _root.remove(hash(key), 0, key);
+        if (root == _root) {
+            return this;
+        }
+        return root == null ? empty() : new PersistentHashMap<>(root, _size - 1);
+    }
+
+
+
+
+
+    @Override
+    public Iterator<Map.Entry<K, V>> iterator() {
+
+        return new EntryIterator<>(_root);
+    }
+
+
+
+
+
+    /**
+     * Returns an iterator over the entries that follow the given key in the order of <code>{@link #iterator()}</code>,
+     * which is the same for all the iterations of this map: the iteration is resumed at the key in O(depth), without
+     * visiting the entries before it.
+     *
+     * @return An iterator over no entries when the key is not in the map
+     */
+    Iterator<Map.Entry<K, V>> iteratorAfter(K key) {
+
+        return new EntryIterator<>(_root, key);
+    }
+
+
+
+
+
+    /**
+     * Returns an unmodifiable <code>Map</code> view of this map. No data is copied.
+     */
+    Map<K, V> asMap() {
+
+        return new MapView();
+    }
+
+
+
+
+
+    /**
+     * Returns an unmodifiable <code>Collection</code> view of the values of this map. No data is copied.
+     */
+    Collection<V> values() {
+
+        return new AbstractCollection<V>() {
+
+            @Override
+            public Iterator<V> iterator() {
+
+                return new ValueIterator<>(PersistentHashMap.this.iterator());
+            }
+
+
+
+
+
+            @Override
+            public int size() {
+
+                return _size;
+            }
+        };
+    }
+
+
+
+
+
+    /**
+     * Returns an iterator over the values of the entries that follow the given key, as
+     * <code>{@link #iteratorAfter(Object)}</code>
+     */
+    Iterator<V> valuesAfter(K key) {
+
+        return new ValueIterator<>(iteratorAfter(key));
+    }
+
+
+
+
+
+    @Override
+    public String toString() {
+
+        return asMap().toString();
+    }
+
+
+
+
+
+    private static int hash(Object key) {
+
+        int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+
+
+
+
+    private static int bitpos(int hash, int shift) {
+
+        return 1 << ((hash >>> shift) & MASK);
+    }
+
+
+
+
+
+    /**
+     * A trie node. Nodes are never modified after being built.
+     */
+    private abstract static class Node {
+
+        abstract Object find(int hash, int shift, Object key);
+
+
+
+
+
+        abstract Node put(int hash, int shift, Object key, Object value, boolean[] added);
+
+
+
+
+
+        abstract Node remove(int hash, int shift, Object key);
+    }
+
+
+
+
+
+    /**
+     * A node with up to 32 children, indexed by 5 bits of the hash.
+     * The <code>_array</code> holds pairs [key, value] for entries and [null, node] for sub nodes.
+     */
+    private static final class BitmapNode extends Node {
+
+        static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+
+        final int               _bitmap;
+        final Object[]          _array;
+
+
+
+
+
+        BitmapNode(int bitmap, Object[] array) {
+
+            _bitmap = bitmap;
+            _array = array;
+        }
+
+
+
+
+
+        private int index(int bit) {
+
+            return Integer.bitCount(_bitmap & (bit - 1));
+        }
+
+
+
+
+
+        @Override
+        Object find(int hash, int shift, Object key) {
+
+            int bit = bitpos(hash, shift);
+            if ((_bitmap & bit) == 0) {
+                return null;
+            }
+            int idx = index(bit);
+            Object k = _array[2 * idx];
+            Object v = _array[2 * idx + 1];
+            if (k == null) {
+                return ((Node) v).find(hash, shift + BITS, key);
+            }
+            return key.equals(k) ? v : null;
+        }
+
+
+
+
+
+        @Override
+        Node put(int hash, int shift, Object key, Object value, boolean[] added) {
+
+            int bit = bitpos(hash, shift);
+            int idx = index(bit);
+
+            if ((_bitmap & bit) == 0) {
+                // free slot, insert the entry
+                Object[] array = new Object[_array.length + 2];
+                System.arraycopy(_array, 0, array, 0, 2 * idx);
+                array[2 * idx] = key;
+                array[2 * idx + 1] = value;
+                System.arraycopy(_array, 2 * idx, array, 2 * (idx + 1), _array.length - 2 * idx);
+                added[0] = true;
+                return new BitmapNode(_bitmap | bit, array);
+            }
+
+            Object k = _array[2 * idx];
+            Object v = _array[2 * idx + 1];
+            if (k == null) {
+                Node child = (Node) v;
+                Node newChild = child.put(hash, shift + BITS, key, value, added);
+                return newChild == child ? this : with(2 * idx + 1, newChild);
+            }
+            if (key.equals(k)) {
+                return v == value ? this : with(2 * idx + 1, value);
+            }
+
+            // two different keys share this slot, push both to a sub node
+            added[0] = true;
+            Object[] array = _array.clone();
+            array[2 * idx] = null;
+            array[2 * idx + 1] = createNode(shift + BITS, k, v, hash, key, value);
+            return new BitmapNode(_bitmap, array);
+        }
+
+
+
+
+
+        @Override
+        Node remove(int hash, int shift, Object key) {
+
+            int bit = bitpos(hash, shift);
+            if ((_bitmap & bit) == 0) {
+                return this;
+            }
+            int idx = index(bit);
+            Object k = _array[2 * idx];
+            Object v = _array[2 * idx + 1];
+            if (k == null) {
+                Node child = (Node) v;
+                Node newChild = child.remove(hash, shift + BITS, key);
+                if (newChild == child) {
+                    return this;
+                }
+                if (newChild != null) {
+                    return with(2 * idx + 1, newChild);
+                }
+            } else if (!key.equals(k)) {
+                return this;
+            }
+
+            // drop the slot
+            if (_bitmap == bit) {
+                return null;
+            }
+            Object[] array = new Object[_array.length - 2];
+            System.arraycopy(_array, 0, array, 0, 2 * idx);
+            System.arraycopy(_array, 2 * (idx + 1), array, 2 * idx, array.length - 2 * idx);
+            return new BitmapNode(_bitmap ^ bit, array);
+        }
+
+
+
+
+
+        private BitmapNode with(int pos, Object value) {
+
+            Object[] array = _array.clone();
+            array[pos] = value;
+            return new BitmapNode(_bitmap, array);
+        }
+
+
+
+
+
+        private static Node createNode(int shift, Object k1, Object v1, int h2, Object k2, Object v2) {
+
+            int h1 = hash(k1);
+            if (h1 == h2) {
+                return new CollisionNode(h1, new Object[] { k1, v1, k2, v2 });
+            }
+            boolean[] added = new boolean[1];
+            return EMPTY.put(h1, shift, k1, v1, added).put(h2, shift, k2, v2, added);
+        }
+    }
+
+
+
+
+
+    /**
+     * A leaf node for keys whose full 32 bits hash is the same
+     */
+    private static final class CollisionNode extends Node {
+
+        final int      _hash;
+        final Object[] _array;
+
+
+
+
+
+        CollisionNode(int hash, Object[] array) {
+
+            _hash = hash;
+            _array = array;
+        }
+
+
+
+
+
+        private int indexOf(Object key) {
+
+            for (int i = 0; i < _array.length; i += 2) {
+                if (key.equals(_array[i])) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+
+
+
+
+        @Override
+        Object find(int hash, int shift, Object key) {
+
+            int idx = indexOf(key);
+            return idx < 0 ? null : _array[idx + 1];
+        }
+
+
+
+
+
+        @Override
+        Node put(int hash, int shift, Object key, Object value, boolean[] added) {
+
+            if (hash != _hash) {
+                // nest this node in a bitmap node and insert the new key beside it
+                return new BitmapNode(bitpos(_hash, shift), new Object[] { null, this }).put(hash, shift, key, value,
+                                                                                              added);
+            }
+            int idx = indexOf(key);
+            if (idx >= 0) {
+                if (_array[idx + 1] == value) {
+                    return this;
+                }
+                Object[] array = _array.clone();
+                array[idx + 1] = value;
+                return new CollisionNode(_hash, array);
+            }
+            Object[] array = new Object[_array.length + 2];
+            System.arraycopy(_array, 0, array, 0, _array.length);
+            array[_array.length] = key;
+            array[_array.length + 1] = value;
+            added[0] = true;
+            return new CollisionNode(_hash, array);
+        }
+
+
+
+
+
+        @Override
+        Node remove(int hash, int shift, Object key) {
+
+            int idx = indexOf(key);
+            if (idx < 0) {
+                return this;
+            }
+            if (_array.length == 2) {
+                return null;
+            }
+            Object[] array = new Object[_array.length - 2];
+            System.arraycopy(_array, 0, array, 0, idx);
+            System.arraycopy(_array, idx + 2, array, idx, array.length - idx);
+            return new CollisionNode(_hash, array);
+        }
+    }
+
+
+
+
+
+    /**
+     * Depth-first iterator over the trie entries
+     */
+    private static final class EntryIterator<K, V> implements Iterator<Map.Entry<K, V>> {
+
+        // each frame is the array of a node and the next position to visit in it
+        private final Deque<Object[]> _arrays    = new ArrayDeque<>();
+        private final Deque<int[]>    _positions = new ArrayDeque<>();
+        private Map.Entry<K, V>       _next;
+
+
+
+
+
+        EntryIterator(Node root) {
+
+            if (root != null) {
+                push(root);
+            }
+            advance();
+        }
+
+
+
+
+
+        /**
+         * Starts after the given key: the frames are those of the path from the root to the key, each one positioned
+         * after the slot followed on that path
+         */
+        EntryIterator(Node root, Object key) {
+
+            int hash = hash(key);
+            int shift = 0;
+            Node node = root;
+            while (node instanceof BitmapNode) {
+                BitmapNode bitmapNode = (BitmapNode) node;
+                int bit = bitpos(hash, shift);
+                if ((bitmapNode._bitmap & bit) == 0) {
+                    _arrays.clear();
+                    _positions.clear();
+                    return;
+                }
+                int idx = bitmapNode.index(bit);
+                _arrays.push(bitmapNode._array);
+                _positions.push(new int[] { 2 * idx + 2 });
+                Object k = bitmapNode._array[2 * idx];
+                if (k != null) {
+                    if (key.equals(k)) {
+                        advance();
+                    } else {
+                        _arrays.clear();
+                        _positions.clear();
+                    }
+                    return;
+                }
+                node = (Node) bitmapNode._array[2 * idx + 1];
+                shift += BITS;
+            }
+            if (node != null) {
+                CollisionNode collisionNode = (CollisionNode) node;
+                int idx = collisionNode.indexOf(key);
+                if (idx < 0) {
+                    _arrays.clear();
+                    _positions.clear();
+                    return;
+                }
+                _arrays.push(collisionNode._array);
+                _positions.push(new int[] { idx + 2 });
+                advance();
+            }
+        }
+
+
+
+
+
+        private void push(Node node) {
+
+            _arrays.push(node instanceof BitmapNode ? ((BitmapNode) node)._array : ((CollisionNode) node)._array);
+            _positions.push(new int[] { 0 });
+        }
+
+
+
+
+
+        @SuppressWarnings("unchecked")
+        private void advance() {
+
+            _next = null;
+            while (!_arrays.isEmpty()) {
+                Object[] array = _arrays.peek();
+                int[] pos = _positions.peek();
+                if (pos[0] >= array.length) {
+                    _arrays.pop();
+                    _positions.pop();
+                    continue;
+                }
+                Object k = array[pos[0]];
+                Object v = array[pos[0] + 1];
+                pos[0] += 2;
+                if (k == null) {
+                    push((Node) v);
+                } else {
+                    _next = new AbstractMap.SimpleImmutableEntry<>((K) k, (V) v);
+                    return;
+                }
+            }
+        }
+
+
+
+
+
+        @Override
+        public boolean hasNext() {
+
+            return _next != null;
+        }
+
+
+
+
+
+        @Override
+        public Map.Entry<K, V> next() {
+
+            if (_next == null) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<K, V> result = _next;
+            advance();
+            return result;
+        }
+    }
+
+
+
+
+
+    /**
+     * Iterator over the values of entries
+     */
+    private static final class ValueIterator<K, V> implements Iterator<V> {
+
+        private final Iterator<Map.Entry<K, V>> _entries;
+
+
+
+
+
+        ValueIterator(Iterator<Map.Entry<K, V>> entries) {
+
+            _entries = entries;
+        }
+
+
+
+
+
+        @Override
+        public boolean hasNext() {
+
+            return _entries.hasNext();
+        }
+
+
+
+
+
+        @Override
+        public V next() {
+
+            return _entries.next().getValue();
+        }
+    }
+
+
+
+
+
+    /**
+     * Unmodifiable <code>Map</code> view, with constant time lookups
+     */
+    private final class MapView extends AbstractMap<K, V> {
+
+        @Override
+        public V get(Object key) {
+
+            return PersistentHashMap.this.get(key);
+        }
+
+
+
+
+
+        @Override
+        public boolean containsKey(Object key) {
+
+            return PersistentHashMap.this.containsKey(key);
+        }
+
+
+
+
+
+        @Override
+        public int size() {
+
+            return _size;
+        }
+
+
+
+
+
+        @Override
+        public Set<Map.Entry<K, V>> entrySet() {
+
+            return new AbstractSet<Map.Entry<K, V>>() {
+
+                @Override
+                public Iterator<Map.Entry<K, V>> iterator() {
+
+                    return PersistentHashMap.this.iterator();
+                }
+
+
+
+
+
+                @Override
+                public int size() {
+
+                    return _size;
+                }
+            };
+        }
+    }
+
+}
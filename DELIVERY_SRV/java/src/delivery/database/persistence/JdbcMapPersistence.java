@@ -0,0 +1,772 @@
+
+
+
+
+
+package delivery.database.persistence;
+
+
+
+
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLDataException;
+import java.sql.SQLException;
+import java.sql.SQLIntegrityConstraintViolationException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import delivery.database.MapMutation;
+import delivery.database.MapRegistry;
+import delivery.database.MapSnapshot;
+import delivery.entities.Point;
+import delivery.entities.Route;
+import delivery.entities.RouteKey;
+import delivery.exceptions.StorageException;
+
+
+
+
+
+/***************************************************************************************
+ *
+ * Persists the map in a relational database through JDBC, e.g. an embedded H2 or SQLite database in file mode
+ * (<code>jdbc:h2:file:/var/lib/delivery/map</code>). The JDBC driver must be in the classpath.
+ *
+ * The database is written behind: the published versions are only queued, so the map writers never wait for the
+ * database. A writer thread collects the queued mutations for a short interval, coalescing the repeated changes of
+ * the same point or route (only the last state of a route is written), and then stores all of them in a single
+ * transaction, with JDBC batches. A failed transaction is retried until it succeeds, while new changes keep
+ * being coalesced, unless the database rejects its data: its changes are then given up, so that they do not block
+ * the next ones, and the failure is kept. The point names longer than the columns are rejected before being
+ * queued. The changes queued when the process stops abruptly are lost.
+ *
+ * Several maps can be stored in the same tables, each one with its own <code>map_id</code>.
+ *
+ * <pre>
+ *   map_point   (map_id, name)
+ *   map_route   (map_id, from_point, to_point, route_time, route_cost)
+ *   map_version (map_id, version)
+ * </pre>
+ *
+ ***************************************************************************************/
+public class JdbcMapPersistence implements MapPersistence {
+
+    public static final long     DEFAULT_FLUSH_INTERVAL = 200;
+    private static final long    MAX_RETRY_DELAY        = 30000;
+    private static final int     BATCH_SIZE             = 1000;
+    private static final int     LOAD_CHUNK             = 10000;
+
+    // the lengths of the columns of the map ids and of the point names
+    private static final int     MAX_MAP_ID_LENGTH      = 64;
+    private static final int     MAX_NAME_LENGTH        = 255;
+
+    private static final String  CREATE_POINTS          = "CREATE TABLE IF NOT EXISTS map_point ("
+                                                          + "map_id VARCHAR(64) NOT NULL, "
+                                                          + "name VARCHAR(255) NOT NULL, "
+                                                          + "PRIMARY KEY (map_id, name))";
+    private static final String  CREATE_ROUTES          = "CREATE TABLE IF NOT EXISTS map_route ("
+                                                          + "map_id VARCHAR(64) NOT NULL, "
+                                                          + "from_point VARCHAR(255) NOT NULL, "
+                                                          + "to_point VARCHAR(255) NOT NULL, "
+                                                          + "route_time INT NOT NULL, route_cost INT NOT NULL, "
+                                                          + "PRIMARY KEY (map_id, from_point, to_point))";
+    private static final String  CREATE_VERSION         = "CREATE TABLE IF NOT EXISTS map_version ("
+                                                          + "map_id VARCHAR(64) NOT NULL PRIMARY KEY, "
+                                                          + "version BIGINT NOT NULL)";
+
+    private final String         _url;
+    private final String         _mapId;
+    private final Properties     _info;
+    private final long           _flushInterval;
+
+    // only used by the writer thread, once recovered
+    private Connection           _connection;
+
+    // changes to be written, guarded by _lock
+    private final Object         _lock                  = new Object();
+    private PendingChanges       _pending               = new PendingChanges();
+    private boolean              _closed;
+
+    // the failure of the last write, until one succeeds
+    private volatile Exception   _failure;
+    // the failure of the last changes given up, which are missing from the database
+    private volatile Exception   _lostChanges;
+
+    private final Thread         _writer;
+
+
+
+
+
+    /**
+     * Creates a backend for the default map in the database of the given URL, flushed every
+     * {@value #DEFAULT_FLUSH_INTERVAL} ms
+     */
+    public JdbcMapPersistence(String url) {
+
+        this(url, MapRegistry.DEFAULT_MAP, new Properties(), DEFAULT_FLUSH_INTERVAL);
+    }
+
+
+
+
+
+    /**
+     * Creates a backend in the database of the given URL
+     *
+     * @param url
+     *            The JDBC URL of the database
+     * @param mapId
+     *            The id of the map in the database, up to {@value #MAX_MAP_ID_LENGTH} characters
+     * @param info
+     *            The connection properties, like "user" and "password"
+     * @param flushInterval
+     *            The milliseconds during which the changes are coalesced before being written
+     * 
+     * @throws IllegalArgumentException
+     *             When the map id is too long to be stored
+     */
+    public JdbcMapPersistence(String url, String mapId, Properties info, long flushInterval) {
+
+        if (mapId.length() > MAX_MAP_ID_LENGTH) {
+            throw new IllegalArgumentException("The map id " + mapId + " is longer than " + MAX_MAP_ID_LENGTH
+                                               + " characters");
+        }
+        _url = url;
+        _mapId = mapId;
+        _info = info;
+        _flushInterval = flushInterval;
+
+        _writer = new Thread(this::writeLoop, "map-jdbc-writer-" + mapId);
+        _writer.setDaemon(true);
+    }
+
+
+
+
+
+    /**
+     * Creates the tables if they do not exist, and reads the stored map
+     */
+    @Override
+    public void recover(Replayer replayer) throws IOException {
+
+        try {
+            _connection = DriverManager.getConnection(_url, _info);
+            _connection.setAutoCommit(false);
+
+            createTables(_connection);
+            long version = readVersion();
+            _connection.commit();
+
+            List<MapMutation> chunk = new ArrayList<>();
+            try (PreparedStatement select = _connection.prepareStatement("SELECT name FROM map_point "
+                                                                         + "WHERE map_id = ?")) {
+                select.setString(1, _mapId);
+                try (ResultSet points = select.executeQuery()) {
+                    while (points.next()) {
+                        chunk.add(MapMutation.addPoint(new Point(points.getString(1))));
+                        chunk = replayIfFull(replayer, version, chunk);
+                    }
+                }
+            }
+            try (PreparedStatement select = _connection.prepareStatement("SELECT from_point, to_point, route_time, "
+                                                                         + "route_cost FROM map_route "
+                                                                         + "WHERE map_id = ?")) {
+                select.setString(1, _mapId);
+                try (ResultSet routes = select.executeQuery()) {
+                    while (routes.next()) {
+                        chunk.add(MapMutation.addRoute(new Route(new Point(routes.getString(1)),
+                                                                 new Point(routes.getString(2)), routes.getInt(3),
+                                                                 routes.getInt(4))));
+                        chunk = replayIfFull(replayer, version, chunk);
+                    }
+                }
+            }
+            _connection.commit();
+            replayer.replay(version, chunk);
+
+        } catch (SQLException e) {
+            IOException failure = new IOException("Unable to read the map from " + _url, e);
+            abandonConnection(failure);
+            throw failure;
+        } catch (IOException | RuntimeException e) {
+            abandonConnection(e);
+            throw e;
+        }
+
+        _writer.start();
+    }
+
+
+
+
+
+    /**
+     * Closes the connection of a failed recovery, whose failure receives the one of the closing
+     */
+    private void abandonConnection(Exception failure) {
+
+        if (_connection == null) {
+            return;
+        }
+        try {
+            _connection.close();
+        } catch (SQLException e) {
+            failure.addSuppressed(e);
+        }
+        _connection = null;
+    }
+
+
+
+
+
+    /**
+     * Queues the mutations, to be written in background
+     *
+     * @return A completed future, the map writers never wait for the database
+     * 
+     * @throws StorageException
+     *             When a point name is too long to be stored, so the version is rejected
+     */
+    @Override
+    public CompletableFuture<Long> append(long version, List<MapMutation> mutations) {
+
+        for (MapMutation mutation : mutations) {
+            Point point = mutation.getPoint();
+            if (point != null && point.getName().length() > MAX_NAME_LENGTH) {
+                throw new StorageException("A point name of " + point.getName().length() + " characters is longer "
+                                           + "than the " + MAX_NAME_LENGTH + " of the map database");
+            }
+        }
+        synchronized (_lock) {
+            if (_closed) {
+                throw new StorageException("The map database is closed");
+            }
+            _pending.add(version, mutations);
+            _lock.notifyAll();
+        }
+        return CompletableFuture.completedFuture(version);
+    }
+
+
+
+
+
+    /**
+     * The database needs no compaction
+     */
+    @Override
+    public boolean needsCompaction() {
+
+        return false;
+    }
+
+
+
+
+
+    @Override
+    public void compact(MapSnapshot snapshot) {
+
+        // nothing to compact, the tables only hold the current map
+    }
+
+
+
+
+
+    @Override
+    public Exception getFailure() {
+
+        Exception failure = _failure;
+        return failure != null ? failure : _lostChanges;
+    }
+
+
+
+
+
+    /**
+     * Writes the queued changes and closes the connection
+     *
+     * @throws IOException
+     *             When the queued changes could not be written, and were given up
+     */
+    @Override
+    public void close() throws IOException {
+
+        synchronized (_lock) {
+            if (_closed) {
+                return;
+            }
+            _closed = true;
+            _lock.notifyAll();
+        }
+
+        try {
+            if (_writer.isAlive()) {
+                _writer.join();
+            }
+            if (_connection != null) {
+                _connection.close();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (SQLException e) {
+            throw new IOException("Unable to close the map database", e);
+        }
+
+        // the writer is done: a failure left means that the changes were given up
+        Exception failure = getFailure();
+        if (failure != null) {
+            throw new IOException("Unable to store the map before closing", failure);
+        }
+    }
+
+
+
+
+
+    /**
+     * Closes the backend and deletes the map from the database, with the changes not yet written
+     */
+    @Override
+    public void delete() throws IOException {
+
+        synchronized (_lock) {
+            _pending = new PendingChanges();
+        }
+        try {
+            close();
+        } catch (IOException e) {
+            // the changes that were not stored are deleted anyway
+        }
+
+        try (Connection connection = DriverManager.getConnection(_url, _info)) {
+            connection.setAutoCommit(false);
+            for (String table : new String[] { "map_route", "map_point", "map_version" }) {
+                try (PreparedStatement delete = connection.prepareStatement("DELETE FROM " + table
+                                                                            + " WHERE map_id = ?")) {
+                    delete.setString(1, _mapId);
+                    delete.executeUpdate();
+                }
+            }
+            connection.commit();
+        } catch (SQLException e) {
+            throw new IOException("Unable to delete the map " + _mapId + " from " + _url, e);
+        }
+    }
+
+
+
+
+
+    /**
+     * Returns the ids of the maps stored in the database of the given URL
+     */
+    public static Set<String> storedMaps(String url, Properties info) throws IOException {
+
+        try (Connection connection = DriverManager.getConnection(url, info)) {
+            createTables(connection);
+            Set<String> mapIds = new LinkedHashSet<>();
+            try (Statement statement = connection.createStatement();
+                 ResultSet result = statement.executeQuery("SELECT map_id FROM map_version")) {
+                while (result.next()) {
+                    mapIds.add(result.getString(1));
+                }
+            }
+            if (!connection.getAutoCommit()) {
+                connection.commit();
+            }
+            return mapIds;
+        } catch (SQLException e) {
+            throw new IOException("Unable to read the maps from " + url, e);
+        }
+    }
+
+
+
+
+
+    private static void createTables(Connection connection) throws SQLException {
+
+        try (Statement statement = connection.createStatement()) {
+            statement.execute(CREATE_POINTS);
+            statement.execute(CREATE_ROUTES);
+            statement.execute(CREATE_VERSION);
+        }
+    }
+
+
+
+
+
+    private long readVersion() throws SQLException {
+
+        try (PreparedStatement select = _connection.prepareStatement("SELECT version FROM map_version "
+                                                                     + "WHERE map_id = ?")) {
+            select.setString(1, _mapId);
+            try (ResultSet result = select.executeQuery()) {
+                if (result.next()) {
+                    return result.getLong(1);
+                }
+            }
+        }
+        try (PreparedStatement insert = _connection.prepareStatement("INSERT INTO map_version (map_id, version) "
+                                                                     + "VALUES (?, 0)")) {
+            insert.setString(1, _mapId);
+            insert.executeUpdate();
+        }
+        return 0;
+    }
+
+
+
+
+
+    private static List<MapMutation> replayIfFull(Replayer replayer, long version, List<MapMutation> chunk)
+                    throws IOException {
+
+        if (chunk.size() < LOAD_CHUNK) {
+            return chunk;
+        }
+        replayer.replay(version, chunk);
+        return new ArrayList<>();
+    }
+
+
+
+
+
+    /**
+     * Writes the queued changes until closed
+     */
+    private void writeLoop() {
+
+        while (true) {
+            boolean closed;
+            synchronized (_lock) {
+                while (_pending.isEmpty() && !_closed) {
+                    try {
+                        _lock.wait();
+                    } catch (InterruptedException e) {
+                        // keep running until closed
+                    }
+                }
+                if (_pending.isEmpty()) {
+                    return;
+                }
+                closed = _closed;
+            }
+
+            if (!closed) {
+                // let the changes of the interval be coalesced
+                sleep(_flushInterval);
+            }
+
+            PendingChanges changes;
+            synchronized (_lock) {
+                changes = _pending;
+                _pending = new PendingChanges();
+            }
+            writeWithRetry(changes);
+        }
+    }
+
+
+
+
+
+    /**
+     * Writes the changes, retrying while they fail. Once closed, the changes are given up after one more failure, and
+     * at once when the database rejects their data, since they would fail the same way.
+     */
+    private void writeWithRetry(PendingChanges changes) {
+
+        long delay = _flushInterval;
+        while (true) {
+            try {
+                write(changes);
+                _failure = null;
+                return;
+            } catch (SQLException e) {
+                try {
+                    _connection.rollback();
+                } catch (SQLException rollbackError) {
+                    e.addSuppressed(rollbackError);
+                }
+                if (isRejected(e)) {
+                    _lostChanges = new StorageException("The " + changes.size() + " map changes up to version "
+                                                        + changes._version + " were rejected by the database", e);
+                    _failure = null;
+                    return;
+                }
+                _failure = e;
+            }
+
+            synchronized (_lock) {
+                if (_closed) {
+                    try {
+                        write(changes);
+                        _failure = null;
+                    } catch (SQLException e) {
+                        _failure = new StorageException("The last " + changes.size() + " map changes were not stored",
+                                                        e);
+                    }
+                    return;
+                }
+            }
+            sleep(delay);
+            delay = Math.min(delay * 2, MAX_RETRY_DELAY);
+        }
+    }
+
+
+
+
+
+    /**
+     * Returns whether the database rejected the data of the changes, which would fail the same way when retried: the
+     * data exceptions and the integrity constraint violations, also reported by the batches with their SQL state
+     */
+    private static boolean isRejected(SQLException e) {
+
+        String state = e.getSQLState();
+        return e instanceof SQLDataException || e instanceof SQLIntegrityConstraintViolationException
+               || state != null && (state.startsWith("22") || state.startsWith("23"));
+    }
+
+
+
+
+
+    /**
+     * Writes the changes in a single transaction
+     */
+    private void write(PendingChanges changes) throws SQLException {
+
+        if (changes._clear) {
+            for (String table : new String[] { "map_route", "map_point" }) {
+                try (PreparedStatement delete = _connection.prepareStatement("DELETE FROM " + table
+                                                                             + " WHERE map_id = ?")) {
+                    delete.setString(1, _mapId);
+                    delete.executeUpdate();
+                }
+            }
+        }
+
+        if (!changes._deletedPoints.isEmpty()) {
+            try (PreparedStatement deleteRoutes = _connection.prepareStatement("DELETE FROM map_route "
+                                                                               + "WHERE map_id = ? AND "
+                                                                               + "(from_point = ? OR to_point = ?)");
+                 PreparedStatement deletePoint = _connection.prepareStatement("DELETE FROM map_point "
+                                                                              + "WHERE map_id = ? AND name = ?")) {
+                int count = 0;
+                for (String name : changes._deletedPoints) {
+                    deleteRoutes.setString(1, _mapId);
+                    deleteRoutes.setString(2, name);
+                    deleteRoutes.setString(3, name);
+                    deleteRoutes.addBatch();
+                    deletePoint.setString(1, _mapId);
+                    deletePoint.setString(2, name);
+                    deletePoint.addBatch();
+                    if (++count % BATCH_SIZE == 0) {
+                        deleteRoutes.executeBatch();
+                        deletePoint.executeBatch();
+                    }
+                }
+                deleteRoutes.executeBatch();
+                deletePoint.executeBatch();
+            }
+        }
+
+        if (!changes._addedPoints.isEmpty()) {
+            try (PreparedStatement insert = _connection.prepareStatement("INSERT INTO map_point (map_id, name) "
+                                                                         + "VALUES (?, ?)")) {
+                int count = 0;
+                for (String name : changes._addedPoints) {
+                    insert.setString(1, _mapId);
+                    insert.setString(2, name);
+                    insert.addBatch();
+                    if (++count % BATCH_SIZE == 0) {
+                        insert.executeBatch();
+                    }
+                }
+                insert.executeBatch();
+            }
+        }
+
+        if (!changes._routes.isEmpty()) {
+            // an updated route is deleted and inserted again, which works the same on all databases
+            try (PreparedStatement delete = _connection.prepareStatement("DELETE FROM map_route WHERE map_id = ? "
+                                                                         + "AND from_point = ? AND to_point = ?");
+                 PreparedStatement insert = _connection.prepareStatement("INSERT INTO map_route (map_id, from_point, "
+                                                                         + "to_point, route_time, route_cost) "
+                                                                         + "VALUES (?, ?, ?, ?, ?)")) {
+                int count = 0;
+                for (Map.Entry<RouteKey, Route> entry : changes._routes.entrySet()) {
+                    delete.setString(1, _mapId);
+                    delete.setString(2, entry.getKey().getFromPoint().getName());
+                    delete.setString(3, entry.getKey().getToPoint().getName());
+                    delete.addBatch();
+                    if (++count % BATCH_SIZE == 0) {
+                        delete.executeBatch();
+                    }
+                }
+                delete.executeBatch();
+
+                count = 0;
+                for (Route r : changes._routes.values()) {
+                    if (r == null) {
+                        continue;
+                    }
+                    insert.setString(1, _mapId);
+                    insert.setString(2, r.getFromPoint().getName());
+                    insert.setString(3, r.getToPoint().getName());
+                    insert.setInt(4, r.getTime());
+                    insert.setInt(5, r.getCost());
+                    insert.addBatch();
+                    if (++count % BATCH_SIZE == 0) {
+                        insert.executeBatch();
+                    }
+                }
+                insert.executeBatch();
+            }
+        }
+
+        try (PreparedStatement update = _connection.prepareStatement("UPDATE map_version SET version = ? "
+                                                                     + "WHERE map_id = ?")) {
+            update.setLong(1, changes._version);
+            update.setString(2, _mapId);
+            update.executeUpdate();
+        }
+        _connection.commit();
+    }
+
+
+
+
+
+    private static void sleep(long millis) {
+
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            // the pending changes are written anyway
+        }
+    }
+
+
+
+
+
+    /**
+     * The changes queued since the last write, coalesced to the last state of each point and route
+     */
+    private static final class PendingChanges {
+
+        // the whole map was cleared before the other changes
+        boolean                    _clear;
+        // points deleted, with all their routes, before the other changes
+        final Set<String>          _deletedPoints = new HashSet<>();
+        final Set<String>          _addedPoints   = new LinkedHashSet<>();
+        // last state of each changed route, null when deleted
+        final Map<RouteKey, Route> _routes        = new LinkedHashMap<>();
+        long                       _version;
+        int                        _size;
+
+
+
+
+
+        void add(long version, List<MapMutation> mutations) {
+
+            for (MapMutation mutation : mutations) {
+                switch (mutation.getType()) {
+                    case ADD_POINT:
+                        _addedPoints.add(mutation.getPoint().getName());
+                        break;
+                    case DELETE_POINT:
+                        deletePoint(mutation.getPoint().getName());
+                        break;
+                    case ADD_ROUTE:
+                    case UPDATE_ROUTE:
+                        _routes.put(mutation.getRouteKey(), mutation.getRoute());
+                        break;
+                    case DELETE_ROUTE:
+                        _routes.put(mutation.getRouteKey(), null);
+                        break;
+                    case CLEAR_MAP:
+                        _clear = true;
+                        _deletedPoints.clear();
+                        _addedPoints.clear();
+                        _routes.clear();
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown mutation " + mutation);
+                }
+            }
+            _version = version;
+            _size += mutations.size();
+        }
+
+
+
+
+
+        /**
+         * The deletion of the point also deletes all its routes, so the previous changes of them are discarded
+         */
+        private void deletePoint(String name) {
+
+            _addedPoints.remove(name);
+            _deletedPoints.add(name);
+
+            Iterator<RouteKey> keys = _routes.keySet().iterator();
+            while (keys.hasNext()) {
+                RouteKey key = keys.next();
+                if (key.getFromPoint().getName().equals(name) || key.getToPoint().getName().equals(name)) {
+                    keys.remove();
+                }
+            }
+        }
+
+
+
+
+
+        boolean isEmpty() {
+
+            return _size == 0;
+        }
+
+
+
+
+
+        /**
+         * Returns the number of mutations coalesced in these changes
+         */
+        int size() {
+
+            return _size;
+        }
+    }
+
+}
@@ -0,0 +1,112 @@
+
+
+
+
+
+package delivery.database.persistence;
+
+
+
+
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import delivery.database.MapMutation;
+import delivery.database.MapSnapshot;
+
+
+
+
+
+/**
+ * A backend where the <code>{@link delivery.database.MapStorage}</code> persists the map.
+ *
+ * The storage keeps the whole map in memory and serves all the reads from it: the backend is only written with the
+ * published versions, and read once when it is enabled, to recover the stored map.
+ */
+public interface MapPersistence extends Closeable {
+
+    /**
+     * Receives the map recovered from the backend: first the snapshot, if any, and then the newer mutations in order
+     */
+    interface Replayer {
+
+        void load(MappedMap snapshot) throws IOException;
+
+
+
+
+
+        void replay(long version, List<MapMutation> mutations) throws IOException;
+    }
+
+
+
+
+
+    /**
+     * Gives the stored map to the replayer and prepares the backend to receive new versions.
+     * Called once, before any other method.
+     */
+    void recover(Replayer replayer) throws IOException;
+
+
+
+
+
+    /**
+     * Queues the mutations of a new map version to be stored.
+     * Called in the order of the versions, while holding the lock of the map writers, so it must not block.
+     *
+     * @return A future that completes when the version is stored as required by the backend
+     *
+     * @throws delivery.exceptions.StorageException
+     *             When the backend is closed or no longer writable
+     */
+    CompletableFuture<Long> append(long version, List<MapMutation> mutations);
+
+
+
+
+
+    /**
+     * Returns true when the backend advises to compact its data into a snapshot of the map
+     */
+    boolean needsCompaction();
+
+
+
+
+
+    /**
+     * Compacts the stored data into the given map version.
+     * Called while holding the lock of the map writers, so it must not block.
+     */
+    void compact(MapSnapshot snapshot);
+
+
+
+
+
+    /**
+     * Closes the backend and deletes the stored map
+     */
+    void delete() throws IOException;
+
+
+
+
+
+    /**
+     * Returns the last failure of the work done by the backend in background, or <code>null</code> when there is none
+     * or when it has recovered from it
+     */
+    default Exception getFailure() {
+
+        return null;
+    }
+
+}
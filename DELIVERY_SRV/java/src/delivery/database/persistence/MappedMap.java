@@ -0,0 +1,997 @@
+
+
+
+
+
+package delivery.database.persistence;
+
+
+
+
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import delivery.database.MapSnapshot;
+import delivery.entities.Point;
+import delivery.entities.Route;
+import delivery.entities.RouteKey;
+
+
+
+
+
+/***************************************************************************************
+ *
+ * A read-only map stored in a binary file and accessed through <code>FileChannel.map</code>, or stored in the same
+ * format in a direct buffer, out of the Java heap (see <code>{@link #copyOf(MapSnapshot)}</code>).
+ *
+ * The file is queried in place: loading it does not parse nor build any object, the <code>Point</code> and
+ * <code>Route</code> objects are only created when they are returned. Each point has a dense id (0..n-1) and
+ * the routes are stored in CSR (compressed sparse row) format: the outgoing routes of the point <code>i</code>
+ * are at the indexes <code>outOffsets[i]..outOffsets[i+1]-1</code> of the route arrays, sorted by target id.
+ *
+ * <pre>
+ *   header       magic, format (4 bytes each), map version (8 bytes),
+ *                points n, routes m, table size t, name bytes (4 bytes each)
+ *   nameOffsets  int[n+1]  start of the name of each point in the names section
+ *   table        int[t]    open addressing hash table from the point name to its id + 1 (0 when empty)
+ *   outOffsets   int[n+1]  first outgoing route of each point
+ *   outTargets   int[m]    target point id of each route
+ *   outTimes     int[m]    time of each route
+ *   outCosts     int[m]    cost of each route
+ *   inOffsets    int[n+1]  first incoming route of each point
+ *   inSources    int[m]    source point id of each incoming route
+ *   inRoutes     int[m]    index of each incoming route in the outgoing arrays
+ *   names        UTF-8 bytes of the point names
+ * </pre>
+ *
+ * All the values are big-endian.
+ *
+ ***************************************************************************************/
+public final class MappedMap {
+
+    private static final int MAGIC       = 0x444D4353;  // "DMCS"
+    private static final int FORMAT      = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int CHUNK_SIZE  = 1 << 16;
+
+    private final long       _version;
+    private final int        _byteSize;
+    private final int        _pointCount;
+    private final int        _routeCount;
+
+    private final IntBuffer  _nameOffsets;
+    private final IntBuffer  _table;
+    private final IntBuffer  _outOffsets;
+    private final IntBuffer  _outTargets;
+    private final IntBuffer  _outTimes;
+    private final IntBuffer  _outCosts;
+    private final IntBuffer  _inOffsets;
+    private final IntBuffer  _inSources;
+    private final IntBuffer  _inRoutes;
+    private final ByteBuffer _names;
+
+
+
+
+
+    private MappedMap(ByteBuffer buffer) throws IOException {
+
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT) {
+            throw new IOException("Not a map file");
+        }
+        _version = buffer.getLong(8);
+        _byteSize = buffer.capacity();
+        _pointCount = buffer.getInt(16);
+        _routeCount = buffer.getInt(20);
+        int tableSize = buffer.getInt(24);
+        int nameBytes = buffer.getInt(28);
+
+        long expected = fileSize(_pointCount, _routeCount, tableSize, nameBytes);
+        if (_pointCount < 0 || _routeCount < 0 || tableSize < 0 || nameBytes < 0 || expected != buffer.capacity()) {
+            throw new IOException("Truncated or corrupted map file");
+        }
+
+        int offset = HEADER_SIZE;
+        _nameOffsets = ints(buffer, offset, _pointCount + 1);
+        offset += 4 * (_pointCount + 1);
+        _table = ints(buffer, offset, tableSize);
+        offset += 4 * tableSize;
+        _outOffsets = ints(buffer, offset, _pointCount + 1);
+        offset += 4 * (_pointCount + 1);
+        _outTargets = ints(buffer, offset, _routeCount);
+        offset += 4 * _routeCount;
+        _outTimes = ints(buffer, offset, _routeCount);
+        offset += 4 * _routeCount;
+        _outCosts = ints(buffer, offset, _routeCount);
+        offset += 4 * _routeCount;
+        _inOffsets = ints(buffer, offset, _pointCount + 1);
+        offset += 4 * (_pointCount + 1);
+        _inSources = ints(buffer, offset, _routeCount);
+        offset += 4 * _routeCount;
+        _inRoutes = ints(buffer, offset, _routeCount);
+        offset += 4 * _routeCount;
+        _names = slice(buffer, offset, nameBytes);
+    }
+
+
+
+
+
+    /**
+     * Maps the given file in memory. Only the header is read, the rest of the file is loaded by the operating system
+     * when it is accessed.
+     *
+     * @throws IOException
+     *             When the file can not be read, is not a map file or is larger than 2 GB
+     */
+    public static MappedMap open(Path file) throws IOException {
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("The map file " + file + " is too large to be mapped");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            // the mapping stays valid after the channel is closed
+            return new MappedMap(buffer);
+        }
+    }
+
+
+
+
+
+    /**
+     * Writes the given map version to a file, and syncs it to disk
+     */
+    public static void write(MapSnapshot snapshot, Path file) throws IOException {
+
+        Encoding encoding = new Encoding(snapshot);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+            encoding.put(buffer, channel);
+            drain(channel, buffer);
+            channel.force(true);
+        }
+    }
+
+
+
+
+
+    /**
+     * Writes the given map version to a channel, in the map file format, e.g. to send it over the network
+     */
+    public static void write(MapSnapshot snapshot, WritableByteChannel channel) throws IOException {
+
+        Encoding encoding = new Encoding(snapshot);
+        ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+        encoding.put(buffer, channel);
+        drain(channel, buffer);
+    }
+
+
+
+
+
+    /**
+     * Reads a map written by <code>{@link #write(MapSnapshot, WritableByteChannel)}</code> from a channel, to a direct
+     * buffer out of the Java heap. Only the bytes of the map are read from the channel.
+     *
+     * @throws IOException
+     *             When the channel can not be read, or does not contain a map
+     */
+    public static MappedMap read(ReadableByteChannel channel) throws IOException {
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        fill(channel, header);
+        if (header.getInt(0) != MAGIC || header.getInt(4) != FORMAT) {
+            throw new IOException("Not a map file");
+        }
+        int points = header.getInt(16);
+        int routes = header.getInt(20);
+        int tableSize = header.getInt(24);
+        int nameBytes = header.getInt(28);
+        long size = fileSize(points, routes, tableSize, nameBytes);
+        if (points < 0 || routes < 0 || tableSize < 0 || nameBytes < 0 || size > Integer.MAX_VALUE) {
+            throw new IOException("Corrupted map file");
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocateDirect((int) size);
+        header.flip();
+        buffer.put(header);
+        fill(channel, buffer);
+        buffer.clear();
+        return new MappedMap(buffer);
+    }
+
+
+
+
+
+    /**
+     * Encodes the given map version in a direct buffer, out of the Java heap, and returns it as a map.
+     * The map is stored as in a map file: 20 bytes per route and about 24 bytes per point plus its name, with no object
+     * per point or route.
+     *
+     * @throws IllegalArgumentException
+     *             When the map is larger than 2 GB once encoded
+     */
+    public static MappedMap copyOf(MapSnapshot snapshot) {
+
+        Encoding encoding = new Encoding(snapshot);
+        long size = encoding.size();
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("The map is too large to be stored in a buffer: " + size + " bytes");
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect((int) size);
+        try {
+            encoding.put(buffer, null);
+            buffer.clear();
+            return new MappedMap(buffer);
+        } catch (IOException e) {
+            // there is no channel to fail, and the encoding is valid
+            throw new IllegalStateException(e);
+        }
+    }
+
+
+
+
+
+    public long getVersion() {
+
+        return _version;
+    }
+
+
+
+
+
+    public int getPointCount() {
+
+        return _pointCount;
+    }
+
+
+
+
+
+    public int getRouteCount() {
+
+        return _routeCount;
+    }
+
+
+
+
+
+    /**
+     * Returns the size of the map in bytes, i.e. the memory it takes once fully loaded
+     */
+    public int getByteSize() {
+
+        return _byteSize;
+    }
+
+
+
+
+
+    /**
+     * Returns the id of the point with the given name, or -1 when it does not exist
+     */
+    public int pointId(String name) {
+
+        if (_pointCount == 0 || name == null) {
+            return -1;
+        }
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        int mask = _table.capacity() - 1;
+        for (int slot = hash(name) & mask;; slot = (slot + 1) & mask) {
+            int id = _table.get(slot) - 1;
+            if (id < 0) {
+                return -1;
+            }
+            if (nameEquals(id, bytes)) {
+                return id;
+            }
+        }
+    }
+
+
+
+
+
+    public String pointName(int id) {
+
+        int start = _nameOffsets.get(id);
+        byte[] bytes = new byte[_nameOffsets.get(id + 1) - start];
+        ByteBuffer names = _names.duplicate();
+        names.position(start);
+        names.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+
+
+
+
+    /**
+     * Returns the index of the route between the two points, or -1 when it does not exist
+     */
+    public int routeIndex(int from, int to) {
+
+        int low = _outOffsets.get(from);
+        int high = _outOffsets.get(from + 1) - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int target = _outTargets.get(mid);
+            if (target < to) {
+                low = mid + 1;
+            } else if (target > to) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+
+
+
+
+    /**
+     * Returns the index of the first outgoing route of the point.
+     * The outgoing routes of the point <code>id</code> are in <code>[firstOutgoing(id), firstOutgoing(id + 1))</code>
+     */
+    public int firstOutgoing(int id) {
+
+        return _outOffsets.get(id);
+    }
+
+
+
+
+
+    public int routeTarget(int route) {
+
+        return _outTargets.get(route);
+    }
+
+
+
+
+
+    public int routeTime(int route) {
+
+        return _outTimes.get(route);
+    }
+
+
+
+
+
+    public int routeCost(int route) {
+
+        return _outCosts.get(route);
+    }
+
+
+
+
+
+    public Point getPoint(String name) {
+
+        return pointId(name) < 0 ? null : new Point(name);
+    }
+
+
+
+
+
+    public Route getRoute(RouteKey routeKey) {
+
+        int from = pointId(routeKey.getFromPoint().getName());
+        int to = pointId(routeKey.getToPoint().getName());
+        if (from < 0 || to < 0) {
+            return null;
+        }
+        int route = routeIndex(from, to);
+        return route < 0 ? null : new Route(routeKey.getFromPoint(), routeKey.getToPoint(), _outTimes.get(route),
+                                            _outCosts.get(route));
+    }
+
+
+
+
+
+    /**
+     * Returns an unmodifiable view of all the points
+     */
+    public Set<Point> points() {
+
+        return new AbstractSet<Point>() {
+
+            @Override
+            public Iterator<Point> iterator() {
+
+                return new PointIterator(0);
+            }
+
+
+
+
+
+            @Override
+            public boolean contains(Object o) {
+
+                return (o instanceof Point) && pointId(((Point) o).getName()) >= 0;
+            }
+
+
+
+
+
+            @Override
+            public int size() {
+
+                return _pointCount;
+            }
+        };
+    }
+
+
+
+
+
+    /**
+     * Returns an unmodifiable view of all the routes, by their key
+     */
+    public Map<RouteKey, Route> routes() {
+
+        return new AbstractMap<RouteKey, Route>() {
+
+            @Override
+            public Route get(Object key) {
+
+                return (key instanceof RouteKey) ? getRoute((RouteKey) key) : null;
+            }
+
+
+
+
+
+            @Override
+            public boolean containsKey(Object key) {
+
+                return get(key) != null;
+            }
+
+
+
+
+
+            @Override
+            public Set<Map.Entry<RouteKey, Route>> entrySet() {
+
+                return new AbstractSet<Map.Entry<RouteKey, Route>>() {
+
+                    @Override
+                    public Iterator<Map.Entry<RouteKey, Route>> iterator() {
+
+                        return new RouteIterator(0, 0);
+                    }
+
+
+
+
+
+                    @Override
+                    public int size() {
+
+                        return _routeCount;
+                    }
+                };
+            }
+        };
+    }
+
+
+
+
+
+    /**
+     * Returns an iterator over the points that follow the given one, in the order of <code>{@link #points()}</code>
+     *
+     * @return An iterator over no points when the point is not in the map
+     */
+    public Iterator<Point> pointsAfter(String name) {
+
+        int id = pointId(name);
+        return new PointIterator(id < 0 ? _pointCount : id + 1);
+    }
+
+
+
+
+
+    /**
+     * Returns an iterator over the routes that follow the given one, in the order of <code>{@link #routes()}</code>
+     *
+     * @return An iterator over no routes when the route is not in the map
+     */
+    public Iterator<Map.Entry<RouteKey, Route>> routesAfter(RouteKey routeKey) {
+
+        int from = pointId(routeKey.getFromPoint().getName());
+        int to = pointId(routeKey.getToPoint().getName());
+        int route = from < 0 || to < 0 ? -1 : routeIndex(from, to);
+        return route < 0 ? new RouteIterator(0, _routeCount) : new RouteIterator(from, route + 1);
+    }
+
+
+
+
+
+    /**
+     * Returns an unmodifiable view of the routes that start at the given point
+     */
+    public List<Route> outgoingRoutes(Point p) {
+
+        final int id = pointId(p.getName());
+        if (id < 0) {
+            return Collections.emptyList();
+        }
+        final Point from = new Point(p.getName());
+        final int first = _outOffsets.get(id);
+        final int size = _outOffsets.get(id + 1) - first;
+
+        return new AbstractList<Route>() {
+
+            @Override
+            public Route get(int index) {
+
+                int route = first + index;
+                return new Route(from, new Point(pointName(_outTargets.get(route))), _outTimes.get(route),
+                                 _outCosts.get(route));
+            }
+
+
+
+
+
+            @Override
+            public int size() {
+
+                return size;
+            }
+        };
+    }
+
+
+
+
+
+    /**
+     * Returns an unmodifiable view of the routes that end at the given point
+     */
+    public List<Route> incomingRoutes(Point p) {
+
+        final int id = pointId(p.getName());
+        if (id < 0) {
+            return Collections.emptyList();
+        }
+        final Point to = new Point(p.getName());
+        final int first = _inOffsets.get(id);
+        final int size = _inOffsets.get(id + 1) - first;
+
+        return new AbstractList<Route>() {
+
+            @Override
+            public Route get(int index) {
+
+                int route = _inRoutes.get(first + index);
+                return new Route(new Point(pointName(_inSources.get(first + index))), to, _outTimes.get(route),
+                                 _outCosts.get(route));
+            }
+
+
+
+
+
+            @Override
+            public int size() {
+
+                return size;
+            }
+        };
+    }
+
+
+
+
+
+    @Override
+    public String toString() {
+
+        return "MappedMap: Version=" + _version + ", Points=" + _pointCount + ", Routes=" + _routeCount;
+    }
+
+
+
+
+
+    private boolean nameEquals(int id, byte[] bytes) {
+
+        int start = _nameOffsets.get(id);
+        if (_nameOffsets.get(id + 1) - start != bytes.length) {
+            return false;
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            if (_names.get(start + i) != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+
+
+
+    /**
+     * Iterates the points by id
+     */
+    private final class PointIterator implements Iterator<Point> {
+
+        private int _id;
+
+
+
+
+
+        PointIterator(int id) {
+
+            _id = id;
+        }
+
+
+
+
+
+        @Override
+        public boolean hasNext() {
+
+            return _id < _pointCount;
+        }
+
+
+
+
+
+        @Override
+        public Point next() {
+
+            if (_id >= _pointCount) {
+                throw new NoSuchElementException();
+            }
+            return new Point(pointName(_id++));
+        }
+    }
+
+
+
+
+
+    /**
+     * Iterates the routes, row by row
+     */
+    private final class RouteIterator implements Iterator<Map.Entry<RouteKey, Route>> {
+
+        private int   _from;
+        private int   _route;
+        private Point _fromPoint;
+
+
+
+
+
+        /**
+         * Starts at the given route, of the row of the given point or of a following one
+         */
+        RouteIterator(int from, int route) {
+
+            _from = from;
+            _route = route;
+        }
+
+
+
+
+
+        @Override
+        public boolean hasNext() {
+
+            return _route < _routeCount;
+        }
+
+
+
+
+
+        @Override
+        public Map.Entry<RouteKey, Route> next() {
+
+            if (_route >= _routeCount) {
+                throw new NoSuchElementException();
+            }
+            while (_outOffsets.get(_from + 1) <= _route) {
+                _from++;
+                _fromPoint = null;
+            }
+            if (_fromPoint == null) {
+                _fromPoint = new Point(pointName(_from));
+            }
+            Point to = new Point(pointName(_outTargets.get(_route)));
+            Route route = new Route(_fromPoint, to, _outTimes.get(_route), _outCosts.get(_route));
+            _route++;
+            return new AbstractMap.SimpleImmutableEntry<>(new RouteKey(_fromPoint, to), route);
+        }
+    }
+
+
+
+
+
+    /**
+     * The sections of a map file, computed from a map version
+     */
+    private static final class Encoding {
+
+        private final long     _version;
+        private final int      _pointCount;
+        private final int      _routeCount;
+        private final byte[][] _names;
+        private final int[]    _nameOffsets;
+        private final int[]    _table;
+        private final int[]    _outOffsets;
+        private final int[]    _outTargets;
+        private final int[]    _outTimes;
+        private final int[]    _outCosts;
+        private final int[]    _inOffsets;
+        private final int[]    _inSources;
+        private final int[]    _inRoutes;
+
+
+
+
+
+        Encoding(MapSnapshot snapshot) {
+
+            int n = snapshot.getPointCount();
+            _version = snapshot.getVersion();
+            _pointCount = n;
+
+            // assign the ids and encode the names
+            List<Point> points = new ArrayList<>(snapshot.getPoints());
+            Map<String, Integer> ids = new HashMap<>(n * 2);
+            _names = new byte[n][];
+            _nameOffsets = new int[n + 1];
+            for (int id = 0; id < n; id++) {
+                String name = points.get(id).getName();
+                ids.put(name, id);
+                _names[id] = name.getBytes(StandardCharsets.UTF_8);
+                _nameOffsets[id + 1] = _nameOffsets[id] + _names[id].length;
+            }
+
+            int tableSize = tableSize(n);
+            _table = new int[tableSize];
+            for (int id = 0; id < n; id++) {
+                int slot = hash(points.get(id).getName()) & (tableSize - 1);
+                while (_table[slot] != 0) {
+                    slot = (slot + 1) & (tableSize - 1);
+                }
+                _table[slot] = id + 1;
+            }
+
+            // outgoing routes, sorted by target in each row
+            int m = snapshot.getRouteCount();
+            _routeCount = m;
+            _outOffsets = new int[n + 1];
+            _outTargets = new int[m];
+            _outTimes = new int[m];
+            _outCosts = new int[m];
+            int[] inCounts = new int[n + 1];
+            int r = 0;
+            for (int id = 0; id < n; id++) {
+                List<Route> row = new ArrayList<>(snapshot.getOutgoingRoutes(points.get(id)));
+                long[] sorted = new long[row.size()];
+                for (int i = 0; i < sorted.length; i++) {
+                    sorted[i] = ((long) ids.get(row.get(i).getToPoint().getName()) << 32) | i;
+                }
+                Arrays.sort(sorted);
+                for (long entry : sorted) {
+                    Route route = row.get((int) entry);
+                    _outTargets[r] = (int) (entry >>> 32);
+                    _outTimes[r] = route.getTime();
+                    _outCosts[r] = route.getCost();
+                    inCounts[_outTargets[r] + 1]++;
+                    r++;
+                }
+                _outOffsets[id + 1] = r;
+            }
+
+            // incoming routes, by a counting sort on the target
+            _inOffsets = new int[n + 1];
+            for (int id = 0; id < n; id++) {
+                _inOffsets[id + 1] = _inOffsets[id] + inCounts[id + 1];
+            }
+            int[] next = Arrays.copyOf(_inOffsets, n);
+            _inSources = new int[m];
+            _inRoutes = new int[m];
+            for (int id = 0; id < n; id++) {
+                for (int i = _outOffsets[id]; i < _outOffsets[id + 1]; i++) {
+                    int slot = next[_outTargets[i]]++;
+                    _inSources[slot] = id;
+                    _inRoutes[slot] = i;
+                }
+            }
+        }
+
+
+
+
+
+        long size() {
+
+            return fileSize(_pointCount, _routeCount, _table.length, _nameOffsets[_pointCount]);
+        }
+
+
+
+
+
+        /**
+         * Puts the encoded map in the buffer, draining it to the channel when full.
+         * Without channel, the buffer must have room for the whole map.
+         */
+        void put(ByteBuffer buffer, WritableByteChannel channel) throws IOException {
+
+            buffer.putInt(MAGIC);
+            buffer.putInt(FORMAT);
+            buffer.putLong(_version);
+            buffer.putInt(_pointCount);
+            buffer.putInt(_routeCount);
+            buffer.putInt(_table.length);
+            buffer.putInt(_nameOffsets[_pointCount]);
+
+            for (int[] array : new int[][] { _nameOffsets, _table, _outOffsets, _outTargets, _outTimes, _outCosts,
+                                             _inOffsets, _inSources, _inRoutes }) {
+                for (int value : array) {
+                    if (buffer.remaining() < 4) {
+                        drain(channel, buffer);
+                    }
+                    buffer.putInt(value);
+                }
+            }
+            for (byte[] name : _names) {
+                for (int i = 0; i < name.length;) {
+                    if (!buffer.hasRemaining()) {
+                        drain(channel, buffer);
+                    }
+                    int length = Math.min(buffer.remaining(), name.length - i);
+                    buffer.put(name, i, length);
+                    i += length;
+                }
+            }
+        }
+    }
+
+
+
+
+
+    private static int hash(String name) {
+
+        int h = name.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+
+
+
+
+    /**
+     * A power of two with room for the points at a load factor of at most 0.5
+     */
+    private static int tableSize(int points) {
+
+        int size = 1;
+        while (size < points * 2) {
+            size <<= 1;
+        }
+        return size;
+    }
+
+
+
+
+
+    private static long fileSize(long points, long routes, long tableSize, long nameBytes) {
+
+        return HEADER_SIZE + 4 * (3 * (points + 1) + tableSize + 5 * routes) + nameBytes;
+    }
+
+
+
+
+
+    private static IntBuffer ints(ByteBuffer buffer, int offset, int count) {
+
+        return slice(buffer, offset, 4 * count).asIntBuffer();
+    }
+
+
+
+
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        view.limit(offset + length);
+        return view.slice();
+    }
+
+
+
+
+
+    private static void drain(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+
+
+
+
+    private static void fill(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Truncated map file");
+            }
+        }
+    }
+
+}
@@ -0,0 +1,171 @@
+
+
+
+
+
+package delivery.database.persistence;
+
+
+
+
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import delivery.database.MapMutation;
+import delivery.entities.Point;
+import delivery.entities.Route;
+import delivery.entities.RouteKey;
+
+
+
+
+
+/**
+ * Compact binary encoding of <code>{@link MapMutation}</code>.
+ *
+ * <pre>
+ *   type     - 1 byte
+ *   names    - modified UTF-8, prefixed by a 2 bytes length (point name, or from and to point names)
+ *   time     - zig-zag varint, for added or updated routes
+ *   cost     - zig-zag varint, for added or updated routes
+ * </pre>
+ */
+public final class MutationCodec {
+
+    private static final byte ADD_POINT    = 1;
+    private static final byte DELETE_POINT = 2;
+    private static final byte ADD_ROUTE    = 3;
+    private static final byte UPDATE_ROUTE = 4;
+    private static final byte DELETE_ROUTE = 5;
+    private static final byte CLEAR_MAP    = 6;
+
+
+
+
+
+    // Prevent instantiation
+    private MutationCodec() {}
+
+
+
+
+
+    public static void write(DataOutput out, MapMutation mutation) throws IOException {
+
+        switch (mutation.getType()) {
+            case ADD_POINT:
+                out.writeByte(ADD_POINT);
+                out.writeUTF(mutation.getPoint().getName());
+                break;
+            case DELETE_POINT:
+                out.writeByte(DELETE_POINT);
+                out.writeUTF(mutation.getPoint().getName());
+                break;
+            case ADD_ROUTE:
+                out.writeByte(ADD_ROUTE);
+                writeRoute(out, mutation.getRoute());
+                break;
+            case UPDATE_ROUTE:
+                out.writeByte(UPDATE_ROUTE);
+                writeRoute(out, mutation.getRoute());
+                break;
+            case DELETE_ROUTE:
+                out.writeByte(DELETE_ROUTE);
+                out.writeUTF(mutation.getRouteKey().getFromPoint().getName());
+                out.writeUTF(mutation.getRouteKey().getToPoint().getName());
+                break;
+            case CLEAR_MAP:
+                out.writeByte(CLEAR_MAP);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown mutation " + mutation);
+        }
+    }
+
+
+
+
+
+    public static MapMutation read(DataInput in) throws IOException {
+
+        byte type = in.readByte();
+        switch (type) {
+            case ADD_POINT:
+                return MapMutation.addPoint(new Point(in.readUTF()));
+            case DELETE_POINT:
+                return MapMutation.deletePoint(new Point(in.readUTF()));
+            case ADD_ROUTE:
+                return MapMutation.addRoute(readRoute(in));
+            case UPDATE_ROUTE:
+                return MapMutation.updateRoute(readRoute(in));
+            case DELETE_ROUTE:
+                return MapMutation.deleteRoute(new RouteKey(new Point(in.readUTF()), new Point(in.readUTF())));
+            case CLEAR_MAP:
+                return MapMutation.clearMap();
+            default:
+                throw new IOException("Unknown mutation type " + type);
+        }
+    }
+
+
+
+
+
+    private static void writeRoute(DataOutput out, Route r) throws IOException {
+
+        out.writeUTF(r.getFromPoint().getName());
+        out.writeUTF(r.getToPoint().getName());
+        writeVarInt(out, r.getTime());
+        writeVarInt(out, r.getCost());
+    }
+
+
+
+
+
+    private static Route readRoute(DataInput in) throws IOException {
+
+        Point from = new Point(in.readUTF());
+        Point to = new Point(in.readUTF());
+        int time = readVarInt(in);
+        int cost = readVarInt(in);
+        return new Route(from, to, time, cost);
+    }
+
+
+
+
+
+    /**
+     * Writes an int in 1 to 5 bytes, small absolute values taking less bytes
+     */
+    public static void writeVarInt(DataOutput out, int value) throws IOException {
+
+        int v = (value << 1) ^ (value >> 31);
+        while ((v & ~0x7F) != 0) {
+            out.writeByte((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.writeByte(v);
+    }
+
+
+
+
+
+    public static int readVarInt(DataInput in) throws IOException {
+
+        int v = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readByte();
+            v |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return (v >>> 1) ^ -(v & 1);
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+}
@@ -0,0 +1,622 @@
+
+
+
+
+
+package delivery.database.persistence;
+
+
+
+
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import delivery.database.MapMutation;
+import delivery.database.MapSnapshot;
+import delivery.exceptions.StorageException;
+
+
+
+
+
+/***************************************************************************************
+ *
+ * An append-only log of the map mutations, stored in a directory.
+ *
+ * Each published map version is appended as one record:
+ *
+ * <pre>
+ *   length   - 4 bytes, length of the payload
+ *   crc      - 4 bytes, CRC32 of the payload
+ *   payload  - version (8 bytes), number of mutations (varint) and the mutations (see {@link MutationCodec})
+ * </pre>
+ *
+ * Group commit: the records are queued by the writers and a single flusher thread writes all the queued records
+ * and syncs them to disk with one <code>force</code>, then completes the futures of all of them. So the cost of
+ * a disk sync is shared by all the writers that arrived while the previous one was running.
+ *
+ * Compaction: when the log grows over a threshold, the flusher switches to a new segment file and the full map
+ * is written to a snapshot file in background, in the <code>{@link MappedMap}</code> format. Once the snapshot is
+ * safely stored the older segments are deleted.
+ * On startup, the snapshot is mapped in memory, without parsing it, and the records of the remaining segments with
+ * a newer version are replayed.
+ * A torn record at the end of a segment (e.g. after a crash) ends the replay of that segment.
+ *
+ ***************************************************************************************/
+public class WriteAheadLog implements MapPersistence {
+
+    public static final long           DEFAULT_COMPACTION_THRESHOLD = 64L * 1024 * 1024;
+
+    static final String                SNAPSHOT_FILE                = "map.snapshot";
+    private static final String        SEGMENT_PREFIX               = "map-";
+    private static final String        SEGMENT_SUFFIX               = ".wal";
+
+    private static final int           MAX_RECORD_LENGTH            = Integer.MAX_VALUE - 8;
+
+    private final Path                 _dir;
+    private final long                 _compactionThreshold;
+
+    // queue of records to be written, guarded by _lock
+    private final Object               _lock                        = new Object();
+    private List<Entry>                _queue                       = new ArrayList<>();
+    private boolean                    _closed;
+    private boolean                    _compacting;
+    private long                       _bytesSinceCompaction;
+    private volatile IOException       _failure;
+    private volatile Exception         _compactionFailure;
+
+    // only used by the flusher thread, once opened
+    private FileChannel                _segment;
+    private long                       _segmentNumber;
+
+    private final Thread               _flusher;
+    private final ExecutorService      _compactor;
+
+
+
+
+
+    /**
+     * A queued record, or a request to switch to a new segment when <code>_record</code> is null
+     */
+    private static final class Entry {
+
+        final ByteBuffer              _record;
+        final CompletableFuture<Long> _done = new CompletableFuture<>();
+
+
+
+
+
+        Entry(ByteBuffer record) {
+
+            _record = record;
+        }
+    }
+
+
+
+
+
+    /**
+     * Creates the log stored in the given directory. It is opened by <code>{@link #recover(Replayer)}</code>.
+     *
+     * @param dir
+     *            The directory of the log
+     * @param compactionThreshold
+     *            The number of bytes appended after which a compaction is advised
+     */
+    public WriteAheadLog(Path dir, long compactionThreshold) {
+
+        _dir = dir;
+        _compactionThreshold = compactionThreshold;
+
+        _flusher = new Thread(this::flushLoop, "map-wal-flusher");
+        _flusher.setDaemon(true);
+        _compactor = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "map-wal-compactor");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+
+
+
+
+    /**
+     * Opens the log, creating its directory when needed.
+     * All the stored mutations are first given to the replayer, in order, and then a new segment is started
+     * for the new records.
+     */
+    @Override
+    public void recover(Replayer replayer) throws IOException {
+
+        Files.createDirectories(_dir);
+
+        long lastSegment = replay(replayer);
+
+        _segmentNumber = lastSegment + 1;
+        _segment = FileChannel.open(segmentPath(_segmentNumber), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                    StandardOpenOption.APPEND);
+        _flusher.start();
+    }
+
+
+
+
+
+    /**
+     * Queues the mutations of a new map version to be written.
+     * Must be called in the order of the versions, i.e. while holding the lock of the map writers.
+     *
+     * @return A future that completes when the record is safely stored on disk
+     *
+     * @throws StorageException
+     *             When the log is closed or a previous write has failed
+     */
+    @Override
+    public CompletableFuture<Long> append(long version, List<MapMutation> mutations) {
+
+        ByteBuffer record = encode(version, mutations);
+        Entry entry = new Entry(record);
+
+        synchronized (_lock) {
+            ensureWritable();
+            _queue.add(entry);
+            _bytesSinceCompaction += record.remaining();
+            _lock.notifyAll();
+        }
+        return entry._done;
+    }
+
+
+
+
+
+    /**
+     * Returns true when enough data was appended since the last compaction
+     */
+    @Override
+    public boolean needsCompaction() {
+
+        synchronized (_lock) {
+            return !_compacting && _bytesSinceCompaction >= _compactionThreshold;
+        }
+    }
+
+
+
+
+
+    /**
+     * Stores the given map as the new snapshot and deletes the log records it contains.
+     * Must be called while holding the lock of the map writers, so all the versions up to the one of the snapshot
+     * are already appended, and no later version is. The snapshot is written in background.
+     */
+    @Override
+    public void compact(MapSnapshot snapshot) {
+
+        Entry rotation = new Entry(null);
+        synchronized (_lock) {
+            if (_compacting || _closed || _failure != null) {
+                return;
+            }
+            _compacting = true;
+            _bytesSinceCompaction = 0;
+            _queue.add(rotation);
+            _lock.notifyAll();
+        }
+
+        _compactor.execute(() -> {
+            try {
+                long firstKeptSegment = rotation._done.get();
+                writeSnapshot(snapshot);
+                deleteSegmentsBefore(firstKeptSegment);
+                _compactionFailure = null;
+            } catch (IOException | ExecutionException e) {
+                // the log is still complete, the next compaction will retry
+                _compactionFailure = e;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                synchronized (_lock) {
+                    _compacting = false;
+                }
+            }
+        });
+    }
+
+
+
+
+
+    /**
+     * Returns the failure that made the log not writable, or else the failure of the last compaction, if any
+     */
+    @Override
+    public Exception getFailure() {
+
+        return _failure != null ? _failure : _compactionFailure;
+    }
+
+
+
+
+
+    /**
+     * Writes all the queued records, waits for the running compaction and closes the log
+     */
+    @Override
+    public void close() throws IOException {
+
+        synchronized (_lock) {
+            if (_closed) {
+                return;
+            }
+            _closed = true;
+            _lock.notifyAll();
+        }
+
+        try {
+            _flusher.join();
+            _compactor.shutdown();
+            _compactor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (_segment != null) {
+                _segment.close();
+            }
+        }
+    }
+
+
+
+
+
+    /**
+     * Closes the log and deletes its files, and then its directory when no other file is left in it
+     */
+    @Override
+    public void delete() throws IOException {
+
+        close();
+
+        for (Path segment : listSegments().values()) {
+            Files.deleteIfExists(segment);
+        }
+        Files.deleteIfExists(_dir.resolve(SNAPSHOT_FILE));
+        Files.deleteIfExists(_dir.resolve(SNAPSHOT_FILE + ".tmp"));
+        try {
+            Files.deleteIfExists(_dir);
+        } catch (DirectoryNotEmptyException e) {
+            // the directory holds other data, which is kept
+        }
+    }
+
+
+
+
+
+    private void ensureWritable() {
+
+        if (_failure != null) {
+            throw new StorageException("The map log is not writable", _failure);
+        }
+        if (_closed) {
+            throw new StorageException("The map log is closed");
+        }
+    }
+
+
+
+
+
+    private static ByteBuffer encode(long version, List<MapMutation> mutations) {
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream out = new DataOutputStream(bytes);
+            // room for the length and the crc
+            out.writeLong(0);
+            out.writeLong(version);
+            MutationCodec.writeVarInt(out, mutations.size());
+            for (MapMutation mutation : mutations) {
+                MutationCodec.write(out, mutation);
+            }
+            out.flush();
+
+            byte[] record = bytes.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update(record, 8, record.length - 8);
+
+            ByteBuffer buffer = ByteBuffer.wrap(record);
+            buffer.putInt(0, record.length - 8);
+            buffer.putInt(4, (int) crc.getValue());
+            return buffer;
+        } catch (IOException e) {
+            // not expected when writing to memory
+            throw new StorageException("Unable to encode the mutations of version " + version, e);
+        }
+    }
+
+
+
+
+
+    /**
+     * Writes the queued records until the log is closed
+     */
+    private void flushLoop() {
+
+        while (true) {
+            List<Entry> batch;
+            synchronized (_lock) {
+                while (_queue.isEmpty() && !_closed) {
+                    try {
+                        _lock.wait();
+                    } catch (InterruptedException e) {
+                        // keep running until closed
+                    }
+                }
+                if (_queue.isEmpty()) {
+                    return;
+                }
+                batch = _queue;
+                _queue = new ArrayList<>();
+            }
+            flush(batch);
+        }
+    }
+
+
+
+
+
+    private void flush(List<Entry> batch) {
+
+        List<Entry> written = new ArrayList<>(batch.size());
+        try {
+            if (_failure != null) {
+                throw _failure;
+            }
+            for (Entry entry : batch) {
+                if (entry._record == null) {
+                    // everything before the rotation must be in the previous segment
+                    sync(written);
+                    rotate();
+                    entry._done.complete(_segmentNumber);
+                } else {
+                    while (entry._record.hasRemaining()) {
+                        _segment.write(entry._record);
+                    }
+                    written.add(entry);
+                }
+            }
+            sync(written);
+
+        } catch (IOException e) {
+            _failure = e;
+            for (Entry entry : batch) {
+                entry._done.completeExceptionally(e);
+            }
+        }
+    }
+
+
+
+
+
+    /**
+     * Syncs the segment to disk, and notifies the writers of the given entries
+     */
+    private void sync(List<Entry> written) throws IOException {
+
+        if (written.isEmpty()) {
+            return;
+        }
+        _segment.force(false);
+        for (Entry entry : written) {
+            entry._done.complete(_segmentNumber);
+        }
+        written.clear();
+    }
+
+
+
+
+
+    private void rotate() throws IOException {
+
+        _segment.close();
+        _segmentNumber++;
+        _segment = FileChannel.open(segmentPath(_segmentNumber), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                    StandardOpenOption.APPEND);
+    }
+
+
+
+
+
+    private Path segmentPath(long number) {
+
+        return _dir.resolve(String.format("%s%019d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX));
+    }
+
+
+
+
+
+    /**
+     * Returns the existing segments, sorted by their number
+     */
+    private TreeMap<Long, Path> listSegments() throws IOException {
+
+        TreeMap<Long, Path> segments = new TreeMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(_dir, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    segments.put(Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                                                               name.length() - SEGMENT_SUFFIX.length())),
+                                 file);
+                } catch (NumberFormatException e) {
+                    // not a segment of this log
+                }
+            }
+        }
+        return segments;
+    }
+
+
+
+
+
+    private void deleteSegmentsBefore(long number) throws IOException {
+
+        for (Path segment : listSegments().headMap(number).values()) {
+            Files.deleteIfExists(segment);
+        }
+    }
+
+
+
+
+
+    /**
+     * Replays the snapshot and the segments
+     *
+     * @return The number of the last existing segment, or 0 if there is none
+     */
+    private long replay(Replayer replayer) throws IOException {
+
+        long version = readSnapshot(replayer);
+
+        TreeMap<Long, Path> segments = listSegments();
+        for (Path segment : segments.values()) {
+            version = readSegment(segment, version, replayer);
+        }
+        return segments.isEmpty() ? 0 : segments.lastKey();
+    }
+
+
+
+
+
+    /**
+     * Replays the records of a segment with a version newer than the given one
+     *
+     * @return The last replayed version
+     */
+    private static long readSegment(Path segment, long lastVersion, Replayer replayer) throws IOException {
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(segment)))) {
+            while (true) {
+                int length;
+                int crc;
+                byte[] payload;
+                try {
+                    length = in.readInt();
+                    crc = in.readInt();
+                    if (length < Long.BYTES || length > MAX_RECORD_LENGTH) {
+                        // not a record, e.g. the zeros left at the end of a segment by a crash
+                        return lastVersion;
+                    }
+                    payload = new byte[length];
+                    in.readFully(payload);
+                } catch (EOFException e) {
+                    // end of the segment, or a torn record
+                    return lastVersion;
+                }
+
+                CRC32 check = new CRC32();
+                check.update(payload);
+                if ((int) check.getValue() != crc) {
+                    return lastVersion;
+                }
+
+                DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+                long version;
+                List<MapMutation> mutations;
+                try {
+                    version = record.readLong();
+                    int count = MutationCodec.readVarInt(record);
+                    if (version <= lastVersion) {
+                        // already in the snapshot
+                        continue;
+                    }
+                    mutations = new ArrayList<>(count);
+                    for (int i = 0; i < count; i++) {
+                        mutations.add(MutationCodec.read(record));
+                    }
+                } catch (EOFException e) {
+                    // a payload shorter than its mutations is a torn record as well
+                    return lastVersion;
+                }
+                replayer.replay(version, mutations);
+                lastVersion = version;
+            }
+        }
+    }
+
+
+
+
+
+    /**
+     * Writes the whole map to the snapshot file.
+     * The file is written aside and then renamed, so a crash never leaves a partial snapshot.
+     */
+    private void writeSnapshot(MapSnapshot snapshot) throws IOException {
+
+        Path tmp = _dir.resolve(SNAPSHOT_FILE + ".tmp");
+        MappedMap.write(snapshot, tmp);
+        Files.move(tmp, _dir.resolve(SNAPSHOT_FILE), StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+    }
+
+
+
+
+
+    /**
+     * Maps the snapshot file, if any, and gives it to the replayer
+     *
+     * @return The version of the snapshot, or 0 if there is none
+     */
+    private long readSnapshot(Replayer replayer) throws IOException {
+
+        Path file = _dir.resolve(SNAPSHOT_FILE);
+        if (!Files.exists(file)) {
+            return 0;
+        }
+        MappedMap snapshot = MappedMap.open(file);
+        replayer.load(snapshot);
+        return snapshot.getVersion();
+    }
+
+}
@@ -0,0 +1,321 @@
+
+
+
+
+
+package delivery.database.replication;
+
+
+
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import delivery.database.MapMutation;
+import delivery.database.MapStorage;
+import delivery.database.persistence.MappedMap;
+
+
+
+
+
+/***************************************************************************************
+ *
+ * Replicates a map from its leader node into a local <code>{@link MapStorage}</code>, which then serves the reads
+ * and rejects the local changes.
+ *
+ * A background thread connects to the leader, receives the current map when needed, and then applies every change
+ * published on the leader, in order. When the connection is lost, or the leader is silent for 3 heartbeats, it
+ * reconnects with an increasing delay and resumes from the last version it applied, unless the map on the leader was
+ * created again meanwhile, e.g. by a restart, in which case it receives the whole map.
+ *
+ * The replication lag is reported as the number of leader versions not yet applied, and as the time since the last
+ * message of the leader.
+ *
+ ***************************************************************************************/
+public final class ReplicationFollower implements Closeable {
+
+    /**
+     * System property with the address of the leader to follow, as <code>host:port</code>
+     */
+    public static final String LEADER_PROPERTY   = "delivery.replication.leader";
+
+    private static final int   CONNECT_TIMEOUT   = 5000;
+    private static final long  MIN_RETRY_DELAY   = 100;
+    private static final long  MAX_RETRY_DELAY   = 10000;
+
+    private final MapStorage   _storage;
+    private final String       _host;
+    private final int          _port;
+    private final Thread       _receiver;
+
+    private volatile boolean   _closed;
+    private volatile Socket    _socket;
+    private volatile boolean   _connected;
+
+    // the last leader version applied, -1 when the map must be received again
+    private volatile long      _version          = -1;
+
+    // the epoch of the map on the leader, as of the last map received
+    private volatile long      _epoch;
+
+    // the last version published on the leader, as last reported by it
+    private volatile long      _leaderVersion    = -1;
+
+    // the time of the last message of the leader, 0 before the first one, kept while disconnected
+    private volatile long      _lastContact;
+
+
+
+
+
+    /**
+     * Makes the map a replica and starts following the same map on the leader
+     *
+     * @throws IllegalStateException
+     *             When the map is persisted
+     */
+    public ReplicationFollower(MapStorage storage, String host, int port) {
+
+        _storage = storage;
+        _host = host;
+        _port = port;
+
+        storage.setReplica(true);
+        _receiver = new Thread(this::receiveLoop, "map-replication-follower-" + storage.getMapId());
+        _receiver.setDaemon(true);
+        _receiver.start();
+    }
+
+
+
+
+
+    /**
+     * Returns the replicated map
+     */
+    public MapStorage getStorage() {
+
+        return _storage;
+    }
+
+
+
+
+
+    /**
+     * Returns true while connected to the leader
+     */
+    public boolean isConnected() {
+
+        return _connected;
+    }
+
+
+
+
+
+    /**
+     * Returns the last leader version applied on the replica, or -1 before the map is received
+     */
+    public long getVersion() {
+
+        return _version;
+    }
+
+
+
+
+
+    /**
+     * Returns the number of versions published on the leader and not yet applied on the replica, as last reported by
+     * the leader, or -1 before the map is received
+     */
+    public long getLag() {
+
+        long version = _version;
+        return version < 0 ? -1 : Math.max(0, _leaderVersion - version);
+    }
+
+
+
+
+
+    /**
+     * Returns the milliseconds since the last message of the leader, or -1 when none was received.
+     * The leader sends a heartbeat every second when there is no change.
+     */
+    public long getMillisSinceLastContact() {
+
+        long lastContact = _lastContact;
+        return lastContact == 0 ? -1 : System.currentTimeMillis() - lastContact;
+    }
+
+
+
+
+
+    /**
+     * Waits until the replica has applied the given leader version, e.g. to read the changes just made on the leader
+     *
+     * @return True when the version was applied, false when the time elapsed
+     */
+    public boolean awaitVersion(long version, long timeout, TimeUnit unit) throws InterruptedException {
+
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        synchronized (this) {
+            while (_version < version) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+        }
+        return true;
+    }
+
+
+
+
+
+    /**
+     * Drops the connection to the leader, which is established again shortly and resumes from the last version applied
+     */
+    public void reconnect() throws IOException {
+
+        Socket socket = _socket;
+        if (socket != null) {
+            socket.close();
+        }
+    }
+
+
+
+
+
+    /**
+     * Stops following the leader. The map keeps its content, and accepts the local changes again.
+     */
+    @Override
+    public void close() throws IOException {
+
+        _closed = true;
+        _receiver.interrupt();
+        Socket socket = _socket;
+        if (socket != null) {
+            socket.close();
+        }
+        try {
+            _receiver.join(CONNECT_TIMEOUT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        _storage.setReplica(false);
+    }
+
+
+
+
+
+    private void receiveLoop() {
+
+        long delay = MIN_RETRY_DELAY;
+        while (!_closed) {
+            try (Socket socket = new Socket()) {
+                _socket = socket;
+                socket.connect(new InetSocketAddress(_host, _port), CONNECT_TIMEOUT);
+                if (socket.getLocalSocketAddress().equals(socket.getRemoteSocketAddress())) {
+                    // TCP simultaneous open on a local leader that is down, which would keep its port busy
+                    throw new IOException("Connected to itself");
+                }
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout((int) (3 * ReplicationProtocol.HEARTBEAT_INTERVAL));
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+                ReplicationProtocol.writeHello(out, _storage.getMapId(), _epoch, _version);
+                while (!_closed) {
+                    receive(in);
+                    delay = MIN_RETRY_DELAY;
+                }
+            } catch (IOException | RuntimeException e) {
+                // reconnects, the lag shows how long the replica is behind
+            } finally {
+                _socket = null;
+                _connected = false;
+            }
+
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                // closed
+            }
+            delay = Math.min(delay * 2, MAX_RETRY_DELAY);
+        }
+    }
+
+
+
+
+
+    private void receive(DataInputStream in) throws IOException {
+
+        byte type = in.readByte();
+        _lastContact = System.currentTimeMillis();
+        _connected = true;
+
+        switch (type) {
+            case ReplicationProtocol.SNAPSHOT: {
+                long epoch = in.readLong();
+                _leaderVersion = in.readLong();
+                MappedMap map = ReplicationProtocol.readSnapshot(in);
+                _storage.replicate(map);
+                _epoch = epoch;
+                applied(map.getVersion());
+                break;
+            }
+            case ReplicationProtocol.CHANGE: {
+                _leaderVersion = in.readLong();
+                long version = in.readLong();
+                List<MapMutation> mutations = ReplicationProtocol.readMutations(in);
+                try {
+                    _storage.replicate(version, mutations);
+                } catch (IOException e) {
+                    // the replica no longer matches the leader, so the whole map is received again
+                    _version = -1;
+                    throw e;
+                }
+                applied(version);
+                break;
+            }
+            case ReplicationProtocol.HEARTBEAT:
+                _leaderVersion = in.readLong();
+                break;
+            case ReplicationProtocol.ERROR:
+                throw new IOException("Refused by the leader: " + in.readUTF());
+            default:
+                throw new IOException("Unknown replication message: " + type);
+        }
+    }
+
+
+
+
+
+    private synchronized void applied(long version) {
+
+        _version = version;
+        notifyAll();
+    }
+
+}
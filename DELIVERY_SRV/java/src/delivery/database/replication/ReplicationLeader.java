@@ -0,0 +1,265 @@
+
+
+
+
+
+package delivery.database.replication;
+
+
+
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import delivery.database.MapChange;
+import delivery.database.MapChangeFeed;
+import delivery.database.MapRegistry;
+import delivery.database.MapSnapshot;
+import delivery.database.MapStorage;
+
+
+
+
+
+/***************************************************************************************
+ *
+ * Ships the changes of the maps of a registry to the followers connected on a TCP port.
+ *
+ * Each follower connection replicates a single map, and is served by its own thread from the change feed of the map
+ * (see <code>{@link MapChangeFeed}</code>), so a slow follower never delays the map writers nor the other followers.
+ * A follower that reconnects gives the last leader version it applied: when the changes after it are still in the
+ * feed, only those are sent. Otherwise, and for a new follower, the current map is sent first, in the map file format,
+ * followed by the changes published meanwhile. The same happens when a follower falls behind the feed capacity.
+ *
+ ***************************************************************************************/
+public final class ReplicationLeader implements Closeable {
+
+    /**
+     * System property with the TCP port where the node accepts followers, as a leader
+     */
+    public static final String PORT_PROPERTY = "delivery.replication.port";
+
+    private final MapRegistry  _registry;
+    private final ServerSocket _server;
+    private final Thread       _acceptor;
+
+    // the connected followers, closed with the leader
+    private final Set<Socket>  _followers = ConcurrentHashMap.newKeySet();
+
+    private volatile boolean   _closed;
+
+    // the last failure to accept or serve a follower, other than a disconnection
+    private volatile Exception _failure;
+
+
+
+
+
+    /**
+     * Starts accepting followers for the maps of the registry
+     *
+     * @param port
+     *            The TCP port, or 0 for any free port
+     *
+     * @throws IOException
+     *             When the port can not be opened
+     */
+    public ReplicationLeader(MapRegistry registry, int port) throws IOException {
+
+        _registry = registry;
+        _server = new ServerSocket();
+        // a restarted leader gets its port back at once
+        _server.setReuseAddress(true);
+        _server.bind(new InetSocketAddress(port));
+        _acceptor = new Thread(this::acceptLoop, "map-replication-leader");
+        _acceptor.setDaemon(true);
+        _acceptor.start();
+    }
+
+
+
+
+
+    /**
+     * Returns the TCP port where the followers connect
+     */
+    public int getPort() {
+
+        return _server.getLocalPort();
+    }
+
+
+
+
+
+    /**
+     * Returns the number of connected followers, one per replicated map
+     */
+    public int getFollowerCount() {
+
+        return _followers.size();
+    }
+
+
+
+
+
+    /**
+     * Returns the last failure to accept or to serve a follower, other than a disconnection, or <code>null</code> when
+     * there was none
+     */
+    public Exception getFailure() {
+
+        return _failure;
+    }
+
+
+
+
+
+    /**
+     * Stops accepting followers and disconnects the connected ones
+     */
+    @Override
+    public void close() throws IOException {
+
+        _closed = true;
+        _server.close();
+        for (Socket socket : _followers) {
+            socket.close();
+        }
+    }
+
+
+
+
+
+    private void acceptLoop() {
+
+        while (!_closed) {
+            try {
+                Socket socket = _server.accept();
+                _followers.add(socket);
+                Thread sender = new Thread(() -> serve(socket), "map-replication-sender");
+                sender.setDaemon(true);
+                sender.start();
+            } catch (IOException e) {
+                if (!_closed) {
+                    _failure = e;
+                }
+            }
+        }
+    }
+
+
+
+
+
+    /**
+     * Sends the changes of the map requested by a follower, until it disconnects
+     */
+    private void serve(Socket socket) {
+
+        try (Socket s = socket) {
+            s.setTcpNoDelay(true);
+            s.setSoTimeout((int) (3 * ReplicationProtocol.HEARTBEAT_INTERVAL));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream(), 1 << 16));
+
+            if (in.readInt() != ReplicationProtocol.MAGIC || in.readInt() != ReplicationProtocol.FORMAT) {
+                ReplicationProtocol.writeError(out, "Unsupported replication protocol");
+                return;
+            }
+            String mapId = in.readUTF();
+            long epoch = in.readLong();
+            long from = in.readLong();
+
+            MapStorage storage = _registry.getMap(mapId);
+            if (storage == null) {
+                ReplicationProtocol.writeError(out, "The Map [" + mapId + "] does not exist");
+                return;
+            }
+            send(storage, epoch == storage.getEpoch() ? from : -1, out);
+        } catch (SocketException e) {
+            // disconnected
+        } catch (IOException | RuntimeException e) {
+            if (!_closed) {
+                _failure = e;
+            }
+        } finally {
+            _followers.remove(socket);
+        }
+    }
+
+
+
+
+
+    private void send(MapStorage storage, long from, DataOutputStream out) throws IOException {
+
+        // the changes up to this version are already on the follower
+        long sent = from;
+        MapChangeFeed.Cursor cursor = from < 0 ? null : storage.getChangeFeed().cursor(from);
+        if (cursor == null) {
+            // the cursor is created before the snapshot, so no change is missed in between
+            cursor = storage.getChangeFeed().cursor();
+            MapSnapshot snapshot = storage.snapshot();
+            ReplicationProtocol.writeSnapshot(out, storage.getEpoch(), snapshot.getVersion(), snapshot);
+            sent = snapshot.getVersion();
+        }
+
+        while (!_closed) {
+            MapChange change = cursor.poll();
+            if (change == null) {
+                out.flush();
+                change = poll(cursor);
+            }
+            if (change == null) {
+                if (_registry.getMap(storage.getMapId()) != storage) {
+                    ReplicationProtocol.writeError(out, "The Map [" + storage.getMapId() + "] was deleted");
+                    return;
+                }
+                ReplicationProtocol.writeHeartbeat(out, storage.getVersion());
+                out.flush();
+                continue;
+            }
+            if (change.getVersion() <= sent) {
+                continue;
+            }
+
+            if (change.isReload()) {
+                ReplicationProtocol.writeSnapshot(out, storage.getEpoch(), storage.getVersion(), change.getSnapshot());
+            } else {
+                ReplicationProtocol.writeChange(out, storage.getVersion(), change.getVersion(), change.getMutations());
+            }
+            sent = change.getVersion();
+        }
+    }
+
+
+
+
+
+    private static MapChange poll(MapChangeFeed.Cursor cursor) throws IOException {
+
+        try {
+            return cursor.poll(ReplicationProtocol.HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the map changes", e);
+        }
+    }
+
+}
@@ -0,0 +1,156 @@
+
+
+
+
+
+package delivery.database.replication;
+
+
+
+
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.List;
+
+import delivery.database.MapMutation;
+import delivery.database.MapSnapshot;
+import delivery.database.persistence.MappedMap;
+import delivery.database.persistence.MutationCodec;
+
+
+
+
+
+/***************************************************************************************
+ *
+ * The messages exchanged between a leader and a follower, over a TCP connection per replicated map.
+ *
+ * <pre>
+ *   hello      follower: magic, format (4 bytes each), map id (UTF), epoch of the last snapshot received,
+ *                        last leader version applied or -1 (8 bytes each)
+ *   snapshot   leader:   SNAPSHOT, epoch of the map, leader version (8 bytes each), map in the map file format
+ *   change     leader:   CHANGE, leader version, change version (8 bytes each), mutations count (var int), mutations
+ *   heartbeat  leader:   HEARTBEAT, leader version (8 bytes)
+ *   error      leader:   ERROR, message (UTF), and the connection is closed
+ * </pre>
+ *
+ * The leader version of each message is the last version published on the leader, to measure the follower lag.
+ * A follower only resumes from its last version when its epoch is the one of the map on the leader: the same version
+ * of a map created again, e.g. by a restarted leader, can have another content, so the whole map is sent instead.
+ * The mutations are encoded by <code>{@link MutationCodec}</code>, as in the write-ahead log.
+ *
+ ***************************************************************************************/
+final class ReplicationProtocol {
+
+    static final int  MAGIC              = 0x444D5250;  // "DMRP"
+    static final int  FORMAT             = 2;
+
+    static final byte SNAPSHOT           = 1;
+    static final byte CHANGE             = 2;
+    static final byte HEARTBEAT          = 3;
+    static final byte ERROR              = 4;
+
+    // Without any change, the leader sends a heartbeat at this interval, and the follower reconnects after 3 of them
+    static final long HEARTBEAT_INTERVAL = 1000;
+
+
+
+
+
+    private ReplicationProtocol() {}
+
+
+
+
+
+    static void writeHello(DataOutputStream out, String mapId, long epoch, long version) throws IOException {
+
+        out.writeInt(MAGIC);
+        out.writeInt(FORMAT);
+        out.writeUTF(mapId);
+        out.writeLong(epoch);
+        out.writeLong(version);
+        out.flush();
+    }
+
+
+
+
+
+    static void writeSnapshot(DataOutputStream out, long epoch, long leaderVersion, MapSnapshot snapshot)
+                    throws IOException {
+
+        out.writeByte(SNAPSHOT);
+        out.writeLong(epoch);
+        out.writeLong(leaderVersion);
+        MappedMap.write(snapshot, Channels.newChannel(out));
+    }
+
+
+
+
+
+    static void writeChange(DataOutputStream out, long leaderVersion, long version, List<MapMutation> mutations)
+                    throws IOException {
+
+        out.writeByte(CHANGE);
+        out.writeLong(leaderVersion);
+        out.writeLong(version);
+        MutationCodec.writeVarInt(out, mutations.size());
+        for (MapMutation mutation : mutations) {
+            MutationCodec.write(out, mutation);
+        }
+    }
+
+
+
+
+
+    static void writeHeartbeat(DataOutputStream out, long leaderVersion) throws IOException {
+
+        out.writeByte(HEARTBEAT);
+        out.writeLong(leaderVersion);
+    }
+
+
+
+
+
+    static void writeError(DataOutputStream out, String message) throws IOException {
+
+        out.writeByte(ERROR);
+        out.writeUTF(message);
+        out.flush();
+    }
+
+
+
+
+
+    static MappedMap readSnapshot(DataInputStream in) throws IOException {
+
+        return MappedMap.read(Channels.newChannel(in));
+    }
+
+
+
+
+
+    static List<MapMutation> readMutations(DataInputStream in) throws IOException {
+
+        int count = MutationCodec.readVarInt(in);
+        if (count < 0) {
+            throw new IOException("Invalid mutations count: " + count);
+        }
+        List<MapMutation> mutations = new ArrayList<>(Math.min(count, 1024));
+        for (int i = 0; i < count; i++) {
+            mutations.add(MutationCodec.read(in));
+        }
+        return mutations;
+    }
+
+}
@@ -12,6 +12,7 @@ package delivery.entities;
 /**
  * A class that represents a route on the map.
  * It stores the source and target points, the time and cost of the route.
+ * Two routes are equal when all of them are the same.
  */
 public class Route {
 
@@ -84,6 +85,49 @@ public class Route {
 
 
 
+    @Override
+    public int hashCode() {
+
+        final int prime = 31;
+        int result = 1;
+        result = prime * result + ((_from == null) ? 0 : _from.hashCode());
+        result = prime * result + ((_to == null) ? 0 : _to.hashCode());
+        result = prime * result + _time;
+        result = prime * result + _cost;
+        return result;
+    }
+
+
+
+
+
+    @Override
+    public boolean equals(Object obj) {
+
+        if (this == obj)
+            return true;
+        if (obj == null)
+            return false;
+        if (getClass() != obj.getClass())
+            return false;
+        Route other = (Route) obj;
+        if (_from == null) {
+            if (other._from != null)
+                return false;
+        } else if (!_from.equals(other._from))
+            return false;
+        if (_to == null) {
+            if (other._to != null)
+                return false;
+        } else if (!_to.equals(other._to))
+            return false;
+        return _time == other._time && _cost == other._cost;
+    }
+
+
+
+
+
     @Override
     public String toString() {
 
@@ -0,0 +1,27 @@
+
+
+
+
+
+package delivery.exceptions;
+
+
+
+
+
+public class ExistingMapException extends Exception {
+
+    /**
+     * 
+     */
+    private static final long serialVersionUID = -2290437785406412688L;
+
+
+
+
+
+    public ExistingMapException(String message) {
+        super(message);
+    }
+
+}
@@ -0,0 +1,27 @@
+
+
+
+
+
+package delivery.exceptions;
+
+
+
+
+
+public class MapNotFoundException extends Exception {
+
+    /**
+     * 
+     */
+    private static final long serialVersionUID = 7315604912438851215L;
+
+
+
+
+
+    public MapNotFoundException(String message) {
+        super(message);
+    }
+
+}
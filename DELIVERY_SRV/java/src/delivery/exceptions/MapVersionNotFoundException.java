@@ -0,0 +1,27 @@
+
+
+
+
+
+package delivery.exceptions;
+
+
+
+
+
+public class MapVersionNotFoundException extends Exception {
+
+    /**
+     * 
+     */
+    private static final long serialVersionUID = -2871164430585923417L;
+
+
+
+
+
+    public MapVersionNotFoundException(String message) {
+        super(message);
+    }
+
+}
@@ -0,0 +1,30 @@
+
+
+
+
+
+package delivery.exceptions;
+
+
+
+
+
+/**
+ * Thrown when a map is changed on a replica, where the map is only changed by its leader
+ */
+public class ReadOnlyMapException extends RuntimeException {
+
+    /**
+     *
+     */
+    private static final long serialVersionUID = 2950183745120463871L;
+
+
+
+
+
+    public ReadOnlyMapException(String message) {
+        super(message);
+    }
+
+}
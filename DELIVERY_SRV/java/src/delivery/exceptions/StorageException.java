@@ -0,0 +1,38 @@
+
+
+
+
+
+package delivery.exceptions;
+
+
+
+
+
+/**
+ * Thrown when the map data can not be written to, or read from, its persistent storage
+ */
+public class StorageException extends RuntimeException {
+
+    /**
+     * 
+     */
+    private static final long serialVersionUID = 4872163085312077437L;
+
+
+
+
+
+    public StorageException(String message) {
+        super(message);
+    }
+
+
+
+
+
+    public StorageException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+}
@@ -0,0 +1,462 @@
+
+
+
+
+
+package delivery.route;
+
+
+
+
+
+import java.util.Arrays;
+
+import delivery.database.MapSnapshot;
+import delivery.entities.Point;
+import delivery.entities.Route;
+
+
+
+
+
+/***************************************************************************************
+ *
+ * An immutable graph of a map version in compressed sparse rows, for the path searches on huge maps.
+ *
+ * The points are numbered in the order of their names, and the routes of each point are sorted by destination. Each
+ * column of the routes is a single byte array, read sequentially by the path searches:
+ * - the destinations, as the difference with the previous destination of the point, in a variable length int;
+ * - the times and the costs, in separate columns, as variable length ints where the small absolute values take less
+ * bytes (see <code>{@link delivery.database.persistence.MutationCodec}</code>).
+ *
+ * The routes of a point are read with an <code>{@link EdgeCursor}</code>, which decodes them one by one without
+ * creating any object, and can be reused for all the points of a search.
+ *
+ * The graph is built once per map version and never changes; it can be shared by any number of threads.
+ *
+ ***************************************************************************************/
+public final class CompactGraph {
+
+    private final long     _version;
+    private final String[] _names;
+
+    // the first route of each point, and of each point in each column, the last entry being the end of the column
+    private final int[]    _edgeOffsets;
+    private final int[]    _targetOffsets;
+    private final int[]    _timeOffsets;
+    private final int[]    _costOffsets;
+
+    private final byte[]   _targets;
+    private final byte[]   _times;
+    private final byte[]   _costs;
+
+
+
+
+
+    private CompactGraph(long version, String[] names, int[] edgeOffsets, int[] targetOffsets, int[] timeOffsets,
+                         int[] costOffsets, byte[] targets, byte[] times, byte[] costs) {
+
+        _version = version;
+        _names = names;
+        _edgeOffsets = edgeOffsets;
+        _targetOffsets = targetOffsets;
+        _timeOffsets = timeOffsets;
+        _costOffsets = costOffsets;
+        _targets = targets;
+        _times = times;
+        _costs = costs;
+    }
+
+
+
+
+
+    /**
+     * Builds the graph of a map version
+     */
+    public static CompactGraph of(MapSnapshot map) {
+
+        int n = map.getPointCount();
+        String[] names = new String[n];
+        int i = 0;
+        for (Point p : map.getPoints()) {
+            names[i++] = p.getName();
+        }
+        Arrays.sort(names);
+
+        int[] edgeOffsets = new int[n + 1];
+        int[] targetOffsets = new int[n + 1];
+        int[] timeOffsets = new int[n + 1];
+        int[] costOffsets = new int[n + 1];
+        Column targets = new Column(map.getRouteCount());
+        Column times = new Column(map.getRouteCount());
+        Column costs = new Column(map.getRouteCount());
+
+        // the routes of the point, as the destination index in the high bits and the position in the low bits
+        long[] order = new long[16];
+        Route[] routes = new Route[16];
+        int edges = 0;
+        for (int v = 0; v < n; v++) {
+            edgeOffsets[v] = edges;
+            targetOffsets[v] = targets.size();
+            timeOffsets[v] = times.size();
+            costOffsets[v] = costs.size();
+
+            int degree = 0;
+            for (Route r : map.getOutgoingRoutes(new Point(names[v]))) {
+                if (degree == routes.length) {
+                    routes = Arrays.copyOf(routes, degree * 2);
+                    order = Arrays.copyOf(order, degree * 2);
+                }
+                int target = Arrays.binarySearch(names, r.getToPoint().getName());
+                order[degree] = (long) target << 32 | degree;
+                routes[degree++] = r;
+            }
+            Arrays.sort(order, 0, degree);
+
+            int previous = 0;
+            for (int j = 0; j < degree; j++) {
+                int target = (int) (order[j] >>> 32);
+                Route r = routes[(int) order[j]];
+                targets.putUnsigned(target - previous);
+                times.putSigned(r.getTime());
+                costs.putSigned(r.getCost());
+                previous = target;
+            }
+            Arrays.fill(routes, 0, degree, null);
+            edges += degree;
+        }
+        edgeOffsets[n] = edges;
+        targetOffsets[n] = targets.size();
+        timeOffsets[n] = times.size();
+        costOffsets[n] = costs.size();
+
+        return new CompactGraph(map.getVersion(), names, edgeOffsets, targetOffsets, timeOffsets, costOffsets,
+                                targets.toArray(), times.toArray(), costs.toArray());
+    }
+
+
+
+
+
+    /**
+     * Returns the version of the map the graph was built from
+     */
+    public long getVersion() {
+
+        return _version;
+    }
+
+
+
+
+
+    public int getVertexCount() {
+
+        return _names.length;
+    }
+
+
+
+
+
+    public int getEdgeCount() {
+
+        return _edgeOffsets[_names.length];
+    }
+
+
+
+
+
+    /**
+     * Returns the index of the point with the given name, or -1 when it is not in the graph
+     */
+    public int indexOf(String pointName) {
+
+        int index = Arrays.binarySearch(_names, pointName);
+        return index < 0 ? -1 : index;
+    }
+
+
+
+
+
+    /**
+     * Returns the name of the point with the given index
+     */
+    public String getName(int vertex) {
+
+        return _names[vertex];
+    }
+
+
+
+
+
+    /**
+     * Returns the number of routes from the point with the given index
+     */
+    public int getDegree(int vertex) {
+
+        return _edgeOffsets[vertex + 1] - _edgeOffsets[vertex];
+    }
+
+
+
+
+
+    /**
+     * Returns the size of the graph in memory, in bytes, apart from the point names which are shared with the map
+     */
+    public long getByteSize() {
+
+        return 4L * 4 * (_names.length + 1) + 4L * _names.length + _targets.length + _times.length + _costs.length;
+    }
+
+
+
+
+
+    /**
+     * Returns a cursor on the routes from the point with the given index
+     */
+    public EdgeCursor edges(int vertex) {
+
+        EdgeCursor cursor = new EdgeCursor();
+        cursor.reset(vertex);
+        return cursor;
+    }
+
+
+
+
+
+    /**
+     * Returns a cursor to be positioned on a point with <code>{@link EdgeCursor#reset(int)}</code>
+     */
+    public EdgeCursor cursor() {
+
+        return new EdgeCursor();
+    }
+
+
+
+
+
+    /**
+     * Decodes the routes of a point, in the order of their destination:
+     *
+     * <pre>
+     * for (cursor.reset(v); cursor.next();) {
+     *     relax(v, cursor.target(), cursor.time());
+     * }
+     * </pre>
+     *
+     * A cursor is used by a single thread.
+     */
+    public final class EdgeCursor {
+
+        private int _edge;
+        private int _end;
+        private int _targetPosition;
+        private int _timePosition;
+        private int _costPosition;
+
+        private int _target;
+        private int _time;
+        private int _cost;
+
+
+
+
+
+        private EdgeCursor() {}
+
+
+
+
+
+        /**
+         * Positions the cursor before the first route from the point with the given index
+         */
+        public void reset(int vertex) {
+
+            _edge = _edgeOffsets[vertex] - 1;
+            _end = _edgeOffsets[vertex + 1];
+            _targetPosition = _targetOffsets[vertex];
+            _timePosition = _timeOffsets[vertex];
+            _costPosition = _costOffsets[vertex];
+            _target = 0;
+        }
+
+
+
+
+
+        /**
+         * Moves to the next route of the point
+         *
+         * @return False when there is no more route
+         */
+        public boolean next() {
+
+            if (_edge + 1 >= _end) {
+                return false;
+            }
+            _edge++;
+
+            // the variable length ints are decoded inline, this is the inner loop of the searches
+            byte[] bytes = _targets;
+            int p = _targetPosition;
+            int v = 0;
+            int b;
+            for (int shift = 0;; shift += 7) {
+                b = bytes[p++];
+                v |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    break;
+                }
+            }
+            _targetPosition = p;
+            _target += v;
+
+            bytes = _times;
+            p = _timePosition;
+            v = 0;
+            for (int shift = 0;; shift += 7) {
+                b = bytes[p++];
+                v |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    break;
+                }
+            }
+            _timePosition = p;
+            _time = (v >>> 1) ^ -(v & 1);
+
+            bytes = _costs;
+            p = _costPosition;
+            v = 0;
+            for (int shift = 0;; shift += 7) {
+                b = bytes[p++];
+                v |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    break;
+                }
+            }
+            _costPosition = p;
+            _cost = (v >>> 1) ^ -(v & 1);
+            return true;
+        }
+
+
+
+
+
+        /**
+         * Returns the index of the route in the graph, from 0 to the number of routes
+         */
+        public int edge() {
+
+            return _edge;
+        }
+
+
+
+
+
+        /**
+         * Returns the index of the destination point of the route
+         */
+        public int target() {
+
+            return _target;
+        }
+
+
+
+
+
+        public int time() {
+
+            return _time;
+        }
+
+
+
+
+
+        public int cost() {
+
+            return _cost;
+        }
+    }
+
+
+
+
+
+    /**
+     * A growing byte array of variable length ints
+     */
+    private static final class Column {
+
+        private byte[] _bytes;
+        private int    _size;
+
+
+
+
+
+        Column(int values) {
+
+            _bytes = new byte[Math.max(16, values)];
+        }
+
+
+
+
+
+        void putSigned(int value) {
+
+            putUnsigned((value << 1) ^ (value >> 31));
+        }
+
+
+
+
+
+        void putUnsigned(int value) {
+
+            if (_bytes.length - _size < 5) {
+                _bytes = Arrays.copyOf(_bytes, Math.max(_bytes.length * 3 / 2, _size + 5));
+            }
+            int v = value;
+            while ((v & ~0x7F) != 0) {
+                _bytes[_size++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            _bytes[_size++] = (byte) v;
+        }
+
+
+
+
+
+        int size() {
+
+            return _size;
+        }
+
+
+
+
+
+        byte[] toArray() {
+
+            return Arrays.copyOf(_bytes, _size);
+        }
+    }
+
+}
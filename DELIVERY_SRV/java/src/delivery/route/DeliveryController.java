@@ -9,16 +9,31 @@ package delivery.route;
 
 
 
+import java.time.Instant;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Set;
-
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import delivery.database.MapBatch;
+import delivery.database.MapChangeFeed;
+import delivery.database.MapRegistry;
+import delivery.database.MapSnapshot;
 import delivery.database.MapStorage;
 import delivery.entities.Point;
 import delivery.entities.Route;
 import delivery.entities.RouteKey;
 import delivery.exceptions.ExistingPointException;
 import delivery.exceptions.ExistingRouteException;
+import delivery.exceptions.MapNotFoundException;
+import delivery.exceptions.MapVersionNotFoundException;
 import delivery.exceptions.PointNotFoundException;
 import delivery.exceptions.RouteNotFoundException;
 import delivery.route.entities.Trip;
@@ -29,27 +44,42 @@ import delivery.route.entities.Trip;
 
 /**
  * 
- * Entry point class to management all Points and Routes on the Map
+ * Entry point class to management all Points and Routes on a Map.
+ * There is one controller for each map of the <code>{@link MapRegistry}</code>.
  *
  */
 
 public class DeliveryController {
 
-    private static DeliveryController _instance;
+    // how long an identical search is waited for, as long as the default timeout of the trip requests
+    private static final long                                              SEARCH_TIMEOUT = 30000;
+
+    private static DeliveryController                                      _instance;
+
+    // Controllers of the maps other than the default one, by map id
+    private static final ConcurrentMap<String, DeliveryController>         _instances = new ConcurrentHashMap<>();
+
+    private final MapStorage                                               _storage;
+
+    // the trip searches in progress, whose result is shared by the identical searches made meanwhile
+    private final ConcurrentMap<TripSearch, CompletableFuture<List<Trip>>> _searches = new ConcurrentHashMap<>();
 
 
 
 
 
     // Prevent external instantiation
-    private DeliveryController() {}
+    private DeliveryController(MapStorage storage) {
+
+        _storage = storage;
+    }
 
 
 
 
 
     /**
-     * Retrieve the singleton object to control all map management operations.
+     * Retrieve the object to control all management operations of the default map.
      * 
      * @return {@link DeliveryController}
      */
@@ -58,7 +88,7 @@ public class DeliveryController {
         if (_instance == null) {
             synchronized (DeliveryController.class) {
                 if (_instance == null) {
-                    _instance = new DeliveryController();
+                    _instance = new DeliveryController(MapStorage.getInstance());
                 }
             }
         }
@@ -70,12 +100,122 @@ public class DeliveryController {
 
 
 
+    /**
+     * Retrieve the object to control all management operations of the given map.
+     * 
+     * @param mapId
+     *            The id of the map
+     * @return {@link DeliveryController}
+     * 
+     * @throws MapNotFoundException
+     *             When there is no map with the given id
+     */
+    public static DeliveryController getInstance(String mapId) throws MapNotFoundException {
+
+        if (MapRegistry.DEFAULT_MAP.equals(mapId)) {
+            return getInstance();
+        }
+
+        MapStorage storage = MapRegistry.getInstance().getMap(mapId);
+        if (storage == null) {
+            if (mapId != null) {
+                _instances.remove(mapId);
+            }
+            throw new MapNotFoundException("The Map [" + mapId + "] does not exist");
+        }
+
+        DeliveryController controller = _instances.get(mapId);
+        if (controller != null && controller._storage == storage) {
+            return controller;
+        }
+        // first use of the map, or the map was deleted and created again
+        return _instances.compute(mapId, (id, c) -> c != null && c._storage == storage ? c
+                        : new DeliveryController(storage));
+    }
+
+
+
+
+
+    /**
+     * Returns the current version of the map, to make several reads on the same consistent map
+     * 
+     * @see MapStorage#snapshot()
+     */
+    public MapSnapshot snapshot() {
+
+        return _storage.snapshot();
+    }
+
+
+
+
+
+    /**
+     * Returns the feed of the changes of the map, for the structures derived from it
+     * 
+     * @see MapStorage#getChangeFeed()
+     */
+    public MapChangeFeed getChangeFeed() {
+
+        return _storage.getChangeFeed();
+    }
+
+
+
+
+
+    /**
+     * Returns the version of the map that was current at the given time
+     * 
+     * @param time
+     *            The time, in milliseconds since the epoch
+     * 
+     * @throws MapVersionNotFoundException
+     *             When that version is no longer retained
+     * 
+     * @see MapStorage#snapshotAt(long)
+     */
+    public MapSnapshot snapshotAt(long time) throws MapVersionNotFoundException {
+
+        MapSnapshot map = _storage.snapshotAt(time);
+        if (map == null) {
+            throw new MapVersionNotFoundException("The Map at " + Instant.ofEpochMilli(time) + " is no longer retained");
+        }
+        return map;
+    }
+
+
+
+
+
+    /**
+     * Returns the version of the map with the given version number
+     * 
+     * @throws MapVersionNotFoundException
+     *             When that version is no longer retained
+     * 
+     * @see MapStorage#snapshotOf(long)
+     */
+    public MapSnapshot snapshotOf(long version) throws MapVersionNotFoundException {
+
+        MapSnapshot map = _storage.snapshotOf(version);
+        if (map == null) {
+            throw new MapVersionNotFoundException("The version " + version + " of the Map is no longer retained");
+        }
+        return map;
+    }
+
+
+
+
+
     /**
      * Returns all existing routes on the map
      */
     public Collection<Route> getRoutes() {
 
-        return MapStorage.getInstance().getRoutes().values();
+        return _storage.getRoutes().values();
     }
 
 
@@ -86,6 +226,7 @@ public class DeliveryController {
      * Fetches all the possible paths from a source to a destination point.
      * Direct routes between the 2 points, if they exist, are not considered.
      * Apart from returning all the possible paths, it also identifies the fastest and the cheapest paths (which might not be the same).
+     * All the paths are searched in the same version of the map, even if it is changed meanwhile.
      * 
      * @param from
      *            The start point name
@@ -99,13 +240,108 @@ public class DeliveryController {
      */
     public List<Trip> getAllTripRoutes(String from, String to) throws PointNotFoundException {
 
-        Point fromPoint = MapStorage.getInstance().getPoint(from);
-        Point toPoint = MapStorage.getInstance().getPoint(to);
+        return getAllTripRoutes(_storage.snapshot(), from, to);
+    }
+
+
+
+
+
+    /**
+     * Fetches all the possible paths from a source to a destination point, in the map as it was at the given time
+     * 
+     * @param asOf
+     *            The time, in milliseconds since the epoch
+     * 
+     * @throws MapVersionNotFoundException
+     *             When the map version of that time is no longer retained
+     * 
+     * @see #getAllTripRoutes(String, String)
+     * @see #snapshotAt(long)
+     */
+    public List<Trip> getAllTripRoutes(String from, String to, long asOf)
+                    throws PointNotFoundException, MapVersionNotFoundException {
+
+        return getAllTripRoutes(snapshotAt(asOf), from, to);
+    }
+
+
+
+
+
+    /**
+     * Fetches all the possible paths from a source to a destination point, in the given version of the map.
+     * The identical searches made while one is in progress, i.e. between the same points in the same version of the
+     * map, do not search again: they wait for its result, or its failure. A search whose thread is interrupted,
+     * e.g. when its request times out, still gives its trips to the searches that wait for it, and only fails for
+     * its own thread, with a <code>CancellationException</code>.
+     * 
+     * @return An unmodifiable list of the trips, shared by the identical searches made at the same time
+     * 
+     * @throws CancellationException
+     *             When the thread is interrupted while it searches or waits, or when the identical search waited for
+     *             does not complete in {@value #SEARCH_TIMEOUT} ms
+     * 
+     * @see #getAllTripRoutes(String, String)
+     * @see #snapshot()
+     */
+    public List<Trip> getAllTripRoutes(MapSnapshot map, String from, String to) throws PointNotFoundException {
+
+        Point fromPoint = ensurePointExists(map, from);
+        Point toPoint = ensurePointExists(map, to);
+
+        TripSearch search = new TripSearch(map.getVersion(), from, to);
+        CompletableFuture<List<Trip>> trips = new CompletableFuture<>();
+        CompletableFuture<List<Trip>> inProgress = _searches.putIfAbsent(search, trips);
+        if (inProgress != null) {
+            return await(inProgress);
+        }
+
+        List<Trip> found;
+        try {
+            found = Collections.unmodifiableList(TripFactory.getAllTripRoutes(map, fromPoint, toPoint));
+        } catch (RuntimeException | Error e) {
+            _searches.remove(search, trips);
+            trips.completeExceptionally(e);
+            throw e;
+        }
+        // removed before it completes, so that the searches made once it is done search again
+        _searches.remove(search, trips);
+        trips.complete(found);
+
+        if (Thread.currentThread().isInterrupted()) {
+            // the search does not check interrupts: its trips are kept for the waiters, not for its own request
+            throw new CancellationException("The search of the trips from " + from + " to " + to + " was interrupted");
+        }
+        return found;
+    }
+
 
-        MapStorage.getInstance().ensurePointExists(fromPoint);
-        MapStorage.getInstance().ensurePointExists(toPoint);
 
-        return TripFactory.getAllTripRoutes(fromPoint, toPoint);
+
+
+    /**
+     * Waits for the result of a search made by another thread
+     */
+    private static List<Trip> await(CompletableFuture<List<Trip>> search) {
+
+        try {
+            return search.get(SEARCH_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            // the search keeps running for the request that made it
+            throw new CancellationException("The identical search of the trips did not complete in " + SEARCH_TIMEOUT
+                                            + " ms");
+        } catch (InterruptedException e) {
+            // e.g. the request timed out, which does not stop the search shared with the other requests
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted while waiting for the trips");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw cause instanceof RuntimeException ? (RuntimeException) cause : new IllegalStateException(cause);
+        }
     }
 
 
@@ -114,7 +350,43 @@ public class DeliveryController {
 
     public Trip getFastestTrip(String from, String to) throws PointNotFoundException {
 
-        List<Trip> trips = getAllTripRoutes(from, to);
+        return getFastestTrip(getAllTripRoutes(from, to));
+    }
+
+
+
+
+
+    /**
+     * Returns the fastest trip in the map as it was at the given time
+     * 
+     * @see #getAllTripRoutes(String, String, long)
+     */
+    public Trip getFastestTrip(String from, String to, long asOf)
+                    throws PointNotFoundException, MapVersionNotFoundException {
+
+        return getFastestTrip(getAllTripRoutes(from, to, asOf));
+    }
+
+
+
+
+
+    /**
+     * Returns the fastest trip in the given version of the map
+     * 
+     * @see #getAllTripRoutes(MapSnapshot, String, String)
+     */
+    public Trip getFastestTrip(MapSnapshot map, String from, String to) throws PointNotFoundException {
+
+        return getFastestTrip(getAllTripRoutes(map, from, to));
+    }
+
+
+
+
+
+    private static Trip getFastestTrip(List<Trip> trips) {
 
         for (Trip trip : trips) {
             if (!trip.isFastest()) {
@@ -132,7 +404,43 @@ public class DeliveryController {
 
     public Trip getCheapestTrip(String from, String to) throws PointNotFoundException {
 
-        List<Trip> trips = getAllTripRoutes(from, to);
+        return getCheapestTrip(getAllTripRoutes(from, to));
+    }
+
+
+
+
+
+    /**
+     * Returns the cheapest trip in the map as it was at the given time
+     * 
+     * @see #getAllTripRoutes(String, String, long)
+     */
+    public Trip getCheapestTrip(String from, String to, long asOf)
+                    throws PointNotFoundException, MapVersionNotFoundException {
+
+        return getCheapestTrip(getAllTripRoutes(from, to, asOf));
+    }
+
+
+
+
+
+    /**
+     * Returns the cheapest trip in the given version of the map
+     * 
+     * @see #getAllTripRoutes(MapSnapshot, String, String)
+     */
+    public Trip getCheapestTrip(MapSnapshot map, String from, String to) throws PointNotFoundException {
+
+        return getCheapestTrip(getAllTripRoutes(map, from, to));
+    }
+
+
+
+
+
+    private static Trip getCheapestTrip(List<Trip> trips) {
 
         for (Trip trip : trips) {
 
@@ -162,10 +470,10 @@ public class DeliveryController {
      */
     public void addPoint(Point point) throws ExistingPointException {
 
-        if (MapStorage.getInstance().pointExists(point)) {
+        if (_storage.pointExists(point)) {
             throw new ExistingPointException("Point " + point + " already exists.");
         }
-        MapStorage.getInstance().addPoint(point);
+        _storage.addPoint(point);
 
     }
 
@@ -219,7 +527,7 @@ public class DeliveryController {
      */
     public Route addRoute(Route route) throws ExistingRouteException, PointNotFoundException {
 
-        if (MapStorage.getInstance().addRoute(route)) {
+        if (_storage.addRoute(route)) {
             return route;
         } else {
             throw new ExistingRouteException("The route (" + route.getFromPoint() + " -> " + route.getToPoint()
@@ -238,12 +546,24 @@ public class DeliveryController {
      */
     public Route getRoute(String from, String to) throws PointNotFoundException {
 
-        MapStorage.getInstance().ensurePointExists(new Point(from));
-        MapStorage.getInstance().ensurePointExists(new Point(to));
+        return getRoute(_storage.snapshot(), from, to);
+    }
+
 
-        RouteKey routeKey = buildRouteKey(from, to);
 
-        return MapStorage.getInstance().getRoute(routeKey);
+
+
+    /**
+     * Returns the Route for the given points in the given version of the map, or <code>null</code> when there is none
+     * 
+     * @throws PointNotFoundException
+     */
+    public Route getRoute(MapSnapshot map, String from, String to) throws PointNotFoundException {
+
+        Point fromPoint = ensurePointExists(map, from);
+        Point toPoint = ensurePointExists(map, to);
+
+        return map.getRoute(new RouteKey(fromPoint, toPoint));
     }
 
 
@@ -267,12 +587,12 @@ public class DeliveryController {
      */
     public void updateRoute(String from, String to, int time, int cost) throws RouteNotFoundException {
 
-        Point fromPoint = MapStorage.getInstance().getPoint(from);
-        Point toPoint = MapStorage.getInstance().getPoint(to);
+        Point fromPoint = _storage.getPoint(from);
+        Point toPoint = _storage.getPoint(to);
 
         ensureRouteExists(from, to);
 
-        MapStorage.getInstance().updateRoute(new Route(fromPoint, toPoint, time, cost));
+        _storage.updateRoute(new Route(fromPoint, toPoint, time, cost));
 
     }
 
@@ -282,7 +602,7 @@ public class DeliveryController {
 
     private void ensureRouteExists(String from, String to) throws RouteNotFoundException {
 
-        if (!MapStorage.getInstance().routeExists(new Point(from), new Point(to))) {
+        if (!_storage.routeExists(new Point(from), new Point(to))) {
 
             throw new RouteNotFoundException("There is no route set from point [" + from + "] to [" + to + "].");
         }
@@ -308,7 +628,7 @@ public class DeliveryController {
 
         RouteKey routeKey = buildRouteKey(from, to);
 
-        MapStorage.getInstance().delete(routeKey);
+        _storage.delete(routeKey);
 
     }
 
@@ -316,13 +636,86 @@ public class DeliveryController {
 
 
 
+    /**
+     * Deletes a Point from the Map, along with all the Routes that start or end at it
+     * 
+     * @param pointName
+     *            The point name
+     * 
+     * @throws PointNotFoundException
+     *             When there is no <code>Point</code> in map with the given name
+     */
+    public void deletePoint(String pointName) throws PointNotFoundException {
+
+        if (!_storage.deletePoint(new Point(pointName))) {
+            throw new PointNotFoundException("The Point [" + pointName + "] does not exist");
+        }
+    }
+
+
+
+
+
+    /**
+     * Returns the Routes that start at the given point
+     * 
+     * @throws PointNotFoundException
+     *             When there is no <code>Point</code> in map with the given name
+     */
+    public Collection<Route> getOutgoingRoutes(String pointName) throws PointNotFoundException {
+
+        MapSnapshot map = _storage.snapshot();
+
+        return map.getOutgoingRoutes(ensurePointExists(map, pointName));
+    }
+
+
+
+
+
+    /**
+     * Returns the Routes that end at the given point
+     * 
+     * @throws PointNotFoundException
+     *             When there is no <code>Point</code> in map with the given name
+     */
+    public Collection<Route> getIncomingRoutes(String pointName) throws PointNotFoundException {
+
+        MapSnapshot map = _storage.snapshot();
+
+        return map.getIncomingRoutes(ensurePointExists(map, pointName));
+    }
+
+
+
+
+
+    /**
+     * Returns the Point with the given name in the given version of the map
+     * 
+     * @throws PointNotFoundException
+     *             When the Point does not exist
+     */
+    private static Point ensurePointExists(MapSnapshot map, String pointName) throws PointNotFoundException {
+
+        Point point = map.getPoint(pointName);
+        if (point == null) {
+            throw new PointNotFoundException("The Point [" + pointName + "] does not exist");
+        }
+        return point;
+    }
+
+
+
+
+
     /**
      * Builds a route key
      */
     private RouteKey buildRouteKey(String from, String to) {
 
-        Point fromPoint = MapStorage.getInstance().getPoint(from);
-        Point toPoint = MapStorage.getInstance().getPoint(to);
+        Point fromPoint = _storage.getPoint(from);
+        Point toPoint = _storage.getPoint(to);
 
         return new RouteKey(fromPoint, toPoint);
     }
@@ -337,7 +730,7 @@ public class DeliveryController {
 
     public Set<Point> getPoints() {
 
-        return MapStorage.getInstance().getPoints();
+        return _storage.getPoints();
     }
 
 
@@ -350,7 +743,45 @@ public class DeliveryController {
 
     public Point getPoint(String pointName) {
 
-        return MapStorage.getInstance().getPoint(pointName);
+        return _storage.getPoint(pointName);
+    }
+
+
+
+
+
+    /**
+     * Applies a batch of changes on the Map, as a single new version.
+     * Either all the changes are applied, or none is.
+     * 
+     * @param batch
+     *            The changes to apply
+     * 
+     * @see MapStorage#apply(MapBatch)
+     */
+    public void applyBatch(MapBatch batch)
+                    throws ExistingPointException, ExistingRouteException, PointNotFoundException, RouteNotFoundException {
+
+        _storage.apply(batch);
+    }
+
+
+
+
+
+    /**
+     * Replaces the Map by the given one with only the changes needed, as a single new version
+     * 
+     * @param map
+     *            The whole new Map, as points and routes to add
+     * @return The changes applied
+     * 
+     * @see MapStorage#sync(MapBatch)
+     */
+    public MapBatch syncMap(MapBatch map)
+                    throws ExistingPointException, ExistingRouteException, PointNotFoundException, RouteNotFoundException {
+
+        return _storage.sync(map);
     }
 
 
@@ -362,8 +793,57 @@ public class DeliveryController {
      */
     public void clearMap() {
 
-        MapStorage.getInstance().clearMap();
+        _storage.clearMap();
+
+    }
+
+
+
+
+
+    /**
+     * The key of a trip search: its points, in a version of the map
+     */
+    private static final class TripSearch {
+
+        private final long   _version;
+        private final String _from;
+        private final String _to;
+
+
+
+
 
+        TripSearch(long version, String from, String to) {
+
+            _version = version;
+            _from = from;
+            _to = to;
+        }
+
+
+
+
+
+        @Override
+        public boolean equals(Object obj) {
+
+            if (!(obj instanceof TripSearch)) {
+                return false;
+            }
+            TripSearch other = (TripSearch) obj;
+            return _version == other._version && _from.equals(other._from) && _to.equals(other._to);
+        }
+
+
+
+
+
+        @Override
+        public int hashCode() {
+
+            return (Long.hashCode(_version) * 31 + _from.hashCode()) * 31 + _to.hashCode();
+        }
     }
 
 }
@@ -17,7 +17,7 @@ import org.jgrapht.GraphPath;
 import org.jgrapht.alg.shortestpath.AllDirectedPaths;
 import org.jgrapht.graph.DefaultDirectedGraph;
 
-import delivery.database.MapStorage;
+import delivery.database.MapSnapshot;
 import delivery.entities.Point;
 import delivery.entities.Route;
 import delivery.route.entities.RouteEdge;
@@ -34,6 +34,8 @@ public final class TripFactory {
      * Direct routes between the 2 points, if they exist, are not considered.
      * Apart from returning all the possible paths, it also identifies the fastest and the cheapest paths (which might not be the same).
      * 
+     * @param map
+     *            The version of the map where the trips are searched
      * @param from
      *            The source point of the route
      * @param to
@@ -41,19 +43,18 @@ public final class TripFactory {
      * @return A <code>List</code> of <code>{@link Trip}</code> with the following structure:<br>
      * 
      */
-    public static List<Trip> getAllTripRoutes(Point from, Point to) {
+    public static List<Trip> getAllTripRoutes(MapSnapshot map, Point from, Point to) {
 
         DefaultDirectedGraph<Point, RouteEdge> graph = new DefaultDirectedGraph<>(RouteEdge.class);
 
-        // Instantiate the graph representation from the DB data
-        MapStorage storage = MapStorage.getInstance();
+        // Instantiate the graph representation from the DB data, all from the same version of the map
 
         // Add all vertexes
-        for (Point p : storage.getPoints()) {
+        for (Point p : map.getPoints()) {
             graph.addVertex(p);
         }
         // Add all routes (edges); no weight is needed since we'll be doing the calculation ourselves out of the several possible paths
-        Collection<Route> availableRoutes = storage.getRoutes().values();
+        Collection<Route> availableRoutes = map.getRoutes().values();
         for (Route r : availableRoutes) {
             RouteEdge e = new RouteEdge(r);
             graph.addEdge(r.getFromPoint(), r.getToPoint(), e);
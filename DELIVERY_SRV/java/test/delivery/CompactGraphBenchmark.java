@@ -0,0 +1,264 @@
+
+
+
+
+
+package delivery;
+
+
+
+
+
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import org.jgrapht.graph.DefaultDirectedGraph;
+
+import delivery.database.MapBatch;
+import delivery.database.MapSnapshot;
+import delivery.database.MapStorage;
+import delivery.entities.Point;
+import delivery.entities.Route;
+import delivery.route.CompactGraph;
+import delivery.route.entities.RouteEdge;
+
+
+
+
+
+/**
+ * Compares the memory and the traversal throughput of a <code>{@link CompactGraph}</code> with the JGraphT graph built
+ * by <code>{@link delivery.route.TripFactory}</code>, on a random map.
+ *
+ * Not a unit test, run with <code>java -Xmx4g delivery.CompactGraphBenchmark [points] [routes per point]</code>.
+ */
+public class CompactGraphBenchmark {
+
+    private static final int ROUNDS   = 5;
+    private static final int SEARCHES = 20;
+
+
+
+
+
+    public static void main(String[] args) throws Exception {
+
+        int points = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int degree = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        MapStorage storage = MapStorage.getInstance();
+        storage.apply(randomMap(points, degree));
+        MapSnapshot map = storage.snapshot();
+        System.out.println("Map: " + map.getPointCount() + " points, " + map.getRouteCount() + " routes");
+
+        long before = usedMemory();
+        CompactGraph compact = CompactGraph.of(map);
+        long compactBytes = usedMemory() - before;
+
+        before = usedMemory();
+        DefaultDirectedGraph<Point, RouteEdge> jgrapht = jgraphtGraph(map);
+        long jgraphtBytes = usedMemory() - before;
+
+        System.out.printf("Memory: compact %,d bytes (%.1f per route), JGraphT %,d bytes (%.1f per route)%n",
+                          compactBytes, (double) compactBytes / map.getRouteCount(), jgraphtBytes,
+                          (double) jgraphtBytes / map.getRouteCount());
+
+        for (int round = 0; round < ROUNDS; round++) {
+            long start = System.nanoTime();
+            long sum = scan(compact);
+            long compactScan = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            sum -= scan(jgrapht);
+            long jgraphtScan = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            long distance = 0;
+            for (int s = 0; s < SEARCHES; s++) {
+                distance += dijkstra(compact, s * (points / SEARCHES));
+            }
+            long compactSearch = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int s = 0; s < SEARCHES; s++) {
+                distance -= dijkstra(jgrapht, compact, s * (points / SEARCHES));
+            }
+            long jgraphtSearch = System.nanoTime() - start;
+
+            if (sum != 0 || distance != 0) {
+                throw new IllegalStateException("The graphs differ");
+            }
+            System.out.printf("Round %d: scan compact %,.0f routes/s, JGraphT %,.0f routes/s; "
+                              + "Dijkstra compact %.1f ms, JGraphT %.1f ms%n",
+                              round, map.getRouteCount() * 1e9 / compactScan,
+                              map.getRouteCount() * 1e9 / jgraphtScan, compactSearch / 1e6 / SEARCHES,
+                              jgraphtSearch / 1e6 / SEARCHES);
+        }
+    }
+
+
+
+
+
+    private static MapBatch randomMap(int points, int degree) {
+
+        MapBatch batch = new MapBatch().clearMap();
+        for (int i = 0; i < points; i++) {
+            batch.addPoint(new Point("P" + i));
+        }
+        Random random = new Random(42);
+        for (int i = 0; i < points; i++) {
+            int[] targets = random.ints(0, points).distinct().limit(degree + 1).toArray();
+            int added = 0;
+            for (int t : targets) {
+                if (t != i && added < degree) {
+                    batch.addRoute(new Route(new Point("P" + i), new Point("P" + t), 1 + random.nextInt(1000),
+                                             random.nextInt(200) - 20));
+                    added++;
+                }
+            }
+        }
+        return batch;
+    }
+
+
+
+
+
+    /**
+     * The graph of <code>{@link delivery.route.TripFactory}</code>
+     */
+    private static DefaultDirectedGraph<Point, RouteEdge> jgraphtGraph(MapSnapshot map) {
+
+        DefaultDirectedGraph<Point, RouteEdge> graph = new DefaultDirectedGraph<>(RouteEdge.class);
+        for (Point p : map.getPoints()) {
+            graph.addVertex(p);
+        }
+        for (Route r : map.getRoutes().values()) {
+            graph.addEdge(r.getFromPoint(), r.getToPoint(), new RouteEdge(r));
+        }
+        return graph;
+    }
+
+
+
+
+
+    private static long scan(CompactGraph graph) {
+
+        long sum = 0;
+        CompactGraph.EdgeCursor edges = graph.cursor();
+        for (int v = 0; v < graph.getVertexCount(); v++) {
+            for (edges.reset(v); edges.next();) {
+                sum += edges.time() + edges.cost();
+            }
+        }
+        return sum;
+    }
+
+
+
+
+
+    private static long scan(DefaultDirectedGraph<Point, RouteEdge> graph) {
+
+        long sum = 0;
+        for (Point p : graph.vertexSet()) {
+            for (RouteEdge e : graph.outgoingEdgesOf(p)) {
+                sum += e.getRoute().getTime() + e.getRoute().getCost();
+            }
+        }
+        return sum;
+    }
+
+
+
+
+
+    /**
+     * Returns the sum of the fastest times from the source to all the points
+     */
+    private static long dijkstra(CompactGraph graph, int source) {
+
+        long[] times = new long[graph.getVertexCount()];
+        Arrays.fill(times, Long.MAX_VALUE);
+        times[source] = 0;
+        // the time in the high bits and the point in the low bits, as the times are less than 2^31
+        PriorityQueue<Long> queue = new PriorityQueue<>();
+        queue.add((long) source);
+        CompactGraph.EdgeCursor edges = graph.cursor();
+        long sum = 0;
+        while (!queue.isEmpty()) {
+            long head = queue.poll();
+            int v = (int) head;
+            long time = head >>> 32;
+            if (time > times[v]) {
+                continue;
+            }
+            sum += time;
+            for (edges.reset(v); edges.next();) {
+                long t = time + edges.time();
+                if (t < times[edges.target()]) {
+                    times[edges.target()] = t;
+                    queue.add(t << 32 | edges.target());
+                }
+            }
+        }
+        return sum;
+    }
+
+
+
+
+
+    /**
+     * The same search on the JGraphT graph, with the points numbered as in the compact graph
+     */
+    private static long dijkstra(DefaultDirectedGraph<Point, RouteEdge> graph, CompactGraph index, int source) {
+
+        Map<Point, Long> queued = new HashMap<>();
+        PriorityQueue<Map.Entry<Long, Point>> queue = new PriorityQueue<>(
+                        (a, b) -> Long.compare(a.getKey(), b.getKey()));
+        Point start = new Point(index.getName(source));
+        queue.add(new AbstractMap.SimpleEntry<>(0L, start));
+        queued.put(start, 0L);
+        long sum = 0;
+        while (!queue.isEmpty()) {
+            Map.Entry<Long, Point> head = queue.poll();
+            long time = head.getKey();
+            if (time > queued.get(head.getValue())) {
+                continue;
+            }
+            sum += time;
+            for (RouteEdge e : graph.outgoingEdgesOf(head.getValue())) {
+                Point target = e.getRoute().getToPoint();
+                long t = time + e.getRoute().getTime();
+                Long current = queued.get(target);
+                if (current == null || t < current) {
+                    queued.put(target, t);
+                    queue.add(new AbstractMap.SimpleEntry<>(t, target));
+                }
+            }
+        }
+        return sum;
+    }
+
+
+
+
+
+    private static long usedMemory() throws InterruptedException {
+
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+}
@@ -0,0 +1,119 @@
+
+
+
+
+
+package delivery;
+
+
+
+
+
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import delivery.database.MapBatch;
+import delivery.database.MapStorage;
+import delivery.entities.Point;
+import delivery.entities.Route;
+import delivery.entities.RouteKey;
+import delivery.exceptions.ExistingPointException;
+import delivery.exceptions.ExistingRouteException;
+import delivery.exceptions.PointNotFoundException;
+import delivery.exceptions.RouteNotFoundException;
+import delivery.route.CompactGraph;
+
+
+
+
+
+public class TestCompactGraph extends InitTest {
+
+    private static final int POINTS = 2000;
+    private static final int ROUTES = 10;
+
+
+
+
+
+    @Test
+    public void testRoutesOfEachPoint() throws ExistingPointException, ExistingRouteException, PointNotFoundException {
+
+        loadPoints();
+        _mngr.addRoute(new Route(new Point(B), new Point(A), 1, 2));
+        _mngr.addRoute(new Route(new Point(A), new Point(I), 300, -40000));
+        _mngr.addRoute(new Route(new Point(A), new Point(C), Integer.MAX_VALUE, Integer.MIN_VALUE));
+
+        CompactGraph graph = CompactGraph.of(MapStorage.getInstance().snapshot());
+        assertEquals(9, graph.getVertexCount());
+        assertEquals(3, graph.getEdgeCount());
+        assertEquals(-1, graph.indexOf("Z"));
+
+        // by destination
+        CompactGraph.EdgeCursor edges = graph.edges(graph.indexOf(A));
+        assertTrue(edges.next());
+        assertEquals(C, graph.getName(edges.target()));
+        assertEquals(Integer.MAX_VALUE, edges.time());
+        assertEquals(Integer.MIN_VALUE, edges.cost());
+        assertTrue(edges.next());
+        assertEquals(I, graph.getName(edges.target()));
+        assertEquals(300, edges.time());
+        assertEquals(-40000, edges.cost());
+        assertFalse(edges.next());
+
+        edges.reset(graph.indexOf(D));
+        assertFalse(edges.next());
+        assertEquals(0, graph.getDegree(graph.indexOf(D)));
+        assertEquals(1, graph.getDegree(graph.indexOf(B)));
+    }
+
+
+
+
+
+    @Test
+    public void testLargeMap()
+                    throws ExistingPointException, ExistingRouteException, PointNotFoundException,
+                    RouteNotFoundException {
+
+        MapBatch batch = new MapBatch();
+        for (int i = 0; i < POINTS; i++) {
+            batch.addPoint(new Point("P" + i));
+        }
+        for (int i = 0; i < POINTS; i++) {
+            for (int j = 1; j <= ROUTES; j++) {
+                batch.addRoute(new Route(new Point("P" + i), new Point("P" + ((i + j * 131) % POINTS)), i * j,
+                                         i - j * 100));
+            }
+        }
+        MapStorage storage = MapStorage.getInstance();
+        storage.apply(batch);
+
+        CompactGraph graph = CompactGraph.of(storage.snapshot());
+        assertEquals(storage.getVersion(), graph.getVersion());
+        assertEquals(POINTS * ROUTES, graph.getEdgeCount());
+
+        // every route is decoded once, with its own time and cost
+        Map<RouteKey, Route> routes = new HashMap<>(storage.getRoutes());
+        CompactGraph.EdgeCursor edges = graph.cursor();
+        for (int v = 0; v < graph.getVertexCount(); v++) {
+            int previous = -1;
+            for (edges.reset(v); edges.next();) {
+                assertTrue(edges.target() > previous);
+                previous = edges.target();
+                Route route = routes.remove(new RouteKey(new Point(graph.getName(v)),
+                                                         new Point(graph.getName(edges.target()))));
+                assertNotNull(route);
+                assertEquals(route.getTime(), edges.time());
+                assertEquals(route.getCost(), edges.cost());
+            }
+        }
+        assertTrue(routes.isEmpty());
+        assertTrue(graph.getByteSize() < 10L * POINTS * ROUTES);
+    }
+
+}
@@ -0,0 +1,319 @@
+
+
+
+
+
+package delivery;
+
+
+
+
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import delivery.database.MapBatch;
+import delivery.database.MapMutation;
+import delivery.database.MapRegistry;
+import delivery.database.MapStorage;
+import delivery.database.persistence.JdbcMapPersistence;
+import delivery.database.persistence.MapPersistence.Replayer;
+import delivery.database.persistence.MappedMap;
+import delivery.entities.Point;
+import delivery.exceptions.ExistingPointException;
+import delivery.exceptions.ExistingRouteException;
+import delivery.exceptions.PointNotFoundException;
+import delivery.exceptions.RouteNotFoundException;
+import delivery.exceptions.StorageException;
+
+
+
+
+
+public class TestJdbcMapPersistence extends InitTest {
+
+    @Rule
+    public TemporaryFolder _folder = new TemporaryFolder();
+
+    private String         _url;
+
+
+
+
+
+    @Before
+    public void createDatabase() throws IOException {
+
+        _url = "jdbc:h2:file:" + _folder.newFolder().toPath().resolve("map").toAbsolutePath();
+    }
+
+
+
+
+
+    @After
+    public void disablePersistence() throws IOException {
+
+        MapStorage.getInstance().disablePersistence();
+    }
+
+
+
+
+
+    /**
+     * Stores the map in the database, writing the changes every given milliseconds
+     */
+    private void enable(long flushInterval) throws IOException {
+
+        MapStorage.getInstance().enablePersistence(new JdbcMapPersistence(_url, MapRegistry.DEFAULT_MAP,
+                                                                          new Properties(), flushInterval));
+    }
+
+
+
+
+
+    /**
+     * Simulates a restart: the map in memory is lost and the stored one is loaded
+     */
+    private void restart() throws IOException {
+
+        MapStorage storage = MapStorage.getInstance();
+        storage.disablePersistence();
+        storage.clearMap();
+        assertEquals(0, storage.getPoints().size());
+
+        enable(10);
+    }
+
+
+
+
+
+    @Test
+    public void testMapIsReplayed()
+                    throws IOException, ExistingPointException, ExistingRouteException, PointNotFoundException,
+                    RouteNotFoundException {
+
+        enable(10);
+
+        loadPoints();
+        _mngr.addRoute(A, B, 1, 2);
+        _mngr.addRoute(B, C, 3, 4);
+        _mngr.addRoute(C, D, 5, 6);
+        _mngr.updateRoute(A, B, 7, 8);
+        _mngr.deleteRoute(B, C);
+        _mngr.deletePoint(I);
+
+        restart();
+
+        assertEquals(8, _mngr.getPoints().size());
+        assertNull(_mngr.getPoint(I));
+        assertEquals(2, _mngr.getRoutes().size());
+        assertEquals(7, _mngr.getRoute(A, B).getTime());
+        assertEquals(8, _mngr.getRoute(A, B).getCost());
+        assertNull(_mngr.getRoute(B, C));
+    }
+
+
+
+
+
+    @Test
+    public void testChangesCoalesced()
+                    throws IOException, SQLException, ExistingPointException, ExistingRouteException,
+                    PointNotFoundException, RouteNotFoundException {
+
+        // all the changes are made within the interval, so they are written at once
+        enable(2000);
+
+        loadPoints();
+        _mngr.addPoint(new Point("X"));
+        _mngr.addRoute(A, "X", 1, 1);
+        _mngr.addRoute(A, B, 1, 1);
+        for (int i = 2; i <= 10; i++) {
+            _mngr.updateRoute(A, B, i, i * 10);
+        }
+        _mngr.deletePoint("X");
+        long version = MapStorage.getInstance().getVersion();
+
+        try (Connection connection = DriverManager.getConnection(_url)) {
+            assertEquals(0, count(connection, "map_point"));
+        }
+
+        // closing writes the pending changes
+        MapStorage.getInstance().disablePersistence();
+
+        try (Connection connection = DriverManager.getConnection(_url)) {
+            assertEquals(9, count(connection, "map_point"));
+            assertEquals(1, count(connection, "map_route"));
+            try (Statement statement = connection.createStatement();
+                 ResultSet route = statement.executeQuery("SELECT from_point, to_point, route_time, route_cost "
+                                                          + "FROM map_route")) {
+                assertTrue(route.next());
+                assertEquals(A, route.getString(1));
+                assertEquals(B, route.getString(2));
+                assertEquals(10, route.getInt(3));
+                assertEquals(100, route.getInt(4));
+            }
+            try (Statement statement = connection.createStatement();
+                 ResultSet stored = statement.executeQuery("SELECT version FROM map_version")) {
+                assertTrue(stored.next());
+                assertEquals(version, stored.getLong(1));
+            }
+        }
+    }
+
+
+
+
+
+    @Test
+    public void testRecoveredInChunks()
+                    throws IOException, ExistingPointException, ExistingRouteException, PointNotFoundException,
+                    RouteNotFoundException {
+
+        enable(10);
+        int points = 25000;
+        MapBatch batch = new MapBatch();
+        for (int i = 0; i < points; i++) {
+            batch.addPoint(new Point("P" + i));
+        }
+        _mngr.applyBatch(batch);
+        long version = MapStorage.getInstance().getVersion();
+        MapStorage.getInstance().disablePersistence();
+
+        List<Long> versions = new ArrayList<>();
+        int[] replayed = new int[1];
+        try (JdbcMapPersistence persistence = new JdbcMapPersistence(_url)) {
+            persistence.recover(new Replayer() {
+
+                @Override
+                public void load(MappedMap snapshot) {
+
+                    fail("The database has no snapshot");
+                }
+
+
+
+
+
+                @Override
+                public void replay(long at, List<MapMutation> mutations) {
+
+                    versions.add(at);
+                    replayed[0] += mutations.size();
+                }
+            });
+        }
+
+        // the points are replayed by chunks, all at the stored version
+        assertEquals(points, replayed[0]);
+        assertTrue(versions.size() > 1);
+        for (long at : versions) {
+            assertEquals(version, at);
+        }
+    }
+
+
+
+
+
+    @Test
+    public void testLongPointNameRejected() throws IOException, ExistingPointException {
+
+        enable(10);
+        StringBuilder name = new StringBuilder();
+        while (name.length() <= 255) {
+            name.append("long name ");
+        }
+        try {
+            _mngr.addPoint(new Point(name.toString()));
+            fail("The point name can not be stored");
+        } catch (StorageException e) {
+            // expected
+        }
+        assertNull(_mngr.getPoint(name.toString()));
+
+        _mngr.addPoint(new Point("X"));
+        restart();
+        assertNotNull(_mngr.getPoint("X"));
+        assertEquals(1, _mngr.getPoints().size());
+    }
+
+
+
+
+
+    @Test
+    public void testRejectedChangesGivenUp() throws IOException, SQLException, ExistingPointException,
+                                             InterruptedException {
+
+        enable(10);
+        MapStorage storage = MapStorage.getInstance();
+        _mngr.addPoint(new Point("X"));
+
+        try (Connection connection = DriverManager.getConnection(_url);
+             PreparedStatement insert = connection.prepareStatement("INSERT INTO map_point (map_id, name) "
+                                                                    + "VALUES (?, ?)")) {
+            // not coalesced with the rejected change
+            for (int i = 0; i < 100 && count(connection, "map_point") == 0; i++) {
+                Thread.sleep(50);
+            }
+            // a point stored behind the back of the map can not be inserted again
+            insert.setString(1, MapRegistry.DEFAULT_MAP);
+            insert.setString(2, "Y");
+            insert.executeUpdate();
+        }
+        _mngr.addPoint(new Point("Y"));
+        for (int i = 0; i < 100 && storage.getPersistenceFailure() == null; i++) {
+            Thread.sleep(50);
+        }
+        assertTrue(storage.getPersistenceFailure() instanceof StorageException);
+
+        // the next changes are still written, and the failure is kept
+        _mngr.addPoint(new Point("Z"));
+        try {
+            storage.disablePersistence();
+            fail("Some changes were given up");
+        } catch (IOException e) {
+            // expected
+        }
+        storage.clearMap();
+        enable(10);
+        assertNotNull(_mngr.getPoint("X"));
+        assertNotNull(_mngr.getPoint("Y"));
+        assertNotNull(_mngr.getPoint("Z"));
+    }
+
+
+
+
+
+    private static int count(Connection connection, String table) throws SQLException {
+
+        try (Statement statement = connection.createStatement();
+             ResultSet result = statement.executeQuery("SELECT COUNT(*) FROM " + table)) {
+            result.next();
+            return result.getInt(1);
+        }
+    }
+
+}
@@ -0,0 +1,112 @@
+
+
+
+
+
+package delivery;
+
+
+
+
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import delivery.database.MapBatch;
+import delivery.database.MapStorage;
+import delivery.entities.Point;
+import delivery.entities.Route;
+import delivery.entities.RouteKey;
+import delivery.exceptions.ExistingPointException;
+import delivery.exceptions.ExistingRouteException;
+import delivery.exceptions.PointNotFoundException;
+import delivery.exceptions.RouteNotFoundException;
+
+
+
+
+
+public class TestMapBatch extends InitTest {
+
+    @Test
+    public void testBatchIsASingleVersion()
+                    throws ExistingPointException, ExistingRouteException, PointNotFoundException, RouteNotFoundException {
+
+        long version = MapStorage.getInstance().getVersion();
+
+        MapBatch batch = new MapBatch().addPoint(new Point(A))
+                                       .addPoint(new Point(B))
+                                       .addPoint(new Point(C))
+                                       .addRoute(new Route(new Point(A), new Point(B), 1, 2))
+                                       .addRoute(new Route(new Point(B), new Point(C), 3, 4))
+                                       .updateRoute(new Route(new Point(A), new Point(B), 5, 6))
+                                       .deleteRoute(new RouteKey(new Point(B), new Point(C)));
+        _mngr.applyBatch(batch);
+
+        assertEquals(version + 1, MapStorage.getInstance().getVersion());
+        assertEquals(3, _mngr.getPoints().size());
+        assertEquals(1, _mngr.getRoutes().size());
+        assertEquals(5, _mngr.getRoute(A, B).getTime());
+        assertEquals(6, _mngr.getRoute(A, B).getCost());
+    }
+
+
+
+
+
+    @Test
+    public void testInvalidBatchIsNotApplied() throws ExistingPointException {
+
+        loadPoints();
+        long version = MapStorage.getInstance().getVersion();
+
+        // the last route is a duplicate, so the whole batch must be discarded
+        MapBatch batch = new MapBatch().addPoint(new Point("X"))
+                                       .addRoute(new Route(new Point(A), new Point(B), 1, 2))
+                                       .addRoute(new Route(new Point(A), new Point(B), 1, 2));
+        try {
+            _mngr.applyBatch(batch);
+            fail("The batch must be rejected");
+        } catch (ExistingRouteException e) {
+            // expected
+        } catch (PointNotFoundException | RouteNotFoundException e) {
+            fail("Unexpected exception " + e);
+        }
+
+        assertEquals(version, MapStorage.getInstance().getVersion());
+        assertNull(_mngr.getPoint("X"));
+        assertEquals(0, _mngr.getRoutes().size());
+    }
+
+
+
+
+
+    @Test(expected = PointNotFoundException.class)
+    public void testBatchRouteOfDeletedPoint()
+                    throws ExistingPointException, ExistingRouteException, PointNotFoundException, RouteNotFoundException {
+
+        loadPoints();
+
+        _mngr.applyBatch(new MapBatch().deletePoint(new Point(A)).addRoute(new Route(new Point(A), new Point(B), 1, 2)));
+    }
+
+
+
+
+
+    @Test
+    public void testBatchReplacesMap()
+                    throws ExistingPointException, ExistingRouteException, PointNotFoundException, RouteNotFoundException {
+
+        loadPoints();
+        _mngr.addRoute(A, B, 1, 2);
+
+        _mngr.applyBatch(new MapBatch().clearMap().addPoint(new Point(A)));
+
+        assertEquals(1, _mngr.getPoints().size());
+        assertEquals(0, _mngr.getRoutes().size());
+    }
+
+}
@@ -0,0 +1,193 @@
+
+
+
+
+
+package delivery;
+
+
+
+
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import delivery.database.MapBatch;
+import delivery.database.MapChange;
+import delivery.database.MapChangeFeed;
+import delivery.database.MapMutation;
+import delivery.database.MapSnapshot;
+import delivery.database.MapStorage;
+import delivery.entities.Point;
+import delivery.entities.Route;
+import delivery.exceptions.ExistingPointException;
+import delivery.exceptions.ExistingRouteException;
+import delivery.exceptions.PointNotFoundException;
+import delivery.exceptions.RouteNotFoundException;
+
+
+
+
+
+public class TestMapChangeFeed extends InitTest {
+
+    @Test
+    public void testChangesInOrder() throws PointNotFoundException, RouteNotFoundException {
+
+        MapStorage storage = MapStorage.getInstance();
+        MapChangeFeed.Cursor cursor = storage.getChangeFeed().cursor();
+        long version = storage.getVersion();
+        assertNull(cursor.poll());
+
+        storage.addPoint(new Point(A));
+        storage.addPoint(new Point(B));
+        storage.addRoute(new Route(new Point(A), new Point(B), 1, 2));
+        storage.deletePoint(new Point(A));
+
+        MapMutation.Type[] expected = { MapMutation.Type.ADD_POINT, MapMutation.Type.ADD_POINT,
+                        MapMutation.Type.ADD_ROUTE, MapMutation.Type.DELETE_POINT };
+        for (MapMutation.Type type : expected) {
+            MapChange change = cursor.poll();
+            assertEquals(++version, change.getVersion());
+            assertFalse(change.isReload());
+            assertEquals(1, change.getMutations().size());
+            assertEquals(type, change.getMutations().get(0).getType());
+        }
+        assertNull(cursor.poll());
+        assertEquals(storage.getVersion(), cursor.getVersion());
+    }
+
+
+
+
+
+    @Test
+    public void testBatchIsOneChange()
+                    throws ExistingPointException, ExistingRouteException, PointNotFoundException,
+                    RouteNotFoundException {
+
+        MapStorage storage = MapStorage.getInstance();
+        MapChangeFeed.Cursor cursor = storage.getChangeFeed().cursor();
+
+        storage.apply(new MapBatch().addPoint(new Point(A)).addPoint(new Point(B))
+                        .addRoute(new Route(new Point(A), new Point(B), 1, 2)));
+
+        MapChange change = cursor.poll();
+        assertEquals(storage.getVersion(), change.getVersion());
+        assertEquals(3, change.getMutations().size());
+        assertEquals(MapMutation.Type.ADD_ROUTE, change.getMutations().get(2).getType());
+        assertNull(cursor.poll());
+    }
+
+
+
+
+
+    @Test
+    public void testSlowReaderIsReloaded() throws ExistingPointException {
+
+        MapStorage storage = MapStorage.getInstance();
+        MapChangeFeed.Cursor cursor = storage.getChangeFeed().cursor();
+
+        for (int i = 0; i < MapChangeFeed.DEFAULT_CAPACITY + 10; i++) {
+            storage.addPoint(new Point("P" + i));
+        }
+
+        MapChange change = cursor.poll();
+        assertTrue(change.isReload());
+        assertEquals(storage.getVersion(), change.getVersion());
+        MapSnapshot snapshot = change.getSnapshot();
+        assertEquals(MapChangeFeed.DEFAULT_CAPACITY + 10, snapshot.getPoints().size());
+        assertNull(cursor.poll());
+
+        storage.addPoint(new Point(A));
+        assertEquals(storage.getVersion(), cursor.poll().getVersion());
+    }
+
+
+
+
+
+    @Test
+    public void testCursorFromVersion() throws ExistingPointException {
+
+        MapStorage storage = MapStorage.getInstance();
+        MapChangeFeed feed = storage.getChangeFeed();
+        long version = storage.getVersion();
+
+        storage.addPoint(new Point(A));
+        storage.addPoint(new Point(B));
+        MapChangeFeed.Cursor cursor = feed.cursor(version);
+        assertEquals(version + 1, cursor.poll().getVersion());
+        assertEquals(version + 2, cursor.poll().getVersion());
+        assertNull(cursor.poll());
+        assertNull(feed.cursor(storage.getVersion()).poll());
+        assertNull(feed.cursor(storage.getVersion() + 1));
+
+        for (int i = 0; i < MapChangeFeed.DEFAULT_CAPACITY; i++) {
+            storage.addPoint(new Point("P" + i));
+        }
+        assertNull(feed.cursor(version));
+    }
+
+
+
+
+
+    @Test
+    public void testListener() throws ExistingPointException, InterruptedException {
+
+        MapStorage storage = MapStorage.getInstance();
+        List<MapChange> changes = new CopyOnWriteArrayList<>();
+        CountDownLatch received = new CountDownLatch(9);
+
+        try (MapChangeFeed.Subscription subscription = storage.getChangeFeed().subscribe(change -> {
+            changes.add(change);
+            received.countDown();
+        })) {
+            loadPoints();
+            assertTrue(received.await(5, TimeUnit.SECONDS));
+            assertNull(subscription.getFailure());
+        }
+
+        assertEquals(9, changes.size());
+        for (int i = 1; i < changes.size(); i++) {
+            assertEquals(changes.get(i - 1).getVersion() + 1, changes.get(i).getVersion());
+        }
+        assertEquals(storage.getVersion(), changes.get(8).getVersion());
+    }
+
+
+
+
+
+    @Test
+    public void testListenerFailureRecorded() throws ExistingPointException, InterruptedException {
+
+        MapStorage storage = MapStorage.getInstance();
+        CountDownLatch received = new CountDownLatch(9);
+
+        try (MapChangeFeed.Subscription subscription = storage.getChangeFeed().subscribe(change -> {
+            received.countDown();
+            if (received.getCount() % 2 == 1) {
+                throw new IllegalStateException("Failed at version " + change.getVersion());
+            }
+        })) {
+            loadPoints();
+            // the changes after a failure are still delivered
+            assertTrue(received.await(5, TimeUnit.SECONDS));
+            for (int i = 0; i < 100 && subscription.getFailureCount() < 4; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(4, subscription.getFailureCount());
+            assertTrue(subscription.getFailure() instanceof IllegalStateException);
+        }
+    }
+
+}
@@ -0,0 +1,118 @@
+
+
+
+
+
+package delivery;
+
+
+
+
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import delivery.database.MapBatch;
+import delivery.database.MapExporter;
+import delivery.database.MapImporter;
+import delivery.database.MapSnapshot;
+import delivery.database.MapStorage;
+import delivery.entities.Point;
+import delivery.entities.Route;
+import delivery.exceptions.ExistingPointException;
+import delivery.exceptions.ExistingRouteException;
+import delivery.exceptions.PointNotFoundException;
+import delivery.exceptions.RouteNotFoundException;
+
+
+
+
+
+public class TestMapExporter extends InitTest {
+
+    private static final String SAO_TOME = "S\u00E3o Tom\u00E9";
+
+
+
+
+
+    @Test
+    public void testTextFormat() throws IOException, PointNotFoundException {
+
+        MapStorage storage = MapStorage.getInstance();
+        storage.addPoint(new Point(A));
+        storage.addPoint(new Point(B));
+        storage.addRoute(new Route(new Point(A), new Point(B), 10, -5));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MapExporter.writeText(storage.snapshot(), out);
+        assertEquals(A + "\n" + B + "\n\n" + A + "," + B + ",10,-5\n", new String(out.toByteArray(),
+                                                                                   StandardCharsets.UTF_8));
+    }
+
+
+
+
+
+    @Test
+    public void testTextRoundTrip()
+                    throws IOException, PointNotFoundException, ExistingPointException, ExistingRouteException,
+                    RouteNotFoundException {
+
+        addMap();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MapExporter.writeText(MapStorage.getInstance().snapshot(), out);
+        assertReimported(out.toByteArray());
+    }
+
+
+
+
+
+    @Test
+    public void testBinaryRoundTrip()
+                    throws IOException, PointNotFoundException, ExistingPointException, ExistingRouteException,
+                    RouteNotFoundException {
+
+        addMap();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MapExporter.writeBinary(MapStorage.getInstance().snapshot(), out);
+        assertReimported(out.toByteArray());
+    }
+
+
+
+
+
+    private void addMap() throws ExistingPointException, PointNotFoundException {
+
+        loadPoints();
+        MapStorage storage = MapStorage.getInstance();
+        storage.addPoint(new Point(SAO_TOME));
+        storage.addRoute(new Route(new Point(A), new Point(B), 1, 20));
+        storage.addRoute(new Route(new Point(B), new Point(SAO_TOME), Integer.MAX_VALUE, Integer.MIN_VALUE));
+        storage.addRoute(new Route(new Point(SAO_TOME), new Point(C), 0, -1));
+    }
+
+
+
+
+
+    private void assertReimported(byte[] exported)
+                    throws IOException, ExistingPointException, ExistingRouteException, PointNotFoundException,
+                    RouteNotFoundException {
+
+        MapStorage storage = MapStorage.getInstance();
+        MapSnapshot before = storage.snapshot();
+        storage.apply(new MapImporter().read(new ByteArrayInputStream(exported), new MapBatch().clearMap()));
+        assertEquals(before.getPoints(), storage.getPoints());
+        assertEquals(before.getRoutes(), storage.getRoutes());
+    }
+
+}
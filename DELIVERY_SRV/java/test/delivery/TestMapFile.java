@@ -0,0 +1,126 @@
+
+
+
+
+
+package delivery;
+
+
+
+
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import delivery.database.MapStorage;
+import delivery.entities.Point;
+import delivery.entities.Route;
+import delivery.exceptions.ExistingPointException;
+import delivery.exceptions.ExistingRouteException;
+import delivery.exceptions.PointNotFoundException;
+import delivery.exceptions.RouteNotFoundException;
+import delivery.route.entities.Trip;
+
+
+
+
+
+public class TestMapFile extends InitTest {
+
+    @Rule
+    public TemporaryFolder _folder = new TemporaryFolder();
+
+
+
+
+
+    /**
+     * Saves the map to a file, clears it and loads the file
+     */
+    private void saveAndLoad() throws IOException {
+
+        Path file = _folder.newFile().toPath();
+        MapStorage.getInstance().saveMapFile(file);
+        MapStorage.getInstance().clearMap();
+        MapStorage.getInstance().loadMapFile(file);
+    }
+
+
+
+
+
+    @Test
+    public void testQueriesOnMappedFile()
+                    throws IOException, ExistingPointException, ExistingRouteException, PointNotFoundException {
+
+        loadPoints();
+        _mngr.addRoute(A, C, 1, 20);
+        _mngr.addRoute(C, B, 1, 12);
+        _mngr.addRoute(A, E, 30, 5);
+        _mngr.addRoute(E, B, 3, 5);
+        _mngr.addRoute(D, B, 3, 5);
+
+        saveAndLoad();
+
+        assertEquals(9, _mngr.getPoints().size());
+        assertTrue(_mngr.getPoints().contains(new Point(I)));
+        assertEquals(5, _mngr.getRoutes().size());
+        assertEquals(new Route(new Point(A), new Point(C), 1, 20), _mngr.getRoute(A, C));
+        assertNull(_mngr.getRoute(C, A));
+        assertNull(_mngr.getPoint("X"));
+
+        assertEquals(2, _mngr.getOutgoingRoutes(A).size());
+        assertEquals(3, _mngr.getIncomingRoutes(B).size());
+        assertTrue(_mngr.getIncomingRoutes(B).contains(new Route(new Point(D), new Point(B), 3, 5)));
+
+        List<Trip> trips = _mngr.getAllTripRoutes(A, B);
+        assertEquals(2, trips.size());
+        assertEquals(10, _mngr.getCheapestTrip(A, B).getTotalCost());
+    }
+
+
+
+
+
+    @Test
+    public void testChangesOnMappedFile()
+                    throws IOException, ExistingPointException, ExistingRouteException, PointNotFoundException,
+                    RouteNotFoundException {
+
+        loadPoints();
+        _mngr.addRoute(A, C, 1, 20);
+        _mngr.addRoute(C, B, 1, 12);
+
+        saveAndLoad();
+
+        _mngr.updateRoute(A, C, 2, 30);
+        _mngr.addRoute(B, A, 4, 4);
+
+        assertEquals(9, _mngr.getPoints().size());
+        assertEquals(3, _mngr.getRoutes().size());
+        assertEquals(30, _mngr.getRoute(A, C).getCost());
+        assertEquals(12, _mngr.getRoute(C, B).getCost());
+    }
+
+
+
+
+
+    @Test
+    public void testEmptyMap() throws IOException {
+
+        saveAndLoad();
+
+        assertEquals(0, _mngr.getPoints().size());
+        assertEquals(0, _mngr.getRoutes().size());
+        assertNull(_mngr.getPoint(A));
+    }
+
+}
@@ -0,0 +1,127 @@
+
+
+
+
+
+package delivery;
+
+
+
+
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import delivery.database.MapRegistry;
+import delivery.database.MapSnapshot;
+import delivery.database.MapStorage;
+import delivery.entities.Point;
+import delivery.entities.Route;
+import delivery.exceptions.ExistingPointException;
+import delivery.exceptions.ExistingRouteException;
+import delivery.exceptions.MapVersionNotFoundException;
+import delivery.exceptions.PointNotFoundException;
+import delivery.exceptions.RouteNotFoundException;
+import delivery.route.entities.Trip;
+
+
+
+
+
+public class TestMapHistory extends InitTest {
+
+    @Test
+    public void testTripsAsOf()
+                    throws ExistingPointException, ExistingRouteException, PointNotFoundException,
+                    RouteNotFoundException, MapVersionNotFoundException, InterruptedException {
+
+        loadPoints();
+        _mngr.addRoute(A, B, 10, 10);
+        _mngr.addRoute(B, C, 10, 10);
+        _mngr.addRoute(A, D, 1, 1);
+        _mngr.addRoute(D, C, 1, 1);
+        long before = tick();
+
+        _mngr.updateRoute(D, C, 100, 100);
+        long after = tick();
+
+        assertEquals(2, _mngr.getFastestTrip(A, C, before).getTotalTime());
+        assertEquals(20, _mngr.getFastestTrip(A, C, after).getTotalTime());
+        assertEquals(20, _mngr.getFastestTrip(A, C).getTotalTime());
+
+        // the points deleted since then are still found
+        _mngr.deletePoint(D);
+        Trip cheapest = _mngr.getCheapestTrip(A, C, before);
+        assertEquals(D, cheapest.getRoutes().get(0).getToPoint().getName());
+        assertEquals(1, _mngr.getAllTripRoutes(A, C).size());
+        assertEquals(2, _mngr.getAllTripRoutes(A, C, after).size());
+    }
+
+
+
+
+
+    @Test
+    public void testRetention() throws IOException, InterruptedException {
+
+        MapRegistry registry = new MapRegistry(null, null, false);
+        try {
+            MapStorage storage = registry.getDefaultMap();
+            long created = tick();
+            storage.setHistoryRetention(3, 1, TimeUnit.HOURS);
+
+            long[] times = new long[5];
+            for (int i = 0; i < times.length; i++) {
+                storage.addPoint(new Point("P" + i));
+                times[i] = tick();
+            }
+
+            // the current version and the 2 previous ones
+            assertNull(storage.snapshotAt(created));
+            assertNull(storage.snapshotAt(times[1]));
+            MapSnapshot oldest = storage.snapshotAt(times[2]);
+            assertEquals(3, oldest.getPointCount());
+            assertFalse(oldest.pointExists("P3"));
+            assertEquals(5, storage.snapshotAt(times[4]).getPointCount());
+            assertSame(storage.snapshot(), storage.snapshotAt(Long.MAX_VALUE));
+
+            // the versions replaced before the age are dropped, apart from the one current at that age
+            storage.setHistoryRetention(3, 0, TimeUnit.HOURS);
+            storage.addPoint(new Point("P5"));
+            assertNull(storage.snapshotAt(times[4]));
+            assertSame(storage.snapshot(), storage.snapshotAt(System.currentTimeMillis()));
+        } finally {
+            registry.close();
+        }
+    }
+
+
+
+
+
+    @Test(expected = MapVersionNotFoundException.class)
+    public void testTimeNotRetained() throws PointNotFoundException, MapVersionNotFoundException {
+
+        _mngr.getAllTripRoutes(A, B, 0);
+    }
+
+
+
+
+
+    /**
+     * Returns the current time, once it is after the previous changes
+     */
+    private static long tick() throws InterruptedException {
+
+        Thread.sleep(2);
+        long time = System.currentTimeMillis();
+        Thread.sleep(2);
+        return time;
+    }
+
+}
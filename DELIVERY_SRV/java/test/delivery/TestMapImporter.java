@@ -0,0 +1,137 @@
+
+
+
+
+
+package delivery;
+
+
+
+
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import delivery.database.MapBatch;
+import delivery.database.MapImporter;
+import delivery.database.MapStorage;
+import delivery.entities.Point;
+import delivery.entities.Route;
+import delivery.entities.RouteKey;
+import delivery.exceptions.ExistingPointException;
+import delivery.exceptions.ExistingRouteException;
+import delivery.exceptions.PointNotFoundException;
+import delivery.exceptions.RouteNotFoundException;
+
+
+
+
+
+public class TestMapImporter extends InitTest {
+
+    private static final int POINTS = 1000;
+    private static final int ROUTES = 20;
+
+    @Rule
+    public TemporaryFolder   _folder = new TemporaryFolder();
+
+
+
+
+
+    @Test
+    public void testDefaultMapFormat()
+                    throws IOException, ExistingPointException, ExistingRouteException, PointNotFoundException,
+                    RouteNotFoundException {
+
+        String map = "A\nB\r\nC\n\nA,B,1,20\r\nB,C,30,5\nC,A,10,1\n";
+        MapBatch batch = new MapImporter().read(new ByteArrayInputStream(map.getBytes(StandardCharsets.UTF_8)),
+                                                new MapBatch().clearMap());
+        assertEquals(7, batch.size());
+
+        MapStorage storage = MapStorage.getInstance();
+        storage.apply(batch);
+        assertEquals(3, storage.getPoints().size());
+        assertEquals(3, storage.getRoutes().size());
+        Route route = storage.getRoute(new RouteKey(new Point(A), new Point(B)));
+        assertEquals(1, route.getTime());
+        assertEquals(20, route.getCost());
+    }
+
+
+
+
+
+    @Test
+    public void testRoutesOnlyInTsv()
+                    throws IOException, ExistingPointException, ExistingRouteException, PointNotFoundException,
+                    RouteNotFoundException {
+
+        String map = "\uFEFFLisboa\tPorto\t3\t4\nPorto\t Faro \t5\t-6\n";
+        Path file = _folder.newFile().toPath();
+        Files.write(file, map.getBytes(StandardCharsets.UTF_8));
+
+        MapStorage storage = MapStorage.getInstance();
+        storage.apply(new MapImporter().read(file, new MapBatch()));
+        assertEquals(3, storage.getPoints().size());
+        assertEquals(-6, storage.getRoute(new RouteKey(new Point("Porto"), new Point("Faro"))).getCost());
+    }
+
+
+
+
+
+    @Test
+    public void testParallelChunks()
+                    throws IOException, ExistingPointException, ExistingRouteException, PointNotFoundException,
+                    RouteNotFoundException {
+
+        Path file = _folder.newFile().toPath();
+        try (Writer w = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            for (int i = 0; i < POINTS; i++) {
+                for (int j = 1; j <= ROUTES; j++) {
+                    w.write("P" + i + ",P" + ((i + j) % POINTS) + "," + i + "," + j + "\n");
+                }
+            }
+        }
+
+        // many small chunks, split in the middle of lines
+        MapBatch batch = new MapImporter(1000).read(file, new MapBatch());
+        assertEquals(POINTS + POINTS * ROUTES, batch.size());
+
+        MapStorage storage = MapStorage.getInstance();
+        storage.apply(batch);
+        assertEquals(POINTS, storage.getPoints().size());
+        assertEquals(POINTS * ROUTES, storage.getRoutes().size());
+        Route route = storage.getRoute(new RouteKey(new Point("P999"), new Point("P19")));
+        assertEquals(999, route.getTime());
+        assertEquals(20, route.getCost());
+    }
+
+
+
+
+
+    @Test
+    public void testInvalidLine() throws IOException {
+
+        String map = "A\nB\nA,B,1\n";
+        try {
+            new MapImporter().read(new ByteArrayInputStream(map.getBytes(StandardCharsets.UTF_8)), new MapBatch());
+            fail("The route has no cost");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("at byte 4"));
+        }
+    }
+
+}
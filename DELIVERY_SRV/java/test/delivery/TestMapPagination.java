@@ -0,0 +1,176 @@
+
+
+
+
+
+package delivery;
+
+
+
+
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Test;
+
+import delivery.database.MapSnapshot;
+import delivery.database.MapStorage;
+import delivery.entities.Point;
+import delivery.entities.Route;
+import delivery.entities.RouteKey;
+import delivery.exceptions.ExistingPointException;
+import delivery.exceptions.ExistingRouteException;
+import delivery.exceptions.MapVersionNotFoundException;
+import delivery.exceptions.PointNotFoundException;
+import delivery.exceptions.RouteNotFoundException;
+
+
+
+
+
+public class TestMapPagination extends InitTest {
+
+    @After
+    public void disableOffHeap() {
+
+        MapStorage.getInstance().disableOffHeap();
+    }
+
+
+
+
+
+    @Test
+    public void testPages() throws ExistingPointException, ExistingRouteException, PointNotFoundException {
+
+        for (int i = 0; i < 200; i++) {
+            _mngr.addPoint(new Point("P" + i));
+        }
+        for (int i = 0; i < 199; i++) {
+            _mngr.addRoute("P" + i, "P" + (i + 1), i, i);
+        }
+
+        MapSnapshot map = _mngr.snapshot();
+        assertEquals(new ArrayList<>(map.getPoints()), pointPages(map, 7));
+        assertEquals(new ArrayList<>(map.getRoutes().values()), routePages(map, 7));
+    }
+
+
+
+
+
+    @Test
+    public void testPagesOverOffHeap()
+                    throws ExistingPointException, ExistingRouteException, PointNotFoundException,
+                    RouteNotFoundException {
+
+        loadPoints();
+        _mngr.addRoute(A, C, 1, 20);
+        _mngr.addRoute(C, B, 1, 12);
+        _mngr.addRoute(A, E, 30, 5);
+        _mngr.addRoute(E, B, 3, 5);
+        _mngr.addRoute(B, F, 3, 5);
+
+        // large enough to keep all the changes of the test on the heap
+        MapStorage.getInstance().enableOffHeap(1000);
+
+        _mngr.updateRoute(A, C, 2, 30);
+        _mngr.deleteRoute(C, B);
+        _mngr.addPoint(new Point("X"));
+        _mngr.addRoute(A, "X", 1, 1);
+        _mngr.deletePoint(E);
+
+        MapSnapshot map = _mngr.snapshot();
+        for (int limit = 1; limit < 4; limit++) {
+            assertEquals(new ArrayList<>(map.getPoints()), pointPages(map, limit));
+            assertEquals(new ArrayList<>(map.getRoutes().values()), routePages(map, limit));
+        }
+        assertFalse(map.getPointsAfter(E).hasNext());
+        assertFalse(map.getRoutesAfter(new RouteKey(new Point(C), new Point(B))).hasNext());
+    }
+
+
+
+
+
+    @Test
+    public void testResumeOnVersion()
+                    throws ExistingPointException, ExistingRouteException, PointNotFoundException,
+                    MapVersionNotFoundException {
+
+        loadPoints();
+        _mngr.addRoute(A, B, 1, 1);
+        MapSnapshot map = _mngr.snapshot();
+        String first = map.getPoints().iterator().next().getName();
+
+        // the next pages are read on the same version, whatever the changes made meanwhile
+        _mngr.addPoint(new Point("X"));
+        MapSnapshot resumed = _mngr.snapshotOf(map.getVersion());
+        assertSame(map, resumed);
+        Iterator<Point> next = resumed.getPointsAfter(first);
+        int count = 1;
+        while (next.hasNext()) {
+            assertNotEquals("X", next.next().getName());
+            count++;
+        }
+        assertEquals(9, count);
+
+        assertSame(_mngr.snapshot(), _mngr.snapshotOf(_mngr.snapshot().getVersion()));
+        try {
+            _mngr.snapshotOf(_mngr.snapshot().getVersion() + 1);
+            fail("A version not published yet is not found");
+        } catch (MapVersionNotFoundException e) {
+            // expected
+        }
+    }
+
+
+
+
+
+    /**
+     * Reads all the points, page by page
+     */
+    private static List<Point> pointPages(MapSnapshot map, int limit) {
+
+        List<Point> points = new ArrayList<>();
+        Iterator<Point> page = map.getPoints().iterator();
+        while (page.hasNext()) {
+            for (int i = 0; i < limit && page.hasNext(); i++) {
+                points.add(page.next());
+            }
+            page = map.getPointsAfter(points.get(points.size() - 1).getName());
+        }
+        return points;
+    }
+
+
+
+
+
+    /**
+     * Reads all the routes, page by page
+     */
+    private static List<Route> routePages(MapSnapshot map, int limit) {
+
+        List<Route> routes = new ArrayList<>();
+        Iterator<Map.Entry<RouteKey, Route>> page = map.getRoutes().entrySet().iterator();
+        while (page.hasNext()) {
+            RouteKey last = null;
+            for (int i = 0; i < limit && page.hasNext(); i++) {
+                Map.Entry<RouteKey, Route> e = page.next();
+                routes.add(e.getValue());
+                last = e.getKey();
+            }
+            page = map.getRoutesAfter(last);
+        }
+        return routes;
+    }
+
+}
@@ -0,0 +1,273 @@
+
+
+
+
+
+package delivery;
+
+
+
+
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import delivery.database.MapBatch;
+import delivery.database.MapMutation;
+import delivery.database.MapStorage;
+import delivery.database.persistence.MapPersistence.Replayer;
+import delivery.database.persistence.MappedMap;
+import delivery.database.persistence.WriteAheadLog;
+import delivery.entities.Point;
+import delivery.entities.Route;
+import delivery.exceptions.ExistingPointException;
+import delivery.exceptions.ExistingRouteException;
+import delivery.exceptions.PointNotFoundException;
+import delivery.exceptions.RouteNotFoundException;
+
+
+
+
+
+public class TestMapPersistence extends InitTest {
+
+    @Rule
+    public TemporaryFolder _folder = new TemporaryFolder();
+
+
+
+
+
+    @After
+    public void disablePersistence() throws IOException {
+
+        MapStorage.getInstance().disablePersistence();
+    }
+
+
+
+
+
+    /**
+     * Simulates a restart: the map in memory is lost and the stored one is loaded
+     */
+    private void restart(Path dir) throws IOException {
+
+        MapStorage storage = MapStorage.getInstance();
+        storage.disablePersistence();
+        storage.clearMap();
+        assertEquals(0, storage.getPoints().size());
+
+        storage.enablePersistence(dir);
+    }
+
+
+
+
+
+    @Test
+    public void testMapIsReplayed()
+                    throws IOException, ExistingPointException, ExistingRouteException, PointNotFoundException,
+                    RouteNotFoundException {
+
+        Path dir = _folder.newFolder().toPath();
+        MapStorage.getInstance().enablePersistence(dir);
+
+        loadPoints();
+        _mngr.addRoute(A, B, 1, 2);
+        _mngr.addRoute(B, C, 3, 4);
+        _mngr.addRoute(C, D, 5, 6);
+        _mngr.updateRoute(A, B, 7, 8);
+        _mngr.deleteRoute(B, C);
+        _mngr.deletePoint(I);
+        _mngr.applyBatch(new MapBatch().addPoint(new Point("X")).addRoute(new Route(new Point("X"), new Point(A), 9, 10)));
+
+        long version = MapStorage.getInstance().getVersion();
+        restart(dir);
+
+        assertTrue(MapStorage.getInstance().getVersion() >= version);
+        assertEquals(9, _mngr.getPoints().size());
+        assertNull(_mngr.getPoint(I));
+        assertEquals(3, _mngr.getRoutes().size());
+        assertEquals(7, _mngr.getRoute(A, B).getTime());
+        assertEquals(8, _mngr.getRoute(A, B).getCost());
+        assertNull(_mngr.getRoute(B, C));
+        assertEquals(10, _mngr.getRoute("X", A).getCost());
+    }
+
+
+
+
+
+    @Test
+    public void testCompaction() throws IOException, ExistingPointException, ExistingRouteException,
+                                 PointNotFoundException {
+
+        Path dir = _folder.newFolder().toPath();
+        // compact every few records
+        MapStorage.getInstance().enablePersistence(dir, 256);
+
+        loadPoints();
+        for (int i = 0; i < 100; i++) {
+            _mngr.addPoint(new Point("P" + i));
+            _mngr.addRoute(A, "P" + i, i, i);
+        }
+        MapStorage.getInstance().compact();
+
+        restart(dir);
+
+        assertTrue(Files.exists(dir.resolve("map.snapshot")));
+        assertEquals(109, _mngr.getPoints().size());
+        assertEquals(100, _mngr.getRoutes().size());
+        assertEquals(42, _mngr.getRoute(A, "P42").getCost());
+    }
+
+
+
+
+
+    @Test
+    public void testCompactionFailureRecorded()
+                    throws IOException, ExistingPointException, InterruptedException {
+
+        Path dir = _folder.newFolder().toPath();
+        MapStorage storage = MapStorage.getInstance();
+        storage.enablePersistence(dir);
+        loadPoints();
+
+        // the snapshot can not be written over a directory
+        Path tmp = Files.createDirectories(dir.resolve("map.snapshot.tmp"));
+        Files.createFile(tmp.resolve("file"));
+        storage.compact();
+        for (int i = 0; i < 100 && storage.getPersistenceFailure() == null; i++) {
+            Thread.sleep(50);
+        }
+        assertTrue(storage.getPersistenceFailure() instanceof IOException);
+
+        // the log is still written, and the next compaction succeeds
+        Files.delete(tmp.resolve("file"));
+        Files.delete(tmp);
+        _mngr.addPoint(new Point("X"));
+        storage.compact();
+        for (int i = 0; i < 100 && storage.getPersistenceFailure() != null; i++) {
+            Thread.sleep(50);
+        }
+        assertNull(storage.getPersistenceFailure());
+    }
+
+
+
+
+
+    @Test
+    public void testZeroFilledTailIgnored()
+                    throws IOException, ExistingPointException, ExistingRouteException, PointNotFoundException {
+
+        Path dir = _folder.newFolder().toPath();
+        MapStorage storage = MapStorage.getInstance();
+        storage.enablePersistence(dir);
+        loadPoints();
+        _mngr.addRoute(A, B, 1, 2);
+        long version = storage.getVersion();
+        storage.disablePersistence();
+
+        // a crash can leave the end of a segment allocated but never written
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "map-*.wal")) {
+            for (Path segment : files) {
+                segments.add(segment);
+            }
+        }
+        Collections.sort(segments);
+        Files.write(segments.get(segments.size() - 1), new byte[16], StandardOpenOption.APPEND);
+
+        assertEquals(version, lastStoredVersion(dir));
+        restart(dir);
+        assertEquals(9, _mngr.getPoints().size());
+        assertEquals(2, _mngr.getRoute(A, B).getCost());
+
+        // the log goes on in a new segment, which is replayed after the torn one
+        _mngr.addRoute(B, C, 3, 4);
+        restart(dir);
+        assertEquals(4, _mngr.getRoute(B, C).getCost());
+    }
+
+
+
+
+
+    /**
+     * Recovers the log of the directory on its own
+     *
+     * @return The version of its last record
+     */
+    private static long lastStoredVersion(Path dir) throws IOException {
+
+        long[] last = new long[1];
+        try (WriteAheadLog log = new WriteAheadLog(dir, WriteAheadLog.DEFAULT_COMPACTION_THRESHOLD)) {
+            log.recover(new Replayer() {
+
+                @Override
+                public void load(MappedMap snapshot) {
+
+                    last[0] = snapshot.getVersion();
+                }
+
+
+
+
+
+                @Override
+                public void replay(long version, List<MapMutation> mutations) {
+
+                    last[0] = version;
+                }
+            });
+        }
+        return last[0];
+    }
+
+
+
+
+
+    @Test
+    public void testConcurrentWriters() throws IOException, InterruptedException {
+
+        Path dir = _folder.newFolder().toPath();
+        MapStorage.getInstance().enablePersistence(dir);
+
+        List<Thread> writers = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            final int writer = t;
+            writers.add(new Thread(() -> {
+                for (int i = 0; i < 50; i++) {
+                    MapStorage.getInstance().addPoint(new Point("W" + writer + "-" + i));
+                }
+            }));
+        }
+        for (Thread writer : writers) {
+            writer.start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+
+        restart(dir);
+        assertEquals(400, _mngr.getPoints().size());
+    }
+
+}
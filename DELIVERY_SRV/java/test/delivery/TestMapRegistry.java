@@ -0,0 +1,174 @@
+
+
+
+
+
+package delivery;
+
+
+
+
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import delivery.database.MapRegistry;
+import delivery.database.MapStorage;
+import delivery.entities.Point;
+import delivery.entities.Route;
+import delivery.exceptions.ExistingMapException;
+import delivery.exceptions.ExistingPointException;
+import delivery.exceptions.ExistingRouteException;
+import delivery.exceptions.MapNotFoundException;
+import delivery.exceptions.PointNotFoundException;
+import delivery.route.DeliveryController;
+
+
+
+
+
+public class TestMapRegistry extends InitTest {
+
+    private static final String EU = "eu-west";
+    private static final String US = "us_east";
+
+    @Rule
+    public TemporaryFolder      _folder = new TemporaryFolder();
+
+
+
+
+
+    @After
+    public void deleteMaps() throws IOException, MapNotFoundException {
+
+        MapRegistry registry = MapRegistry.getInstance();
+        for (String mapId : registry.getMapIds()) {
+            if (!MapRegistry.DEFAULT_MAP.equals(mapId)) {
+                registry.deleteMap(mapId);
+            }
+        }
+    }
+
+
+
+
+
+    @Test
+    public void testMapsAreIsolated()
+                    throws IOException, ExistingMapException, MapNotFoundException, ExistingPointException,
+                    ExistingRouteException, PointNotFoundException {
+
+        MapRegistry.getInstance().createMap(EU);
+        MapRegistry.getInstance().createMap(US);
+
+        DeliveryController eu = DeliveryController.getInstance(EU);
+        DeliveryController us = DeliveryController.getInstance(US);
+        assertSame(eu, DeliveryController.getInstance(EU));
+
+        loadPoints();
+        eu.addPoint(new Point(A));
+        eu.addPoint(new Point(B));
+        eu.addRoute(A, B, 1, 2);
+        us.addPoint(new Point(A));
+
+        assertEquals(9, _mngr.getPoints().size());
+        assertEquals(0, _mngr.getRoutes().size());
+        assertEquals(2, eu.getPoints().size());
+        assertEquals(new Route(new Point(A), new Point(B), 1, 2), eu.getRoute(A, B));
+        assertEquals(1, us.getPoints().size());
+        assertEquals(0, us.getRoutes().size());
+
+        us.clearMap();
+        assertEquals(2, eu.getPoints().size());
+        assertEquals(9, _mngr.getPoints().size());
+
+        assertTrue(MapRegistry.getInstance().getMap(EU).getMemoryUsage() > 0);
+        assertEquals(0, MapRegistry.getInstance().getMap(US).getMemoryUsage());
+    }
+
+
+
+
+
+    @Test
+    public void testCreateAndDeleteMap() throws IOException, ExistingMapException, MapNotFoundException {
+
+        MapRegistry registry = MapRegistry.getInstance();
+        registry.createMap(EU);
+        assertTrue(registry.getMapIds().contains(EU));
+        assertTrue(registry.getMapIds().contains(MapRegistry.DEFAULT_MAP));
+
+        try {
+            registry.createMap(EU);
+            fail("The map already exists");
+        } catch (ExistingMapException e) {
+            // expected
+        }
+
+        registry.deleteMap(EU);
+        assertNull(registry.getMap(EU));
+        try {
+            DeliveryController.getInstance(EU);
+            fail("The map was deleted");
+        } catch (MapNotFoundException e) {
+            // expected
+        }
+    }
+
+
+
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidMapId() throws IOException, ExistingMapException {
+
+        MapRegistry.getInstance().createMap("../etc");
+    }
+
+
+
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDeleteDefaultMap() throws IOException, MapNotFoundException {
+
+        MapRegistry.getInstance().deleteMap(MapRegistry.DEFAULT_MAP);
+    }
+
+
+
+
+
+    @Test
+    public void testStoredMapsAreRecovered() throws IOException, ExistingMapException, PointNotFoundException {
+
+        Path dir = _folder.newFolder().toPath();
+
+        MapRegistry registry = new MapRegistry(dir, null, false);
+        MapStorage eu = registry.createMap(EU);
+        eu.addPoint(new Point(A));
+        eu.addPoint(new Point(B));
+        eu.addRoute(new Route(new Point(A), new Point(B), 3, 4));
+        registry.getDefaultMap().addPoint(new Point(C));
+        registry.close();
+
+        registry = new MapRegistry(dir, null, false);
+        try {
+            assertEquals(2, registry.getMap(EU).getPoints().size());
+            assertEquals(1, registry.getMap(EU).getRoutes().size());
+            assertEquals(1, registry.getDefaultMap().getPoints().size());
+            assertTrue(registry.getDefaultMap().pointExists(new Point(C)));
+        } finally {
+            registry.close();
+        }
+    }
+
+}
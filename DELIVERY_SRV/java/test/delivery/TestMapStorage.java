@@ -0,0 +1,148 @@
+
+
+
+
+
+package delivery;
+
+
+
+
+
+import static org.junit.Assert.*;
+
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+import delivery.database.MapSnapshot;
+import delivery.database.MapStorage;
+import delivery.entities.Point;
+import delivery.entities.Route;
+import delivery.entities.RouteKey;
+import delivery.exceptions.PointNotFoundException;
+import delivery.exceptions.RouteNotFoundException;
+
+
+
+
+
+public class TestMapStorage extends InitTest {
+
+    private static final int POINTS = 500;
+
+
+
+
+
+    @Test
+    public void testManyPointsAndRoutes() throws PointNotFoundException, RouteNotFoundException {
+
+        MapStorage storage = MapStorage.getInstance();
+
+        for (int i = 0; i < POINTS; i++) {
+            assertTrue(storage.addPoint(new Point("P" + i)));
+        }
+        for (int i = 0; i < POINTS; i++) {
+            assertTrue(storage.addRoute(new Route(new Point("P" + i), new Point("P" + ((i + 1) % POINTS)), i, i)));
+        }
+        assertEquals(POINTS, storage.getPoints().size());
+        assertEquals(POINTS, storage.getRoutes().size());
+
+        // delete the even routes and update the odd ones
+        for (int i = 0; i < POINTS; i++) {
+            RouteKey key = new RouteKey(new Point("P" + i), new Point("P" + ((i + 1) % POINTS)));
+            if (i % 2 == 0) {
+                assertTrue(storage.delete(key));
+                assertFalse(storage.delete(key));
+            } else {
+                assertTrue(storage.updateRoute(new Route(key.getFromPoint(), key.getToPoint(), i * 2, i * 3)));
+            }
+        }
+
+        assertEquals(POINTS / 2, storage.getRoutes().size());
+        for (int i = 0; i < POINTS; i++) {
+            Route route = storage.getRoute(new RouteKey(new Point("P" + i), new Point("P" + ((i + 1) % POINTS))));
+            if (i % 2 == 0) {
+                assertNull(route);
+            } else {
+                assertEquals(i * 2, route.getTime());
+                assertEquals(i * 3, route.getCost());
+            }
+        }
+    }
+
+
+
+
+
+    @Test
+    public void testReadViewsAreNotImpactedByLaterChanges() throws PointNotFoundException {
+
+        MapStorage storage = MapStorage.getInstance();
+
+        storage.addPoint(new Point(A));
+        storage.addPoint(new Point(B));
+        storage.addRoute(new Route(new Point(A), new Point(B), 1, 2));
+
+        Set<Point> points = storage.getPoints();
+        Map<RouteKey, Route> routes = storage.getRoutes();
+
+        storage.addPoint(new Point(C));
+        storage.addRoute(new Route(new Point(B), new Point(C), 1, 2));
+        storage.clearMap();
+
+        assertEquals(2, points.size());
+        assertTrue(points.contains(new Point(A)));
+        assertFalse(points.contains(new Point(C)));
+        assertEquals(1, routes.size());
+        assertNotNull(routes.get(new RouteKey(new Point(A), new Point(B))));
+
+        assertEquals(0, storage.getPoints().size());
+        assertEquals(0, storage.getRoutes().size());
+    }
+
+
+
+
+
+    @Test
+    public void testSnapshotIsolation() throws PointNotFoundException {
+
+        MapStorage storage = MapStorage.getInstance();
+
+        storage.addPoint(new Point(A));
+        storage.addPoint(new Point(B));
+        storage.addRoute(new Route(new Point(A), new Point(B), 1, 2));
+
+        MapSnapshot snapshot = storage.snapshot();
+        long version = snapshot.getVersion();
+        assertEquals(version, storage.getVersion());
+
+        storage.clearMap();
+        storage.addPoint(new Point(C));
+
+        // the snapshot still holds the points and routes of its version
+        assertEquals(version, snapshot.getVersion());
+        assertEquals(2, snapshot.getPointCount());
+        assertEquals(1, snapshot.getRouteCount());
+        assertTrue(snapshot.pointExists(A));
+        assertFalse(snapshot.pointExists(C));
+        assertEquals(1, snapshot.getOutgoingRoutes(new Point(A)).size());
+
+        assertEquals(version + 2, storage.snapshot().getVersion());
+        assertEquals(1, storage.snapshot().getPointCount());
+    }
+
+
+
+
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testReadViewsAreUnmodifiable() {
+
+        MapStorage.getInstance().getPoints().add(new Point(A));
+    }
+
+}
@@ -0,0 +1,152 @@
+
+
+
+
+
+package delivery;
+
+
+
+
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import delivery.database.MapBatch;
+import delivery.database.MapChange;
+import delivery.database.MapChangeFeed;
+import delivery.database.MapImporter;
+import delivery.database.MapMutation;
+import delivery.database.MapStorage;
+import delivery.entities.Point;
+import delivery.entities.Route;
+import delivery.entities.RouteKey;
+import delivery.exceptions.ExistingPointException;
+import delivery.exceptions.ExistingRouteException;
+import delivery.exceptions.PointNotFoundException;
+import delivery.exceptions.RouteNotFoundException;
+
+
+
+
+
+public class TestMapSync extends InitTest {
+
+    @Test
+    public void testOnlyChangesApplied()
+                    throws IOException, ExistingPointException, ExistingRouteException, PointNotFoundException,
+                    RouteNotFoundException {
+
+        MapStorage storage = MapStorage.getInstance();
+        storage.sync(read("A\nB\nC\nD\n\nA,B,1,1\nB,C,2,2\nC,D,3,3\nD,A,4,4\nA,C,5,5\n"));
+        Route unchanged = storage.getRoute(new RouteKey(new Point(A), new Point(B)));
+        MapChangeFeed.Cursor changes = storage.getChangeFeed().cursor();
+
+        // D is deleted with its routes, E is added, B -> C is updated and A -> C deleted
+        MapBatch applied = storage.sync(read("A\nB\nC\nE\n\nA,B,1,1\nB,C,2,20\nC,E,6,6\n"));
+        assertEquals(5, applied.size());
+        assertCount(applied, MapMutation.Type.DELETE_ROUTE, 1);
+        assertCount(applied, MapMutation.Type.DELETE_POINT, 1);
+        assertCount(applied, MapMutation.Type.ADD_POINT, 1);
+        assertCount(applied, MapMutation.Type.ADD_ROUTE, 1);
+        assertCount(applied, MapMutation.Type.UPDATE_ROUTE, 1);
+
+        assertEquals(4, storage.getPoints().size());
+        assertEquals(3, storage.getRoutes().size());
+        assertFalse(storage.pointExists(new Point(D)));
+        assertEquals(20, storage.getRoute(new RouteKey(new Point(B), new Point(C))).getCost());
+        assertSame(unchanged, storage.getRoute(new RouteKey(new Point(A), new Point(B))));
+
+        // a single version, with only the changes
+        MapChange change = changes.poll();
+        assertEquals(applied.getMutations(), change.getMutations());
+        assertNull(changes.poll());
+    }
+
+
+
+
+
+    @Test
+    public void testSameMapNotPublished()
+                    throws IOException, ExistingPointException, ExistingRouteException, PointNotFoundException,
+                    RouteNotFoundException {
+
+        MapStorage storage = MapStorage.getInstance();
+        String map = "A\nB\n\nA,B,1,2\n";
+        storage.sync(read(map));
+        long version = storage.getVersion();
+
+        assertTrue(storage.sync(read(map)).isEmpty());
+        assertEquals(version, storage.getVersion());
+    }
+
+
+
+
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOnlyAdditions()
+                    throws ExistingPointException, ExistingRouteException, PointNotFoundException,
+                    RouteNotFoundException {
+
+        MapStorage.getInstance().sync(new MapBatch().clearMap());
+    }
+
+
+
+
+
+    @Test
+    public void testRoutesOfMissingPointsRejected()
+                    throws IOException, ExistingPointException, ExistingRouteException, PointNotFoundException,
+                    RouteNotFoundException {
+
+        MapStorage storage = MapStorage.getInstance();
+        storage.sync(read("A\nB\nC\n\nA,B,1,1\nB,C,2,2\n"));
+        long version = storage.getVersion();
+
+        // the files always have the points of their routes, but not all the batches
+        Point a = new Point(A);
+        Point b = new Point(B);
+        Point c = new Point(C);
+        MapBatch updated = new MapBatch().addPoint(a).addPoint(b).addRoute(new Route(a, b, 1, 1))
+                        .addRoute(new Route(b, c, 2, 3));
+        MapBatch added = new MapBatch().addPoint(a).addPoint(b).addPoint(c).addRoute(new Route(a, b, 1, 1))
+                        .addRoute(new Route(b, c, 2, 2)).addRoute(new Route(c, new Point(D), 4, 4));
+        for (MapBatch map : new MapBatch[] { updated, added }) {
+            try {
+                storage.sync(map);
+                fail("A route to a point missing from the map is rejected");
+            } catch (PointNotFoundException e) {
+                // expected
+            }
+        }
+        assertEquals(version, storage.getVersion());
+        assertEquals(2, storage.getRoutes().size());
+    }
+
+
+
+
+
+    private static MapBatch read(String map) throws IOException {
+
+        return new MapImporter().read(new ByteArrayInputStream(map.getBytes(StandardCharsets.UTF_8)), new MapBatch());
+    }
+
+
+
+
+
+    private static void assertCount(MapBatch batch, MapMutation.Type type, int count) {
+
+        assertEquals(type.toString(), count, batch.getMutations().stream().filter(m -> m.getType() == type).count());
+    }
+
+}
@@ -0,0 +1,136 @@
+
+
+
+
+
+package delivery;
+
+
+
+
+
+import static org.junit.Assert.*;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Test;
+
+import delivery.database.MapStorage;
+import delivery.entities.Point;
+import delivery.entities.Route;
+import delivery.exceptions.ExistingPointException;
+import delivery.exceptions.ExistingRouteException;
+import delivery.exceptions.PointNotFoundException;
+import delivery.exceptions.RouteNotFoundException;
+
+
+
+
+
+public class TestOffHeapMap extends InitTest {
+
+    @After
+    public void disableOffHeap() {
+
+        MapStorage.getInstance().disableOffHeap();
+    }
+
+
+
+
+
+    @Test
+    public void testQueriesOffHeap() throws ExistingPointException, ExistingRouteException, PointNotFoundException {
+
+        loadPoints();
+        _mngr.addRoute(A, C, 1, 20);
+        _mngr.addRoute(C, B, 1, 12);
+        _mngr.addRoute(A, E, 30, 5);
+        _mngr.addRoute(E, B, 3, 5);
+
+        MapStorage.getInstance().enableOffHeap(4);
+
+        assertEquals(9, _mngr.getPoints().size());
+        assertEquals(4, _mngr.getRoutes().size());
+        assertEquals(new Route(new Point(A), new Point(C), 1, 20), _mngr.getRoute(A, C));
+        assertEquals(2, _mngr.getOutgoingRoutes(A).size());
+        assertEquals(10, _mngr.getCheapestTrip(A, B).getTotalCost());
+    }
+
+
+
+
+
+    @Test
+    public void testChangesOverOffHeap()
+                    throws ExistingPointException, ExistingRouteException, PointNotFoundException,
+                    RouteNotFoundException {
+
+        loadPoints();
+        _mngr.addRoute(A, C, 1, 20);
+        _mngr.addRoute(C, B, 1, 12);
+        _mngr.addRoute(A, E, 30, 5);
+        _mngr.addRoute(E, B, 3, 5);
+
+        // large enough to keep all the changes of the test on the heap
+        MapStorage.getInstance().enableOffHeap(1000);
+
+        _mngr.updateRoute(A, C, 2, 30);
+        _mngr.deleteRoute(C, B);
+        _mngr.addPoint(new Point("X"));
+        _mngr.addRoute(A, "X", 1, 1);
+        _mngr.deletePoint(E);
+
+        assertEquals(9, _mngr.getPoints().size());
+        assertNull(_mngr.getPoint(E));
+        assertTrue(_mngr.getPoints().contains(new Point("X")));
+        assertEquals(2, _mngr.getRoutes().size());
+        assertEquals(30, _mngr.getRoute(A, C).getCost());
+        assertNull(_mngr.getRoute(C, B));
+        assertEquals(2, _mngr.getOutgoingRoutes(A).size());
+        assertTrue(_mngr.getIncomingRoutes(B).isEmpty());
+
+        Set<Route> routes = new HashSet<>(_mngr.getRoutes());
+        assertTrue(routes.contains(new Route(new Point(A), new Point(C), 2, 30)));
+        assertTrue(routes.contains(new Route(new Point(A), new Point("X"), 1, 1)));
+        assertFalse(routes.contains(new Route(new Point(A), new Point(E), 30, 5)));
+
+        // a deleted point can be added again, without its old routes
+        _mngr.addPoint(new Point(E));
+        assertNotNull(_mngr.getPoint(E));
+        assertTrue(_mngr.getOutgoingRoutes(E).isEmpty());
+        assertEquals(10, _mngr.getPoints().size());
+    }
+
+
+
+
+
+    @Test
+    public void testChangesMovedOffHeap()
+                    throws ExistingPointException, ExistingRouteException, PointNotFoundException,
+                    RouteNotFoundException {
+
+        MapStorage.getInstance().enableOffHeap(2);
+
+        loadPoints();
+        _mngr.addRoute(A, C, 1, 20);
+        _mngr.addRoute(C, B, 1, 12);
+        _mngr.addRoute(A, E, 30, 5);
+        _mngr.addRoute(E, B, 3, 5);
+        _mngr.deleteRoute(A, E);
+        _mngr.updateRoute(C, B, 2, 2);
+
+        assertEquals(9, _mngr.getPoints().size());
+        assertEquals(3, _mngr.getRoutes().size());
+        assertEquals(2, _mngr.getRoute(C, B).getCost());
+        assertEquals(22, _mngr.getCheapestTrip(A, B).getTotalCost());
+
+        _mngr.clearMap();
+        assertEquals(0, _mngr.getPoints().size());
+        assertEquals(0, _mngr.getRoutes().size());
+    }
+
+}
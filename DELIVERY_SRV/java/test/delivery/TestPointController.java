@@ -9,12 +9,14 @@ package delivery;
 
 
 
-import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.*;
 
 import org.junit.Test;
 
 import delivery.entities.Point;
 import delivery.exceptions.ExistingPointException;
+import delivery.exceptions.ExistingRouteException;
+import delivery.exceptions.PointNotFoundException;
 
 
 
@@ -64,4 +66,56 @@ public class TestPointController extends InitTest {
         _mngr.addPoint(pointA);
 
     }
+
+
+
+
+
+    @Test
+    public void testNeighbourRoutes() throws ExistingPointException, ExistingRouteException, PointNotFoundException {
+
+        loadPoints();
+        _mngr.addRoute(A, B, 1, 1);
+        _mngr.addRoute(A, C, 1, 1);
+        _mngr.addRoute(D, A, 1, 1);
+
+        assertEquals(2, _mngr.getOutgoingRoutes(A).size());
+        assertEquals(1, _mngr.getIncomingRoutes(A).size());
+        assertTrue(_mngr.getOutgoingRoutes(A).contains(_mngr.getRoute(A, C)));
+        assertTrue(_mngr.getIncomingRoutes(A).contains(_mngr.getRoute(D, A)));
+        assertEquals(0, _mngr.getOutgoingRoutes(B).size());
+        assertEquals(1, _mngr.getIncomingRoutes(B).size());
+    }
+
+
+
+
+
+    @Test
+    public void testDeletePoint() throws ExistingPointException, ExistingRouteException, PointNotFoundException {
+
+        loadPoints();
+        _mngr.addRoute(A, B, 1, 1);
+        _mngr.addRoute(C, A, 1, 1);
+        _mngr.addRoute(B, C, 1, 1);
+
+        // delete the point and assert that its routes were deleted as well
+        _mngr.deletePoint(A);
+
+        assertNull(_mngr.getPoint(A));
+        assertEquals(1, _mngr.getRoutes().size());
+        assertEquals(0, _mngr.getIncomingRoutes(B).size());
+        assertEquals(0, _mngr.getOutgoingRoutes(C).size());
+        assertEquals(1, _mngr.getOutgoingRoutes(B).size());
+    }
+
+
+
+
+
+    @Test(expected = PointNotFoundException.class)
+    public void testDeleteNonExistingPoint() throws PointNotFoundException {
+
+        _mngr.deletePoint("X");
+    }
 }
@@ -0,0 +1,231 @@
+
+
+
+
+
+package delivery;
+
+
+
+
+
+import static org.junit.Assert.*;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.BindException;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import delivery.database.MapChange;
+import delivery.database.MapChangeFeed;
+import delivery.database.MapRegistry;
+import delivery.database.MapStorage;
+import delivery.database.replication.ReplicationFollower;
+import delivery.database.replication.ReplicationLeader;
+import delivery.entities.Point;
+import delivery.entities.Route;
+import delivery.entities.RouteKey;
+import delivery.exceptions.PointNotFoundException;
+import delivery.exceptions.ReadOnlyMapException;
+import delivery.exceptions.RouteNotFoundException;
+
+
+
+
+
+/**
+ * Replicates between two registries of the same JVM, over a TCP connection on localhost
+ */
+public class TestReplication extends InitTest {
+
+    private static final long TIMEOUT = 10;
+
+    @Rule
+    public TemporaryFolder    _folder = new TemporaryFolder();
+
+    private MapRegistry       _leader;
+    private MapRegistry       _follower;
+
+
+
+
+
+    @Before
+    public void createRegistries() throws IOException {
+
+        _leader = new MapRegistry(null, null, false);
+        _follower = new MapRegistry(null, null, false);
+    }
+
+
+
+
+
+    @After
+    public void closeRegistries() throws IOException {
+
+        _follower.close();
+        _leader.close();
+    }
+
+
+
+
+
+    @Test
+    public void testFollowerReplicatesLeader()
+                    throws IOException, PointNotFoundException, RouteNotFoundException, InterruptedException {
+
+        MapStorage leader = _leader.getDefaultMap();
+        leader.addPoint(new Point(A));
+        leader.addPoint(new Point(B));
+        leader.addRoute(new Route(new Point(A), new Point(B), 1, 2));
+
+        int port = _leader.startLeader(0).getPort();
+        _follower.follow("localhost", port);
+        ReplicationFollower follower = _follower.getFollower(MapRegistry.DEFAULT_MAP);
+        MapStorage replica = _follower.getDefaultMap();
+
+        // the current map is received first
+        assertTrue(follower.awaitVersion(leader.getVersion(), TIMEOUT, TimeUnit.SECONDS));
+        assertEquals(leader.getPoints(), replica.getPoints());
+        assertEquals(leader.getRoutes(), replica.getRoutes());
+
+        // then the changes
+        leader.addPoint(new Point(C));
+        leader.addRoute(new Route(new Point(B), new Point(C), 3, 4));
+        leader.updateRoute(new Route(new Point(A), new Point(B), 5, 6));
+        leader.deletePoint(new Point(A));
+        assertTrue(follower.awaitVersion(leader.getVersion(), TIMEOUT, TimeUnit.SECONDS));
+        assertEquals(leader.getPoints(), replica.getPoints());
+        assertEquals(leader.getRoutes(), replica.getRoutes());
+        assertEquals(leader.getVersion(), replica.getVersion());
+        assertNull(replica.getRoute(new RouteKey(new Point(A), new Point(B))));
+
+        assertTrue(follower.isConnected());
+        assertEquals(0, follower.getLag());
+        assertEquals(1, _leader.getLeader().getFollowerCount());
+
+        try {
+            replica.addPoint(new Point(D));
+            fail("A replica is only changed by its leader");
+        } catch (ReadOnlyMapException e) {
+            // expected
+        }
+    }
+
+
+
+
+
+    @Test
+    public void testFollowerResumesFromLastVersion() throws IOException, InterruptedException {
+
+        MapStorage leader = _leader.getDefaultMap();
+        _follower.follow("localhost", _leader.startLeader(0).getPort());
+        ReplicationFollower follower = _follower.getFollower(MapRegistry.DEFAULT_MAP);
+        leader.addPoint(new Point(A));
+        assertTrue(follower.awaitVersion(leader.getVersion(), TIMEOUT, TimeUnit.SECONDS));
+        MapChangeFeed.Cursor replicated = _follower.getDefaultMap().getChangeFeed().cursor();
+
+        // the changes made meanwhile are sent when the follower reconnects, without the whole map
+        follower.reconnect();
+        leader.addPoint(new Point(B));
+        leader.addPoint(new Point(C));
+        assertTrue(follower.awaitVersion(leader.getVersion(), TIMEOUT, TimeUnit.SECONDS));
+        for (int i = 0; i < 2; i++) {
+            MapChange change = replicated.poll();
+            assertFalse(change.isReload());
+            assertEquals(1, change.getMutations().size());
+        }
+        assertNull(replicated.poll());
+        assertEquals(leader.getPoints(), _follower.getDefaultMap().getPoints());
+    }
+
+
+
+
+
+    @Test
+    public void testRestartedLeaderSendsMap() throws IOException, InterruptedException {
+
+        MapStorage leader = _leader.getDefaultMap();
+        leader.addPoint(new Point(A));
+        leader.addPoint(new Point(B));
+        int port = _leader.startLeader(0).getPort();
+        _follower.follow("localhost", port);
+        ReplicationFollower follower = _follower.getFollower(MapRegistry.DEFAULT_MAP);
+        assertTrue(follower.awaitVersion(leader.getVersion(), TIMEOUT, TimeUnit.SECONDS));
+
+        // a leader restarted without persistence reaches the same version with another map
+        long version = leader.getVersion();
+        _leader.close();
+        _leader = new MapRegistry(null, null, false);
+        MapStorage restarted = _leader.getDefaultMap();
+        restarted.addPoint(new Point(C));
+        restarted.addPoint(new Point(D));
+        assertEquals(version, restarted.getVersion());
+        // the port is free again once the follower notices that the leader is gone
+        for (int i = 0; _leader.getLeader() == null; i++) {
+            try {
+                _leader.startLeader(port);
+            } catch (BindException e) {
+                if (i == 100) {
+                    throw e;
+                }
+                Thread.sleep(50);
+            }
+        }
+
+        MapStorage replica = _follower.getDefaultMap();
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT);
+        while (!restarted.getPoints().equals(replica.getPoints()) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(restarted.getPoints(), replica.getPoints());
+        assertNull(replica.getPoint(A));
+    }
+
+
+
+
+
+    @Test
+    public void testLeaderFailureRecorded() throws IOException, InterruptedException {
+
+        ReplicationLeader leader = _leader.startLeader(0);
+        assertNull(leader.getFailure());
+
+        // a follower that disconnects in the middle of its hello
+        try (Socket socket = new Socket("localhost", leader.getPort())) {
+            socket.getOutputStream().write(new byte[] { 0x44, 0x4D });
+        }
+        for (int i = 0; i < 100 && leader.getFailure() == null; i++) {
+            Thread.sleep(50);
+        }
+        assertTrue(leader.getFailure() instanceof EOFException);
+    }
+
+
+
+
+
+    @Test(expected = IllegalStateException.class)
+    public void testPersistedMapsCanNotFollow() throws IOException {
+
+        MapRegistry persisted = new MapRegistry(_folder.newFolder().toPath(), null, false);
+        try {
+            persisted.follow("localhost", 1);
+        } finally {
+            persisted.close();
+        }
+    }
+
+}
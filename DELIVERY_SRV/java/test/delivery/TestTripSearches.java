@@ -0,0 +1,188 @@
+
+
+
+
+
+package delivery;
+
+
+
+
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import delivery.database.MapSnapshot;
+import delivery.entities.Point;
+import delivery.exceptions.ExistingPointException;
+import delivery.exceptions.ExistingRouteException;
+import delivery.exceptions.PointNotFoundException;
+import delivery.exceptions.RouteNotFoundException;
+import delivery.route.entities.Trip;
+
+
+
+
+
+public class TestTripSearches extends InitTest {
+
+    private static final String[] POINTS = { A, B, C, D, E, F, G, H, I };
+
+
+
+
+
+    @Test
+    public void testIdenticalSearchesShared() throws Exception {
+
+        loadCompleteMap();
+        MapSnapshot map = _mngr.snapshot();
+
+        // the searches start together, so they overlap the first one
+        int searches = 8;
+        CyclicBarrier start = new CyclicBarrier(searches);
+        ExecutorService executor = Executors.newFixedThreadPool(searches);
+        try {
+            List<Future<List<Trip>>> results = new ArrayList<>();
+            for (int i = 0; i < searches; i++) {
+                results.add(executor.submit(new Callable<List<Trip>>() {
+
+                    @Override
+                    public List<Trip> call() throws Exception {
+
+                        start.await();
+                        return _mngr.getAllTripRoutes(map, A, B);
+                    }
+                }));
+            }
+            List<Trip> first = results.get(0).get();
+            for (Future<List<Trip>> result : results) {
+                assertSame(first, result.get());
+            }
+
+            // a search made once the others are done is made again
+            List<Trip> again = _mngr.getAllTripRoutes(map, A, B);
+            assertNotSame(first, again);
+            assertEquals(first.size(), again.size());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+
+
+
+
+    @Test
+    public void testDifferentSearchesNotShared()
+                    throws ExistingPointException, ExistingRouteException, PointNotFoundException,
+                    RouteNotFoundException {
+
+        loadCompleteMap();
+        MapSnapshot map = _mngr.snapshot();
+        List<Trip> trips = _mngr.getAllTripRoutes(map, A, B);
+
+        _mngr.deleteRoute(A, C);
+        assertTrue(_mngr.getAllTripRoutes(A, B).size() < trips.size());
+        assertEquals(trips.size(), _mngr.getAllTripRoutes(map, A, B).size());
+        try {
+            _mngr.getAllTripRoutes(map, A, "X");
+            fail("The point X does not exist");
+        } catch (PointNotFoundException e) {
+            // expected
+        }
+    }
+
+
+
+
+
+    @Test
+    public void testInterruptedSearchAnswersWaiters() throws Exception {
+
+        loadCompleteMap();
+        // one more point, so that the search lasts long enough to be waited for
+        _mngr.addPoint(new Point("J"));
+        for (String p : POINTS) {
+            _mngr.addRoute(p, "J", 1, 1);
+            _mngr.addRoute("J", p, 1, 1);
+        }
+        MapSnapshot map = _mngr.snapshot();
+
+        AtomicReference<Throwable> leaderFailure = new AtomicReference<>();
+        Thread leader = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+
+                try {
+                    _mngr.getAllTripRoutes(map, A, B);
+                } catch (Throwable e) {
+                    leaderFailure.set(e);
+                }
+            }
+        });
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            leader.start();
+            Thread.sleep(100);
+            List<Future<List<Trip>>> waiters = new ArrayList<>();
+            for (int i = 0; i < 3; i++) {
+                waiters.add(executor.submit(new Callable<List<Trip>>() {
+
+                    @Override
+                    public List<Trip> call() throws Exception {
+
+                        return _mngr.getAllTripRoutes(map, A, B);
+                    }
+                }));
+            }
+            Thread.sleep(100);
+
+            // as a bulkhead does when the request of the leader times out
+            leader.interrupt();
+            leader.join();
+            assertTrue(leaderFailure.get() instanceof CancellationException);
+
+            // the waiters still get the trips that were found
+            List<Trip> first = waiters.get(0).get();
+            assertFalse(first.isEmpty());
+            for (Future<List<Trip>> waiter : waiters) {
+                assertSame(first, waiter.get());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+
+
+
+
+    /**
+     * Load a route between all the points, in both directions
+     */
+    private void loadCompleteMap() throws ExistingPointException, ExistingRouteException, PointNotFoundException {
+
+        loadPoints();
+        for (int i = 0; i < POINTS.length; i++) {
+            for (int j = 0; j < POINTS.length; j++) {
+                if (i != j) {
+                    _mngr.addRoute(POINTS[i], POINTS[j], i + j + 1, Math.abs(i - j));
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,940 @@
+
+
+
+
+
+package ws.rest;
+
+
+
+
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+
+
+
+
+/***************************************************************************************
+ *
+ * Isolates a class of requests from the others: each class has its own concurrency limit and bounded admission queue,
+ * so a burst of expensive requests can neither take all the threads of the container nor delay the cheap ones. The
+ * requests beyond the limit and the queue are rejected at once with <code>429 Too Many Requests</code>, and the ones
+ * that wait longer than a timeout are answered with <code>503 Service Unavailable</code>, both with a
+ * <code>Retry-After</code>.
+ *
+ * The expensive computations run on a pool of threads of their own. JAX-RS 1.1 has no asynchronous responses, so the
+ * request thread waits for the computation: the number of the request threads held by the computations is bounded by
+ * the size of the pool and of its queue. A computation that times out is interrupted, but keeps its thread of the pool
+ * until it completes when it does not check interrupts. A streamed response is written on the pool, through a pipe of
+ * a few chunks that the request thread sends as they come, so it is never held as a whole. The cheap requests run on
+ * the request thread, once admitted by a semaphore, which saves the switch to another thread; the permit of a
+ * streamed response is held until it is written.
+ *
+ * The bulkhead of a given name is configured by the system properties <code>delivery.&lt;name&gt;.threads</code> (or
+ * <code>.concurrency</code> without a pool), <code>delivery.&lt;name&gt;.queue</code>,
+ * <code>delivery.&lt;name&gt;.timeout</code> (in milliseconds) and <code>delivery.&lt;name&gt;.retry-after</code> (in
+ * seconds). Each bulkhead counts its requests, and the latency of the admitted ones, from their arrival.
+ *
+ ***************************************************************************************/
+final class Bulkhead {
+
+    /**
+     * The lookups of a Map, e.g. a Route or the whole Map
+     */
+    static final String                       LOOKUPS             = "lookups";
+
+    /**
+     * The changes of a Map
+     */
+    static final String                       MUTATIONS           = "mutations";
+
+    /**
+     * The fastest and cheapest trips
+     */
+    static final String                       TRIPS               = "trips";
+
+    /**
+     * The enumeration of all the trips between two points
+     */
+    static final String                       ALL_TRIPS           = "all-trips";
+
+    static final int                          TOO_MANY_REQUESTS   = 429;
+
+    static final long                         DEFAULT_TIMEOUT     = 30000;
+    static final int                          DEFAULT_RETRY_AFTER = 1;
+
+    private static final String               RETRY_AFTER         = "Retry-After";
+
+    // the latencies are counted in buckets of powers of 2 microseconds, up to more than an hour
+    private static final int                  LATENCY_BUCKETS     = 33;
+
+    // the pipe of a streamed response written on a pool holds up to 16 chunks of 8 KB
+    private static final int                  PIPE_CHUNKS         = 16;
+    private static final int                  CHUNK_SIZE          = 8192;
+
+    // the last chunks of a response in a pipe, compared by identity
+    private static final byte[]               END                 = new byte[0];
+    private static final byte[]               FAILED              = new byte[0];
+
+    private static final Map<String, Bulkhead> _bulkheads;
+
+    static {
+        int processors = Runtime.getRuntime().availableProcessors();
+        Map<String, Bulkhead> bulkheads = new LinkedHashMap<>();
+        bulkheads.put(LOOKUPS, new Bulkhead(LOOKUPS, false, 64, 64));
+        bulkheads.put(MUTATIONS, new Bulkhead(MUTATIONS, false, 16, 64));
+        bulkheads.put(TRIPS, new Bulkhead(TRIPS, true, processors, 32));
+        bulkheads.put(ALL_TRIPS, new Bulkhead(ALL_TRIPS, true, Math.max(1, processors / 2), 8));
+        _bulkheads = Collections.unmodifiableMap(bulkheads);
+    }
+
+    private final String                      _name;
+    private final int                         _concurrency;
+    private final int                         _queue;
+    private final long                        _timeout;
+    private final int                         _retryAfter;
+
+    // the pool of the computations, or null when they run on the request thread once they hold a permit
+    private final ThreadPoolExecutor          _executor;
+    private final Semaphore                   _permits;
+    private final AtomicInteger               _waiting            = new AtomicInteger();
+
+    private final AtomicLong                  _completed          = new AtomicLong();
+    private final AtomicLong                  _rejected           = new AtomicLong();
+    private final AtomicLong                  _timedOut           = new AtomicLong();
+    private final AtomicLong                  _totalMicros        = new AtomicLong();
+    private final AtomicLong                  _maxMicros          = new AtomicLong();
+    private final AtomicLongArray             _latencies          = new AtomicLongArray(LATENCY_BUCKETS);
+
+
+
+
+
+    /**
+     * @param pooled
+     *            Whether the requests run on a pool of threads of their own
+     * @param concurrency
+     *            The default number of threads of the pool, or of requests that run at once without a pool
+     * @param queue
+     *            The default number of requests that wait to run, beyond which they are rejected
+     */
+    private Bulkhead(String name, boolean pooled, int concurrency, int queue) {
+
+        _name = name;
+        _concurrency = Integer.getInteger(property(pooled ? "threads" : "concurrency"), concurrency);
+        _queue = Integer.getInteger(property("queue"), queue);
+        _timeout = Long.getLong(property("timeout"), DEFAULT_TIMEOUT);
+        _retryAfter = Integer.getInteger(property("retry-after"), DEFAULT_RETRY_AFTER);
+
+        if (pooled) {
+            _executor = new ThreadPoolExecutor(_concurrency, _concurrency, 0, TimeUnit.MILLISECONDS,
+                                               new ArrayBlockingQueue<Runnable>(_queue),
+                                               new PoolThreads("delivery-" + name + "-"));
+            _permits = null;
+        } else {
+            _executor = null;
+            _permits = new Semaphore(_concurrency);
+        }
+    }
+
+
+
+
+
+    private String property(String setting) {
+
+        return "delivery." + _name + "." + setting;
+    }
+
+
+
+
+
+    /**
+     * Returns the bulkhead of the given name
+     *
+     * @throws IllegalArgumentException
+     *             When there is no bulkhead of that name
+     */
+    static Bulkhead get(String name) {
+
+        Bulkhead bulkhead = _bulkheads.get(name);
+        if (bulkhead == null) {
+            throw new IllegalArgumentException("Unknown bulkhead: " + name);
+        }
+        return bulkhead;
+    }
+
+
+
+
+
+    /**
+     * Returns all the bulkheads
+     */
+    static Collection<Bulkhead> all() {
+
+        return _bulkheads.values();
+    }
+
+
+
+
+
+    /**
+     * Runs a request once admitted, on the pool or on the current thread, and waits for its response
+     *
+     * @return The response of the request, or <code>429</code> when the queue is full, or <code>503</code> when it
+     *         does not complete within the timeout, on the pool, or is not admitted within the timeout, without a pool.
+     *         A streamed response holds its thread of the pool, or its permit without a pool, until it is written, or
+     *         given to {@link #discard(Response)}.
+     */
+    Response call(Callable<Response> request) {
+
+        return _executor != null ? submit(request) : acquire(request);
+    }
+
+
+
+
+
+    private Response submit(final Callable<Response> request) {
+
+        final long start = System.nanoTime();
+        final CompletableFuture<Response> answer = new CompletableFuture<>();
+        Future<?> future;
+        try {
+            future = _executor.submit(new Runnable() {
+
+                @Override
+                public void run() {
+
+                    Response response;
+                    try {
+                        response = request.call();
+                    } catch (Throwable t) {
+                        answer.completeExceptionally(t);
+                        return;
+                    }
+                    if (response == null || !(response.getEntity() instanceof StreamingOutput)) {
+                        answer.complete(response);
+                        return;
+                    }
+                    // the thread of the pool is held until the response is written
+                    Pipe pipe = new Pipe();
+                    answer.complete(Response.fromResponse(response).entity(new PipedOutput(pipe)).build());
+                    pipe.fill((StreamingOutput) response.getEntity());
+                    completed(start);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            return rejected();
+        }
+
+        try {
+            Response response = answer.get(_timeout, TimeUnit.MILLISECONDS);
+            if (response == null || !(response.getEntity() instanceof PipedOutput)) {
+                completed(start);
+            }
+            return response;
+        } catch (TimeoutException e) {
+            abandon(future, answer);
+            return timedOut("The " + _name + " request did not complete in " + _timeout + " ms, try again later");
+        } catch (InterruptedException e) {
+            abandon(future, answer);
+            Thread.currentThread().interrupt();
+            return timedOut("The request was interrupted");
+        } catch (ExecutionException e) {
+            completed(start);
+            if (e.getCause() instanceof CancellationException) {
+                // e.g. a trip search interrupted by the timeout of an earlier request
+                return timedOut(e.getCause().getMessage() + ", try again later");
+            }
+            throw unchecked(e.getCause());
+        }
+    }
+
+
+
+
+
+    /**
+     * Interrupts a request of the pool that is not waited for any more, and discards its response if it comes anyway
+     */
+    private static void abandon(Future<?> future, CompletableFuture<Response> answer) {
+
+        future.cancel(true);
+        answer.thenAccept(new Consumer<Response>() {
+
+            @Override
+            public void accept(Response response) {
+
+                discard(response);
+            }
+        });
+    }
+
+
+
+
+
+    private Response acquire(Callable<Response> request) {
+
+        long start = System.nanoTime();
+        if (!_permits.tryAcquire()) {
+            if (_waiting.incrementAndGet() > _queue) {
+                _waiting.decrementAndGet();
+                return rejected();
+            }
+            try {
+                if (!_permits.tryAcquire(_timeout, TimeUnit.MILLISECONDS)) {
+                    return timedOut("The " + _name + " request was not admitted in " + _timeout
+                                    + " ms, try again later");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return timedOut("The request was interrupted");
+            } finally {
+                _waiting.decrementAndGet();
+            }
+        }
+
+        boolean streamed = false;
+        try {
+            Response response = request.call();
+            if (response != null && response.getEntity() instanceof StreamingOutput) {
+                streamed = true;
+                StreamingOutput output = new PermitOutput((StreamingOutput) response.getEntity(), start);
+                return Response.fromResponse(response).entity(output).build();
+            }
+            return response;
+        } catch (Exception e) {
+            throw unchecked(e);
+        } finally {
+            if (!streamed) {
+                release(start);
+            }
+        }
+    }
+
+
+
+
+
+    private void release(long start) {
+
+        _permits.release();
+        completed(start);
+    }
+
+
+
+
+
+    /**
+     * Releases the place held in its bulkhead by a streamed response of {@link #call(Callable)} that will not be
+     * written, e.g. when its request fails once it is answered. Does nothing for the other responses, or once the
+     * response is written.
+     */
+    static void discard(Response response) {
+
+        if (response != null && response.getEntity() instanceof HeldOutput) {
+            ((HeldOutput) response.getEntity()).release();
+        }
+    }
+
+
+
+
+
+    private static RuntimeException unchecked(Throwable t) {
+
+        if (t instanceof RuntimeException) {
+            return (RuntimeException) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        return new IllegalStateException(t);
+    }
+
+
+
+
+
+    private Response rejected() {
+
+        _rejected.incrementAndGet();
+        return overloaded(TOO_MANY_REQUESTS, "Too many " + _name + " requests, try again later");
+    }
+
+
+
+
+
+    private Response timedOut(String message) {
+
+        _timedOut.incrementAndGet();
+        return overloaded(Response.Status.SERVICE_UNAVAILABLE.getStatusCode(), message);
+    }
+
+
+
+
+
+    private Response overloaded(int status, String message) {
+
+        return Response.status(status).header(RETRY_AFTER, _retryAfter).entity(message).build();
+    }
+
+
+
+
+
+    private void completed(long start) {
+
+        long micros = Math.max(1, (System.nanoTime() - start) / 1000);
+        _completed.incrementAndGet();
+        _totalMicros.addAndGet(micros);
+        long max = _maxMicros.get();
+        while (micros > max && !_maxMicros.compareAndSet(max, micros)) {
+            max = _maxMicros.get();
+        }
+        _latencies.incrementAndGet(Math.min(LATENCY_BUCKETS - 1, 63 - Long.numberOfLeadingZeros(micros)));
+    }
+
+
+
+
+
+    String getName() {
+
+        return _name;
+    }
+
+
+
+
+
+    /**
+     * Returns whether the requests run on a pool of threads of their own
+     */
+    boolean isPooled() {
+
+        return _executor != null;
+    }
+
+
+
+
+
+    /**
+     * Returns the number of requests that can run at once: the threads of the pool, or the permits without a pool
+     */
+    int getConcurrency() {
+
+        return _concurrency;
+    }
+
+
+
+
+
+    /**
+     * Returns the number of requests that can wait to run
+     */
+    int getQueue() {
+
+        return _queue;
+    }
+
+
+
+
+
+    /**
+     * Returns the number of requests running
+     */
+    int getActive() {
+
+        return _executor != null ? _executor.getActiveCount() : _concurrency - _permits.availablePermits();
+    }
+
+
+
+
+
+    /**
+     * Returns the number of requests waiting to run
+     */
+    int getWaiting() {
+
+        return _executor != null ? _executor.getQueue().size() : _waiting.get();
+    }
+
+
+
+
+
+    /**
+     * Returns the number of requests that completed, with their response
+     */
+    long getCompleted() {
+
+        return _completed.get();
+    }
+
+
+
+
+
+    /**
+     * Returns the number of requests rejected with 429, since the queue was full
+     */
+    long getRejected() {
+
+        return _rejected.get();
+    }
+
+
+
+
+
+    /**
+     * Returns the number of requests answered with 503, since they did not complete (or were not admitted) in time
+     */
+    long getTimedOut() {
+
+        return _timedOut.get();
+    }
+
+
+
+
+
+    /**
+     * Returns the mean latency of the completed requests, in milliseconds
+     */
+    double getMeanMillis() {
+
+        long completed = _completed.get();
+        return completed == 0 ? 0 : _totalMicros.get() / 1000.0 / completed;
+    }
+
+
+
+
+
+    long getMaxMillis() {
+
+        return _maxMicros.get() / 1000;
+    }
+
+
+
+
+
+    /**
+     * Returns an upper bound of the latency under which the given fraction of the completed requests completed, in
+     * milliseconds, within a factor of 2, e.g. 0.99 for the 99th percentile
+     */
+    double getPercentileMillis(double fraction) {
+
+        long count = 0;
+        long[] buckets = new long[LATENCY_BUCKETS];
+        for (int i = 0; i < LATENCY_BUCKETS; i++) {
+            buckets[i] = _latencies.get(i);
+            count += buckets[i];
+        }
+        long rank = (long) Math.ceil(fraction * count);
+        long seen = 0;
+        for (int i = 0; i < LATENCY_BUCKETS; i++) {
+            seen += buckets[i];
+            if (seen >= rank && seen > 0) {
+                // the bucket i holds the latencies in [2^i, 2^(i + 1)) microseconds
+                return Math.min(1L << (i + 1), _maxMicros.get()) / 1000.0;
+            }
+        }
+        return 0;
+    }
+
+
+
+
+
+    /**
+     * A streamed response that holds the place of its request in the bulkhead until it is written, or discarded
+     */
+    private abstract static class HeldOutput implements StreamingOutput {
+
+        private final AtomicBoolean _released = new AtomicBoolean();
+
+
+
+
+
+        @Override
+        public final void write(OutputStream out) throws IOException {
+
+            try {
+                copy(out);
+            } finally {
+                release();
+            }
+        }
+
+
+
+
+
+        final void release() {
+
+            if (_released.compareAndSet(false, true)) {
+                free();
+            }
+        }
+
+
+
+
+
+        abstract void copy(OutputStream out) throws IOException;
+
+
+
+
+
+        /**
+         * Gives back the place of the request, once
+         */
+        abstract void free();
+    }
+
+
+
+
+
+    /**
+     * A streamed response written on the request thread, which holds the permit of its request
+     */
+    private final class PermitOutput extends HeldOutput {
+
+        private final StreamingOutput _output;
+        private final long            _start;
+
+
+
+
+
+        PermitOutput(StreamingOutput output, long start) {
+
+            _output = output;
+            _start = start;
+        }
+
+
+
+
+
+        @Override
+        void copy(OutputStream out) throws IOException {
+
+            _output.write(out);
+        }
+
+
+
+
+
+        @Override
+        void free() {
+
+            Bulkhead.this.release(_start);
+        }
+    }
+
+
+
+
+
+    /**
+     * A streamed response written on the pool, which the request thread sends as it comes out of the pipe
+     */
+    private static final class PipedOutput extends HeldOutput {
+
+        private final Pipe _pipe;
+
+
+
+
+
+        PipedOutput(Pipe pipe) {
+
+            _pipe = pipe;
+        }
+
+
+
+
+
+        @Override
+        void copy(OutputStream out) throws IOException {
+
+            _pipe.drain(out);
+        }
+
+
+
+
+
+        @Override
+        void free() {
+
+            // the thread of the pool stops writing
+            _pipe.close();
+        }
+    }
+
+
+
+
+
+    /**
+     * Carries a response from the thread of the pool that writes it to the request thread that sends it, a chunk at a
+     * time: the writer waits while the pipe is full, up to the timeout of the bulkhead, e.g. when the response is
+     * never sent, and stops once the pipe is closed by the reader.
+     */
+    private final class Pipe {
+
+        private final BlockingQueue<byte[]> _chunks = new ArrayBlockingQueue<>(PIPE_CHUNKS);
+        private volatile boolean            _closed;
+        private volatile Throwable          _failure;
+
+
+
+
+
+        /**
+         * Writes the response in the pipe, on the thread of the pool
+         */
+        void fill(StreamingOutput output) {
+
+            Sink sink = new Sink();
+            try {
+                output.write(sink);
+                // not when the writing fails, which would end a partial response
+                sink.close();
+            } catch (IOException | RuntimeException | Error e) {
+                _failure = e;
+                try {
+                    put(FAILED);
+                } catch (IOException unread) {
+                    // the response is not sent any more
+                }
+            }
+        }
+
+
+
+
+
+        /**
+         * Sends the response out of the pipe, on the request thread
+         */
+        void drain(OutputStream out) throws IOException {
+
+            while (true) {
+                if (_closed) {
+                    throw new IOException("The " + _name + " response was discarded");
+                }
+                byte[] chunk;
+                try {
+                    chunk = _chunks.poll(_timeout, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for the response");
+                }
+                if (chunk == null) {
+                    throw new IOException("The " + _name + " response was not written in " + _timeout + " ms");
+                }
+                if (chunk == END) {
+                    return;
+                }
+                if (chunk == FAILED) {
+                    throw new IOException("Unable to write the " + _name + " response", _failure);
+                }
+                out.write(chunk);
+            }
+        }
+
+
+
+
+
+        void close() {
+
+            _closed = true;
+            // wakes up the writer waiting for room
+            _chunks.clear();
+        }
+
+
+
+
+
+        private void put(byte[] chunk) throws IOException {
+
+            try {
+                if (_closed || !_chunks.offer(chunk, _timeout, TimeUnit.MILLISECONDS)) {
+                    throw new IOException("The " + _name + " response is not read");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while writing the response");
+            }
+            if (_closed) {
+                // closed while waiting for room
+                throw new IOException("The " + _name + " response is not read");
+            }
+        }
+
+
+
+
+
+        /**
+         * The end of the pipe written by the pool, which puts the bytes in the pipe by chunks
+         */
+        private final class Sink extends OutputStream {
+
+            private byte[]  _chunk = new byte[CHUNK_SIZE];
+            private int     _length;
+            private boolean _ended;
+
+
+
+
+
+            @Override
+            public void write(int b) throws IOException {
+
+                if (_length == _chunk.length) {
+                    flush();
+                }
+                _chunk[_length++] = (byte) b;
+            }
+
+
+
+
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+
+                while (len > 0) {
+                    if (_length == _chunk.length) {
+                        flush();
+                    }
+                    int n = Math.min(len, _chunk.length - _length);
+                    System.arraycopy(b, off, _chunk, _length, n);
+                    _length += n;
+                    off += n;
+                    len -= n;
+                }
+            }
+
+
+
+
+
+            @Override
+            public void flush() throws IOException {
+
+                if (_length == 0) {
+                    return;
+                }
+                put(_length == _chunk.length ? _chunk : Arrays.copyOf(_chunk, _length));
+                _chunk = new byte[CHUNK_SIZE];
+                _length = 0;
+            }
+
+
+
+
+
+            @Override
+            public void close() throws IOException {
+
+                if (!_ended) {
+                    _ended = true;
+                    flush();
+                    put(END);
+                }
+            }
+        }
+    }
+
+
+
+
+
+    /**
+     * Creates the daemon threads of a pool, numbered after a prefix
+     */
+    private static final class PoolThreads implements ThreadFactory {
+
+        private final String        _prefix;
+        private final AtomicInteger _count = new AtomicInteger();
+
+
+
+
+
+        PoolThreads(String prefix) {
+
+            _prefix = prefix;
+        }
+
+
+
+
+
+        @Override
+        public Thread newThread(Runnable r) {
+
+            Thread t = new Thread(r, _prefix + _count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
+}
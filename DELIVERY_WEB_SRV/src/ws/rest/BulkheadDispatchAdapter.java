@@ -0,0 +1,169 @@
+
+
+
+
+
+package ws.rest;
+
+
+
+
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.Callable;
+
+import javax.ws.rs.HttpMethod;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.Provider;
+
+import com.sun.jersey.api.core.HttpContext;
+import com.sun.jersey.api.core.HttpResponseContext;
+import com.sun.jersey.api.model.AbstractResourceMethod;
+import com.sun.jersey.spi.container.ContainerResponse;
+import com.sun.jersey.spi.container.ContainerResponseWriter;
+import com.sun.jersey.spi.container.ResourceMethodDispatchAdapter;
+import com.sun.jersey.spi.container.ResourceMethodDispatchProvider;
+import com.sun.jersey.spi.dispatch.RequestDispatcher;
+
+
+
+
+
+/**
+ * Runs the resource methods annotated with <code>{@link Isolated}</code> in their bulkhead: the method is only invoked
+ * once admitted, and the request is answered with the rejection of the bulkhead otherwise. A streamed response holds
+ * its place in the bulkhead until it is written, or until the response is done without it.
+ */
+@Provider
+public class BulkheadDispatchAdapter implements ResourceMethodDispatchAdapter {
+
+    @Override
+    public ResourceMethodDispatchProvider adapt(final ResourceMethodDispatchProvider provider) {
+
+        return new ResourceMethodDispatchProvider() {
+
+            @Override
+            public RequestDispatcher create(AbstractResourceMethod method) {
+
+                RequestDispatcher dispatcher = provider.create(method);
+                Isolated isolated = method.getAnnotation(Isolated.class);
+                if (dispatcher == null || isolated == null) {
+                    return dispatcher;
+                }
+                Bulkhead bulkhead = Bulkhead.get(isolated.value());
+                if (bulkhead.isPooled()) {
+                    throw new IllegalArgumentException("The bulkhead " + bulkhead.getName() + " of "
+                                                       + method.getMethod() + " runs on a pool of its own");
+                }
+                return new IsolatedDispatcher(dispatcher, bulkhead);
+            }
+        };
+    }
+
+
+
+
+
+    /**
+     * Invokes a resource method once admitted by its bulkhead
+     */
+    private static final class IsolatedDispatcher implements RequestDispatcher {
+
+        private final RequestDispatcher _dispatcher;
+        private final Bulkhead          _bulkhead;
+
+
+
+
+
+        IsolatedDispatcher(RequestDispatcher dispatcher, Bulkhead bulkhead) {
+
+            _dispatcher = dispatcher;
+            _bulkhead = bulkhead;
+        }
+
+
+
+
+
+        @Override
+        public void dispatch(final Object resource, final HttpContext context) {
+
+            final HttpResponseContext response = context.getResponse();
+            Response answer = _bulkhead.call(new Callable<Response>() {
+
+                @Override
+                public Response call() {
+
+                    _dispatcher.dispatch(resource, context);
+                    // the body of a HEAD response is not written, so it does not hold the bulkhead
+                    return HttpMethod.HEAD.equals(context.getRequest().getMethod()) ? null : response.getResponse();
+                }
+            });
+            if (answer == null) {
+                return;
+            }
+            try {
+                response.setResponse(answer);
+                if (response instanceof ContainerResponse) {
+                    // the response can also be done without writing its body, e.g. when it fails before
+                    ContainerResponse container = (ContainerResponse) response;
+                    container.setContainerResponseWriter(new ReleasingWriter(container.getContainerResponseWriter(),
+                                                                             answer));
+                }
+            } catch (RuntimeException | Error e) {
+                Bulkhead.discard(answer);
+                throw e;
+            }
+        }
+    }
+
+
+
+
+
+    /**
+     * Releases the place in the bulkhead of a streamed response once the response is done, written or not
+     */
+    private static final class ReleasingWriter implements ContainerResponseWriter {
+
+        private final ContainerResponseWriter _writer;
+        private final Response                _response;
+
+
+
+
+
+        ReleasingWriter(ContainerResponseWriter writer, Response response) {
+
+            _writer = writer;
+            _response = response;
+        }
+
+
+
+
+
+        @Override
+        public OutputStream writeStatusAndHeaders(long contentLength, ContainerResponse response) throws IOException {
+
+            return _writer.writeStatusAndHeaders(contentLength, response);
+        }
+
+
+
+
+
+        @Override
+        public void finish() throws IOException {
+
+            try {
+                _writer.finish();
+            } finally {
+                Bulkhead.discard(_response);
+            }
+        }
+    }
+
+}
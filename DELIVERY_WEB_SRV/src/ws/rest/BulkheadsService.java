@@ -0,0 +1,92 @@
+
+
+
+
+
+package ws.rest;
+
+
+
+
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+
+
+
+
+/**
+ * Reports the bulkheads of the requests: their limits, the requests running and waiting, and the counts and latencies
+ * of the requests since the start
+ */
+@Path("/bulkheads")
+public class BulkheadsService {
+
+    private static final String BULKHEADS   = "Bulkheads";
+    private static final String NAME        = "Name";
+    private static final String POOLED      = "Pooled";
+    private static final String CONCURRENCY = "Concurrency";
+    private static final String QUEUE       = "Queue";
+    private static final String ACTIVE      = "Active";
+    private static final String WAITING     = "Waiting";
+    private static final String COMPLETED   = "Completed";
+    private static final String REJECTED    = "Rejected";
+    private static final String TIMED_OUT   = "TimedOut";
+    private static final String MEAN_MS     = "MeanMillis";
+    private static final String P50_MS      = "P50Millis";
+    private static final String P99_MS      = "P99Millis";
+    private static final String MAX_MS      = "MaxMillis";
+
+
+
+
+
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getBulkheads() throws JSONException {
+
+        JSONArray bulkheads = new JSONArray();
+        for (Bulkhead bulkhead : Bulkhead.all()) {
+            JSONObject json = new JSONObject();
+            json.put(NAME, bulkhead.getName());
+            json.put(POOLED, bulkhead.isPooled());
+            json.put(CONCURRENCY, bulkhead.getConcurrency());
+            json.put(QUEUE, bulkhead.getQueue());
+            json.put(ACTIVE, bulkhead.getActive());
+            json.put(WAITING, bulkhead.getWaiting());
+            json.put(COMPLETED, bulkhead.getCompleted());
+            json.put(REJECTED, bulkhead.getRejected());
+            json.put(TIMED_OUT, bulkhead.getTimedOut());
+            json.put(MEAN_MS, bulkhead.getMeanMillis());
+            json.put(P50_MS, bulkhead.getPercentileMillis(0.5));
+            json.put(P99_MS, bulkhead.getPercentileMillis(0.99));
+            json.put(MAX_MS, bulkhead.getMaxMillis());
+            bulkheads.put(json);
+        }
+
+        JSONObject jsonObject = new JSONObject();
+        jsonObject.put(BULKHEADS, bulkheads);
+        return response(jsonObject);
+    }
+
+
+
+
+
+    /**
+     * Default Response
+     */
+    private Response response(JSONObject result) {
+
+        return Response.status(Response.Status.OK).entity(result.toString()).build();
+    }
+
+}
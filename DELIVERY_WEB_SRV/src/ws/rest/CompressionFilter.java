@@ -0,0 +1,442 @@
+
+
+
+
+
+package ws.rest;
+
+
+
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MultivaluedMap;
+import javax.ws.rs.core.Response;
+
+import com.sun.jersey.spi.container.ContainerRequest;
+import com.sun.jersey.spi.container.ContainerResponse;
+import com.sun.jersey.spi.container.ContainerResponseFilter;
+import com.sun.jersey.spi.container.ContainerResponseWriter;
+
+
+
+
+
+/***************************************************************************************
+ *
+ * Compresses the responses with gzip or deflate, as negotiated with the <code>Accept-Encoding</code> header of the
+ * request, once they are larger than a threshold: the first bytes of a streamed response are held until the threshold
+ * is reached, and the rest is compressed as it is written, without buffering the whole response.
+ *
+ * The compressed copy of a response with an entity tag, i.e. a GET response of a version of a Map, is kept to be sent
+ * again as it is for the same request, without compressing it again. The entity tag of a compressed response is made
+ * weak, since its bytes differ from those of the uncompressed one: it still matches the <code>If-None-Match</code> of a
+ * GET.
+ *
+ * The threshold is given in bytes by the system property <code>{@value #THRESHOLD_PROPERTY}</code>, and the maximum
+ * size of the compressed copies by <code>{@value #CACHE_BYTES_PROPERTY}</code>.
+ *
+ ***************************************************************************************/
+public class CompressionFilter implements ContainerResponseFilter {
+
+    /**
+     * The system property of the size from which the responses are compressed, in bytes
+     */
+    public static final String                  THRESHOLD_PROPERTY   = "delivery.compression.threshold";
+
+    /**
+     * The system property of the maximum size of the compressed copies of the responses, in bytes
+     */
+    public static final String                  CACHE_BYTES_PROPERTY = "delivery.compression.cache.bytes";
+
+    public static final int                     DEFAULT_THRESHOLD    = 1024;
+    public static final long                    DEFAULT_CACHE_BYTES  = 16L << 20;
+
+    private static final String                 CONTENT_ENCODING     = "Content-Encoding";
+    private static final String                 GZIP                 = "gzip";
+    private static final String                 DEFLATE              = "deflate";
+
+    private static final int                    BUFFER_SIZE          = 8192;
+
+    private final int                           _threshold;
+    private final long                          _maxBytes;
+    private final long                          _maxEntryBytes;
+
+    // the compressed copies, by request, entity tag and encoding, in access order, guarded by itself
+    private final LinkedHashMap<String, byte[]> _compressed          = new LinkedHashMap<>(16, 0.75f, true);
+    private long                                _bytes;
+
+
+
+
+
+    public CompressionFilter() {
+
+        _threshold = Integer.getInteger(THRESHOLD_PROPERTY, DEFAULT_THRESHOLD);
+        _maxBytes = Long.getLong(CACHE_BYTES_PROPERTY, DEFAULT_CACHE_BYTES);
+        _maxEntryBytes = _maxBytes / 8;
+    }
+
+
+
+
+
+    @Override
+    public ContainerResponse filter(ContainerRequest request, ContainerResponse response) {
+
+        MultivaluedMap<String, Object> headers = response.getHttpHeaders();
+        if (response.getStatus() != Response.Status.OK.getStatusCode() || response.getEntity() == null
+            || headers.containsKey(CONTENT_ENCODING)) {
+            return response;
+        }
+        // with the Vary of the content negotiation, which Jersey only adds when there is none
+        Object vary = request.getProperties().get(HttpHeaders.VARY);
+        headers.add(HttpHeaders.VARY,
+                    vary == null ? HttpHeaders.ACCEPT_ENCODING : vary + ", " + HttpHeaders.ACCEPT_ENCODING);
+
+        String encoding = negotiate(request.getHeaderValue(HttpHeaders.ACCEPT_ENCODING));
+        if (encoding == null || "HEAD".equals(request.getMethod())) {
+            return response;
+        }
+
+        Object tag = headers.getFirst(HttpHeaders.ETAG);
+        String key = tag instanceof EntityTag ? request.getRequestUri() + " " + tag + " " + encoding : null;
+        byte[] compressed = null;
+        if (key != null) {
+            synchronized (_compressed) {
+                compressed = _compressed.get(key);
+            }
+        }
+
+        if (compressed != null) {
+            encoded(headers, encoding);
+            response.setEntity(compressed);
+        } else {
+            response.setContainerResponseWriter(new CompressingWriter(response.getContainerResponseWriter(), encoding,
+                                                                      key));
+        }
+        return response;
+    }
+
+
+
+
+
+    /**
+     * Returns the encoding of the response, among the ones accepted by the client, or <code>null</code> when it
+     * does not accept any
+     */
+    static String negotiate(String acceptEncoding) {
+
+        if (acceptEncoding == null) {
+            return null;
+        }
+        String encoding = null;
+        float quality = 0;
+        for (String accepted : acceptEncoding.split(",")) {
+            String[] parts = accepted.split(";");
+            String name = parts[0].trim().toLowerCase();
+            float q = 1;
+            for (int i = 1; i < parts.length; i++) {
+                String parameter = parts[i].trim();
+                if (parameter.startsWith("q=")) {
+                    try {
+                        q = Float.parseFloat(parameter.substring(2));
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            if (name.equals("x-gzip") || name.equals("*")) {
+                name = GZIP;
+            }
+            // gzip first when both are as acceptable
+            if ((name.equals(GZIP) || name.equals(DEFLATE)) && (q > quality || q == quality && name.equals(GZIP))
+                && q > 0) {
+                encoding = name;
+                quality = q;
+            }
+        }
+        return encoding;
+    }
+
+
+
+
+
+    private static void encoded(MultivaluedMap<String, Object> headers, String encoding) {
+
+        headers.putSingle(CONTENT_ENCODING, encoding);
+        Object tag = headers.getFirst(HttpHeaders.ETAG);
+        if (tag instanceof EntityTag) {
+            headers.putSingle(HttpHeaders.ETAG, new EntityTag(((EntityTag) tag).getValue(), true));
+        }
+    }
+
+
+
+
+
+    private void put(String key, byte[] compressed) {
+
+        synchronized (_compressed) {
+            byte[] previous = _compressed.put(key, compressed);
+            _bytes += compressed.length - (previous == null ? 0 : previous.length);
+
+            Iterator<byte[]> eldest = _compressed.values().iterator();
+            while (_bytes > _maxBytes && eldest.hasNext()) {
+                _bytes -= eldest.next().length;
+                eldest.remove();
+            }
+        }
+    }
+
+
+
+
+
+    /**
+     * Writes the response to the container, compressed once it reaches the threshold
+     */
+    private final class CompressingWriter implements ContainerResponseWriter {
+
+        private final ContainerResponseWriter _writer;
+        private final String                  _encoding;
+        private final String                  _key;
+
+        private ContainerResponse             _response;
+        private Body                          _body;
+
+
+
+
+
+        CompressingWriter(ContainerResponseWriter writer, String encoding, String key) {
+
+            _writer = writer;
+            _encoding = encoding;
+            _key = key;
+        }
+
+
+
+
+
+        @Override
+        public OutputStream writeStatusAndHeaders(long contentLength, ContainerResponse response) throws IOException {
+
+            if (contentLength >= 0 && contentLength < _threshold) {
+                return _writer.writeStatusAndHeaders(contentLength, response);
+            }
+            _response = response;
+            _body = new Body(this);
+            if (contentLength >= 0) {
+                _body.compress();
+            }
+            return _body;
+        }
+
+
+
+
+
+        @Override
+        public void finish() throws IOException {
+
+            if (_body != null) {
+                _body.finish();
+            }
+            _writer.finish();
+        }
+    }
+
+
+
+
+
+    /**
+     * The body of a response, held until it reaches the threshold, and then compressed as it is written
+     */
+    private final class Body extends OutputStream {
+
+        private final CompressingWriter _writer;
+
+        private byte[]                  _held = new byte[_threshold];
+        private int                     _size;
+
+        private DeflaterOutputStream    _compressor;
+        private Deflater                _deflater;
+        private Copy                    _copy;
+
+
+
+
+
+        Body(CompressingWriter writer) {
+
+            _writer = writer;
+        }
+
+
+
+
+
+        @Override
+        public void write(int b) throws IOException {
+
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+
+
+
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+
+            if (_compressor == null && _size + len <= _held.length) {
+                System.arraycopy(b, off, _held, _size, len);
+                _size += len;
+                return;
+            }
+            if (_compressor == null) {
+                compress();
+            }
+            _compressor.write(b, off, len);
+        }
+
+
+
+
+
+        @Override
+        public void flush() throws IOException {
+
+            // the held bytes are only sent once it is known whether they are compressed
+            if (_compressor != null) {
+                _compressor.flush();
+            }
+        }
+
+
+
+
+
+        /**
+         * Sends the headers of the compressed response, and compresses the bytes held so far
+         */
+        void compress() throws IOException {
+
+            encoded(_writer._response.getHttpHeaders(), _writer._encoding);
+            OutputStream out = _writer._writer.writeStatusAndHeaders(-1, _writer._response);
+            _copy = new Copy(out, _writer._key == null ? 0 : _maxEntryBytes);
+            if (GZIP.equals(_writer._encoding)) {
+                _compressor = new GZIPOutputStream(_copy, BUFFER_SIZE);
+            } else {
+                _deflater = new Deflater();
+                _compressor = new DeflaterOutputStream(_copy, _deflater, BUFFER_SIZE);
+            }
+            _compressor.write(_held, 0, _size);
+            _held = null;
+        }
+
+
+
+
+
+        /**
+         * Ends the response: the held bytes are sent as they are when the threshold was not reached
+         */
+        void finish() throws IOException {
+
+            if (_compressor == null) {
+                OutputStream out = _writer._writer.writeStatusAndHeaders(_size, _writer._response);
+                out.write(_held, 0, _size);
+                out.flush();
+                return;
+            }
+            // also releases the deflater of gzip, without closing the container stream
+            _compressor.close();
+            if (_deflater != null) {
+                _deflater.end();
+            }
+            if (_copy._bytes != null) {
+                put(_writer._key, _copy._bytes.toByteArray());
+            }
+        }
+    }
+
+
+
+
+
+    /**
+     * Writes the compressed bytes to the container, with a copy of them until they exceed the maximum size of a copy
+     */
+    private static final class Copy extends FilterOutputStream {
+
+        private final long            _maxBytes;
+        private ByteArrayOutputStream _bytes;
+
+
+
+
+
+        Copy(OutputStream out, long maxBytes) {
+
+            super(out);
+            _maxBytes = maxBytes;
+            _bytes = maxBytes > 0 ? new ByteArrayOutputStream() : null;
+        }
+
+
+
+
+
+        @Override
+        public void write(int b) throws IOException {
+
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+
+
+
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+
+            out.write(b, off, len);
+            if (_bytes != null) {
+                if (_bytes.size() + len > _maxBytes) {
+                    _bytes = null;
+                } else {
+                    _bytes.write(b, off, len);
+                }
+            }
+        }
+
+
+
+
+
+        @Override
+        public void close() throws IOException {
+
+            // the container stream is closed by the container
+            flush();
+        }
+    }
+
+}
@@ -0,0 +1,34 @@
+
+
+
+
+
+package ws.rest;
+
+
+
+
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+
+
+
+
+/**
+ * Runs the requests of a resource method in a <code>{@link Bulkhead}</code> without a pool of its own, on the request
+ * thread once admitted by <code>{@link BulkheadDispatchAdapter}</code>
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Isolated {
+
+    /**
+     * The name of the bulkhead
+     */
+    String value();
+
+}
@@ -0,0 +1,185 @@
+
+
+
+
+
+package ws.rest;
+
+
+
+
+
+import java.io.IOException;
+
+import javax.ws.rs.DELETE;
+import javax.ws.rs.FormParam;
+import javax.ws.rs.GET;
+import javax.ws.rs.POST;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import delivery.database.MapRegistry;
+import delivery.database.MapStorage;
+import delivery.exceptions.ExistingMapException;
+import delivery.exceptions.MapNotFoundException;
+import delivery.route.DeliveryController;
+import ws.rest.auth.Secured;
+
+
+
+
+
+/**
+ * Manages the named Maps. Each Map is served at <code>/maps/{map-id}/...</code> with the same operations as the
+ * default Map, e.g. <code>/maps/{map-id}/route/{from}/{to}</code>.
+ */
+@Path("/maps")
+public class MapsService {
+
+    private static final String RESULT       = "result";
+    private static final String OK           = "Ok";
+
+    private static final String MAPS         = "Maps";
+    private static final String ID           = "Id";
+    private static final String VERSION      = "Version";
+    private static final String POINTS       = "Points";
+    private static final String ROUTES       = "Routes";
+    private static final String MEMORY_BYTES = "MemoryBytes";
+    private static final String FAILURE      = "PersistenceFailure";
+
+
+
+
+
+    /**
+     * Lists all the Maps, with their size and estimated memory usage, and the last failure to persist them if any
+     */
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getMaps() throws JSONException {
+
+        MapRegistry registry = MapRegistry.getInstance();
+
+        JSONArray maps = new JSONArray();
+        long memory = 0;
+        for (String mapId : registry.getMapIds()) {
+            MapStorage storage = registry.getMap(mapId);
+            if (storage == null) {
+                // deleted meanwhile
+                continue;
+            }
+            JSONObject map = new JSONObject();
+            map.put(ID, mapId);
+            map.put(VERSION, storage.getVersion());
+            map.put(POINTS, storage.getPoints().size());
+            map.put(ROUTES, storage.getRoutes().size());
+            map.put(MEMORY_BYTES, storage.getMemoryUsage());
+            Exception failure = storage.getPersistenceFailure();
+            if (failure != null) {
+                map.put(FAILURE, failure.toString());
+            }
+            memory += storage.getMemoryUsage();
+            maps.put(map);
+        }
+
+        JSONObject jsonObject = new JSONObject();
+        jsonObject.put(MAPS, maps);
+        jsonObject.put(MEMORY_BYTES, memory);
+        return response(jsonObject);
+    }
+
+
+
+
+
+    /**
+     * Creates a new empty Map
+     */
+    @Secured
+    @POST
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response createMap(@FormParam("map-id") String mapId) throws JSONException {
+
+        try {
+            MapRegistry.getInstance().createMap(mapId);
+        } catch (ExistingMapException | IOException | IllegalArgumentException e) {
+            return errorResponse(e);
+        }
+        JSONObject jsonObject = new JSONObject();
+        jsonObject.put(RESULT, OK);
+        return response(jsonObject);
+    }
+
+
+
+
+
+    /**
+     * Deletes a Map, with all its Points and Routes
+     */
+    @Path("/{map-id}")
+    @Secured
+    @DELETE
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response deleteMap(@PathParam("map-id") String mapId) throws JSONException {
+
+        try {
+            MapRegistry.getInstance().deleteMap(mapId);
+        } catch (MapNotFoundException | IOException | IllegalArgumentException e) {
+            return errorResponse(e);
+        }
+        JSONObject jsonObject = new JSONObject();
+        jsonObject.put(RESULT, "The map (" + mapId + ") was deleted!");
+        return response(jsonObject);
+    }
+
+
+
+
+
+    /**
+     * Serves the operations on the Points and Routes of a Map
+     */
+    @Path("/{map-id}")
+    public RoutesService getMap(@PathParam("map-id") String mapId) {
+
+        try {
+            return new RoutesService(DeliveryController.getInstance(mapId));
+        } catch (MapNotFoundException e) {
+            throw new WebApplicationException(errorResponse(e));
+        }
+    }
+
+
+
+
+
+    /**
+     * Default Response
+     */
+    private Response response(JSONObject result) {
+
+        return Response.status(Response.Status.OK).entity(result.toString()).build();
+    }
+
+
+
+
+
+    /**
+     * Default Response on error
+     */
+    private Response errorResponse(Exception e) {
+
+        return Response.status(Response.Status.NOT_FOUND).entity(e.getMessage()).build();
+    }
+
+}
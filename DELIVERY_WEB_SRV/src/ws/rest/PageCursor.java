@@ -0,0 +1,150 @@
+
+
+
+
+
+package ws.rest;
+
+
+
+
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import delivery.entities.Point;
+import delivery.entities.RouteKey;
+
+
+
+
+
+/***************************************************************************************
+ *
+ * The position of a client in the pages of a Map: the version of the Map it reads, and the last point or route it
+ * was sent. The next page is read on the same version, after that point or route, so the pages neither miss nor repeat
+ * anything whatever the changes made meanwhile, as long as the version is retained.
+ *
+ * The cursor is sent to the client as an opaque string, the URL safe base 64 of
+ * <code>version:kind:length:names</code>, where the kind is <code>P</code> for a point or <code>R</code> for a route,
+ * and the names are the name of the point, or the names of the points of the route with the length of the first one.
+ *
+ ***************************************************************************************/
+final class PageCursor {
+
+    static final char    POINT = 'P';
+    static final char    ROUTE = 'R';
+
+    private final long   _version;
+    private final char   _kind;
+    private final String _first;
+    private final String _second;
+
+
+
+
+
+    private PageCursor(long version, char kind, String first, String second) {
+
+        _version = version;
+        _kind = kind;
+        _first = first;
+        _second = second;
+    }
+
+
+
+
+
+    /**
+     * Returns the cursor after the given point of a version of the Map
+     */
+    static String after(long version, Point p) {
+
+        return encode(version, POINT, p.getName(), "");
+    }
+
+
+
+
+
+    /**
+     * Returns the cursor after the given route of a version of the Map
+     */
+    static String after(long version, RouteKey routeKey) {
+
+        return encode(version, ROUTE, routeKey.getFromPoint().getName(), routeKey.getToPoint().getName());
+    }
+
+
+
+
+
+    private static String encode(long version, char kind, String first, String second) {
+
+        String cursor = Long.toString(version) + ':' + kind + ':' + first.length() + ':' + first + second;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(cursor.getBytes(StandardCharsets.UTF_8));
+    }
+
+
+
+
+
+    /**
+     * Parses a cursor sent by a client
+     *
+     * @throws IllegalArgumentException
+     *             When it is not a cursor
+     */
+    static PageCursor parse(String cursor) {
+
+        try {
+            String s = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+            int kind = s.indexOf(':');
+            int length = s.indexOf(':', kind + 3);
+            if (kind < 0 || length < 0 || s.charAt(kind + 2) != ':'
+                || (s.charAt(kind + 1) != POINT && s.charAt(kind + 1) != ROUTE)) {
+                throw new IllegalArgumentException("Invalid cursor: " + cursor);
+            }
+            int end = length + 1 + Integer.parseInt(s.substring(kind + 3, length));
+            return new PageCursor(Long.parseLong(s.substring(0, kind)), s.charAt(kind + 1),
+                                  s.substring(length + 1, end), s.substring(end));
+        } catch (IndexOutOfBoundsException | NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid cursor: " + cursor, e);
+        }
+    }
+
+
+
+
+
+    long getVersion() {
+
+        return _version;
+    }
+
+
+
+
+
+    /**
+     * Returns the name of the last point sent, or <code>null</code> when the cursor is after a route
+     */
+    String getPoint() {
+
+        return _kind == POINT ? _first : null;
+    }
+
+
+
+
+
+    /**
+     * Returns the last route sent, or <code>null</code> when the cursor is after a point
+     */
+    RouteKey getRoute() {
+
+        return _kind == ROUTE ? new RouteKey(new Point(_first), new Point(_second)) : null;
+    }
+
+}
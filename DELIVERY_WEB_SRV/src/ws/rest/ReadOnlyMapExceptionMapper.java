@@ -0,0 +1,34 @@
+
+
+
+
+
+package ws.rest;
+
+
+
+
+
+import javax.ws.rs.core.Response;
+import javax.ws.rs.ext.ExceptionMapper;
+import javax.ws.rs.ext.Provider;
+
+import delivery.exceptions.ReadOnlyMapException;
+
+
+
+
+
+/**
+ * Rejects the changes sent to a replica node, which must be sent to its leader instead
+ */
+@Provider
+public class ReadOnlyMapExceptionMapper implements ExceptionMapper<ReadOnlyMapException> {
+
+    @Override
+    public Response toResponse(ReadOnlyMapException e) {
+
+        return Response.status(Response.Status.FORBIDDEN).entity(e.getMessage()).build();
+    }
+
+}
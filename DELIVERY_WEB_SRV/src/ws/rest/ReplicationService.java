@@ -0,0 +1,112 @@
+
+
+
+
+
+package ws.rest;
+
+
+
+
+
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import delivery.database.MapRegistry;
+import delivery.database.MapStorage;
+import delivery.database.replication.ReplicationFollower;
+import delivery.database.replication.ReplicationLeader;
+
+
+
+
+
+/**
+ * Reports the replication of the Maps: the followers connected to a leader node, and the lag of each Map on a
+ * follower node
+ */
+@Path("/replication")
+public class ReplicationService {
+
+    private static final String ROLE            = "Role";
+    private static final String LEADER          = "leader";
+    private static final String FOLLOWER        = "follower";
+    private static final String STANDALONE      = "standalone";
+
+    private static final String PORT            = "Port";
+    private static final String FOLLOWERS       = "Followers";
+    private static final String MAPS            = "Maps";
+    private static final String ID              = "Id";
+    private static final String VERSION         = "Version";
+    private static final String CONNECTED       = "Connected";
+    private static final String LEADER_VERSION  = "LeaderVersion";
+    private static final String LAG_VERSIONS    = "LagVersions";
+    private static final String LAST_CONTACT_MS = "LastContactMillis";
+    private static final String LAST_FAILURE    = "LastFailure";
+
+
+
+
+
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response getReplication() throws JSONException {
+
+        MapRegistry registry = MapRegistry.getInstance();
+        JSONObject jsonObject = new JSONObject();
+
+        ReplicationLeader leader = registry.getLeader();
+        if (leader != null) {
+            jsonObject.put(ROLE, LEADER);
+            jsonObject.put(PORT, leader.getPort());
+            jsonObject.put(FOLLOWERS, leader.getFollowerCount());
+            Exception failure = leader.getFailure();
+            if (failure != null) {
+                jsonObject.put(LAST_FAILURE, failure.toString());
+            }
+            return response(jsonObject);
+        }
+
+        JSONArray maps = new JSONArray();
+        for (String mapId : registry.getMapIds()) {
+            ReplicationFollower follower = registry.getFollower(mapId);
+            MapStorage storage = registry.getMap(mapId);
+            if (follower == null || storage == null) {
+                continue;
+            }
+            JSONObject map = new JSONObject();
+            map.put(ID, mapId);
+            map.put(VERSION, storage.getVersion());
+            map.put(CONNECTED, follower.isConnected());
+            map.put(LEADER_VERSION, follower.getVersion());
+            map.put(LAG_VERSIONS, follower.getLag());
+            map.put(LAST_CONTACT_MS, follower.getMillisSinceLastContact());
+            maps.put(map);
+        }
+        jsonObject.put(ROLE, maps.length() > 0 ? FOLLOWER : STANDALONE);
+        if (maps.length() > 0) {
+            jsonObject.put(MAPS, maps);
+        }
+        return response(jsonObject);
+    }
+
+
+
+
+
+    /**
+     * Default Response
+     */
+    private Response response(JSONObject result) {
+
+        return Response.status(Response.Status.OK).entity(result.toString()).build();
+    }
+
+}
@@ -0,0 +1,293 @@
+
+
+
+
+
+package ws.rest;
+
+
+
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import javax.ws.rs.core.EntityTag;
+import javax.ws.rs.core.Request;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+
+import delivery.route.DeliveryController;
+
+
+
+
+
+/***************************************************************************************
+ *
+ * The rendered GET responses of a Map, with their entity tags, to answer the polls of a Map that did not change
+ * without computing the response again.
+ *
+ * A response is identified by a key, for its endpoint and parameters, and by the version of the Map it was computed
+ * from: the entity tag of a response is derived from both, so a client that sends it back in
+ * <code>If-None-Match</code> is answered with 304 Not Modified while the Map has that version. A streamed response is
+ * recorded as it is sent, and cached once complete, unless it is larger than an eighth of the cache.
+ *
+ * Only the last rendered version of each key is kept, and the least recently used responses are dropped beyond the
+ * maximum size, given in bytes by the system property <code>{@value #MAX_BYTES_PROPERTY}</code>.
+ *
+ ***************************************************************************************/
+final class ResponseCache {
+
+    /**
+     * The system property of the maximum size of the cached responses of a Map, in bytes
+     */
+    static final String                                         MAX_BYTES_PROPERTY = "delivery.responses.bytes";
+
+    static final long                                           DEFAULT_MAX_BYTES  = 16L << 20;
+
+    // the caches of the maps, dropped along with their controller
+    private static final Map<DeliveryController, ResponseCache> _instances         =
+                    Collections.synchronizedMap(new WeakHashMap<>());
+
+    // distinguishes the versions of a map from those of a map of the same id created before, or before a restart
+    private final String                                        _epoch;
+
+    private final long                                          _maxBytes;
+    private final long                                          _maxEntryBytes;
+
+    // in access order, guarded by this
+    private final LinkedHashMap<String, Entry>                  _entries           =
+                    new LinkedHashMap<>(16, 0.75f, true);
+    private long                                                _bytes;
+
+
+
+
+
+    private ResponseCache(long maxBytes) {
+
+        _epoch = Long.toString(System.currentTimeMillis(), Character.MAX_RADIX);
+        _maxBytes = maxBytes;
+        _maxEntryBytes = maxBytes / 8;
+    }
+
+
+
+
+
+    /**
+     * Returns the cache of the Map of the given controller
+     */
+    static ResponseCache of(DeliveryController controller) {
+
+        synchronized (_instances) {
+            ResponseCache cache = _instances.get(controller);
+            if (cache == null) {
+                cache = new ResponseCache(Long.getLong(MAX_BYTES_PROPERTY, DEFAULT_MAX_BYTES));
+                _instances.put(controller, cache);
+            }
+            return cache;
+        }
+    }
+
+
+
+
+
+    /**
+     * Returns the entity tag of the response of the given key for a version of the Map
+     */
+    private EntityTag tag(String key, long version) {
+
+        return new EntityTag(_epoch + '.' + version + '.' + Integer.toHexString(key.hashCode()));
+    }
+
+
+
+
+
+    /**
+     * Returns the response of the given key for a version of the Map, without rendering it: 304 Not Modified when the
+     * request has its entity tag, or else the cached response, or <code>null</code> when it is not cached
+     *
+     * @param key
+     *            The endpoint and the parameters that identify the response in a version of the Map
+     */
+    Response get(Request request, String key, long version) {
+
+        EntityTag tag = tag(key, version);
+        Response.ResponseBuilder notModified = request.evaluatePreconditions(tag);
+        if (notModified != null) {
+            return notModified.tag(tag).build();
+        }
+
+        synchronized (this) {
+            Entry entry = _entries.get(key);
+            if (entry == null || entry._version != version) {
+                return null;
+            }
+            return Response.fromResponse(entry._metadata).entity(entry._body).build();
+        }
+    }
+
+
+
+
+
+    /**
+     * Returns the rendered response of the given key for a version of the Map with its entity tag, and caches its body
+     * as it is sent. The responses other than OK are returned as they are.
+     */
+    Response record(String key, long version, Response response) {
+
+        if (response.getStatus() != Response.Status.OK.getStatusCode()) {
+            return response;
+        }
+        Response tagged = Response.fromResponse(response).tag(tag(key, version)).build();
+        Response metadata = Response.fromResponse(tagged).entity(null).build();
+        Object entity = response.getEntity();
+
+        if (entity instanceof StreamingOutput) {
+            StreamingOutput output = (StreamingOutput) entity;
+            return Response.fromResponse(tagged).entity(new StreamingOutput() {
+
+                @Override
+                public void write(OutputStream out) throws IOException {
+
+                    Recorder recorder = new Recorder(out, _maxEntryBytes);
+                    output.write(recorder);
+                    if (recorder._body != null) {
+                        put(key, new Entry(version, metadata, recorder._body.toByteArray()));
+                    }
+                }
+            }).build();
+        } else if (entity instanceof String || entity instanceof byte[]) {
+            byte[] body = entity instanceof String ? ((String) entity).getBytes(StandardCharsets.UTF_8)
+                            : (byte[]) entity;
+            if (body.length <= _maxEntryBytes) {
+                put(key, new Entry(version, metadata, body));
+            }
+        }
+        return tagged;
+    }
+
+
+
+
+
+    private synchronized void put(String key, Entry entry) {
+
+        Entry previous = _entries.get(key);
+        if (previous != null && previous._version > entry._version) {
+            // a response of an older version, e.g. an asOf read, does not replace the current one
+            return;
+        }
+        if (previous != null) {
+            _bytes -= previous._body.length;
+        }
+        _entries.put(key, entry);
+        _bytes += entry._body.length;
+
+        Iterator<Entry> eldest = _entries.values().iterator();
+        while (_bytes > _maxBytes && eldest.hasNext()) {
+            _bytes -= eldest.next()._body.length;
+            eldest.remove();
+        }
+    }
+
+
+
+
+
+    /**
+     * A rendered response, without its body in the metadata
+     */
+    private static final class Entry {
+
+        private final long     _version;
+        private final Response _metadata;
+        private final byte[]   _body;
+
+
+
+
+
+        Entry(long version, Response metadata, byte[] body) {
+
+            _version = version;
+            _metadata = metadata;
+            _body = body;
+        }
+    }
+
+
+
+
+
+    /**
+     * Copies a response body as it is written, until it exceeds the maximum size of a cached response
+     */
+    private static final class Recorder extends FilterOutputStream {
+
+        private final long            _maxBytes;
+        private ByteArrayOutputStream _body = new ByteArrayOutputStream();
+
+
+
+
+
+        Recorder(OutputStream out, long maxBytes) {
+
+            super(out);
+            _maxBytes = maxBytes;
+        }
+
+
+
+
+
+        @Override
+        public void write(int b) throws IOException {
+
+            out.write(b);
+            record(new byte[] { (byte) b }, 0, 1);
+        }
+
+
+
+
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+
+            out.write(b, off, len);
+            record(b, off, len);
+        }
+
+
+
+
+
+        private void record(byte[] b, int off, int len) {
+
+            if (_body == null) {
+                return;
+            }
+            if (_body.size() + len > _maxBytes) {
+                _body = null;
+            } else {
+                _body.write(b, off, len);
+            }
+        }
+    }
+
+}
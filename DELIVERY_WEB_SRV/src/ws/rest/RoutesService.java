@@ -9,39 +9,60 @@ package ws.rest;
 
 
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.nio.charset.Charset;
-import java.util.Collection;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Iterator;
 import java.util.List;
-import java.util.Scanner;
+import java.util.Map;
+import java.util.concurrent.Callable;
 
+import javax.ws.rs.Consumes;
 import javax.ws.rs.DELETE;
+import javax.ws.rs.DefaultValue;
 import javax.ws.rs.FormParam;
 import javax.ws.rs.GET;
+import javax.ws.rs.HttpMethod;
 import javax.ws.rs.POST;
 import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
 import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Context;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Request;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import javax.ws.rs.core.Variant;
 
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import delivery.database.MapStorage;
+import delivery.database.MapBatch;
+import delivery.database.MapExporter;
+import delivery.database.MapImporter;
+import delivery.database.MapMutation;
+import delivery.database.MapSnapshot;
 import delivery.entities.Point;
 import delivery.entities.Route;
+import delivery.entities.RouteKey;
 import delivery.exceptions.ExistingPointException;
 import delivery.exceptions.ExistingRouteException;
+import delivery.exceptions.MapVersionNotFoundException;
 import delivery.exceptions.PointNotFoundException;
 import delivery.exceptions.RouteNotFoundException;
 import delivery.route.DeliveryController;
 import delivery.route.entities.Trip;
 import ws.rest.auth.Secured;
+import ws.rest.binary.TripEncoder;
+import ws.rest.json.JsonFragments;
+import ws.rest.json.JsonWriter;
 
 
 
@@ -61,6 +82,12 @@ public class RoutesService {
     private static final String POINTS          = "Points";
     private static final String ROUTES          = "Routes";
 
+    private static final String POINTS_ADDED    = "PointsAdded";
+    private static final String POINTS_DELETED  = "PointsDeleted";
+    private static final String ROUTES_ADDED    = "RoutesAdded";
+    private static final String ROUTES_UPDATED  = "RoutesUpdated";
+    private static final String ROUTES_DELETED  = "RoutesDeleted";
+
     private static final String TRIP            = "Trip";
     private static final String TOTAL_TIME      = "TotalTime";
     private static final String TOTAL_COST      = "TotalCost";
@@ -70,6 +97,50 @@ public class RoutesService {
     private static final String MIN_COST        = "MinCost";
     private static final String ROUTE           = "Route";
 
+    private static final String NEXT_CURSOR     = "NextCursor";
+
+    // the size of a page when a cursor is given without a limit
+    private static final int    DEFAULT_LIMIT   = 100;
+
+    // the formats of the trips, JSON by default
+    private static final MediaType     BINARY_TRIPS  = MediaType.valueOf(TripEncoder.MEDIA_TYPE);
+    private static final List<Variant> TRIP_VARIANTS =
+                    Variant.mediaTypes(MediaType.APPLICATION_JSON_TYPE, BINARY_TRIPS).add().build();
+
+    // the trips of all the maps are computed apart from the request threads, the enumerations in a pool of their own
+    private static final Bulkhead      TRIPS         = Bulkhead.get(Bulkhead.TRIPS);
+    private static final Bulkhead      ALL_TRIPS     = Bulkhead.get(Bulkhead.ALL_TRIPS);
+
+    private final DeliveryController _controller;
+    private final JsonFragments      _fragments;
+    private final ResponseCache      _responses;
+
+
+
+
+
+    /**
+     * Serves the default Map
+     */
+    public RoutesService() {
+
+        this(DeliveryController.getInstance());
+    }
+
+
+
+
+
+    /**
+     * Serves the Map of the given controller, as a sub-resource of <code>{@link MapsService}</code>
+     */
+    RoutesService(DeliveryController controller) {
+
+        _controller = controller;
+        _fragments = JsonFragments.of(controller);
+        _responses = ResponseCache.of(controller);
+    }
+
 
 
 
@@ -82,54 +153,107 @@ public class RoutesService {
     @PUT
     @Secured
     @Produces(MediaType.APPLICATION_JSON)
+    @Isolated(Bulkhead.MUTATIONS)
     public Response loadDefaultMap() throws JSONException {
 
-        DeliveryController controller = DeliveryController.getInstance();
+        // the existing Map is replaced by the default one in a single version, with only the changes needed
+        try (InputStream in = RoutesService.class.getResourceAsStream("default-map.txt")) {
+            _controller.syncMap(new MapImporter().read(in, new MapBatch()));
+        } catch (IOException | ExistingPointException | ExistingRouteException | PointNotFoundException
+                        | RouteNotFoundException e) {
+            return errorResponse(e);
+        }
 
-        // clear existing Map
-        controller.clearMap();
-        try (BufferedReader r = new BufferedReader(new InputStreamReader(RoutesService.class.getResourceAsStream("default-map.txt"),
-                                                                         Charset.forName("UTF-8")))) {
+        JSONObject jsonObject = new JSONObject();
+        jsonObject.put(RESULT, OK);
+        return response(jsonObject);
+    }
 
-            String line;
-            boolean readingPoints = true;
-            while ((line = r.readLine()) != null) {
-                if (line.length() == 0) {
-                    readingPoints = false;
-                    continue;
-                }
-                if (readingPoints) {
-                    // Each line is the name of a point
-                    try {
-                        controller.addPoint(new Point(line.trim()));
-                    } catch (ExistingPointException e) {
-                        return errorResponse(e);
-                    }
-                } else {
-                    // Each line contains a route, with the fields separated by
-                    // spaces
-
-                    try (Scanner lineScanner = new Scanner(line)) {
-                        lineScanner.useDelimiter(",");
-                        String fromPoint = lineScanner.next();
-                        String toPoint = lineScanner.next();
-                        int cost = lineScanner.nextInt();
-                        int time = lineScanner.nextInt();
-                        try {
-                            controller.addRoute(fromPoint, toPoint, cost, time);
-                        } catch (ExistingRouteException | PointNotFoundException e) {
-                            return errorResponse(e);
-                        }
-                    }
-                }
+
+
+
+
+    /**
+     * Imports the Points and Routes of the uploaded file, in the format of the default Map: one point name per line,
+     * and one route per line as <code>from,to,time,cost</code>, separated by commas or tabs. The points of the routes
+     * are added when they are not listed. The whole file is applied as a single change, after the existing Map is
+     * cleared when <code>replace</code> is true.
+     */
+    @Path("/import")
+    @POST
+    @Secured
+    @Consumes({ "text/csv", "text/tab-separated-values", MediaType.TEXT_PLAIN, MediaType.APPLICATION_OCTET_STREAM })
+    @Produces(MediaType.APPLICATION_JSON)
+    @Isolated(Bulkhead.MUTATIONS)
+    public Response importMap(InputStream file, @QueryParam("replace") @DefaultValue("false") boolean replace)
+                    throws JSONException {
+
+        MapBatch batch;
+        try {
+            batch = new MapImporter().read(file, replace ? new MapBatch().clearMap() : new MapBatch());
+            _controller.applyBatch(batch);
+        } catch (IOException | ExistingPointException | ExistingRouteException | PointNotFoundException
+                        | RouteNotFoundException | IllegalArgumentException e) {
+            return errorResponse(e);
+        }
+
+        int points = 0;
+        int routes = 0;
+        for (MapMutation mutation : batch.getMutations()) {
+            if (mutation.getType() == MapMutation.Type.ADD_POINT) {
+                points++;
+            } else if (mutation.getType() == MapMutation.Type.ADD_ROUTE) {
+                routes++;
             }
+        }
+
+        JSONObject jsonObject = new JSONObject();
+        jsonObject.put(RESULT, OK);
+        jsonObject.put(POINTS, points);
+        jsonObject.put(ROUTES, routes);
+        return response(jsonObject);
+    }
+
+
+
+
 
-        } catch (IOException e) {
+    /**
+     * Replaces the Map by the uploaded file, in the format of <code>/import</code>, with only the changes needed: the
+     * Points and Routes that are not in the file are deleted, the new ones are added, and the Routes with another time
+     * or cost are updated, all as a single change. The unchanged Points and Routes are left untouched.
+     */
+    @Path("/map/sync")
+    @PUT
+    @Secured
+    @Consumes({ "text/csv", "text/tab-separated-values", MediaType.TEXT_PLAIN, MediaType.APPLICATION_OCTET_STREAM })
+    @Produces(MediaType.APPLICATION_JSON)
+    @Isolated(Bulkhead.MUTATIONS)
+    public Response syncMap(InputStream file) throws JSONException {
+
+        MapBatch changes;
+        try {
+            changes = _controller.syncMap(new MapImporter().read(file, new MapBatch()));
+        } catch (IOException | ExistingPointException | ExistingRouteException | PointNotFoundException
+                        | RouteNotFoundException | IllegalArgumentException e) {
             return errorResponse(e);
         }
 
+        Map<MapMutation.Type, Integer> counts = new EnumMap<>(MapMutation.Type.class);
+        for (MapMutation.Type type : MapMutation.Type.values()) {
+            counts.put(type, 0);
+        }
+        for (MapMutation mutation : changes.getMutations()) {
+            counts.put(mutation.getType(), counts.get(mutation.getType()) + 1);
+        }
+
         JSONObject jsonObject = new JSONObject();
         jsonObject.put(RESULT, OK);
+        jsonObject.put(POINTS_ADDED, counts.get(MapMutation.Type.ADD_POINT));
+        jsonObject.put(POINTS_DELETED, counts.get(MapMutation.Type.DELETE_POINT));
+        jsonObject.put(ROUTES_ADDED, counts.get(MapMutation.Type.ADD_ROUTE));
+        jsonObject.put(ROUTES_UPDATED, counts.get(MapMutation.Type.UPDATE_ROUTE));
+        jsonObject.put(ROUTES_DELETED, counts.get(MapMutation.Type.DELETE_ROUTE));
         return response(jsonObject);
     }
 
@@ -138,31 +262,151 @@ public class RoutesService {
 
 
     /**
-     * Returns all existing Points and Routes in the Map
-     * 
-     * @return
-     * @throws JSONException
+     * Streams the current version of the Map in the format of the default Map (<code>csv</code>), or in the compact
+     * binary format of <code>{@link MapExporter}</code> (<code>binary</code>). Both can be imported again. The Map is
+     * written as it is read, so the memory used does not depend on its size.
+     */
+    @Path("/export")
+    @GET
+    @Produces({ "text/csv", MediaType.APPLICATION_OCTET_STREAM })
+    @Isolated(Bulkhead.LOOKUPS)
+    public Response exportMap(@QueryParam("format") @DefaultValue("csv") String format,
+                              @Context Request request) {
+
+        MapSnapshot map = _controller.snapshot();
+        String key = "export?format=" + format;
+        Response cached = _responses.get(request, key, map.getVersion());
+        if (cached != null) {
+            return cached;
+        }
+        return _responses.record(key, map.getVersion(), export(map, format));
+    }
+
+
+
+
+
+    private Response export(MapSnapshot map, String format) {
+
+        StreamingOutput output;
+        String type;
+        String file;
+        if ("binary".equals(format)) {
+            output = new StreamingOutput() {
+
+                @Override
+                public void write(OutputStream out) throws IOException {
+
+                    MapExporter.writeBinary(map, out);
+                }
+            };
+            type = MediaType.APPLICATION_OCTET_STREAM;
+            file = "map.bin";
+        } else if ("csv".equals(format)) {
+            output = new StreamingOutput() {
+
+                @Override
+                public void write(OutputStream out) throws IOException {
+
+                    MapExporter.writeText(map, out);
+                }
+            };
+            type = "text/csv; charset=UTF-8";
+            file = "map.csv";
+        } else {
+            return errorResponse(new IllegalArgumentException("Unknown export format: " + format));
+        }
+
+        return Response.ok(output, type).header("Content-Disposition", "attachment; filename=\"" + file + "\"")
+                       .header("X-Map-Version", map.getVersion()).build();
+    }
+
+
+
+
+
+    /**
+     * Returns all existing Points and Routes in the Map, streamed as they are read.
+     * With a <code>limit</code>, returns a page of at most that many Points and Routes, the Points first, with the
+     * <code>cursor</code> of the next page when there is one, to read on the same version of the Map.
      */
     @Path("/map")
     @GET
     @Produces(MediaType.APPLICATION_JSON)
-    public Response getMap() throws JSONException {
-
-        JSONObject jsonObject = new JSONObject();
+    @Isolated(Bulkhead.LOOKUPS)
+    public Response getMap(@QueryParam("limit") @DefaultValue("0") int limit, @QueryParam("cursor") String cursor,
+                           @Context Request request) {
 
-        JSONArray points = new JSONArray();
-        for (Point p : DeliveryController.getInstance().getPoints()) {
-            points.put(p.getName());
+        // the points and routes are read from the same version of the Map, the one of the cursor for the next pages
+        PageCursor after;
+        MapSnapshot map;
+        try {
+            after = cursor == null ? null : PageCursor.parse(cursor);
+            map = after == null ? _controller.snapshot() : _controller.snapshotOf(after.getVersion());
+            checkCursor(map, after, false, null, null);
+        } catch (MapVersionNotFoundException e) {
+            return errorResponse(e);
+        } catch (IllegalArgumentException e) {
+            return badCursor(e);
         }
-        jsonObject.put(POINTS, points);
+        int size = pageSize(limit, after);
 
-        JSONArray routes = new JSONArray();
-        for (Route r : DeliveryController.getInstance().getRoutes()) {
-            routes.put(routeToJSON(r));
+        String key = after == null && size == Integer.MAX_VALUE ? "map" : "map?limit=" + size + "&cursor=" + cursor;
+        Response cached = _responses.get(request, key, map.getVersion());
+        if (cached != null) {
+            return cached;
         }
-        jsonObject.put(ROUTES, routes);
+        return _responses.record(key, map.getVersion(), stream(new JsonContent() {
 
-        return response(jsonObject);
+            @Override
+            public void write(JsonWriter json) throws IOException {
+
+                int count = 0;
+                String next = null;
+
+                json.beginObject();
+                json.name(POINTS).beginArray();
+                Iterator<Point> points = Collections.emptyIterator();
+                if (after == null) {
+                    points = map.getPoints().iterator();
+                } else if (after.getPoint() != null) {
+                    points = map.getPointsAfter(after.getPoint());
+                }
+                Point lastPoint = null;
+                for (; count < size && points.hasNext(); count++) {
+                    lastPoint = points.next();
+                    json.encoded(_fragments.point(lastPoint));
+                }
+                json.endArray();
+
+                json.name(ROUTES).beginArray();
+                Iterator<Map.Entry<RouteKey, Route>> routes;
+                if (points.hasNext()) {
+                    next = PageCursor.after(map.getVersion(), lastPoint);
+                    routes = Collections.emptyIterator();
+                } else if (after == null || after.getRoute() == null) {
+                    routes = map.getRoutes().entrySet().iterator();
+                } else {
+                    routes = map.getRoutesAfter(after.getRoute());
+                }
+                Map.Entry<RouteKey, Route> lastRoute = null;
+                for (; count < size && routes.hasNext(); count++) {
+                    lastRoute = routes.next();
+                    writeRoute(json, lastRoute.getValue());
+                }
+                if (routes.hasNext()) {
+                    // a page that ends with the last point is resumed after it, at the first route
+                    next = lastRoute == null ? PageCursor.after(map.getVersion(), lastPoint)
+                                    : PageCursor.after(map.getVersion(), lastRoute.getKey());
+                }
+                json.endArray();
+
+                if (next != null) {
+                    json.name(NEXT_CURSOR).value(next);
+                }
+                json.endObject();
+            }
+        }));
     }
 
 
@@ -179,9 +423,10 @@ public class RoutesService {
     @Secured
     @DELETE
     @Produces(MediaType.APPLICATION_JSON)
+    @Isolated(Bulkhead.MUTATIONS)
     public Response clearMap() throws JSONException {
 
-        MapStorage.getInstance().clearMap();
+        _controller.clearMap();
 
         JSONObject jsonObject = new JSONObject();
         jsonObject.put(RESULT, OK);
@@ -200,11 +445,28 @@ public class RoutesService {
     @Path("/route/{from}/{to}")
     @GET
     @Produces(MediaType.APPLICATION_JSON)
-    public Response getRoute(@PathParam("from") String from, @PathParam("to") String to) throws JSONException {
+    @Isolated(Bulkhead.LOOKUPS)
+    public Response getRoute(@PathParam("from") String from, @PathParam("to") String to,
+                             @Context Request request) throws JSONException {
+
+        MapSnapshot map = _controller.snapshot();
+        String key = "route/" + from + '/' + to;
+        Response cached = _responses.get(request, key, map.getVersion());
+        if (cached != null) {
+            return cached;
+        }
+        return _responses.record(key, map.getVersion(), route(map, from, to));
+    }
+
+
+
+
+
+    private Response route(MapSnapshot map, String from, String to) throws JSONException {
 
         Route route;
         try {
-            route = DeliveryController.getInstance().getRoute(from, to);
+            route = _controller.getRoute(map, from, to);
         } catch (PointNotFoundException e) {
             return errorResponse(e);
         }
@@ -227,21 +489,126 @@ public class RoutesService {
 
 
     /**
-     * List all Routes
+     * List all Routes, or the Routes from and/or to the given points.
+     * With a <code>limit</code>, returns a page of at most that many Routes, with the <code>cursor</code> of the next
+     * page when there is one, to read on the same version of the Map.
      */
 
     @Path("/routes")
     @GET
     @Produces(MediaType.APPLICATION_JSON)
-    public Response getRoutes() throws JSONException {
+    @Isolated(Bulkhead.LOOKUPS)
+    public Response getRoutes(@QueryParam(FROM) String from, @QueryParam(TO) String to,
+                              @QueryParam("limit") @DefaultValue("0") int limit, @QueryParam("cursor") String cursor,
+                              @Context Request request) throws JSONException {
+
+        PageCursor after;
+        MapSnapshot map;
+        try {
+            after = cursor == null ? null : PageCursor.parse(cursor);
+            map = after == null ? _controller.snapshot() : _controller.snapshotOf(after.getVersion());
+            checkCursor(map, after, true, from, to);
+        } catch (MapVersionNotFoundException e) {
+            return errorResponse(e);
+        } catch (IllegalArgumentException e) {
+            return badCursor(e);
+        }
+        int size = pageSize(limit, after);
+
+        String key = "routes";
+        if (from != null || to != null || after != null || size != Integer.MAX_VALUE) {
+            key += "?from=" + from + "&to=" + to + "&limit=" + size + "&cursor=" + cursor;
+        }
+        Response cached = _responses.get(request, key, map.getVersion());
+        if (cached != null) {
+            return cached;
+        }
+
+        Iterator<Route> routes;
+        try {
+            routes = routes(map, from, to, after == null ? null : after.getRoute());
+        } catch (PointNotFoundException e) {
+            return errorResponse(e);
+        }
+
+        // only the page is read from the Map
+        List<Route> page = new ArrayList<>(Math.min(size, DEFAULT_LIMIT));
+        while (page.size() < size && routes.hasNext()) {
+            page.add(routes.next());
+        }
 
         JSONObject jsonObject = new JSONObject();
 
-        Collection<Route> routes = DeliveryController.getInstance().getRoutes();
+        jsonObject.put(ROUTES, page);
+        if (routes.hasNext()) {
+            Route last = page.get(page.size() - 1);
+            jsonObject.put(NEXT_CURSOR,
+                           PageCursor.after(map.getVersion(), new RouteKey(last.getFromPoint(), last.getToPoint())));
+        }
 
-        jsonObject.put(ROUTES, routes);
+        return _responses.record(key, map.getVersion(), response(jsonObject));
+    }
 
-        return response(jsonObject);
+
+
+
+
+    /**
+     * Returns the Routes from and/or to the given points, after the given Route: the filtered Routes are read from the
+     * adjacency index of the Map, in O(degree), and all the Routes in the order of the Map
+     *
+     * @throws PointNotFoundException
+     *             When a point of the filter does not exist
+     */
+    private static Iterator<Route> routes(MapSnapshot map, String from, String to, RouteKey after)
+                    throws PointNotFoundException {
+
+        for (String pointName : new String[] { from, to }) {
+            if (pointName != null && !map.pointExists(pointName)) {
+                throw new PointNotFoundException("The Point [" + pointName + "] does not exist");
+            }
+        }
+
+        Iterator<Route> routes;
+        if (from != null && to != null) {
+            Route route = map.getRoute(new RouteKey(new Point(from), new Point(to)));
+            routes = route == null ? Collections.<Route> emptyIterator() : Collections.singletonList(route).iterator();
+        } else if (from != null) {
+            routes = map.getOutgoingRoutes(new Point(from)).iterator();
+        } else if (to != null) {
+            routes = map.getIncomingRoutes(new Point(to)).iterator();
+        } else {
+            Iterator<Map.Entry<RouteKey, Route>> entries =
+                            after == null ? map.getRoutes().entrySet().iterator() : map.getRoutesAfter(after);
+            return new Iterator<Route>() {
+
+                @Override
+                public boolean hasNext() {
+
+                    return entries.hasNext();
+                }
+
+
+
+
+
+                @Override
+                public Route next() {
+
+                    return entries.next().getValue();
+                }
+            };
+        }
+
+        // the routes of a point are few, so they are skipped up to the last one sent, which is among them
+        if (after != null) {
+            boolean found = false;
+            while (!found && routes.hasNext()) {
+                Route r = routes.next();
+                found = r.getFromPoint().equals(after.getFromPoint()) && r.getToPoint().equals(after.getToPoint());
+            }
+        }
+        return routes;
     }
 
 
@@ -249,41 +616,140 @@ public class RoutesService {
 
 
     /**
-     * Retrieves all possible trips between two points
+     * Checks that a cursor was sent for the pages being read: the Point or Route it is after must be in its version of
+     * the Map, and among the Routes from and/or to the given points when any, so that the next page follows it
+     *
+     * @param routesOnly
+     *            Whether the pages only have Routes, so the cursor can not be after a Point
+     * @throws IllegalArgumentException
+     *             When the cursor is not one of these pages
+     */
+    private static void checkCursor(MapSnapshot map, PageCursor after, boolean routesOnly, String from, String to) {
+
+        if (after == null) {
+            return;
+        }
+        RouteKey route = after.getRoute();
+        boolean found;
+        if (route == null) {
+            found = !routesOnly && map.pointExists(after.getPoint());
+        } else {
+            found = map.getRoute(route) != null && (from == null || from.equals(route.getFromPoint().getName()))
+                    && (to == null || to.equals(route.getToPoint().getName()));
+        }
+        if (!found) {
+            throw new IllegalArgumentException("The cursor is not one of these pages");
+        }
+    }
+
+
+
+
+
+    /**
+     * Rejects a cursor that can not be read, or that was not sent for the pages being read
+     */
+    private static Response badCursor(IllegalArgumentException e) {
+
+        return Response.status(Response.Status.BAD_REQUEST).entity(e.getMessage()).build();
+    }
+
+
+
+
+
+    /**
+     * Returns the number of elements of a page: the limit when given, a default size when reading the next pages
+     * without a limit, or else all the elements
+     */
+    private static int pageSize(int limit, PageCursor after) {
+
+        if (limit > 0) {
+            return limit;
+        }
+        return after == null ? Integer.MAX_VALUE : DEFAULT_LIMIT;
+    }
+
+
+
+
+
+    /**
+     * Retrieves all possible trips between two points, in the Map as it was at the <code>asOf</code> time when given
      */
     @Path("/all-trips/{from}/{to}")
     @GET
-    @Produces(MediaType.APPLICATION_JSON)
-    public Response getAllTrips(@PathParam("from") String from, @PathParam("to") String to) throws JSONException {
+    @Produces({ MediaType.APPLICATION_JSON, TripEncoder.MEDIA_TYPE })
+    public Response getAllTrips(@PathParam("from") String from, @PathParam("to") String to,
+                                @QueryParam("asOf") String asOf, @Context Request request) throws JSONException {
+
+        MapSnapshot map;
+        try {
+            map = snapshot(asOf);
+        } catch (MapVersionNotFoundException | IllegalArgumentException e) {
+            return errorResponse(e);
+        }
+        boolean binary = acceptsBinary(request);
+        String key = "all-trips/" + from + '/' + to + (binary ? "?binary" : "");
+        Response cached = _responses.get(request, key, map.getVersion());
+        if (cached != null) {
+            return cached;
+        }
+        return _responses.record(key, map.getVersion(), unlessHead(request, ALL_TRIPS.call(new Callable<Response>() {
+
+            @Override
+            public Response call() {
+
+                return allTrips(map, from, to, binary);
+            }
+        })));
+    }
+
+
+
+
+
+    private Response allTrips(MapSnapshot map, String from, String to, boolean binary) {
 
         List<Trip> trips;
         try {
-            trips = DeliveryController.getInstance().getAllTripRoutes(from, to);
+            trips = _controller.getAllTripRoutes(map, from, to);
         } catch (PointNotFoundException e) {
             return errorResponse(e);
         }
+        if (binary) {
+            return binaryTrips(map, trips);
+        }
 
-        JSONObject jsonResult = new JSONObject();
-        JSONArray jsonPaths = new JSONArray();
         long minTime = 0;
         long minCost = 0;
-
         for (Trip trip : trips) {
-            JSONObject jsonTrip = tripToJSON(trip);
             if (trip.isFastest()) {
                 minTime = trip.getTotalTime();
             }
             if (trip.isCheapest()) {
                 minCost = trip.getTotalCost();
             }
-            jsonPaths.put(jsonTrip);
         }
+        long fastest = minTime;
+        long cheapest = minCost;
+
+        return stream(new JsonContent() {
 
-        jsonResult.put(POSSIBLE_ROUTES, jsonPaths);
-        jsonResult.put(MIN_TIME, minTime);
-        jsonResult.put(MIN_COST, minCost);
+            @Override
+            public void write(JsonWriter json) throws IOException {
 
-        return response(jsonResult);
+                json.beginObject();
+                json.name(POSSIBLE_ROUTES).beginArray();
+                for (Trip trip : trips) {
+                    writeTrip(json, trip);
+                }
+                json.endArray();
+                json.name(MIN_TIME).value(fastest);
+                json.name(MIN_COST).value(cheapest);
+                json.endObject();
+            }
+        });
     }
 
 
@@ -291,29 +757,41 @@ public class RoutesService {
 
 
     /**
-     * Retrieves the fastest trip, total time and cost between two points
+     * Retrieves the fastest trip, total time and cost between two points, in the Map as it was at the
+     * <code>asOf</code> time when given
      */
     @Path("/fastest-trip/{from}/{to}")
     @GET
-    @Produces(MediaType.APPLICATION_JSON)
-    public Response getFastestTrip(@PathParam("from") String from, @PathParam("to") String to) throws JSONException {
-
-        Trip trip;
+    @Produces({ MediaType.APPLICATION_JSON, TripEncoder.MEDIA_TYPE })
+    public Response getFastestTrip(@PathParam("from") String from, @PathParam("to") String to,
+                                   @QueryParam("asOf") String asOf, @Context Request request) throws JSONException {
 
+        MapSnapshot map;
         try {
-            trip = DeliveryController.getInstance().getFastestTrip(from, to);
-        } catch (PointNotFoundException e) {
+            map = snapshot(asOf);
+        } catch (MapVersionNotFoundException | IllegalArgumentException e) {
             return errorResponse(e);
         }
+        boolean binary = acceptsBinary(request);
+        String key = "fastest-trip/" + from + '/' + to + (binary ? "?binary" : "");
+        Response cached = _responses.get(request, key, map.getVersion());
+        if (cached != null) {
+            return cached;
+        }
+        return _responses.record(key, map.getVersion(), unlessHead(request, TRIPS.call(new Callable<Response>() {
 
-        JSONObject jsonResult = new JSONObject();
-        JSONObject jsonTrip = tripToJSON(trip);
-        jsonResult.put(TRIP, jsonTrip);
-        jsonResult.put(TOTAL_TIME, trip.getTotalTime());
-        jsonResult.put(TOTAL_COST, trip.getTotalCost());
-
-        return response(jsonResult);
+            @Override
+            public Response call() {
 
+                Trip trip;
+                try {
+                    trip = _controller.getFastestTrip(map, from, to);
+                } catch (PointNotFoundException e) {
+                    return errorResponse(e);
+                }
+                return tripResponse(map, from, to, trip, binary);
+            }
+        })));
     }
 
 
@@ -321,29 +799,42 @@ public class RoutesService {
 
 
     /**
-     * Retrieves the cheapest trip, total time and cost between two points
+     * Retrieves the cheapest trip, total time and cost between two points, in the Map as it was at the
+     * <code>asOf</code> time when given
      */
 
     @Path("/cheapest-trip/{from}/{to}")
     @GET
-    @Produces(MediaType.APPLICATION_JSON)
-    public Response getCheapestTrip(@PathParam("from") String from, @PathParam("to") String to) throws JSONException {
-
-        Trip trip;
+    @Produces({ MediaType.APPLICATION_JSON, TripEncoder.MEDIA_TYPE })
+    public Response getCheapestTrip(@PathParam("from") String from, @PathParam("to") String to,
+                                   @QueryParam("asOf") String asOf, @Context Request request) throws JSONException {
 
+        MapSnapshot map;
         try {
-            trip = DeliveryController.getInstance().getCheapestTrip(from, to);
-        } catch (PointNotFoundException e) {
+            map = snapshot(asOf);
+        } catch (MapVersionNotFoundException | IllegalArgumentException e) {
             return errorResponse(e);
         }
+        boolean binary = acceptsBinary(request);
+        String key = "cheapest-trip/" + from + '/' + to + (binary ? "?binary" : "");
+        Response cached = _responses.get(request, key, map.getVersion());
+        if (cached != null) {
+            return cached;
+        }
+        return _responses.record(key, map.getVersion(), unlessHead(request, TRIPS.call(new Callable<Response>() {
 
-        JSONObject jsonResult = new JSONObject();
-        JSONObject jsonTrip = tripToJSON(trip);
-        jsonResult.put(TRIP, jsonTrip);
-        jsonResult.put(TOTAL_TIME, trip.getTotalTime());
-        jsonResult.put(TOTAL_COST, trip.getTotalCost());
+            @Override
+            public Response call() {
 
-        return response(jsonResult);
+                Trip trip;
+                try {
+                    trip = _controller.getCheapestTrip(map, from, to);
+                } catch (PointNotFoundException e) {
+                    return errorResponse(e);
+                }
+                return tripResponse(map, from, to, trip, binary);
+            }
+        })));
     }
 
 
@@ -357,10 +848,11 @@ public class RoutesService {
     @Secured
     @POST
     @Produces(MediaType.APPLICATION_JSON)
+    @Isolated(Bulkhead.MUTATIONS)
     public Response addPoint(@FormParam("point-name") String pointName) throws JSONException {
 
         try {
-            DeliveryController.getInstance().addPoint(new Point(pointName));
+            _controller.addPoint(new Point(pointName));
 
         } catch (ExistingPointException e) {
             return errorResponse(e);
@@ -374,6 +866,31 @@ public class RoutesService {
 
 
 
+    /**
+     * Delete a Point and all its Routes from the Map
+     */
+    @Path("/point/{point-name}")
+    @Secured
+    @DELETE
+    @Produces(MediaType.APPLICATION_JSON)
+    @Isolated(Bulkhead.MUTATIONS)
+    public Response deletePoint(@PathParam("point-name") String pointName) throws JSONException {
+
+        try {
+            _controller.deletePoint(pointName);
+
+        } catch (PointNotFoundException e) {
+            return errorResponse(e);
+        }
+        JSONObject jsonObject = new JSONObject();
+        jsonObject.put(RESULT, "The point (" + pointName + ") was deleted!");
+        return response(jsonObject);
+    }
+
+
+
+
+
     /**
      * Adds a Route between two Points in the Map
      */
@@ -381,12 +898,13 @@ public class RoutesService {
     @Secured
     @POST
     @Produces(MediaType.APPLICATION_JSON)
+    @Isolated(Bulkhead.MUTATIONS)
     public Response addRoute(@FormParam("from") String from, @FormParam("to") String to, @FormParam("time") int time,
                              @FormParam("cost") int cost)
                     throws JSONException {
 
         try {
-            DeliveryController.getInstance().addRoute(from, to, time, cost);
+            _controller.addRoute(from, to, time, cost);
         } catch (Exception e) {
             return errorResponse(e);
         }
@@ -407,13 +925,14 @@ public class RoutesService {
     @Secured
     @PUT
     @Produces(MediaType.APPLICATION_JSON)
+    @Isolated(Bulkhead.MUTATIONS)
     public Response updateRoute(@FormParam("from") String from, @FormParam("to") String to, @FormParam("time") int time,
                                 @FormParam("cost") int cost)
                     throws JSONException {
 
         try {
 
-            DeliveryController.getInstance().updateRoute(from, to, time, cost);
+            _controller.updateRoute(from, to, time, cost);
 
         } catch (Exception e) {
             return errorResponse(e);
@@ -435,10 +954,11 @@ public class RoutesService {
     @Secured
     @DELETE
     @Produces(MediaType.APPLICATION_JSON)
+    @Isolated(Bulkhead.MUTATIONS)
     public Response deleteRoute(@PathParam("from") String from, @PathParam("to") String to) throws JSONException {
 
         try {
-            DeliveryController.getInstance().deleteRoute(from, to);
+            _controller.deleteRoute(from, to);
 
         } catch (RouteNotFoundException e) {
             return errorResponse(e);
@@ -452,6 +972,42 @@ public class RoutesService {
 
 
 
+    /**
+     * Returns the current version of the Map, or the version at the <code>asOf</code> time when given
+     */
+    private MapSnapshot snapshot(String asOf) throws MapVersionNotFoundException {
+
+        return asOf == null ? _controller.snapshot() : _controller.snapshotAt(parseTime(asOf));
+    }
+
+
+
+
+
+    /**
+     * Parses the time of a time-travel read, as an ISO-8601 date and time with an offset (e.g.
+     * <code>2026-10-18T10:00:00Z</code>) or as milliseconds since the epoch
+     * 
+     * @throws IllegalArgumentException
+     *             When the time is in neither format
+     */
+    private static long parseTime(String time) {
+
+        try {
+            return OffsetDateTime.parse(time).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            try {
+                return Long.parseLong(time);
+            } catch (NumberFormatException notNumber) {
+                throw new IllegalArgumentException("The time [" + time + "] is not an ISO-8601 date and time", e);
+            }
+        }
+    }
+
+
+
+
+
     /**
      * Default Response
      */
@@ -498,20 +1054,147 @@ public class RoutesService {
 
 
     /**
-     * Converts a Trip to a JSONObject
+     * Streams a trip with its total time and cost
      */
-    private JSONObject tripToJSON(Trip trip) throws JSONException {
+    private Response tripResponse(MapSnapshot map, String from, String to, Trip trip, boolean binary) {
+
+        if (trip == null) {
+            return errorResponse(new RouteNotFoundException("There is no trip from [" + from + "] to [" + to + "]"));
+        }
+        if (binary) {
+            return binaryTrips(map, Collections.singletonList(trip));
+        }
+        return stream(new JsonContent() {
+
+            @Override
+            public void write(JsonWriter json) throws IOException {
+
+                json.beginObject();
+                json.name(TRIP);
+                writeTrip(json, trip);
+                json.name(TOTAL_TIME).value(trip.getTotalTime());
+                json.name(TOTAL_COST).value(trip.getTotalCost());
+                json.endObject();
+            }
+        });
+    }
+
+
+
+
 
-        JSONObject jsonTrip = new JSONObject();
-        JSONArray jsonRoutes = new JSONArray();
+    /**
+     * Gives back at once the place held in its bulkhead by the streamed trips of a HEAD request, whose body is not
+     * written
+     */
+    private static Response unlessHead(Request request, Response response) {
+
+        if (HttpMethod.HEAD.equals(request.getMethod())) {
+            Bulkhead.discard(response);
+        }
+        return response;
+    }
+
+
+
+
+
+    /**
+     * Returns whether the trips are sent in the binary format of <code>{@link TripEncoder}</code>, which the request
+     * accepts rather than JSON
+     */
+    private static boolean acceptsBinary(Request request) {
+
+        Variant variant = request.selectVariant(TRIP_VARIANTS);
+        return variant != null && BINARY_TRIPS.equals(variant.getMediaType());
+    }
+
+
+
+
+
+    /**
+     * Streams trips in the binary format of <code>{@link TripEncoder}</code>
+     */
+    private static Response binaryTrips(MapSnapshot map, List<Trip> trips) {
 
+        StreamingOutput output = new StreamingOutput() {
+
+            @Override
+            public void write(OutputStream out) throws IOException {
+
+                TripEncoder.write(map.getVersion(), trips, out);
+            }
+        };
+        return Response.ok(output, BINARY_TRIPS).build();
+    }
+
+
+
+
+
+    /**
+     * Returns a response that writes its JSON content directly to the output stream, as it is generated. With no
+     * length known in advance, the container sends it with chunked transfer encoding once its buffer is full.
+     */
+    private static Response stream(JsonContent content) {
+
+        StreamingOutput output = new StreamingOutput() {
+
+            @Override
+            public void write(OutputStream out) throws IOException {
+
+                JsonWriter json = new JsonWriter(out);
+                content.write(json);
+                json.flush();
+            }
+        };
+        return Response.ok(output, MediaType.APPLICATION_JSON_TYPE).build();
+    }
+
+
+
+
+
+    /**
+     * Writes a Route as a JSON object, from its cached encoding
+     */
+    private void writeRoute(JsonWriter json, Route r) throws IOException {
+
+        json.encoded(_fragments.route(r));
+    }
+
+
+
+
+
+    /**
+     * Writes a Trip as a JSON object
+     */
+    private void writeTrip(JsonWriter json, Trip trip) throws IOException {
+
+        json.beginObject();
+        json.name(ROUTES).beginArray();
         for (Route r : trip.getRoutes()) {
-            jsonRoutes.put(routeToJSON(r));
+            writeRoute(json, r);
         }
+        json.endArray();
+        json.name(TOTAL_TIME).value(trip.getTotalTime());
+        json.name(TOTAL_COST).value(trip.getTotalCost());
+        json.endObject();
+    }
+
+
+
 
-        jsonTrip.put(ROUTES, jsonRoutes);
-        jsonTrip.put(TOTAL_TIME, trip.getTotalTime());
-        jsonTrip.put(TOTAL_COST, trip.getTotalCost());
-        return jsonTrip;
+
+    /**
+     * The JSON content of a streamed response. The contents, as all the classes of the resource packages, are not
+     * lambdas: the class scanner of Jersey 1 can not read their bytecode.
+     */
+    private interface JsonContent {
+
+        void write(JsonWriter json) throws IOException;
     }
+
 }
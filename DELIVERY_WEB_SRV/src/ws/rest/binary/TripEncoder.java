@@ -0,0 +1,204 @@
+
+
+
+
+
+package ws.rest.binary;
+
+
+
+
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import delivery.entities.Point;
+import delivery.entities.Route;
+import delivery.route.entities.Trip;
+
+
+
+
+
+/***************************************************************************************
+ *
+ * Writes trips in a compact binary format, the alternative to their JSON for the clients that accept
+ * <code>{@value #MEDIA_TYPE}</code>.
+ *
+ * The names of the points are written once, in a dictionary, and each trip is the sequence of the indexes of its
+ * points in the dictionary, with the time and cost of its routes. The numbers are variable length ints, of 1 byte
+ * below 128: the unsigned ones (counts and indexes) as base 128 groups, least significant first, with the high bit set
+ * on all the groups but the last, and the signed ones (times and costs) the same once zigzag encoded, i.e.
+ * <code>(n << 1) ^ (n >> 63)</code>. The names are in UTF-8, prefixed by their length in bytes.
+ *
+ * <pre>
+ *   header   magic "DTRP" (4 bytes), format (1 byte), map version (signed)
+ *   points   n, then n x name
+ *   trips    m, then m x trip
+ *   trip     flags (1 byte: 1 fastest, 2 cheapest), routes k, k + 1 x point index,
+ *            k x route time, route cost (signed), total time, total cost (signed)
+ * </pre>
+ *
+ ***************************************************************************************/
+public final class TripEncoder {
+
+    /**
+     * The media type of the format
+     */
+    public static final String  MEDIA_TYPE  = "application/x-delivery-trips";
+
+    static final byte[]         MAGIC       = { 'D', 'T', 'R', 'P' };
+    static final int            FORMAT      = 1;
+
+    static final int            FASTEST     = 1;
+    static final int            CHEAPEST    = 2;
+
+    private static final int    BUFFER_SIZE = 8192;
+
+    private final OutputStream  _out;
+    private final byte[]        _buffer     = new byte[BUFFER_SIZE];
+    private int                 _size;
+
+
+
+
+
+    private TripEncoder(OutputStream out) {
+
+        _out = out;
+    }
+
+
+
+
+
+    /**
+     * Writes the trips found in a version of the Map. The stream is flushed, not closed.
+     */
+    public static void write(long version, List<Trip> trips, OutputStream out) throws IOException {
+
+        // the dictionary, in the order the points are first used
+        Map<Point, Integer> indexes = new HashMap<>();
+        List<Point> points = new ArrayList<>();
+        for (Trip trip : trips) {
+            for (Route r : trip.getRoutes()) {
+                index(indexes, points, r.getFromPoint());
+                index(indexes, points, r.getToPoint());
+            }
+        }
+
+        TripEncoder encoder = new TripEncoder(out);
+        encoder.bytes(MAGIC, 0, MAGIC.length);
+        encoder.unsigned(FORMAT);
+        encoder.signed(version);
+
+        encoder.unsigned(points.size());
+        for (Point p : points) {
+            byte[] name = p.getName().getBytes(StandardCharsets.UTF_8);
+            encoder.unsigned(name.length);
+            encoder.bytes(name, 0, name.length);
+        }
+
+        encoder.unsigned(trips.size());
+        for (Trip trip : trips) {
+            encoder.unsigned((trip.isFastest() ? FASTEST : 0) | (trip.isCheapest() ? CHEAPEST : 0));
+            List<Route> routes = trip.getRoutes();
+            encoder.unsigned(routes.size());
+            // the routes of a trip follow each other, so only the first one has its start point
+            if (!routes.isEmpty()) {
+                encoder.unsigned(indexes.get(routes.get(0).getFromPoint()));
+            }
+            for (Route r : routes) {
+                encoder.unsigned(indexes.get(r.getToPoint()));
+            }
+            for (Route r : routes) {
+                encoder.signed(r.getTime());
+                encoder.signed(r.getCost());
+            }
+            encoder.signed(trip.getTotalTime());
+            encoder.signed(trip.getTotalCost());
+        }
+        encoder.flush();
+    }
+
+
+
+
+
+    private static void index(Map<Point, Integer> indexes, List<Point> points, Point p) {
+
+        if (!indexes.containsKey(p)) {
+            indexes.put(p, points.size());
+            points.add(p);
+        }
+    }
+
+
+
+
+
+    private void unsigned(long value) throws IOException {
+
+        if (_buffer.length - _size < 10) {
+            drain();
+        }
+        long v = value;
+        while ((v & ~0x7FL) != 0) {
+            _buffer[_size++] = (byte) (v & 0x7F | 0x80);
+            v >>>= 7;
+        }
+        _buffer[_size++] = (byte) v;
+    }
+
+
+
+
+
+    private void signed(long value) throws IOException {
+
+        unsigned((value << 1) ^ (value >> 63));
+    }
+
+
+
+
+
+    private void bytes(byte[] b, int off, int len) throws IOException {
+
+        if (len > _buffer.length - _size) {
+            drain();
+            if (len > _buffer.length) {
+                _out.write(b, off, len);
+                return;
+            }
+        }
+        System.arraycopy(b, off, _buffer, _size, len);
+        _size += len;
+    }
+
+
+
+
+
+    private void flush() throws IOException {
+
+        drain();
+        _out.flush();
+    }
+
+
+
+
+
+    private void drain() throws IOException {
+
+        _out.write(_buffer, 0, _size);
+        _size = 0;
+    }
+
+}
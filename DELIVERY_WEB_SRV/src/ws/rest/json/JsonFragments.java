@@ -0,0 +1,215 @@
+
+
+
+
+
+package ws.rest.json;
+
+
+
+
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import delivery.database.MapChange;
+import delivery.database.MapChangeFeed;
+import delivery.database.MapMutation;
+import delivery.entities.Point;
+import delivery.entities.Route;
+import delivery.entities.RouteKey;
+import delivery.route.DeliveryController;
+
+
+
+
+
+/***************************************************************************************
+ *
+ * The JSON encodings of the Routes and Points of a Map, in UTF-8, so the responses are assembled by copying bytes
+ * instead of encoding the same Routes again in every trip.
+ *
+ * The encodings are cached on first use, and dropped when their Route is updated or deleted, or their Point deleted,
+ * as read from the change feed of the Map each time the cache is taken for a response. A cached Route encoding is only
+ * used for an equal Route, so a response for an older version of the Map never gets the encoding of a newer one, nor
+ * the reverse.
+ *
+ * The number of cached Routes and Points is bounded: once full, the other ones are encoded each time.
+ *
+ ***************************************************************************************/
+public final class JsonFragments {
+
+    /**
+     * The maximum number of cached Routes, and of cached Points
+     */
+    public static final int                                     MAX_ENTRIES = 1 << 18;
+
+    private static final int                                    FRAGMENT_SIZE = 128;
+
+    // the caches of the maps, dropped along with their controller
+    private static final Map<DeliveryController, JsonFragments> _instances  =
+                    Collections.synchronizedMap(new WeakHashMap<>());
+
+    private final ConcurrentHashMap<RouteKey, Fragment>         _routes     = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, byte[]>             _points     = new ConcurrentHashMap<>();
+
+    // the changes of the map not yet read, guarded by this
+    private final MapChangeFeed.Cursor                          _changes;
+
+
+
+
+
+    private JsonFragments(MapChangeFeed changes) {
+
+        _changes = changes.cursor();
+    }
+
+
+
+
+
+    /**
+     * Returns the cache of the Map of the given controller, without the encodings changed since it was last taken
+     */
+    public static JsonFragments of(DeliveryController controller) {
+
+        JsonFragments fragments;
+        synchronized (_instances) {
+            fragments = _instances.get(controller);
+            if (fragments == null) {
+                fragments = new JsonFragments(controller.getChangeFeed());
+                _instances.put(controller, fragments);
+            }
+        }
+        fragments.invalidate();
+        return fragments;
+    }
+
+
+
+
+
+    /**
+     * Returns the JSON object of a Route, with its points, time and cost
+     */
+    public byte[] route(Route r) {
+
+        RouteKey key = new RouteKey(r.getFromPoint(), r.getToPoint());
+        Fragment cached = _routes.get(key);
+        if (cached != null && cached._route.equals(r)) {
+            return cached._json;
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(FRAGMENT_SIZE);
+        try {
+            JsonWriter writer = new JsonWriter(out, FRAGMENT_SIZE);
+            writer.beginObject();
+            writer.name("from").value(r.getFromPoint().getName());
+            writer.name("to").value(r.getToPoint().getName());
+            writer.name("cost").value(r.getCost());
+            writer.name("time").value(r.getTime());
+            writer.endObject();
+            writer.flush();
+        } catch (IOException e) {
+            // not thrown in memory
+            throw new UncheckedIOException(e);
+        }
+        byte[] json = out.toByteArray();
+        if (cached != null || _routes.size() < MAX_ENTRIES) {
+            _routes.put(key, new Fragment(r, json));
+        }
+        return json;
+    }
+
+
+
+
+
+    /**
+     * Returns the JSON string of a Point name
+     */
+    public byte[] point(Point p) {
+
+        byte[] json = _points.get(p.getName());
+        if (json == null) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream(FRAGMENT_SIZE);
+            try {
+                new JsonWriter(out, FRAGMENT_SIZE).value(p.getName()).flush();
+            } catch (IOException e) {
+                // not thrown in memory
+                throw new UncheckedIOException(e);
+            }
+            json = out.toByteArray();
+            if (_points.size() < MAX_ENTRIES) {
+                _points.put(p.getName(), json);
+            }
+        }
+        return json;
+    }
+
+
+
+
+
+    /**
+     * Drops the encodings of the Routes and Points changed since the last use
+     */
+    private synchronized void invalidate() {
+
+        for (MapChange change = _changes.poll(); change != null; change = _changes.poll()) {
+            if (change.isReload()) {
+                _routes.clear();
+                _points.clear();
+                continue;
+            }
+            for (MapMutation mutation : change.getMutations()) {
+                switch (mutation.getType()) {
+                    case UPDATE_ROUTE:
+                    case DELETE_ROUTE:
+                        _routes.remove(mutation.getRouteKey());
+                        break;
+                    case DELETE_POINT:
+                        // its routes are not listed, they are only used again if they are added back unchanged
+                        _points.remove(mutation.getPoint().getName());
+                        break;
+                    case CLEAR_MAP:
+                        _routes.clear();
+                        _points.clear();
+                        break;
+                    default:
+                        break;
+                }
+            }
+        }
+    }
+
+
+
+
+
+    /**
+     * The encoding of a Route, with the Route to check that it is still the same
+     */
+    private static final class Fragment {
+
+        private final Route  _route;
+        private final byte[] _json;
+
+
+
+
+
+        Fragment(Route route, byte[] json) {
+
+            _route = route;
+            _json = json;
+        }
+    }
+
+}
@@ -0,0 +1,339 @@
+
+
+
+
+
+package ws.rest.json;
+
+
+
+
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+
+
+
+
+/***************************************************************************************
+ *
+ * Writes a JSON document to a stream as it is generated, in UTF-8, without building it in memory first.
+ *
+ * The values are encoded in a reused byte buffer, which is written to the stream when full: a response only takes the
+ * memory of that buffer, whatever its size, and its first bytes are sent while the rest is still generated. The
+ * separators are added as needed, e.g.
+ *
+ * <pre>
+ * json.beginObject().name("from").value("A").name("time").value(10).endObject();
+ * </pre>
+ *
+ * A writer is used by a single thread, and is not validated: the calls must make a well-formed document.
+ *
+ ***************************************************************************************/
+public final class JsonWriter {
+
+    private static final int    BUFFER_SIZE = 8192;
+
+    private static final byte[] HEX         = "0123456789abcdef".getBytes();
+
+    private final OutputStream  _out;
+    private final byte[]        _buffer;
+    private int                 _size;
+
+    // for each open object or array, true while it has no value, to know when a comma is needed
+    private boolean[]           _empty      = new boolean[16];
+    private int                 _depth;
+
+    // true between a name and its value
+    private boolean             _named;
+
+
+
+
+
+    public JsonWriter(OutputStream out) {
+
+        this(out, BUFFER_SIZE);
+    }
+
+
+
+
+
+    /**
+     * @param bufferSize
+     *            The size of the buffer, at least 32 bytes
+     */
+    public JsonWriter(OutputStream out, int bufferSize) {
+
+        _out = out;
+        _buffer = new byte[Math.max(32, bufferSize)];
+    }
+
+
+
+
+
+    public JsonWriter beginObject() throws IOException {
+
+        separate();
+        put('{');
+        open();
+        return this;
+    }
+
+
+
+
+
+    public JsonWriter endObject() throws IOException {
+
+        _depth--;
+        put('}');
+        return this;
+    }
+
+
+
+
+
+    public JsonWriter beginArray() throws IOException {
+
+        separate();
+        put('[');
+        open();
+        return this;
+    }
+
+
+
+
+
+    public JsonWriter endArray() throws IOException {
+
+        _depth--;
+        put(']');
+        return this;
+    }
+
+
+
+
+
+    /**
+     * Writes the name of the next member of the current object
+     */
+    public JsonWriter name(String name) throws IOException {
+
+        separate();
+        string(name);
+        put(':');
+        _named = true;
+        return this;
+    }
+
+
+
+
+
+    public JsonWriter value(String value) throws IOException {
+
+        separate();
+        if (value == null) {
+            ascii("null");
+        } else {
+            string(value);
+        }
+        return this;
+    }
+
+
+
+
+
+    public JsonWriter value(long value) throws IOException {
+
+        separate();
+        if (_buffer.length - _size < 20) {
+            drain();
+        }
+        if (value < 0) {
+            _buffer[_size++] = '-';
+        }
+        // the digits of the absolute value, in reverse order, as negative numbers to handle Long.MIN_VALUE
+        long v = value < 0 ? value : -value;
+        int start = _size;
+        do {
+            _buffer[_size++] = (byte) ('0' - v % 10);
+            v /= 10;
+        } while (v != 0);
+        for (int i = start, j = _size - 1; i < j; i++, j--) {
+            byte b = _buffer[i];
+            _buffer[i] = _buffer[j];
+            _buffer[j] = b;
+        }
+        return this;
+    }
+
+
+
+
+
+    public JsonWriter value(boolean value) throws IOException {
+
+        separate();
+        ascii(value ? "true" : "false");
+        return this;
+    }
+
+
+
+
+
+    /**
+     * Writes a value already encoded in JSON, in UTF-8
+     */
+    public JsonWriter encoded(byte[] json) throws IOException {
+
+        separate();
+        if (json.length > _buffer.length - _size) {
+            drain();
+            if (json.length > _buffer.length) {
+                _out.write(json);
+                return this;
+            }
+        }
+        System.arraycopy(json, 0, _buffer, _size, json.length);
+        _size += json.length;
+        return this;
+    }
+
+
+
+
+
+    /**
+     * Writes the generated bytes to the stream, and flushes it
+     */
+    public void flush() throws IOException {
+
+        drain();
+        _out.flush();
+    }
+
+
+
+
+
+    private void open() {
+
+        if (_depth == _empty.length) {
+            _empty = Arrays.copyOf(_empty, _depth * 2);
+        }
+        _empty[_depth++] = true;
+    }
+
+
+
+
+
+    /**
+     * Writes the comma before a value or a name, unless it is the first one of its object or array
+     */
+    private void separate() throws IOException {
+
+        if (_named) {
+            _named = false;
+        } else if (_depth > 0) {
+            if (_empty[_depth - 1]) {
+                _empty[_depth - 1] = false;
+            } else {
+                put(',');
+            }
+        }
+    }
+
+
+
+
+
+    private void string(String s) throws IOException {
+
+        put('"');
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (_buffer.length - _size < 6) {
+                drain();
+            }
+            if (c < 0x80) {
+                if (c == '"' || c == '\\') {
+                    _buffer[_size++] = '\\';
+                    _buffer[_size++] = (byte) c;
+                } else if (c < 0x20) {
+                    _buffer[_size++] = '\\';
+                    _buffer[_size++] = 'u';
+                    _buffer[_size++] = '0';
+                    _buffer[_size++] = '0';
+                    _buffer[_size++] = HEX[c >> 4];
+                    _buffer[_size++] = HEX[c & 0xF];
+                } else {
+                    _buffer[_size++] = (byte) c;
+                }
+            } else if (c < 0x800) {
+                _buffer[_size++] = (byte) (0xC0 | c >> 6);
+                _buffer[_size++] = (byte) (0x80 | c & 0x3F);
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int code = Character.toCodePoint(c, s.charAt(++i));
+                _buffer[_size++] = (byte) (0xF0 | code >> 18);
+                _buffer[_size++] = (byte) (0x80 | code >> 12 & 0x3F);
+                _buffer[_size++] = (byte) (0x80 | code >> 6 & 0x3F);
+                _buffer[_size++] = (byte) (0x80 | code & 0x3F);
+            } else if (Character.isSurrogate(c)) {
+                // an unpaired surrogate can not be encoded in UTF-8
+                _buffer[_size++] = '?';
+            } else {
+                _buffer[_size++] = (byte) (0xE0 | c >> 12);
+                _buffer[_size++] = (byte) (0x80 | c >> 6 & 0x3F);
+                _buffer[_size++] = (byte) (0x80 | c & 0x3F);
+            }
+        }
+        put('"');
+    }
+
+
+
+
+
+    private void ascii(String s) throws IOException {
+
+        for (int i = 0; i < s.length(); i++) {
+            put(s.charAt(i));
+        }
+    }
+
+
+
+
+
+    private void put(char c) throws IOException {
+
+        if (_size == _buffer.length) {
+            drain();
+        }
+        _buffer[_size++] = (byte) c;
+    }
+
+
+
+
+
+    private void drain() throws IOException {
+
+        _out.write(_buffer, 0, _size);
+        _size = 0;
+    }
+
+}